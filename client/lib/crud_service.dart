@@ -31,6 +31,13 @@ abstract class CrudService
   Future<bool> update(NodeEntity node);
 
   Future<bool> delete(int nodeId);
+
+  /**
+   * Saves [created], [updated] and [deleted] nodes in single call. New nodes
+   * have temporary negative ids. Returns map of temporary ids to saved ids or
+   * null if batch was rejected.
+   */
+  Future<Map<int, int>> batch(List<NodeEntity> created, List<NodeEntity> updated, List<int> deleted);
 }
 
 class RestCrudService implements CrudService
@@ -39,6 +46,7 @@ class RestCrudService implements CrudService
   static String URL_CREATE = '/rest/tree/create';
   static String URL_UPDATE = '/rest/tree/update';
   static String URL_DELETE = '/rest/tree/delete_id';
+  static String URL_BATCH = '/rest/tree/batch';
 
   Future<List<NodeEntity>> readAll() async
   {
@@ -97,4 +105,33 @@ class RestCrudService implements CrudService
     }
     return false;
   }
+
+  Map _toProperties(NodeEntity node)
+  {
+    return {'id' : node.nodeId, 'parentId' : node.parentId, 'value' : node.value};
+  }
+
+  Future<Map<int, int>> batch(List<NodeEntity> created, List<NodeEntity> updated, List<int> deleted) async
+  {
+    print('Crud: saving batch');
+    BrowserClient cli = new BrowserClient();
+    Map properties = {
+      'created' : new List.from(created.map(_toProperties)),
+      'updated' : new List.from(updated.map(_toProperties)),
+      'deleted' : deleted
+    };
+    var response = await cli.put(URL_BATCH, headers: {'content-type':'text/json'}, body: JSON.encode(properties));
+    if (response.statusCode == 200)
+    {
+      Map ids = JSON.decode(response.body);
+      Map<int, int> result = {};
+      ids.forEach((k, v) => result[int.parse(k)] = v);
+      return result;
+    }
+    else
+    {
+      print('Batch response error ${response.statusCode}');
+    }
+    return null;
+  }
 }
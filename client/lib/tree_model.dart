@@ -78,6 +78,10 @@ class Tree
       print('Root is deleted ${_deletedRoot.id}');
       return [_deletedRoot.id];
     }
+    if (_root == null)
+    {
+      return [];
+    }
     List<int> result = _collectDeleted(_root);
     print('Tree model: deleted nodes $result');
     return result;
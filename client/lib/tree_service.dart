@@ -1,5 +1,6 @@
 import 'dart:collection';
 import 'dart:async';
+import 'dart:convert';
 import 'dart:html';
 
 import 'package:client/tree_model.dart';
@@ -29,36 +30,63 @@ class TreeService
     this.tree = tree;
     this.crud = crud;
 
-    webSocket.onMessage.listen((MessageEvent e) => dirtyState = true);
+    webSocket.onMessage.listen((MessageEvent e) => _onChangeEvent(e.data));
   }
 
-  bool get autoSave => _autoSave;
-
   /**
-   * If [auto] is true, all modifications will be saved.
+   * Applies changes pushed by server to tree. If tree contains unsaved changes
+   * or server requests reset, tree is only marked as dirty and has to be reloaded.
    */
-  void set autoSave(bool auto)
+  void _onChangeEvent(String data)
   {
-    if (auto)
+    Map message = JSON.decode(data);
+    if (message['type'] != 'changes' || !_isSynchronized())
     {
-      save();
+      dirtyState = true;
+      return;
+    }
+    for (Map change in message['changes'])
+    {
+      int nodeId = change['nodeId'];
+      switch (change['operation'])
+      {
+        case 'CREATE':
+          if (tree.isEmpty || tree.getNode(nodeId) == null)
+          {
+            tree.addNode(nodeId, change['parentId'], change['value']);
+          }
+          break;
+        case 'UPDATE':
+          if (!tree.isEmpty)
+          {
+            tree.updateNode(nodeId, change['value']);
+          }
+          break;
+        case 'DELETE':
+          if (!tree.isEmpty)
+          {
+            tree.deleteNode(nodeId);
+          }
+          break;
+      }
     }
-    _autoSave = auto;
   }
 
+  bool _isSynchronized() => !dirtyState && tree.newNodes.isEmpty
+    && tree.changedNodes.isEmpty && tree.deletedNodes.isEmpty;
+
+  bool get autoSave => _autoSave;
+
   /**
-   * Sends change event to websocket, which will forward it to other open clients.
+   * If [auto] is true, all modifications will be saved.
    */
-  void sendEvent()
+  void set autoSave(bool auto)
   {
-    if (webSocket != null && webSocket.readyState == WebSocket.OPEN)
-    {
-      webSocket.send('Model change');
-    }
-    else
+    if (auto)
     {
-      print('Event not sent ${webSocket.readyState}');
+      save();
     }
+    _autoSave = auto;
   }
 
   /**
@@ -101,8 +129,11 @@ class TreeService
     if (autoSave)
     {
       NodeEntity entity = await crud.create(NodeEntity.newNode(parentId));
-      tree.addNode(entity.nodeId, parentId, entity.value);
-      sendEvent();
+      // node may be already added from change event
+      if (tree.isEmpty || tree.getNode(entity.nodeId) == null)
+      {
+        tree.addNode(entity.nodeId, parentId, entity.value);
+      }
     }
     else
     {
@@ -124,7 +155,6 @@ class TreeService
     {
       await crud.delete(nodeId);
       tree.deleteNode(nodeId);
-      sendEvent();
     }
     else
     {
@@ -147,7 +177,6 @@ class TreeService
       TreeNode tn = tree.getNode(nodeId);
       await crud.update(new NodeEntity(nodeId, tn.parentId, value));
       tree.updateNode(nodeId, value);
-      sendEvent();
     }
     else
     {
@@ -160,33 +189,6 @@ class TreeService
     return true;
   }
 
-  Future<bool> _saveNewNodes(List<NodeEntity> newNodes) async
-  {
-    Map<int, int> newIds = {};
-    for (NodeEntity nn in newNodes)
-    {
-      print('Entity to save $nn');
-      if (nn.parentId == null || nn.parentId >= 0)
-      {
-        print('Creating node ${nn.nodeId} in parent ${nn.parentId}');
-        NodeEntity sn = await crud.create(nn);
-        newIds[nn.nodeId] = sn.nodeId;
-      }
-      else if (newIds.containsKey(nn.parentId))
-      {
-        nn.parentId = newIds[nn.parentId];
-        print('Creating node ${nn.nodeId}:${nn.parentId}');
-        NodeEntity sn = await crud.create(nn);
-        newIds[nn.nodeId] = sn.nodeId;
-      }
-      else
-      {
-        print('parent with  id ${nn.parentId} is unknown');
-      }
-    }
-    return true;
-  }
-
   /**
    * Saves all changes since last commit.
    */
@@ -194,17 +196,12 @@ class TreeService
   {
     if (!autoSave && !dirtyState)
     {
-      await _saveNewNodes(tree.newNodes.map((n) => new NodeEntity(n.id, n.parentId, n.value)));
-      for (NodeEntity e in tree.changedNodes.map((n) => new NodeEntity(n.id, n.parentId, n.value)))
-      {
-        await crud.update(e);
-      }
-      for (int nid in tree.deletedNodes)
-      {
-        await crud.delete(nid);
-      }
+      // all changes are saved in single transaction
+      await crud.batch(
+        new List.from(tree.newNodes.map((n) => new NodeEntity(n.id, n.parentId, n.value))),
+        new List.from(tree.changedNodes.map((n) => new NodeEntity(n.id, n.parentId, n.value))),
+        tree.deletedNodes);
       refreshAll();
-      sendEvent();
       return true;
     }
     return false;
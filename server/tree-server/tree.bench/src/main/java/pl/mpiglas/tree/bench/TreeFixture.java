@@ -0,0 +1,222 @@
+package pl.mpiglas.tree.bench;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import javax.ejb.SessionContext;
+import javax.enterprise.event.Event;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.Persistence;
+
+import pl.mpiglas.tree.ejb.core.ChangeLog;
+import pl.mpiglas.tree.ejb.core.TreeGenerator;
+import pl.mpiglas.tree.ejb.core.TreeManager;
+import pl.mpiglas.tree.ejb.core.TreeModifiedEvent;
+import pl.mpiglas.tree.ejb.store.JpaTreeStore;
+import pl.mpiglas.tree.ejb.store.MemoryTreeStore;
+import pl.mpiglas.tree.ejb.store.TreeRowConsumer;
+import pl.mpiglas.tree.ejb.store.TreeStore;
+import pl.mpiglas.tree.model.transfer.TreeNode;
+
+/**
+ * {@link TreeManager} wired outside of container, on embedded H2 database.
+ * Each call of manager runs in its own transaction and persistence context,
+ * as container managed transaction of stateless bean would. Events are not
+ * observed.
+ *
+ * @author mpiglas
+ *
+ */
+final class TreeFixture implements AutoCloseable {
+
+	private final EntityManagerFactory emf;
+	private final EntityManager em;
+	private final TreeManager manager;
+	private final List<Long> ids = new ArrayList<>();
+
+	/**
+	 * Creates manager and generates random tree.
+	 *
+	 * @param store
+	 *            {@link TreeStore#JPA} or {@link TreeStore#MEMORY}
+	 * @param size
+	 *            number of nodes of tree
+	 */
+	TreeFixture(String store, int size) {
+		emf = Persistence.createEntityManagerFactory("benchUnit");
+		em = emf.createEntityManager();
+
+		JpaTreeStore jpaStore = new JpaTreeStore();
+		inject(jpaStore, "em", em);
+		inject(jpaStore, "context", sessionContext());
+		jpaStore.init();
+		MemoryTreeStore memoryStore = new MemoryTreeStore();
+		memoryStore.init();
+		System.setProperty(TreeStore.STORE_PROPERTY, store);
+		ChangeLog changeLog = new ChangeLog();
+		inject(changeLog, "em", em);
+		inject(changeLog, "memoryStore", memoryStore);
+		inTransaction(() -> {
+			changeLog.init();
+			return null;
+		});
+
+		manager = new TransactionalManager();
+		inject(manager, "jpaStore", jpaStore);
+		inject(manager, "memoryStore", memoryStore);
+		inject(manager, "changeLog", changeLog);
+		inject(manager, "treeModified", event());
+		manager.init();
+
+		new TreeGenerator(size, 10, 20, TreeGenerator.Shape.RANDOM, 42)
+				.generate(manager);
+		manager.forEachRow((id, parentId, value) -> ids.add(id));
+	}
+
+	TreeManager getManager() {
+		return manager;
+	}
+
+	/**
+	 * Returns ids of generated nodes.
+	 *
+	 * @return ids ordered by id.
+	 */
+	List<Long> getIds() {
+		return ids;
+	}
+
+	/**
+	 * Runs query directly on entity manager, in its own transaction and
+	 * persistence context like calls of manager.
+	 *
+	 * @param query
+	 *            reads from entity manager
+	 * @return result of query.
+	 */
+	<T> T query(Function<EntityManager, T> query) {
+		return inTransaction(() -> query.apply(em));
+	}
+
+	private <T> T inTransaction(Supplier<T> work) {
+		EntityTransaction transaction = em.getTransaction();
+		transaction.begin();
+		try {
+			T result = work.get();
+			if (transaction.getRollbackOnly()) {
+				transaction.rollback();
+			} else {
+				transaction.commit();
+			}
+			return result;
+		} catch (RuntimeException e) {
+			if (transaction.isActive()) {
+				transaction.rollback();
+			}
+			throw e;
+		} finally {
+			em.clear();
+		}
+	}
+
+	/**
+	 * Runs operations used by benchmarks in transaction.
+	 */
+	private final class TransactionalManager extends TreeManager {
+
+		@Override
+		public Optional<TreeNode> create(TreeNode newNode) {
+			return inTransaction(() -> super.create(newNode));
+		}
+
+		@Override
+		public boolean update(TreeNode node) {
+			return inTransaction(() -> super.update(node));
+		}
+
+		@Override
+		public boolean deleteById(Long nodeId) {
+			return inTransaction(() -> super.deleteById(nodeId));
+		}
+
+		@Override
+		public List<TreeNode> getAll() {
+			return inTransaction(super::getAll);
+		}
+
+		@Override
+		public void forEachRow(TreeRowConsumer consumer) {
+			inTransaction(() -> {
+				super.forEachRow(consumer);
+				return null;
+			});
+		}
+
+		@Override
+		public Optional<Map<Long, Long>> createSubtree(List<TreeNode> nodes) {
+			return inTransaction(() -> super.createSubtree(nodes));
+		}
+
+		@Override
+		public Optional<Map<Long, Long>> importNodes(List<TreeNode> nodes) {
+			return inTransaction(() -> super.importNodes(nodes));
+		}
+	}
+
+	/**
+	 * Context that marks current transaction for rollback, the only method
+	 * used by stores.
+	 */
+	private SessionContext sessionContext() {
+		return (SessionContext) Proxy.newProxyInstance(
+				getClass().getClassLoader(),
+				new Class<?>[] { SessionContext.class },
+				(proxy, method, args) -> {
+					if (!method.getName().equals("setRollbackOnly")) {
+						throw new UnsupportedOperationException(method.getName());
+					}
+					em.getTransaction().setRollbackOnly();
+					return null;
+				});
+	}
+
+	@SuppressWarnings("unchecked")
+	private Event<TreeModifiedEvent> event() {
+		return (Event<TreeModifiedEvent>) Proxy.newProxyInstance(
+				getClass().getClassLoader(), new Class<?>[] { Event.class },
+				(proxy, method, args) -> method.getName().equals("select")
+						? proxy : null);
+	}
+
+	private static void inject(Object bean, String name, Object value) {
+		for (Class<?> type = bean.getClass(); type != null; type = type
+				.getSuperclass()) {
+			try {
+				Field field = type.getDeclaredField(name);
+				field.setAccessible(true);
+				field.set(bean, value);
+				return;
+			} catch (NoSuchFieldException e) {
+				// declared by superclass
+			} catch (IllegalAccessException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		throw new IllegalArgumentException("No field " + name + " in "
+				+ bean.getClass());
+	}
+
+	@Override
+	public void close() {
+		em.close();
+		emf.close();
+	}
+}
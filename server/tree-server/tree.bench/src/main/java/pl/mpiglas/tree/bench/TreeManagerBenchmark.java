@@ -0,0 +1,105 @@
+package pl.mpiglas.tree.bench;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pl.mpiglas.tree.ejb.core.TreeManager;
+import pl.mpiglas.tree.model.transfer.TreeNode;
+
+/**
+ * Measures operations of {@link TreeManager} on random tree of given size,
+ * see {@link TreeFixture}. Created nodes are added under random nodes, so
+ * tree grows slightly during measurement. Deleted nodes are leaves created
+ * before each call.
+ *
+ * @author mpiglas
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TreeManagerBenchmark {
+
+	@Param({ "1000", "10000", "100000", "1000000" })
+	int size;
+
+	@Param({ "jpa", "memory" })
+	String store;
+
+	private TreeFixture fixture;
+	private TreeManager manager;
+	private List<Long> ids;
+	private Random random;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		fixture = new TreeFixture(store, size);
+		manager = fixture.getManager();
+		ids = fixture.getIds();
+		random = new Random(42);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		fixture.close();
+	}
+
+	private Long randomId() {
+		return ids.get(random.nextInt(ids.size()));
+	}
+
+	@Benchmark
+	public TreeNode create() {
+		return manager.create(TreeNode.newNode(randomId(), 1d)).get();
+	}
+
+	@Benchmark
+	public boolean update() {
+		TreeNode node = TreeNode.newNode(null, (double) random.nextInt(1000));
+		node.setId(randomId());
+		return manager.update(node);
+	}
+
+	/**
+	 * Leaf to delete, created outside of measured call.
+	 */
+	@State(Scope.Thread)
+	public static class Leaf {
+		Long id;
+
+		@Setup(Level.Invocation)
+		public void create(TreeManagerBenchmark benchmark) {
+			id = benchmark.manager.create(TreeNode.newNode(
+					benchmark.randomId(), 1d)).get().getId();
+		}
+	}
+
+	@Benchmark
+	public boolean deleteById(Leaf leaf) {
+		return manager.deleteById(leaf.id);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	public List<TreeNode> getAll() {
+		return manager.getAll();
+	}
+}
@@ -0,0 +1,121 @@
+package pl.mpiglas.tree.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import pl.mpiglas.tree.model.entity.TreeNodeEntity;
+import pl.mpiglas.tree.model.transfer.TreeNode;
+
+/**
+ * Measures mapping of entities to domain objects and JSON serialization of
+ * list returned by {@link pl.mpiglas.tree.ejb.core.TreeManager#getAll()}.
+ * Lists are built in memory, database isn't used.
+ *
+ * Endpoint serializes whole list with JAX-RS provider, which is Jackson, and
+ * streams nodes with JSON-P generator, so both are measured.
+ *
+ * @author mpiglas
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TreeMappingBenchmark {
+
+	@Param({ "1000", "10000", "100000", "1000000" })
+	int size;
+
+	private List<TreeNodeEntity> entities;
+	private List<TreeNode> nodes;
+	private ObjectMapper mapper;
+
+	/**
+	 * Discards serialized bytes, so only encoding is measured.
+	 */
+	private static final class NullOutputStream extends OutputStream {
+		@Override
+		public void write(int b) {
+			// discarded
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			// discarded
+		}
+	}
+
+	@Setup
+	public void setUp() {
+		Random random = new Random(42);
+		entities = new ArrayList<>(size);
+		nodes = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			TreeNodeEntity entity = new TreeNodeEntity();
+			entity.setId(i + 1L);
+			entity.setNodeValue((double) random.nextInt(1000));
+			if (i > 0) {
+				entity.setParent(entities.get(random.nextInt(i)));
+			}
+			entities.add(entity);
+			nodes.add(TreeNode.fromEntity(entity));
+		}
+		mapper = new ObjectMapper();
+	}
+
+	@Benchmark
+	public List<TreeNode> fromEntity() {
+		List<TreeNode> result = new ArrayList<>(entities.size());
+		for (TreeNodeEntity entity : entities) {
+			result.add(TreeNode.fromEntity(entity));
+		}
+		return result;
+	}
+
+	@Benchmark
+	public void jacksonGetAll() throws IOException {
+		mapper.writeValue(new NullOutputStream(), nodes);
+	}
+
+	@Benchmark
+	public void jsonpStream(Blackhole blackhole) {
+		try (JsonGenerator json = Json.createGenerator(new NullOutputStream())) {
+			json.writeStartArray();
+			for (TreeNode node : nodes) {
+				json.writeStartObject().write("id", node.getId());
+				if (node.getParentId() != null) {
+					json.write("parentId", node.getParentId());
+				} else {
+					json.writeNull("parentId");
+				}
+				json.write("value", node.getValue()).writeEnd();
+			}
+			json.writeEnd();
+			blackhole.consume(json);
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package pl.mpiglas.tree.bench;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pl.mpiglas.tree.model.entity.TreeNodeEntity;
+import pl.mpiglas.tree.model.transfer.TreeNode;
+
+/**
+ * Compares reading nodes as entities, mapped with
+ * {@link TreeNode#fromEntity(TreeNodeEntity)}, with constructor projection
+ * used by {@link pl.mpiglas.tree.ejb.core.TreeManager}. Entity of node
+ * fetches chain of its ancestors up to hibernate.max_fetch_depth, projection
+ * reads id, parent's id and value. Run with -prof gc to compare allocation
+ * rate.
+ *
+ * @author mpiglas
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TreeQueryBenchmark {
+
+	@Param({ "1000", "10000", "100000" })
+	int size;
+
+	private TreeFixture fixture;
+	private List<Long> ids;
+	private Random random;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		fixture = new TreeFixture("jpa", size);
+		ids = fixture.getIds();
+		random = new Random(42);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		fixture.close();
+	}
+
+	private Long randomId() {
+		return ids.get(random.nextInt(ids.size()));
+	}
+
+	@Benchmark
+	public List<TreeNode> getAllEntities() {
+		return fixture.query(em -> em
+				.createNamedQuery(TreeNodeEntity.FIND_ALL_QUERY, TreeNodeEntity.class)
+				.getResultList().stream().map(TreeNode::fromEntity)
+				.collect(Collectors.toList()));
+	}
+
+	@Benchmark
+	public List<TreeNode> getAllProjection() {
+		return fixture.query(em -> em
+				.createNamedQuery(TreeNodeEntity.FIND_ALL_NODES_QUERY, TreeNode.class)
+				.getResultList());
+	}
+
+	@Benchmark
+	public TreeNode getNodeEntity() {
+		Long id = randomId();
+		return fixture.query(em -> TreeNode.fromEntity(em.find(
+				TreeNodeEntity.class, id)));
+	}
+
+	@Benchmark
+	public TreeNode getNodeProjection() {
+		Long id = randomId();
+		return fixture.query(em -> em
+				.createNamedQuery(TreeNodeEntity.FIND_NODE_PROJECTION, TreeNode.class)
+				.setParameter(TreeNodeEntity.NODE_ID_PARAM, id)
+				.getSingleResult());
+	}
+}
@@ -0,0 +1,147 @@
+package pl.mpiglas.tree.bench;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pl.mpiglas.tree.ejb.core.TreeManager;
+import pl.mpiglas.tree.model.transfer.TreeNode;
+
+/**
+ * Measures operations of {@link TreeManager} on subtrees of given size,
+ * added under random nodes of tree generated by {@link TreeFixture}. In
+ * subtree each node has four children, so its depth grows with logarithm of
+ * size. Bulk creation is compared with creating the same nodes one by one,
+ * each in its own transaction, and created subtree is deleted after each
+ * call, so tree doesn't grow.
+ *
+ * @author mpiglas
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TreeSubtreeBenchmark {
+
+	@Param({ "100000" })
+	int size;
+
+	@Param({ "10", "100", "1000", "10000" })
+	int subtreeSize;
+
+	@Param({ "jpa", "memory" })
+	String store;
+
+	private TreeFixture fixture;
+	private TreeManager manager;
+	private List<Long> ids;
+	private Random random;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		fixture = new TreeFixture(store, size);
+		manager = fixture.getManager();
+		ids = fixture.getIds();
+		random = new Random(42);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		fixture.close();
+	}
+
+	/**
+	 * Builds new subtree under random node. Node with temporary id -i is
+	 * child of node -(i + 2) / 4.
+	 */
+	private List<TreeNode> subtree() {
+		Long parentId = ids.get(random.nextInt(ids.size()));
+		List<TreeNode> nodes = new ArrayList<>(subtreeSize);
+		for (long i = 1; i <= subtreeSize; i++) {
+			TreeNode node = TreeNode.newNode(i == 1 ? parentId : -((i + 2) / 4),
+					(double) i);
+			node.setId(-i);
+			nodes.add(node);
+		}
+		return nodes;
+	}
+
+	/**
+	 * Subtree to delete, created outside of measured call.
+	 */
+	@State(Scope.Thread)
+	public static class Branch {
+		Long id;
+
+		@Setup(Level.Invocation)
+		public void create(TreeSubtreeBenchmark benchmark) {
+			id = benchmark.manager.createSubtree(benchmark.subtree()).get()
+					.get(-1L);
+		}
+	}
+
+	@Benchmark
+	public boolean deleteById(Branch branch) {
+		return manager.deleteById(branch.id);
+	}
+
+	/**
+	 * Subtree to create, deleted outside of measured call.
+	 */
+	@State(Scope.Thread)
+	public static class NewSubtree {
+		List<TreeNode> nodes;
+		Long id;
+		private TreeManager manager;
+
+		@Setup(Level.Invocation)
+		public void build(TreeSubtreeBenchmark benchmark) {
+			manager = benchmark.manager;
+			nodes = benchmark.subtree();
+		}
+
+		@TearDown(Level.Invocation)
+		public void delete() {
+			manager.deleteById(id);
+		}
+	}
+
+	@Benchmark
+	public Long createSubtree(NewSubtree subtree) {
+		subtree.id = manager.createSubtree(subtree.nodes).get().get(-1L);
+		return subtree.id;
+	}
+
+	@Benchmark
+	public Long createEach(NewSubtree subtree) {
+		Map<Long, Long> created = new HashMap<>();
+		for (TreeNode node : subtree.nodes) {
+			Long parentId = node.getParentId() < 0
+					? created.get(node.getParentId()) : node.getParentId();
+			created.put(node.getId(), manager.create(
+					TreeNode.newNode(parentId, node.getValue())).get().getId());
+		}
+		subtree.id = created.get(-1L);
+		return subtree.id;
+	}
+}
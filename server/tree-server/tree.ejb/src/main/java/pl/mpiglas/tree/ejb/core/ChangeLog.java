@@ -0,0 +1,195 @@
+package pl.mpiglas.tree.ejb.core;
+
+import java.util.List;
+
+import javax.annotation.PostConstruct;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.EJB;
+import javax.ejb.Schedule;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
+import javax.persistence.PersistenceContext;
+
+import org.jboss.logging.Logger;
+
+import pl.mpiglas.tree.ejb.store.MemoryChangeLog;
+import pl.mpiglas.tree.ejb.store.MemoryTreeStore;
+import pl.mpiglas.tree.model.entity.TreeChangeEntity;
+import pl.mpiglas.tree.model.entity.TreeRevisionEntity;
+import pl.mpiglas.tree.model.transfer.TreeChange;
+
+/**
+ * Append-only log of tree modifications. Each transaction that modifies tree
+ * allocates new revision and records its changes tagged with that revision.
+ * Allocation locks revision row until end of transaction, so changes of
+ * revision are visible only if all older revisions are already committed.
+ * 
+ * Log is periodically compacted: changes older than
+ * {@link #RETAINED_REVISIONS} revisions are removed.
+ * 
+ * When tree is kept in memory, see {@link MemoryTreeStore#isSelected()}, all
+ * calls are passed to {@link MemoryChangeLog} of store and database is not
+ * used.
+ * 
+ * @author mpiglas
+ *
+ */
+@Singleton
+@Startup
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class ChangeLog {
+
+	/**
+	 * Number of the latest revisions kept in log.
+	 */
+	public static final long RETAINED_REVISIONS = 100000;
+
+	private Logger logger;
+
+	@PersistenceContext(name = "storageUnit")
+	EntityManager em;
+
+	@EJB
+	MemoryTreeStore memoryStore;
+
+	/**
+	 * Log of memory store or null if log is kept in database.
+	 */
+	private MemoryChangeLog memoryLog;
+
+	/**
+	 * Inits bean and creates revision row if it doesn't exist.
+	 */
+	@PostConstruct
+	@TransactionAttribute(TransactionAttributeType.REQUIRED)
+	public void init() {
+		logger = Logger.getLogger(ChangeLog.class);
+		if (MemoryTreeStore.isSelected()) {
+			memoryLog = memoryStore.getChangeLog();
+			return;
+		}
+		if (em.find(TreeRevisionEntity.class, TreeRevisionEntity.SINGLE_ID) == null) {
+			TreeRevisionEntity entity = new TreeRevisionEntity();
+			entity.setId(TreeRevisionEntity.SINGLE_ID);
+			em.persist(entity);
+		}
+	}
+
+	private TreeRevisionEntity lockRevision() {
+		return em.find(TreeRevisionEntity.class, TreeRevisionEntity.SINGLE_ID,
+				LockModeType.PESSIMISTIC_WRITE);
+	}
+
+	/**
+	 * Allocates revision for modifications made in current transaction.
+	 * Concurrent transactions that modify tree wait until this transaction
+	 * ends.
+	 * 
+	 * @return new revision.
+	 */
+	public long nextRevision() {
+		if (memoryLog != null) {
+			return memoryLog.nextRevision();
+		}
+		TreeRevisionEntity entity = lockRevision();
+		entity.setRevision(entity.getRevision() + 1);
+		return entity.getRevision();
+	}
+
+	/**
+	 * Records change in log.
+	 * 
+	 * @param change
+	 *            modification of tree, tagged with allocated revision
+	 */
+	public void record(TreeChange change) {
+		if (memoryLog != null) {
+			memoryLog.record(change);
+			return;
+		}
+		em.persist(TreeChangeEntity.fromChange(change));
+	}
+
+	/**
+	 * Allocates revision and removes all changes from log. Used when all nodes
+	 * are removed without recording changes, so clients have to read whole
+	 * tree.
+	 * 
+	 * @return new revision.
+	 */
+	public long reset() {
+		if (memoryLog != null) {
+			return memoryLog.reset();
+		}
+		TreeRevisionEntity entity = lockRevision();
+		entity.setRevision(entity.getRevision() + 1);
+		entity.setCompactedRevision(entity.getRevision());
+		em.createNamedQuery(TreeChangeEntity.DELETE_CHANGES)
+				.setParameter(TreeChangeEntity.UNTIL_PARAM, entity.getRevision())
+				.executeUpdate();
+		return entity.getRevision();
+	}
+
+	/**
+	 * Reads the latest committed revision and revision up to which log was
+	 * compacted.
+	 * 
+	 * @return detached revision entity.
+	 */
+	public TreeRevisionEntity getRevision() {
+		if (memoryLog != null) {
+			return memoryLog.getRevision();
+		}
+		TreeRevisionEntity entity = em.find(TreeRevisionEntity.class,
+				TreeRevisionEntity.SINGLE_ID);
+		em.detach(entity);
+		return entity;
+	}
+
+	/**
+	 * Reads changes from given range of revisions.
+	 * 
+	 * @param since
+	 *            changes with greater revision are read
+	 * @param until
+	 *            changes with lower or equal revision are read
+	 * @param limit
+	 *            maximal number of changes
+	 * @return list of changes ordered by revision.
+	 */
+	public List<TreeChange> getChanges(long since, long until, int limit) {
+		if (memoryLog != null) {
+			return memoryLog.getChanges(since, until, limit);
+		}
+		return em.createNamedQuery(TreeChangeEntity.FIND_CHANGES, TreeChange.class)
+				.setParameter(TreeChangeEntity.SINCE_PARAM, since)
+				.setParameter(TreeChangeEntity.UNTIL_PARAM, until)
+				.setMaxResults(limit).getResultList();
+	}
+
+	/**
+	 * Removes changes older than {@link #RETAINED_REVISIONS} revisions.
+	 */
+	@Schedule(hour = "*", minute = "*/10", persistent = false)
+	public void compact() {
+		if (memoryLog != null) {
+			// memory log is compacted when changes are recorded
+			return;
+		}
+		TreeRevisionEntity entity = lockRevision();
+		long until = entity.getRevision() - RETAINED_REVISIONS;
+		if (until > entity.getCompactedRevision()) {
+			int removed = em.createNamedQuery(TreeChangeEntity.DELETE_CHANGES)
+					.setParameter(TreeChangeEntity.UNTIL_PARAM, until)
+					.executeUpdate();
+			entity.setCompactedRevision(until);
+			logger.infov("Change log compacted up to revision {0}, {1} changes removed",
+					until, removed);
+		}
+	}
+}
@@ -1,11 +1,12 @@
 package pl.mpiglas.tree.ejb.core;
 
-import java.util.Optional;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.ejb.EJB;
 import javax.ejb.Stateless;
-import javax.persistence.EntityManager;
-import javax.persistence.PersistenceContext;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
 
 import pl.mpiglas.tree.model.transfer.TreeNode;
 
@@ -20,35 +21,74 @@ public class SetupManager {
 	@EJB
 	TreeManager tm;
 	
-	@PersistenceContext(name = "storageUnit")
-	EntityManager em;
+	@EJB
+	UpdateBuffer updateBuffer;
 	
 	/**
-	 * Inits sample tree.
+	 * Inits sample tree. Whole tree is created with single bulk insert.
 	 */
 	public void initSampleTree()
 	{
-		Optional<TreeNode> node = tm.create(TreeNode.newNode(null, 10d));
-		createChildren(node.get(), 2, 1);
+		List<TreeNode> nodes = new ArrayList<>();
+		TreeNode root = newNode(nodes, null, 10d);
+		createChildren(nodes, root, 2, 1);
+		tm.createSubtree(nodes);
 	}
 	
-	private void createChildren(TreeNode parent, int level, double mul)
+	private void createChildren(List<TreeNode> nodes, TreeNode parent, int level, double mul)
 	{
-		Optional<TreeNode> sub1 = tm.create(TreeNode.newNode(parent.getId(), mul * Math.pow(10, level)));
-		Optional<TreeNode> sub2 = tm.create(TreeNode.newNode(parent.getId(), (mul+1) * Math.pow(10, level)));
+		TreeNode sub1 = newNode(nodes, parent.getId(), mul * Math.pow(10, level));
+		TreeNode sub2 = newNode(nodes, parent.getId(), (mul+1) * Math.pow(10, level));
 		if (level < 5)
 		{
-			createChildren(sub1.get(), level+1, mul);
-			createChildren(sub2.get(), level+1, mul);
+			createChildren(nodes, sub1, level+1, mul);
+			createChildren(nodes, sub2, level+1, mul);
 		}
 	}
 	
 	/**
-	 * Remove all nodes from tree.
+	 * Adds new node with next temporary id.
+	 */
+	private static TreeNode newNode(List<TreeNode> nodes, Long parentId, double value)
+	{
+		TreeNode node = TreeNode.newNode(parentId, value);
+		node.setId(-1L - nodes.size());
+		nodes.add(node);
+		return node;
+	}
+	
+	/**
+	 * Replaces tree with synthetic one, see {@link TreeGenerator}. Nodes are
+	 * saved in chunks, each in its own transaction.
+	 * 
+	 * @param nodes
+	 *            number of nodes
+	 * @param fanout
+	 *            maximal number of children of node
+	 * @param depth
+	 *            maximal depth of node, root has depth 0
+	 * @param shape
+	 *            order in which parents are chosen
+	 * @param seed
+	 *            seed of random values and parents
+	 * @return number of saved nodes.
+	 */
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public long generateTree(int nodes, int fanout, int depth,
+			TreeGenerator.Shape shape, long seed)
+	{
+		updateBuffer.discardBefore(tm::deleteAll);
+		return new TreeGenerator(nodes, fanout, depth, shape, seed).generate(tm);
+	}
+	
+	/**
+	 * Remove all nodes from tree. Change log is cleared, so clients read
+	 * snapshot of empty tree. Values buffered by {@link UpdateBuffer} are
+	 * dropped.
 	 */
 	public void clearDb()
 	{
-		em.createQuery("DELETE FROM TreeNodeEntity e").executeUpdate();
+		updateBuffer.discardBefore(tm::deleteAll);
 	}
 	
 	
@@ -0,0 +1,215 @@
+package pl.mpiglas.tree.ejb.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+
+import org.jboss.logging.Logger;
+
+import pl.mpiglas.tree.model.transfer.TreeNode;
+
+/**
+ * Generates synthetic tree for load tests. Each node has at most given number
+ * of children and tree is not deeper than given depth. The same parameters
+ * and seed always give the same tree and values.
+ *
+ * Parent of each new node is chosen from nodes that still may have children,
+ * in order given by {@link Shape}. Nodes are saved in chunks of
+ * {@link #CHUNK_SIZE} nodes, each in its own transaction, see
+ * {@link TreeManager#importNodes(List)}. Besides current chunk, only ids,
+ * depths and numbers of children of generated nodes are kept in arrays.
+ *
+ * @author mpiglas
+ *
+ */
+public final class TreeGenerator {
+
+	/**
+	 * Order in which parents of new nodes are chosen.
+	 */
+	public enum Shape {
+		/**
+		 * Parents are filled level by level, tree is as shallow as possible.
+		 */
+		BALANCED,
+		/**
+		 * The newest node is parent of next one, tree grows depth first.
+		 */
+		SKEWED,
+		/**
+		 * Parent is chosen at random.
+		 */
+		RANDOM
+	}
+
+	/**
+	 * Number of nodes saved in single transaction.
+	 */
+	public static final int CHUNK_SIZE = 1000;
+	/**
+	 * Maximal number of generated nodes.
+	 */
+	public static final int MAX_NODES = 10000000;
+	/**
+	 * Maximal depth of generated tree, limited by length of materialized path.
+	 */
+	public static final int MAX_DEPTH = 250;
+	/**
+	 * Values of nodes are integers from 0 to this bound, exclusive.
+	 */
+	private static final int VALUE_BOUND = 1000;
+
+	private final Logger logger = Logger.getLogger(TreeGenerator.class);
+	private final int nodes;
+	private final int fanout;
+	private final int depth;
+	private final Shape shape;
+	private final Random random;
+
+	/**
+	 * Ids assigned to saved nodes, by index of generation.
+	 */
+	private final long[] ids;
+	private final int[] depths;
+	private final int[] children;
+	/**
+	 * Indexes of nodes that may have more children, between head and tail.
+	 */
+	private final int[] open;
+	private int head;
+	private int tail;
+
+	/**
+	 * Creates generator.
+	 *
+	 * @param nodes
+	 *            number of nodes
+	 * @param fanout
+	 *            maximal number of children of node
+	 * @param depth
+	 *            maximal depth of node, root has depth 0
+	 * @param shape
+	 *            order in which parents are chosen
+	 * @param seed
+	 *            seed of random values and parents
+	 */
+	public TreeGenerator(int nodes, int fanout, int depth, Shape shape,
+			long seed) {
+		this.nodes = nodes;
+		this.fanout = fanout;
+		this.depth = depth;
+		this.shape = shape;
+		this.random = new Random(seed);
+		ids = new long[nodes];
+		depths = new int[nodes];
+		children = new int[nodes];
+		open = new int[nodes];
+	}
+
+	/**
+	 * Checks if parameters describe tree that can be generated.
+	 *
+	 * @param nodes
+	 *            number of nodes
+	 * @param fanout
+	 *            maximal number of children of node
+	 * @param depth
+	 *            maximal depth of node
+	 * @return true if number of nodes is positive, within limit and fits in
+	 *         tree of given fanout and depth.
+	 */
+	public static boolean isValid(int nodes, int fanout, int depth) {
+		if (nodes < 1 || nodes > MAX_NODES || fanout < 1 || depth < 0
+				|| depth > MAX_DEPTH) {
+			return false;
+		}
+		// capacity of full tree, stops when it exceeds number of nodes
+		long capacity = 0;
+		long level = 1;
+		for (int i = 0; i <= depth && capacity < nodes; i++) {
+			capacity += level;
+			level = Math.min(level * fanout, MAX_NODES);
+		}
+		return capacity >= nodes;
+	}
+
+	/**
+	 * Generates and saves all nodes. Tree has to be empty.
+	 *
+	 * @param treeManager
+	 *            manager that saves nodes
+	 * @return number of saved nodes, less than requested if some chunk was
+	 *         rejected.
+	 */
+	public long generate(TreeManager treeManager) {
+		List<TreeNode> chunk = new ArrayList<>(CHUNK_SIZE);
+		int chunkStart = 0;
+		for (int i = 0; i < nodes; i++) {
+			TreeNode node = TreeNode.newNode(parentId(i, chunkStart),
+					(double) random.nextInt(VALUE_BOUND));
+			node.setId(tempId(i, chunkStart));
+			chunk.add(node);
+			if (chunk.size() == CHUNK_SIZE || i == nodes - 1) {
+				Optional<Map<Long, Long>> saved = treeManager.importNodes(chunk);
+				if (!saved.isPresent()) {
+					logger.warnv("Generated chunk rejected after {0} nodes",
+							chunkStart);
+					return chunkStart;
+				}
+				for (int j = chunkStart; j <= i; j++) {
+					ids[j] = saved.get().get(tempId(j, chunkStart));
+				}
+				chunkStart = i + 1;
+				chunk = new ArrayList<>(CHUNK_SIZE);
+			}
+		}
+		logger.infov("Generated {0} {1} tree of {2} nodes", shape, fanout,
+				nodes);
+		return nodes;
+	}
+
+	private static long tempId(int index, int chunkStart) {
+		return -1L - (index - chunkStart);
+	}
+
+	/**
+	 * Chooses parent of node with given index and registers node as possible
+	 * parent.
+	 *
+	 * @return id of parent, temporary if parent is in current chunk, or null
+	 *         for root.
+	 */
+	private Long parentId(int index, int chunkStart) {
+		Long parentId = null;
+		if (index > 0) {
+			int position;
+			switch (shape) {
+			case SKEWED:
+				position = tail - 1;
+				break;
+			case RANDOM:
+				position = head + random.nextInt(tail - head);
+				break;
+			default:
+				position = head;
+			}
+			int parent = open[position];
+			if (++children[parent] == fanout) {
+				if (shape == Shape.SKEWED) {
+					tail--;
+				} else {
+					open[position] = open[head++];
+				}
+			}
+			depths[index] = depths[parent] + 1;
+			parentId = parent >= chunkStart ? tempId(parent, chunkStart)
+					: ids[parent];
+		}
+		if (depths[index] < depth) {
+			open[tail++] = index;
+		}
+		return parentId;
+	}
+}
@@ -0,0 +1,163 @@
+package pl.mpiglas.tree.ejb.core;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import org.jboss.logging.Logger;
+
+import pl.mpiglas.tree.model.transfer.TreeNode;
+
+/**
+ * Imports nodes read one by one from external source. Nodes keep ids of
+ * source, which are mapped to ids assigned by tree. Nodes may come in any
+ * order: node which parent wasn't imported yet waits until parent arrives,
+ * so input is read only once.
+ *
+ * New nodes are saved in chunks of {@link #CHUNK_SIZE} nodes, each in its own
+ * transaction, see {@link TreeManager#importNodes(List)}. Only map of ids and
+ * nodes waiting for parents are kept in memory. Caller shouldn't run in
+ * transaction, otherwise chunks are committed together.
+ *
+ * @author mpiglas
+ *
+ */
+public final class TreeImport {
+
+	/**
+	 * Number of nodes saved in single transaction.
+	 */
+	public static final int CHUNK_SIZE = 1000;
+
+	private final Logger logger = Logger.getLogger(TreeImport.class);
+	private final TreeManager treeManager;
+	/**
+	 * Ids of source mapped to ids of tree or to temporary ids of nodes in
+	 * current chunk.
+	 */
+	private final Map<Long, Long> ids = new HashMap<>();
+	/**
+	 * Nodes waiting for parent, by id of parent in source.
+	 */
+	private final Map<Long, List<TreeNode>> waiting = new HashMap<>();
+	private final Set<Long> waitingIds = new HashSet<>();
+	private List<TreeNode> chunk = new ArrayList<>();
+	private List<Long> chunkSourceIds = new ArrayList<>();
+	private long imported;
+	private boolean failed;
+
+	/**
+	 * Creates import that saves nodes with given manager.
+	 *
+	 * @param treeManager
+	 *            manager of tree
+	 */
+	public TreeImport(TreeManager treeManager) {
+		this.treeManager = treeManager;
+	}
+
+	/**
+	 * Adds node read from source. Node is saved when its parent is already
+	 * added and chunk is full.
+	 *
+	 * @param node
+	 *            node with id and parent's id of source
+	 * @return false if node is duplicated or chunk was rejected, import
+	 *         should be stopped then.
+	 */
+	public boolean add(TreeNode node) {
+		if (failed || ids.containsKey(node.getId())
+				|| waitingIds.contains(node.getId())) {
+			logger.warnv("Node {0} imported twice", node.getId());
+			return fail();
+		}
+		Long parentId = node.getParentId();
+		if (parentId != null && !ids.containsKey(parentId)) {
+			waiting.computeIfAbsent(parentId, id -> new ArrayList<>()).add(node);
+			waitingIds.add(node.getId());
+			return true;
+		}
+		Deque<TreeNode> ready = new ArrayDeque<>();
+		ready.push(node);
+		while (!ready.isEmpty()) {
+			TreeNode next = ready.pop();
+			if (!place(next)) {
+				return false;
+			}
+			List<TreeNode> children = waiting.remove(next.getId());
+			if (children != null) {
+				children.forEach(child -> {
+					waitingIds.remove(child.getId());
+					ready.push(child);
+				});
+			}
+		}
+		return true;
+	}
+
+	private boolean place(TreeNode node) {
+		long tempId = -1L - chunk.size();
+		TreeNode newNode = TreeNode.newNode(node.getParentId() != null
+				? ids.get(node.getParentId()) : null, node.getValue());
+		newNode.setId(tempId);
+		chunk.add(newNode);
+		chunkSourceIds.add(node.getId());
+		ids.put(node.getId(), tempId);
+		return chunk.size() < CHUNK_SIZE || save();
+	}
+
+	private boolean save() {
+		if (chunk.isEmpty()) {
+			return true;
+		}
+		Optional<Map<Long, Long>> saved = treeManager.importNodes(chunk);
+		if (!saved.isPresent()) {
+			return fail();
+		}
+		for (Long sourceId : chunkSourceIds) {
+			ids.put(sourceId, saved.get().get(ids.get(sourceId)));
+		}
+		imported += chunk.size();
+		chunk = new ArrayList<>();
+		chunkSourceIds = new ArrayList<>();
+		return true;
+	}
+
+	private boolean fail() {
+		failed = true;
+		return false;
+	}
+
+	/**
+	 * Saves the last chunk.
+	 *
+	 * @return false if chunk was rejected or some nodes are still waiting for
+	 *         parents, which are not imported.
+	 */
+	public boolean finish() {
+		if (failed || !save()) {
+			return false;
+		}
+		if (!waitingIds.isEmpty()) {
+			logger.warnv("{0} nodes without parent not imported",
+					waitingIds.size());
+			return fail();
+		}
+		return true;
+	}
+
+	/**
+	 * Returns number of saved nodes.
+	 *
+	 * @return number of nodes in committed chunks.
+	 */
+	public long getImported() {
+		return imported;
+	}
+}
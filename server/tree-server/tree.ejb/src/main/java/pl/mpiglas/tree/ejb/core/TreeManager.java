@@ -1,37 +1,79 @@
 package pl.mpiglas.tree.ejb.core;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
-import java.util.stream.Collectors;
+import java.util.Set;
+import java.util.function.Consumer;
 
 import javax.annotation.PostConstruct;
+import javax.ejb.EJB;
 import javax.ejb.Stateless;
-import javax.persistence.EntityManager;
-import javax.persistence.PersistenceContext;
-import javax.persistence.TypedQuery;
+import javax.enterprise.event.Event;
+import javax.inject.Inject;
+import javax.interceptor.Interceptors;
 
 import org.jboss.logging.Logger;
 
-import pl.mpiglas.tree.model.entity.TreeNodeEntity;
+import pl.mpiglas.tree.ejb.metrics.MetricsInterceptor;
+import pl.mpiglas.tree.ejb.store.JpaTreeStore;
+import pl.mpiglas.tree.ejb.store.MemoryTreeStore;
+import pl.mpiglas.tree.ejb.store.TreeRowConsumer;
+import pl.mpiglas.tree.ejb.store.TreeStore;
+import pl.mpiglas.tree.ejb.store.VersionedUpdate;
+import pl.mpiglas.tree.model.entity.TreeRevisionEntity;
+import pl.mpiglas.tree.model.transfer.TreeAggregate;
+import pl.mpiglas.tree.model.transfer.TreeBatch;
+import pl.mpiglas.tree.model.transfer.TreeChange;
+import pl.mpiglas.tree.model.transfer.TreeChange.Operation;
+import pl.mpiglas.tree.model.transfer.TreeChanges;
 import pl.mpiglas.tree.model.transfer.TreeNode;
 
 /**
- * Manages Tree that is represented as JPA entities. Provides operations for
- * adding new nodes, updating and deleting.
+ * Manages Tree. Provides operations for adding new nodes, updating and
+ * deleting.
  * 
- * Tree is built from entities that represents tree nodes. Each node, except
- * tree's root, contains reference for its parent.
+ * Nodes are kept in {@link TreeStore} selected at startup with system property
+ * {@link TreeStore#STORE_PROPERTY}, by default in database.
+ * 
+ * Every modification is recorded in {@link ChangeLog} in the same
+ * transaction, so clients may read only changes since known revision.
+ * Modification of store and recording of its changes run together in
+ * {@link TreeStore#modify(java.util.function.Supplier)}, so revisions follow
+ * order in which store applied modifications.
+ * 
+ * Time of each call is recorded by {@link MetricsInterceptor}.
  * 
  * @author mpiglas
  *
  */
 @Stateless
+@Interceptors(MetricsInterceptor.class)
 public class TreeManager {
 
+	/**
+	 * Maximal number of changes returned instead of snapshot of tree.
+	 */
+	private static final int MAX_CHANGES = 10000;
+
 	Logger logger;
 
-	@PersistenceContext(name = "storageUnit")
-	EntityManager em;
+	@EJB
+	JpaTreeStore jpaStore;
+
+	@EJB
+	MemoryTreeStore memoryStore;
+
+	@Inject
+	Event<TreeModifiedEvent> treeModified;
+
+	@EJB
+	ChangeLog changeLog;
+
+	TreeStore store;
 
 	/**
 	 * Inits bean.
@@ -39,34 +81,46 @@ public class TreeManager {
 	@PostConstruct
 	public void init() {
 		logger = Logger.getLogger(TreeManager.class);
+		store = MemoryTreeStore.isSelected() ? memoryStore : jpaStore;
 	}
 
-	private TreeNodeEntity getNode(long id, boolean detach) {
-		TypedQuery<TreeNodeEntity> query = em.createNamedQuery(
-				TreeNodeEntity.FIND_NODE_QUERY, TreeNodeEntity.class);
-		query.setParameter(TreeNodeEntity.NODE_ID_PARAM, id);
-		List<TreeNodeEntity> nodes = query.getResultList();
-		if (nodes.isEmpty()) {
-			return null;
-		}
-		TreeNodeEntity node = nodes.get(0);
-		if (detach) {
-			em.detach(node);
+	/**
+	 * Changes of single modification of tree, recorded with one revision.
+	 */
+	private final class Modification {
+		private final Map<Long, String> paths = new HashMap<>();
+		private final List<TreeChange> changes = new ArrayList<>();
+		private long revision;
+
+		/**
+		 * Records change in change log. Revision is allocated with the first
+		 * change. Called inside {@link TreeStore#modify(java.util.function.Supplier)}.
+		 */
+		void record(Operation operation, Long nodeId, Long parentId,
+				Double value) {
+			if (changes.isEmpty()) {
+				revision = changeLog.nextRevision();
+			}
+			TreeChange change = new TreeChange(revision, operation, nodeId,
+					parentId, value);
+			changeLog.record(change);
+			changes.add(change);
 		}
-		return node;
-	}
 
-	private boolean isRootExist() {
-		logger.info("Checking root");
-		List<TreeNodeEntity> rootList = em.createNamedQuery(
-				TreeNodeEntity.FIND_ROOT, TreeNodeEntity.class).getResultList();
-		return !rootList.isEmpty();
+		/**
+		 * Fires event with recorded changes and paths of changed nodes.
+		 * Observers receive event after transaction is committed.
+		 */
+		void publish() {
+			if (!changes.isEmpty()) {
+				treeModified.fire(new TreeModifiedEvent(revision, changes, paths));
+			}
+		}
 	}
 
 	/**
-	 * Creates new entity representing tree's node. If node is not a root and
-	 * parent doesn't exist or node doesn't have parent and root already exist
-	 * entity is not created.
+	 * Creates new node. If node is not a root and parent doesn't exist or node
+	 * doesn't have parent and root already exist node is not created.
 	 * 
 	 * @param newNode
 	 *            new node that should be added to tree.
@@ -74,37 +128,97 @@ public class TreeManager {
 	 *         created.
 	 */
 	public Optional<TreeNode> create(TreeNode newNode) {
-		TreeNodeEntity entity = new TreeNodeEntity();
-		entity.setNodeValue(newNode.getValue());
-		if (newNode.getParentId() != null) {
-			TreeNodeEntity parent = getNode(newNode.getParentId(), true);
-			if (parent == null) {
-				return Optional.empty();
-			}
-			entity.setParent(getNode(newNode.getParentId(), true));
-		} else if (isRootExist()) {
-			logger.warnv("Second root can't be created {0}", newNode);
-			// Tree can have only single root
-			return Optional.empty();
-
-		}
-		em.persist(entity);
-		logger.infov("Entity {0} created", entity);
-		return Optional.of(TreeNode.fromEntity(entity));
+		Modification modification = new Modification();
+		Optional<TreeNode> created = store.modify(() -> {
+			Optional<TreeNode> node = store.create(newNode, modification.paths);
+			node.ifPresent(n -> modification.record(Operation.CREATE, n.getId(),
+					n.getParentId(), n.getValue()));
+			return node;
+		});
+		modification.publish();
+		return created;
 	}
 
 	/**
-	 * Reads all entities from database and transforms to domain objects.
+	 * Reads all nodes as domain objects.
 	 * 
-	 * @return list of entities, possibly empty.
+	 * @return list of nodes, possibly empty.
 	 */
 	public List<TreeNode> getAll() {
-		List<TreeNodeEntity> result = em.createNamedQuery(
-				TreeNodeEntity.FIND_ALL_QUERY, TreeNodeEntity.class)
-				.getResultList();
-		logger.info("Reading all nodes");
-		return result.stream().map(TreeNode::fromEntity)
-				.collect(Collectors.toList());
+		return store.getAll();
+	}
+
+	/**
+	 * Reads single node directly as domain object.
+	 * 
+	 * @param nodeId
+	 *            node's id
+	 * @return {@link Optional} with node or empty if node doesn't exist.
+	 */
+	public Optional<TreeNode> getNode(Long nodeId) {
+		return store.getNode(nodeId);
+	}
+
+	/**
+	 * Reads direct children of node with given id, ordered by id.
+	 * 
+	 * @param nodeId
+	 *            node's id
+	 * @return {@link Optional} with list of children or empty if node doesn't
+	 *         exist.
+	 */
+	public Optional<List<TreeNode>> getChildren(Long nodeId) {
+		return store.getChildren(nodeId);
+	}
+
+	/**
+	 * Passes all nodes one by one to consumer, memory usage doesn't depend on
+	 * size of tree.
+	 * 
+	 * @param consumer
+	 *            receives each node of tree
+	 */
+	public void forEachNode(Consumer<TreeNode> consumer) {
+		store.forEachNode(consumer);
+	}
+
+	/**
+	 * Passes id, parent's id and value of all nodes ordered by id to consumer.
+	 * Neither entities nor domain objects are created.
+	 * 
+	 * @param consumer
+	 *            receives columns of each node
+	 */
+	public void forEachRow(TreeRowConsumer consumer) {
+		store.forEachRow(consumer);
+	}
+
+	/**
+	 * Passes id, parent's id and value of node with given id and all its
+	 * descendants, ordered by id, to consumer.
+	 * 
+	 * @param nodeId
+	 *            id of subtree's root
+	 * @param consumer
+	 *            receives columns of each node
+	 * @return false if node doesn't exist.
+	 */
+	public boolean forEachSubtreeRow(Long nodeId, TreeRowConsumer consumer) {
+		return store.forEachSubtreeRow(nodeId, consumer);
+	}
+
+	/**
+	 * Reads page of nodes ordered by id. Next page starts after the last id of
+	 * previous page, so reading doesn't slow down with page number.
+	 * 
+	 * @param afterId
+	 *            only nodes with greater id are read, null for first page
+	 * @param limit
+	 *            maximal number of nodes
+	 * @return list of nodes, possibly empty.
+	 */
+	public List<TreeNode> getPage(Long afterId, int limit) {
+		return store.getPage(afterId, limit);
 	}
 
 	/**
@@ -115,38 +229,201 @@ public class TreeManager {
 	 * @return true if update finished with success.
 	 */
 	public boolean update(TreeNode node) {
-
-		TreeNodeEntity entity = getNode(node.getId(), false);
-		if (entity != null) {
-			entity.setNodeValue(node.getValue());
-			em.merge(entity);
-			logger.infov("Entity updated: {0}  ", entity);
+		Modification modification = new Modification();
+		boolean updated = store.modify(() -> {
+			if (!store.update(node, modification.paths)) {
+				return false;
+			}
+			modification.record(Operation.UPDATE, node.getId(), null,
+					node.getValue());
 			return true;
-		} else {
-			logger.warnv("Entity  {0} not found", node.getId());
-		}
-		return false;
+		});
+		modification.publish();
+		return updated;
 	}
 
-	private List<TreeNodeEntity> getChildren(Long nodeId) {
-		TypedQuery<TreeNodeEntity> query = em.createNamedQuery(
-				TreeNodeEntity.FIND_CHILDREN, TreeNodeEntity.class);
-		query.setParameter(TreeNodeEntity.NODE_ID_PARAM, nodeId);
-		return query.getResultList();
+	/**
+	 * Updates value of node only if it wasn't modified since given version
+	 * was read. Version is checked and value is changed by single statement,
+	 * so concurrent updates can't overwrite each other. Successful update
+	 * increments version by one.
+	 * 
+	 * @param node
+	 *            id and new value of node
+	 * @param version
+	 *            expected version of node
+	 * @return result of update, which tells stale node from missing one.
+	 */
+	public VersionedUpdate updateIfVersion(TreeNode node, long version) {
+		Modification modification = new Modification();
+		VersionedUpdate result = store.modify(() -> {
+			VersionedUpdate updated = store.updateIfVersion(node, version,
+					modification.paths);
+			if (updated == VersionedUpdate.UPDATED) {
+				modification.record(Operation.UPDATE, node.getId(), null,
+						node.getValue());
+			}
+			return updated;
+		});
+		modification.publish();
+		return result;
 	}
 
 	/**
-	 * Deletes node and its children.
+	 * Reads version of node, incremented by each update of its value.
 	 * 
-	 * @param node
-	 *            Entity representing tree's node.
+	 * @param nodeId
+	 *            node's id
+	 * @return {@link Optional} with version or empty if node doesn't exist.
+	 */
+	public Optional<Long> getVersion(Long nodeId) {
+		return store.getVersion(nodeId);
+	}
+
+	/**
+	 * Applies all modifications from batch in current transaction. New nodes
+	 * are created first, then existing nodes are updated and at the end
+	 * deleted. If any modification can't be applied, none of the changes is
+	 * saved. All modifications are recorded in change log with single
+	 * revision.
+	 *
+	 * @param batch
+	 *            set of modifications
+	 * @return {@link Optional} with map of temporary ids of new nodes to
+	 *         assigned ids or empty if batch was rejected.
+	 */
+	public Optional<Map<Long, Long>> applyBatch(TreeBatch batch) {
+		Modification modification = new Modification();
+		Optional<Map<Long, Long>> applied = store.modify(() -> {
+			Optional<Map<Long, Long>> result = store.applyBatch(batch,
+					modification.paths);
+			result.ifPresent(ids -> {
+				for (TreeNode newNode : batch.getCreated()) {
+					modification.record(Operation.CREATE, ids.get(newNode.getId()),
+							realId(newNode.getParentId(), ids), newNode.getValue());
+				}
+				for (TreeNode node : batch.getUpdated()) {
+					modification.record(Operation.UPDATE,
+							realId(node.getId(), ids), null, node.getValue());
+				}
+				for (Long nodeId : batch.getDeleted()) {
+					modification.record(Operation.DELETE, realId(nodeId, ids),
+							null, null);
+				}
+			});
+			return result;
+		});
+		modification.publish();
+		return applied;
+	}
+
+	/**
+	 * Creates whole new subtree in current transaction. Nodes are identified
+	 * by temporary, negative ids. First node is root of subtree and its parent
+	 * is existing node or null for tree's root. Parent of each other node has
+	 * to be new node placed earlier on the list. Creation is recorded in
+	 * change log with single revision.
+	 * 
+	 * @param nodes
+	 *            new nodes, parents before children
+	 * @return {@link Optional} with map of temporary ids of new nodes to
+	 *         assigned ids or empty if subtree can't be created.
+	 */
+	public Optional<Map<Long, Long>> createSubtree(List<TreeNode> nodes) {
+		if (!isSubtree(nodes)) {
+			logger.warn("Nodes don't form subtree");
+			return Optional.empty();
+		}
+		Modification modification = new Modification();
+		Optional<Map<Long, Long>> created = store.modify(() -> {
+			Optional<Map<Long, Long>> result = store.createSubtree(nodes,
+					modification.paths);
+			result.ifPresent(ids -> {
+				for (TreeNode node : nodes) {
+					modification.record(Operation.CREATE, ids.get(node.getId()),
+							realId(node.getParentId(), ids), node.getValue());
+				}
+			});
+			return result;
+		});
+		modification.publish();
+		return created;
+	}
+
+	/**
+	 * Creates imported nodes in current transaction, see {@link TreeImport}.
+	 * Parent of each node is existing node or new node placed earlier on the
+	 * list. Nodes are not recorded in change log one by one, log is reset
+	 * instead, so clients read snapshot of tree.
+	 * 
+	 * @param nodes
+	 *            new nodes with temporary, negative ids
+	 * @return {@link Optional} with map of temporary ids of new nodes to
+	 *         assigned ids or empty if nodes were rejected.
 	 */
-	private void deleteWithChildren(TreeNodeEntity node) {
-		for (TreeNodeEntity e : getChildren(node.getId())) {
-			deleteWithChildren(e);
+	public Optional<Map<Long, Long>> importNodes(List<TreeNode> nodes) {
+		TreeBatch batch = new TreeBatch();
+		batch.setCreated(nodes);
+		long[] revision = new long[1];
+		Optional<Map<Long, Long>> created = store.modify(() -> {
+			Optional<Map<Long, Long>> result = store.applyBatch(batch,
+					new HashMap<>());
+			if (result.isPresent()) {
+				revision[0] = changeLog.reset();
+			}
+			return result;
+		});
+		if (created.isPresent()) {
+			treeModified.fire(new TreeModifiedEvent(revision[0]));
 		}
-		logger.info("Delete node " + node.getId());
-		em.remove(node);
+		return created;
+	}
+
+	private static boolean isSubtree(List<TreeNode> nodes) {
+		if (nodes.isEmpty()) {
+			return false;
+		}
+		Set<Long> ids = new HashSet<>();
+		for (TreeNode node : nodes) {
+			Long parentId = node.getParentId();
+			boolean attached = ids.isEmpty()
+					? parentId == null || parentId >= 0
+					: parentId != null && ids.contains(parentId);
+			if (!attached || node.getValue() == null || node.getId() == null
+					|| node.getId() >= 0 || !ids.add(node.getId())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static Long realId(Long id, Map<Long, Long> ids) {
+		return id != null && id < 0 ? ids.get(id) : id;
+	}
+
+	/**
+	 * Reads node with given id and all its descendants. Parent is always placed
+	 * before its children.
+	 * 
+	 * @param nodeId
+	 *            id of subtree's root
+	 * @return {@link Optional} with list of nodes or empty if node doesn't
+	 *         exist.
+	 */
+	public Optional<List<TreeNode>> getSubtree(Long nodeId) {
+		return store.getSubtree(nodeId);
+	}
+
+	/**
+	 * Reads all ancestors of node with given id, starting from tree's root.
+	 * 
+	 * @param nodeId
+	 *            node's id
+	 * @return {@link Optional} with list of nodes, empty list for root, or
+	 *         empty if node doesn't exist.
+	 */
+	public Optional<List<TreeNode>> getAncestors(Long nodeId) {
+		return store.getAncestors(nodeId);
 	}
 
 	/**
@@ -158,14 +435,81 @@ public class TreeManager {
 	 * @return true if node was deleted.
 	 */
 	public boolean deleteById(Long nodeId) {
-		TreeNodeEntity entity = getNode(nodeId, false);
-		if (entity != null) {
-			deleteWithChildren(entity);
-		} else {
-			logger.warn("Entity " + nodeId + " not found");
-			return false;
+		Modification modification = new Modification();
+		boolean deleted = store.modify(() -> {
+			if (store.delete(nodeId, modification.paths) == 0) {
+				return false;
+			}
+			modification.record(Operation.DELETE, nodeId, null, null);
+			return true;
+		});
+		modification.publish();
+		return deleted;
+	}
+
+	/**
+	 * Removes all nodes. Change log is cleared, so clients read snapshot of
+	 * empty tree.
+	 */
+	public void deleteAll() {
+		long revision = store.modify(() -> {
+			store.clear();
+			return changeLog.reset();
+		});
+		treeModified.fire(new TreeModifiedEvent(revision));
+	}
+
+	/**
+	 * Reads changes of tree since given revision. If client doesn't know any
+	 * revision, log was already compacted past it or there are too many
+	 * changes, snapshot with all nodes is returned instead.
+	 * 
+	 * Revision of snapshot is read before nodes, so snapshot may already
+	 * contain some of the later changes. Changes are idempotent: creation of
+	 * existing node replaces it, update or deletion of missing node is
+	 * ignored, so client may apply them again.
+	 * 
+	 * @param since
+	 *            revision known by client or null
+	 * @return changes or snapshot of tree.
+	 */
+	public TreeChanges getChanges(Long since) {
+		TreeRevisionEntity revision = changeLog.getRevision();
+		long until = revision.getRevision();
+		if (since != null && since >= revision.getCompactedRevision()
+				&& since <= until) {
+			List<TreeChange> changes = changeLog.getChanges(since, until,
+					MAX_CHANGES + 1);
+			if (changes.size() <= MAX_CHANGES) {
+				return TreeChanges.delta(until, changes);
+			}
 		}
-		return true;
+		logger.debugv("Snapshot returned instead of changes since {0}", since);
+		return TreeChanges.snapshot(until, getAll());
+	}
+
+	/**
+	 * Reads materialized paths of nodes with given ids. Unknown ids are
+	 * skipped.
+	 * 
+	 * @param nodeIds
+	 *            ids of nodes
+	 * @return map of ids to paths.
+	 */
+	public Map<Long, String> getPaths(List<Long> nodeIds) {
+		return store.getPaths(nodeIds);
+	}
+
+	/**
+	 * Reads aggregates of subtree of given node. Aggregates are maintained
+	 * when tree is modified, so subtree is not read.
+	 * 
+	 * @param nodeId
+	 *            id of subtree's root
+	 * @return {@link Optional} with aggregates or empty if node doesn't exist.
+	 */
+	public Optional<TreeAggregate> getAggregate(Long nodeId) {
+		return store.getAggregate(nodeId);
 	}
 
 }
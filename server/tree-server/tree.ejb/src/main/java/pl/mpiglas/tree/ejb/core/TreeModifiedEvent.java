@@ -0,0 +1,90 @@
+package pl.mpiglas.tree.ejb.core;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import pl.mpiglas.tree.model.transfer.TreeChange;
+
+/**
+ * Event fired by {@link TreeManager} in transaction that modifies tree.
+ * Observers interested only in committed changes should observe it in
+ * {@link javax.enterprise.event.TransactionPhase#AFTER_SUCCESS} phase.
+ * 
+ * Event contains all changes recorded in change log with its revision and
+ * materialized paths of changed nodes, so observers may check position of
+ * node in tree without reading database. Reset event means that whole tree
+ * was replaced and changes are not known.
+ * 
+ * @author mpiglas
+ *
+ */
+public class TreeModifiedEvent {
+
+	private final long revision;
+	private final List<TreeChange> changes;
+	private final Map<Long, String> paths;
+	private final boolean reset;
+
+	/**
+	 * Creates reset event.
+	 * 
+	 * @param revision
+	 *            revision of tree allocated for modification
+	 */
+	public TreeModifiedEvent(long revision) {
+		this.revision = revision;
+		this.changes = Collections.emptyList();
+		this.paths = Collections.emptyMap();
+		this.reset = true;
+	}
+
+	/**
+	 * Creates event with changes.
+	 * 
+	 * @param revision
+	 *            revision of tree allocated for modification
+	 * @param changes
+	 *            changes recorded with given revision
+	 * @param paths
+	 *            materialized paths of changed nodes by their ids
+	 */
+	public TreeModifiedEvent(long revision, List<TreeChange> changes,
+			Map<Long, String> paths) {
+		this.revision = revision;
+		this.changes = Collections.unmodifiableList(changes);
+		this.paths = Collections.unmodifiableMap(paths);
+		this.reset = false;
+	}
+
+	public long getRevision() {
+		return revision;
+	}
+
+	public List<TreeChange> getChanges() {
+		return changes;
+	}
+
+	/**
+	 * Returns materialized path of changed node. For deleted node it is path
+	 * before deletion.
+	 * 
+	 * @param nodeId
+	 *            id of changed node
+	 * @return path of node or null if node wasn't changed.
+	 */
+	public String getPath(Long nodeId) {
+		return paths.get(nodeId);
+	}
+
+	public boolean isReset() {
+		return reset;
+	}
+
+	@Override
+	public String toString() {
+		return "TreeModifiedEvent [revision=" + revision + ", changes="
+				+ changes.size() + ", reset=" + reset + "]";
+	}
+
+}
@@ -0,0 +1,73 @@
+package pl.mpiglas.tree.ejb.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.EJB;
+import javax.ejb.Singleton;
+import javax.enterprise.event.Observes;
+import javax.enterprise.event.TransactionPhase;
+
+/**
+ * Monotonic revision of tree. Revision is updated after every committed
+ * modification of tree, so content read at given revision may be cached until
+ * revision changes. Revision is the same as revision of {@link ChangeLog}.
+ * 
+ * @author mpiglas
+ *
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class TreeRevision {
+
+	/**
+	 * Start time of application distinguishes revisions of different runs.
+	 */
+	private final String epoch = Long.toString(System.currentTimeMillis(), 36);
+	private final AtomicLong revision = new AtomicLong();
+
+	@EJB
+	ChangeLog changeLog;
+
+	/**
+	 * Inits revision from change log.
+	 */
+	@PostConstruct
+	public void init() {
+		revision.set(changeLog.getRevision().getRevision());
+	}
+
+	/**
+	 * Returns current revision.
+	 * 
+	 * @return revision of tree.
+	 */
+	public long current() {
+		return revision.get();
+	}
+
+	/**
+	 * Creates tag that identifies given revision. Tag is unique also between
+	 * restarts of application.
+	 * 
+	 * @param rev
+	 *            revision of tree
+	 * @return tag of revision.
+	 */
+	public String tag(long rev) {
+		return epoch + "-" + rev;
+	}
+
+	/**
+	 * Updates revision after transaction that modified tree is committed.
+	 * 
+	 * @param event
+	 *            modification of tree
+	 */
+	public void treeModified(
+			@Observes(during = TransactionPhase.AFTER_SUCCESS) TreeModifiedEvent event) {
+		revision.accumulateAndGet(event.getRevision(), Math::max);
+	}
+}
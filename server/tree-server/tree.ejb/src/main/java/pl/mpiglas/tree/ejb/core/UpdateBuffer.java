@@ -0,0 +1,314 @@
+package pl.mpiglas.tree.ejb.core;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Supplier;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.DependsOn;
+import javax.ejb.EJB;
+import javax.ejb.Schedule;
+import javax.ejb.Singleton;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+
+import org.jboss.logging.Logger;
+
+import pl.mpiglas.tree.model.transfer.TreeBatch;
+import pl.mpiglas.tree.model.transfer.TreeNode;
+
+/**
+ * Write-behind buffer of node values. Update is acknowledged when it's
+ * buffered and only the latest value of each node is kept, so rapid edits of
+ * the same node are saved once. Buffer is written as single batch, see
+ * {@link TreeManager#applyBatch(TreeBatch)}, every second, when it holds
+ * {@link #MAX_BUFFERED} nodes and on shutdown.
+ *
+ * Buffered values are visible through {@link #overlay(List)} and
+ * {@link #getValues()} until they are saved. Change log, events and aggregates
+ * of subtrees see them after they are saved. Modifications that aren't
+ * buffered run through {@link #flushBefore(Supplier)}, so buffered values
+ * are saved before them and never overwrite their results. Values are
+ * dropped when whole tree is removed, see {@link #discardBefore(Runnable)},
+ * so they can't reach new nodes that reuse ids. Buffered update of node
+ * deleted in the meantime is dropped.
+ *
+ * Buffer is used by endpoint when system property
+ * {@link #WRITE_BEHIND_PROPERTY} is true.
+ *
+ * @author mpiglas
+ *
+ */
+@Singleton
+@DependsOn("ChangeLog")
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+public class UpdateBuffer {
+
+	/**
+	 * System property that enables write-behind of updates.
+	 */
+	public static final String WRITE_BEHIND_PROPERTY = "tree.writeBehind";
+	/**
+	 * Number of buffered nodes that causes immediate write.
+	 */
+	public static final int MAX_BUFFERED = 1000;
+
+	private Logger logger;
+
+	@EJB
+	TreeManager treeManager;
+
+	private boolean enabled;
+
+	private final Object writeLock = new Object();
+	/**
+	 * Values waiting for write, guarded by this.
+	 */
+	private Map<Long, Double> buffered = new LinkedHashMap<>();
+	/**
+	 * Values being written, guarded by this.
+	 */
+	private Map<Long, Double> writing = Collections.emptyMap();
+
+	/**
+	 * Inits bean.
+	 */
+	@PostConstruct
+	public void init() {
+		logger = Logger.getLogger(UpdateBuffer.class);
+		enabled = Boolean.getBoolean(WRITE_BEHIND_PROPERTY);
+	}
+
+	/**
+	 * Checks if updates should be buffered.
+	 *
+	 * @return value of {@link #WRITE_BEHIND_PROPERTY}.
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Buffers new value of node. Existence of node is checked only if it
+	 * isn't already buffered.
+	 *
+	 * @param node
+	 *            id and new value of node
+	 * @return false if node doesn't exist.
+	 */
+	public boolean update(TreeNode node) {
+		if (get(node.getId()) == null && !treeManager.getNode(node.getId()).isPresent()) {
+			logger.warnv("Entity  {0} not found", node.getId());
+			return false;
+		}
+		boolean full;
+		synchronized (this) {
+			// latest value is moved to the end, so nodes are written in
+			// order of their last update
+			buffered.remove(node.getId());
+			buffered.put(node.getId(), node.getValue());
+			full = buffered.size() >= MAX_BUFFERED;
+		}
+		if (full) {
+			flush();
+		}
+		return true;
+	}
+
+	private synchronized Double get(Long nodeId) {
+		Double value = buffered.get(nodeId);
+		return value != null ? value : writing.get(nodeId);
+	}
+
+	/**
+	 * Checks if value of node is waiting for write.
+	 *
+	 * @param nodeId
+	 *            node's id
+	 * @return true if node has value that is not saved yet.
+	 */
+	public boolean isBuffered(Long nodeId) {
+		return get(nodeId) != null;
+	}
+
+	/**
+	 * Checks if there are values that are not saved yet.
+	 *
+	 * @return true if all values are saved.
+	 */
+	public synchronized boolean isEmpty() {
+		return buffered.isEmpty() && writing.isEmpty();
+	}
+
+	/**
+	 * Copies values that are not saved yet, so many nodes can be overlaid
+	 * without calling this bean for each of them.
+	 *
+	 * @return map of ids to buffered values, possibly empty.
+	 */
+	public synchronized Map<Long, Double> getValues() {
+		if (buffered.isEmpty() && writing.isEmpty()) {
+			return Collections.emptyMap();
+		}
+		Map<Long, Double> values = new HashMap<>(writing);
+		values.putAll(buffered);
+		return values;
+	}
+
+	/**
+	 * Replaces values of nodes with buffered ones.
+	 *
+	 * @param nodes
+	 *            nodes read from tree, modified in place
+	 * @return the same list.
+	 */
+	public List<TreeNode> overlay(List<TreeNode> nodes) {
+		if (isEmpty()) {
+			return nodes;
+		}
+		nodes.forEach(this::overlay);
+		return nodes;
+	}
+
+	/**
+	 * Replaces value of node with buffered one.
+	 *
+	 * @param node
+	 *            node read from tree, modified in place
+	 * @return the same node.
+	 */
+	public TreeNode overlay(TreeNode node) {
+		Double value = get(node.getId());
+		if (value != null) {
+			node.setValue(value);
+		}
+		return node;
+	}
+
+	/**
+	 * Replaces value of optional node with buffered one.
+	 *
+	 * @param node
+	 *            node read from tree, modified in place
+	 * @return the same node.
+	 */
+	public Optional<TreeNode> overlay(Optional<TreeNode> node) {
+		node.ifPresent(this::overlay);
+		return node;
+	}
+
+	/**
+	 * Writes buffered values every second if write-behind is enabled.
+	 */
+	@Schedule(hour = "*", minute = "*", second = "*", persistent = false)
+	public void flushPeriodically() {
+		if (enabled) {
+			flush();
+		}
+	}
+
+	/**
+	 * Writes buffered values in single transaction. If batch is rejected
+	 * because some node was deleted, nodes are updated one by one and missing
+	 * ones are skipped. Values that couldn't be written because of error are
+	 * buffered again, unless node has newer value.
+	 */
+	public void flush() {
+		synchronized (writeLock) {
+			Map<Long, Double> values;
+			synchronized (this) {
+				if (buffered.isEmpty()) {
+					return;
+				}
+				values = buffered;
+				writing = values;
+				buffered = new LinkedHashMap<>();
+			}
+			try {
+				write(values);
+			} catch (RuntimeException e) {
+				logger.error("Buffered updates not written", e);
+				synchronized (this) {
+					values.forEach(buffered::putIfAbsent);
+				}
+			} finally {
+				synchronized (this) {
+					writing = Collections.emptyMap();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes buffered values and runs modification that isn't buffered.
+	 * Buffer isn't written again until modification ends, so values buffered
+	 * before can't overwrite its results or reach nodes it deletes.
+	 *
+	 * @param modification
+	 *            modification of tree
+	 * @return result of modification.
+	 */
+	public <T> T flushBefore(Supplier<T> modification) {
+		synchronized (writeLock) {
+			flush();
+			return modification.get();
+		}
+	}
+
+	/**
+	 * Drops buffered values and runs modification that removes whole tree.
+	 * Ids of removed nodes may be given to new ones, so values buffered for
+	 * old nodes are never written.
+	 *
+	 * @param modification
+	 *            removal of tree
+	 */
+	public void discardBefore(Runnable modification) {
+		synchronized (writeLock) {
+			synchronized (this) {
+				if (!buffered.isEmpty()) {
+					logger.warnv("{0} buffered updates dropped with tree",
+							buffered.size());
+				}
+				buffered = new LinkedHashMap<>();
+			}
+			modification.run();
+		}
+	}
+
+	private void write(Map<Long, Double> values) {
+		TreeBatch batch = new TreeBatch();
+		values.forEach((id, value) -> {
+			TreeNode node = TreeNode.newNode(null, value);
+			node.setId(id);
+			batch.getUpdated().add(node);
+		});
+		if (treeManager.applyBatch(batch).isPresent()) {
+			if (logger.isDebugEnabled()) {
+				logger.debugv("{0} buffered updates written", values.size());
+			}
+			return;
+		}
+		for (TreeNode node : batch.getUpdated()) {
+			if (!treeManager.update(node)) {
+				logger.warnv("Buffered update of {0} dropped", node.getId());
+			}
+		}
+	}
+
+	/**
+	 * Writes buffered values before application is stopped.
+	 */
+	@PreDestroy
+	public void close() {
+		flush();
+	}
+}
@@ -0,0 +1,113 @@
+package pl.mpiglas.tree.ejb.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock free histogram of non negative values with bounded relative error, in
+ * manner of HdrHistogram. Each power of two is split into
+ * {@link #SUB_BUCKETS} buckets of equal width, so value read from histogram
+ * differs from recorded one by less than 1/{@link #SUB_BUCKETS}. Whole range
+ * of long is covered by fixed array of counters, recording is single atomic
+ * increment.
+ *
+ * Quantiles are computed from counts read one by one while other threads may
+ * record, so they are approximate under load.
+ *
+ * @author mpiglas
+ *
+ */
+public final class Histogram {
+
+	private static final int SUB_BUCKET_BITS = 4;
+	/**
+	 * Number of buckets per power of two.
+	 */
+	public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS + 1)
+			* SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+
+	/**
+	 * Records value.
+	 *
+	 * @param value
+	 *            non negative value, negative values are recorded as 0
+	 */
+	public void record(long value) {
+		long recorded = Math.max(0, value);
+		counts.incrementAndGet(bucket(recorded));
+		count.increment();
+		sum.add(recorded);
+	}
+
+	static int bucket(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - SUB_BUCKET_BITS;
+		int sub = (int) (value >>> shift) - SUB_BUCKETS;
+		return (shift + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * Returns the highest value recorded in bucket.
+	 */
+	static long highestValue(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = bucket / SUB_BUCKETS - 1;
+		long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+		return lowest + ((1L << shift) - 1);
+	}
+
+	/**
+	 * Returns number of recorded values.
+	 *
+	 * @return count of values.
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * Returns sum of recorded values.
+	 *
+	 * @return sum of values.
+	 */
+	public long getSum() {
+		return sum.sum();
+	}
+
+	/**
+	 * Computes quantiles of recorded values.
+	 *
+	 * @param quantiles
+	 *            quantiles from 0 to 1, in ascending order
+	 * @return values at given quantiles, 0 if nothing was recorded.
+	 */
+	public long[] getQuantiles(double... quantiles) {
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		long[] values = new long[quantiles.length];
+		int bucket = 0;
+		long seen = snapshot[0];
+		for (int i = 0; i < quantiles.length && total > 0; i++) {
+			long rank = Math.max(1, (long) Math.ceil(quantiles[i] * total));
+			while (seen < rank && bucket < BUCKETS - 1) {
+				seen += snapshot[++bucket];
+			}
+			values[i] = highestValue(bucket);
+		}
+		return values;
+	}
+}
@@ -0,0 +1,32 @@
+package pl.mpiglas.tree.ejb.metrics;
+
+import javax.ejb.EJB;
+import javax.interceptor.AroundInvoke;
+import javax.interceptor.InvocationContext;
+
+/**
+ * Records time and failures of business methods of intercepted bean in
+ * {@link TreeMetrics}, by name of method.
+ *
+ * @author mpiglas
+ *
+ */
+public class MetricsInterceptor {
+
+	@EJB
+	TreeMetrics metrics;
+
+	@AroundInvoke
+	public Object measure(InvocationContext context) throws Exception {
+		long started = System.nanoTime();
+		boolean failed = true;
+		try {
+			Object result = context.proceed();
+			failed = false;
+			return result;
+		} finally {
+			metrics.recordCall(context.getMethod().getName(), System.nanoTime()
+					- started, failed);
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package pl.mpiglas.tree.ejb.metrics;
+
+/**
+ * Numbers of SQL statements and entities loaded by Hibernate while handling
+ * single request. Statistics are bound to thread between {@link #start()} and
+ * {@link #stop()} and counted by {@link StatisticsInterceptor}, so requests
+ * handled in parallel don't mix. Request continued in other thread takes its
+ * statistics along with {@link #current()} and {@link #attach()}. Work done
+ * in other threads, e.g. by timers, isn't counted.
+ *
+ * @author mpiglas
+ *
+ */
+public final class RequestStatistics {
+
+	private static final ThreadLocal<RequestStatistics> CURRENT = new ThreadLocal<>();
+
+	private int statements;
+	private int entities;
+
+	private RequestStatistics() {
+	}
+
+	/**
+	 * Starts counting in current thread.
+	 *
+	 * @return statistics of request handled by current thread.
+	 */
+	public static RequestStatistics start() {
+		RequestStatistics statistics = new RequestStatistics();
+		CURRENT.set(statistics);
+		return statistics;
+	}
+
+	/**
+	 * Returns statistics bound to current thread.
+	 *
+	 * @return statistics or null if thread doesn't handle request.
+	 */
+	public static RequestStatistics current() {
+		return CURRENT.get();
+	}
+
+	/**
+	 * Continues counting in current thread, e.g. when request is handled
+	 * asynchronously.
+	 */
+	public void attach() {
+		CURRENT.set(this);
+	}
+
+	/**
+	 * Stops counting in current thread.
+	 */
+	public static void stop() {
+		CURRENT.remove();
+	}
+
+	static void statementPrepared() {
+		RequestStatistics statistics = CURRENT.get();
+		if (statistics != null) {
+			statistics.statements++;
+		}
+	}
+
+	static void entityLoaded() {
+		RequestStatistics statistics = CURRENT.get();
+		if (statistics != null) {
+			statistics.entities++;
+		}
+	}
+
+	public int getStatements() {
+		return statements;
+	}
+
+	public int getEntities() {
+		return entities;
+	}
+}
@@ -0,0 +1,36 @@
+package pl.mpiglas.tree.ejb.metrics;
+
+import java.io.Serializable;
+
+import org.hibernate.EmptyInterceptor;
+import org.hibernate.resource.jdbc.spi.StatementInspector;
+import org.hibernate.type.Type;
+
+/**
+ * Counts SQL statements and loaded entities for {@link RequestStatistics}.
+ * Registered for whole persistence unit with properties
+ * hibernate.session_factory.interceptor and
+ * hibernate.session_factory.statement_inspector. Statements executed directly
+ * on JDBC connection are not counted.
+ *
+ * @author mpiglas
+ *
+ */
+public class StatisticsInterceptor extends EmptyInterceptor implements
+		StatementInspector {
+
+	private static final long serialVersionUID = -3920617585309741342L;
+
+	@Override
+	public String inspect(String sql) {
+		RequestStatistics.statementPrepared();
+		return sql;
+	}
+
+	@Override
+	public boolean onLoad(Object entity, Serializable id, Object[] state,
+			String[] propertyNames, Type[] types) {
+		RequestStatistics.entityLoaded();
+		return false;
+	}
+}
@@ -0,0 +1,177 @@
+package pl.mpiglas.tree.ejb.metrics;
+
+import java.util.Collections;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Singleton;
+
+/**
+ * Counters and histograms of server, collected since start. Recording is lock
+ * free and doesn't log, so it may be called on every request.
+ *
+ * <ul>
+ * <li>requests of REST services by operation, with latency, number of SQL
+ * statements and loaded entities, see {@link RequestStatistics}</li>
+ * <li>calls of {@link pl.mpiglas.tree.ejb.core.TreeManager} by method, see
+ * {@link MetricsInterceptor}</li>
+ * <li>sessions of change socket, fan-out of broadcast changes and failed
+ * sends</li>
+ * </ul>
+ *
+ * Latencies are recorded in nanoseconds.
+ *
+ * @author mpiglas
+ *
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class TreeMetrics {
+
+	private final ConcurrentMap<String, Operation> requests = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, Operation> calls = new ConcurrentHashMap<>();
+	private final Histogram fanout = new Histogram();
+	private final LongAdder sessionsOpened = new LongAdder();
+	private final LongAdder sessionsClosed = new LongAdder();
+	private final LongAdder sessionErrors = new LongAdder();
+	private final LongAdder sendFailures = new LongAdder();
+
+	/**
+	 * Latencies and failures of single operation. Statements and entities are
+	 * recorded only for requests.
+	 */
+	public static final class Operation {
+		private final Histogram latency = new Histogram();
+		private final Histogram statements = new Histogram();
+		private final Histogram entities = new Histogram();
+		private final LongAdder failures = new LongAdder();
+
+		public Histogram getLatency() {
+			return latency;
+		}
+
+		public Histogram getStatements() {
+			return statements;
+		}
+
+		public Histogram getEntities() {
+			return entities;
+		}
+
+		public long getFailures() {
+			return failures.sum();
+		}
+
+		private void record(long nanos, boolean failed) {
+			latency.record(nanos);
+			if (failed) {
+				failures.increment();
+			}
+		}
+	}
+
+	/**
+	 * Records finished request of REST service.
+	 *
+	 * @param operation
+	 *            name of operation, e.g. tree/create
+	 * @param nanos
+	 *            time of request
+	 * @param failed
+	 *            true if request failed
+	 * @param statistics
+	 *            statements and entities of request
+	 */
+	public void recordRequest(String operation, long nanos, boolean failed,
+			RequestStatistics statistics) {
+		Operation request = requests.computeIfAbsent(operation,
+				name -> new Operation());
+		request.record(nanos, failed);
+		request.statements.record(statistics.getStatements());
+		request.entities.record(statistics.getEntities());
+	}
+
+	/**
+	 * Records finished call of bean method.
+	 *
+	 * @param method
+	 *            name of method
+	 * @param nanos
+	 *            time of call
+	 * @param failed
+	 *            true if call threw exception
+	 */
+	public void recordCall(String method, long nanos, boolean failed) {
+		calls.computeIfAbsent(method, name -> new Operation()).record(nanos,
+				failed);
+	}
+
+	public void sessionOpened() {
+		sessionsOpened.increment();
+	}
+
+	public void sessionClosed() {
+		sessionsClosed.increment();
+	}
+
+	public void sessionFailed() {
+		sessionErrors.increment();
+	}
+
+	/**
+	 * Records number of sessions that received single change of tree.
+	 *
+	 * @param sessions
+	 *            number of sessions
+	 */
+	public void changeBroadcast(int sessions) {
+		fanout.record(sessions);
+	}
+
+	public void sendFailed() {
+		sendFailures.increment();
+	}
+
+	/**
+	 * Returns requests by operation.
+	 *
+	 * @return operations sorted by name.
+	 */
+	public SortedMap<String, Operation> getRequests() {
+		return Collections.unmodifiableSortedMap(new TreeMap<>(requests));
+	}
+
+	/**
+	 * Returns calls of manager by method.
+	 *
+	 * @return methods sorted by name.
+	 */
+	public SortedMap<String, Operation> getCalls() {
+		return Collections.unmodifiableSortedMap(new TreeMap<>(calls));
+	}
+
+	public Histogram getFanout() {
+		return fanout;
+	}
+
+	public long getSessionsOpened() {
+		return sessionsOpened.sum();
+	}
+
+	public long getSessionsClosed() {
+		return sessionsClosed.sum();
+	}
+
+	public long getSessionErrors() {
+		return sessionErrors.sum();
+	}
+
+	public long getSendFailures() {
+		return sendFailures.sum();
+	}
+}
@@ -0,0 +1,764 @@
+package pl.mpiglas.tree.ejb.store;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.ejb.LocalBean;
+import javax.ejb.SessionContext;
+import javax.ejb.Stateless;
+import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceException;
+import javax.persistence.TypedQuery;
+
+import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.exception.ConstraintViolationException;
+import org.jboss.logging.Logger;
+
+import pl.mpiglas.tree.model.entity.TreeNodeEntity;
+import pl.mpiglas.tree.model.entity.TreeRevisionEntity;
+import pl.mpiglas.tree.model.transfer.TreeAggregate;
+import pl.mpiglas.tree.model.transfer.TreeBatch;
+import pl.mpiglas.tree.model.transfer.TreeNode;
+
+/**
+ * Stores tree as JPA entities. Modifications are saved in transaction of
+ * caller.
+ * 
+ * Tree is built from entities that represents tree nodes. Each node, except
+ * tree's root, contains reference for its parent. Aggregates of subtrees are
+ * updated along path of modified node, see {@link SubtreeAggregates}.
+ * 
+ * @author mpiglas
+ *
+ */
+@Stateless
+@LocalBean
+public class JpaTreeStore implements TreeStore {
+
+	/**
+	 * Maximal number of ids passed as parameter of single query.
+	 */
+	private static final int ID_CHUNK_SIZE = 1000;
+	/**
+	 * Maximal length of single id in materialized path, with separator.
+	 */
+	private static final int MAX_PATH_SEGMENT_LENGTH = 14;
+	/**
+	 * Number of rows fetched from database at once when nodes are streamed.
+	 */
+	private static final int STREAM_FETCH_SIZE = 500;
+
+	Logger logger;
+
+	@PersistenceContext(name = "storageUnit")
+	EntityManager em;
+
+	@Resource
+	SessionContext context;
+
+	/**
+	 * Inits bean.
+	 */
+	@PostConstruct
+	public void init() {
+		logger = Logger.getLogger(JpaTreeStore.class);
+	}
+
+	private TreeNodeEntity getEntity(long id) {
+		TypedQuery<TreeNodeEntity> query = em.createNamedQuery(
+				TreeNodeEntity.FIND_NODE_QUERY, TreeNodeEntity.class);
+		query.setParameter(TreeNodeEntity.NODE_ID_PARAM, id);
+		List<TreeNodeEntity> nodes = query.getResultList();
+		if (nodes.isEmpty()) {
+			return null;
+		}
+		return nodes.get(0);
+	}
+
+	/**
+	 * Parent of new node. Only its path and depth are read from database and
+	 * association is set with uninitialized reference, so parent entity and its
+	 * ancestors are never loaded.
+	 */
+	private static final class ParentNode {
+		private final TreeNodeEntity reference;
+		private final String path;
+		private final int depth;
+
+		private ParentNode(TreeNodeEntity reference, String path, int depth) {
+			this.reference = reference;
+			this.path = path;
+			this.depth = depth;
+		}
+
+		private static ParentNode of(TreeNodeEntity entity) {
+			return new ParentNode(entity, entity.getPath(), entity.getDepth());
+		}
+	}
+
+	private Map<Long, ParentNode> getParents(List<Long> ids) {
+		Map<Long, ParentNode> parents = new HashMap<>();
+		for (List<Long> chunk : chunks(ids)) {
+			for (Object[] row : em
+					.createNamedQuery(TreeNodeEntity.FIND_POSITIONS, Object[].class)
+					.setParameter(TreeNodeEntity.NODE_IDS_PARAM, chunk)
+					.getResultList()) {
+				Long id = (Long) row[0];
+				parents.put(id, new ParentNode(
+						em.getReference(TreeNodeEntity.class, id),
+						(String) row[1], (Integer) row[2]));
+			}
+		}
+		return parents;
+	}
+
+	private Map<Long, TreeNodeEntity> getEntities(List<Long> ids) {
+		Map<Long, TreeNodeEntity> entities = new HashMap<>();
+		for (List<Long> chunk : chunks(ids)) {
+			TypedQuery<TreeNodeEntity> query = em.createNamedQuery(
+					TreeNodeEntity.FIND_NODES_QUERY, TreeNodeEntity.class);
+			query.setParameter(TreeNodeEntity.NODE_IDS_PARAM, chunk);
+			entities.putAll(query.getResultList().stream().collect(
+					Collectors.toMap(TreeNodeEntity::getId, Function.identity())));
+		}
+		return entities;
+	}
+
+	/**
+	 * Persists new node as child of given parent. Node is placed before it's
+	 * persisted and materialized path is filled when id is generated, so row
+	 * is inserted with single statement. Aggregates of node have to be set
+	 * before.
+	 * 
+	 * @param entity
+	 *            new node
+	 * @param parent
+	 *            parent node or null for tree's root
+	 * @return false if path of parent is too long to add child.
+	 */
+	private boolean persistUnder(TreeNodeEntity entity, ParentNode parent) {
+		if (parent == null) {
+			entity.placeUnder(null);
+			em.persist(entity);
+			return true;
+		}
+		if (parent.path.length() + MAX_PATH_SEGMENT_LENGTH > TreeNodeEntity.MAX_PATH_LENGTH) {
+			logger.warnv("Tree is too deep to add child to {0}", parent.path);
+			return false;
+		}
+		entity.placeUnder(parent.reference, parent.path, parent.depth);
+		em.persist(entity);
+		return true;
+	}
+
+	private String getPath(Long nodeId) {
+		List<String> paths = em
+				.createNamedQuery(TreeNodeEntity.FIND_PATH, String.class)
+				.setParameter(TreeNodeEntity.NODE_ID_PARAM, nodeId)
+				.getResultList();
+		return paths.isEmpty() ? null : paths.get(0);
+	}
+
+	/**
+	 * Persists tree's root. Existing root isn't looked up, second root is
+	 * rejected by unique constraint of root marker. Insert is flushed at
+	 * once, so violation is reported here and not when transaction commits.
+	 * Transaction is marked for rollback after violation.
+	 * 
+	 * @param entity
+	 *            new root
+	 * @return false if tree already has root.
+	 */
+	private boolean persistRoot(TreeNodeEntity entity) {
+		persistUnder(entity, null);
+		try {
+			em.flush();
+			return true;
+		} catch (PersistenceException e) {
+			if (!isRootViolation(e)) {
+				throw e;
+			}
+			logger.warnv("Second root can't be created {0}", entity);
+			return false;
+		}
+	}
+
+	private static boolean isRootViolation(PersistenceException exception) {
+		for (Throwable cause = exception; cause != null; cause = cause.getCause()) {
+			if (cause instanceof ConstraintViolationException) {
+				// database may add name of index and violating row to name
+				String constraint = ((ConstraintViolationException) cause)
+						.getConstraintName();
+				return constraint != null && constraint.toUpperCase()
+						.contains(TreeNodeEntity.ROOT_CONSTRAINT);
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Runs modification in current transaction after row of revision is
+	 * locked. Aggregates of ancestors are read and written back as absolute
+	 * values, and rows read without lock could be changed by concurrent
+	 * modification of another subtree, so modifications are serialized by
+	 * the same lock that allocates revision. Lock is held until transaction
+	 * ends, so revisions are allocated in order modifications were applied.
+	 */
+	@Override
+	public <T> T modify(Supplier<T> modification) {
+		em.find(TreeRevisionEntity.class, TreeRevisionEntity.SINGLE_ID,
+				LockModeType.PESSIMISTIC_WRITE);
+		return modification.get();
+	}
+
+	/**
+	 * Creates new entity representing tree's node. If node is not a root and
+	 * parent doesn't exist or node doesn't have parent and root already exist
+	 * entity is not created, see {@link #persistRoot(TreeNodeEntity)}.
+	 */
+	@Override
+	public Optional<TreeNode> create(TreeNode newNode, Map<Long, String> paths) {
+		TreeNodeEntity entity = new TreeNodeEntity();
+		entity.setNodeValue(newNode.getValue());
+		entity.initAggregates();
+		if (newNode.getParentId() != null) {
+			ParentNode parent = getParents(
+					Collections.singletonList(newNode.getParentId()))
+					.get(newNode.getParentId());
+			if (parent == null) {
+				return Optional.empty();
+			}
+			if (!persistUnder(entity, parent)) {
+				return Optional.empty();
+			}
+		} else if (!persistRoot(entity)) {
+			// Tree can have only single root
+			return Optional.empty();
+		}
+		new SubtreeAggregates(em).added(entity);
+		if (logger.isDebugEnabled()) {
+			logger.debugv("Entity {0} created", entity);
+		}
+		paths.put(entity.getId(), entity.getPath());
+		return Optional.of(new TreeNode(entity.getId(), newNode.getParentId(),
+				entity.getNodeValue()));
+	}
+
+	/**
+	 * Reads all nodes from database directly as domain objects. Only id,
+	 * parent's id and value are selected, so no entity and none of its
+	 * ancestors is loaded.
+	 * 
+	 * @return list of nodes, possibly empty.
+	 */
+	@Override
+	public List<TreeNode> getAll() {
+		logger.debug("Reading all nodes");
+		return em.createNamedQuery(TreeNodeEntity.FIND_ALL_NODES_QUERY,
+				TreeNode.class).getResultList();
+	}
+
+	/**
+	 * Reads single node directly as domain object.
+	 * 
+	 * @param nodeId
+	 *            node's id
+	 * @return {@link Optional} with node or empty if node doesn't exist.
+	 */
+	@Override
+	public Optional<TreeNode> getNode(Long nodeId) {
+		return em.createNamedQuery(TreeNodeEntity.FIND_NODE_PROJECTION,
+				TreeNode.class)
+				.setParameter(TreeNodeEntity.NODE_ID_PARAM, nodeId)
+				.getResultList().stream().findFirst();
+	}
+
+	/**
+	 * Reads all nodes with forward-only cursor and passes them one by one to
+	 * consumer. Nodes are read directly as domain objects, so no entity is
+	 * kept in persistence context and memory usage doesn't depend on size of
+	 * tree.
+	 * 
+	 * @param consumer
+	 *            receives each node of tree
+	 */
+	@Override
+	public void forEachNode(Consumer<TreeNode> consumer) {
+		ScrollableResults rows = scroll(em.unwrap(Session.class)
+				.getNamedQuery(TreeNodeEntity.FIND_ALL_NODES_QUERY));
+		try {
+			while (rows.next()) {
+				consumer.accept((TreeNode) rows.get(0));
+			}
+		} finally {
+			rows.close();
+		}
+	}
+
+	private static ScrollableResults scroll(Query query) {
+		return query.setReadOnly(true).setFetchSize(STREAM_FETCH_SIZE)
+				.scroll(ScrollMode.FORWARD_ONLY);
+	}
+
+	private static void forEachRow(Query query, TreeRowConsumer consumer) {
+		ScrollableResults rows = scroll(query);
+		try {
+			while (rows.next()) {
+				consumer.accept(rows.getLong(0), rows.getLong(1),
+						rows.getDouble(2));
+			}
+		} finally {
+			rows.close();
+		}
+	}
+
+	/**
+	 * Reads id, parent's id and value of all nodes ordered by id with
+	 * forward-only cursor and passes them to consumer. Neither entities nor
+	 * domain objects are created.
+	 * 
+	 * @param consumer
+	 *            receives columns of each node
+	 */
+	@Override
+	public void forEachRow(TreeRowConsumer consumer) {
+		forEachRow(em.unwrap(Session.class)
+				.getNamedQuery(TreeNodeEntity.FIND_ALL_ROWS), consumer);
+	}
+
+	/**
+	 * Reads id, parent's id and value of node with given id and all its
+	 * descendants, ordered by id, and passes them to consumer.
+	 * 
+	 * @param nodeId
+	 *            id of subtree's root
+	 * @param consumer
+	 *            receives columns of each node
+	 * @return false if node doesn't exist.
+	 */
+	@Override
+	public boolean forEachSubtreeRow(Long nodeId, TreeRowConsumer consumer) {
+		String path = getPath(nodeId);
+		if (path == null) {
+			return false;
+		}
+		forEachRow(em.unwrap(Session.class)
+				.getNamedQuery(TreeNodeEntity.FIND_SUBTREE_ROWS)
+				.setParameter(TreeNodeEntity.PATH_PARAM, path + "%"), consumer);
+		return true;
+	}
+
+	/**
+	 * Reads page of nodes ordered by id. Next page starts after the last id of
+	 * previous page, so reading doesn't slow down with page number.
+	 * 
+	 * @param afterId
+	 *            only nodes with greater id are read, null for first page
+	 * @param limit
+	 *            maximal number of nodes
+	 * @return list of nodes, possibly empty.
+	 */
+	@Override
+	public List<TreeNode> getPage(Long afterId, int limit) {
+		return em.createNamedQuery(TreeNodeEntity.FIND_PAGE_QUERY, TreeNode.class)
+				.setParameter(TreeNodeEntity.AFTER_ID_PARAM,
+						afterId != null ? afterId : Long.MIN_VALUE)
+				.setMaxResults(limit).getResultList();
+	}
+
+	/**
+	 * Updates value of node and aggregates of its ancestors.
+	 */
+	@Override
+	public boolean update(TreeNode node, Map<Long, String> paths) {
+
+		TreeNodeEntity entity = getEntity(node.getId());
+		if (entity != null) {
+			double oldValue = entity.getNodeValue();
+			entity.setNodeValue(node.getValue());
+			new SubtreeAggregates(em).updated(entity, oldValue);
+			if (logger.isDebugEnabled()) {
+				logger.debugv("Entity updated: {0}  ", entity);
+			}
+			paths.put(entity.getId(), entity.getPath());
+			return true;
+		} else {
+			logger.warnv("Entity  {0} not found", node.getId());
+		}
+		return false;
+	}
+
+	/**
+	 * Updates value with single statement that checks version, so neither
+	 * node nor its ancestors are loaded. Previous value, path and version are
+	 * read first with projection, which tells stale node from missing one.
+	 * Aggregates of node and its ancestors are changed with relative bulk
+	 * statements, see {@link SubtreeAggregates#valueUpdated(String, double, double)}.
+	 */
+	@Override
+	public VersionedUpdate updateIfVersion(TreeNode node, long version,
+			Map<Long, String> paths) {
+		List<Object[]> rows = em
+				.createNamedQuery(TreeNodeEntity.FIND_VERSIONED_VALUE, Object[].class)
+				.setParameter(TreeNodeEntity.NODE_ID_PARAM, node.getId())
+				.getResultList();
+		if (rows.isEmpty()) {
+			logger.warnv("Entity {0} not found", node.getId());
+			return VersionedUpdate.MISSING;
+		}
+		// version is checked again by update
+		if ((Long) rows.get(0)[2] != version || em
+				.createNamedQuery(TreeNodeEntity.UPDATE_VALUE_IF_VERSION)
+				.setParameter(TreeNodeEntity.VALUE_PARAM, node.getValue())
+				.setParameter(TreeNodeEntity.NODE_ID_PARAM, node.getId())
+				.setParameter(TreeNodeEntity.VERSION_PARAM, version)
+				.executeUpdate() == 0) {
+			return VersionedUpdate.STALE;
+		}
+		String path = (String) rows.get(0)[1];
+		new SubtreeAggregates(em).valueUpdated(path, (Double) rows.get(0)[0],
+				node.getValue());
+		paths.put(node.getId(), path);
+		return VersionedUpdate.UPDATED;
+	}
+
+	@Override
+	public Optional<Long> getVersion(Long nodeId) {
+		return em.createNamedQuery(TreeNodeEntity.FIND_VERSION, Long.class)
+				.setParameter(TreeNodeEntity.NODE_ID_PARAM, nodeId)
+				.getResultList().stream().findFirst();
+	}
+
+	/**
+	 * Applies all modifications from batch in current transaction. New nodes
+	 * are created first, then existing nodes are updated and at the end
+	 * deleted. Parents of new nodes and updated nodes are read with single
+	 * query, so statements are sent to database in JDBC batches when
+	 * transaction is flushed. If any modification can't be applied, transaction
+	 * is marked for rollback and none of the changes is saved.
+	 */
+	@Override
+	public Optional<Map<Long, Long>> applyBatch(TreeBatch batch,
+			Map<Long, String> paths) {
+		Map<Long, TreeNodeEntity> created = new HashMap<>();
+		SubtreeAggregates aggregates = new SubtreeAggregates(em);
+		Map<Long, ParentNode> parents = getParents(batch.getCreated().stream()
+				.map(TreeNode::getParentId)
+				.filter(id -> id != null && id >= 0)
+				.distinct().collect(Collectors.toList()));
+		for (TreeNode newNode : batch.getCreated()) {
+			TreeNodeEntity entity = new TreeNodeEntity();
+			entity.setNodeValue(newNode.getValue());
+			entity.initAggregates();
+			Long parentId = newNode.getParentId();
+			if (parentId != null) {
+				ParentNode parent = parentId < 0
+						? created.containsKey(parentId) ? ParentNode.of(created.get(parentId)) : null
+						: parents.get(parentId);
+				if (parent == null) {
+					logger.warnv("Parent of node {0} not found", newNode);
+					return rejectBatch();
+				}
+				if (!persistUnder(entity, parent)) {
+					return rejectBatch();
+				}
+			} else if (!persistRoot(entity)) {
+				return rejectBatch();
+			}
+			aggregates.added(entity);
+			created.put(newNode.getId(), entity);
+		}
+
+		Map<Long, TreeNodeEntity> updated = getEntities(batch.getUpdated().stream()
+				.map(TreeNode::getId).filter(id -> id >= 0)
+				.distinct().collect(Collectors.toList()));
+		for (TreeNode node : batch.getUpdated()) {
+			TreeNodeEntity entity = node.getId() < 0 ? created.get(node.getId())
+					: updated.get(node.getId());
+			if (entity == null) {
+				logger.warnv("Entity  {0} not found", node.getId());
+				return rejectBatch();
+			}
+			double oldValue = entity.getNodeValue();
+			entity.setNodeValue(node.getValue());
+			aggregates.updated(entity, oldValue);
+		}
+
+		created.values().forEach(e -> paths.put(e.getId(), e.getPath()));
+		updated.values().forEach(e -> paths.put(e.getId(), e.getPath()));
+		List<TreeNodeEntity> deleted = new ArrayList<>();
+		for (Long nodeId : batch.getDeleted()) {
+			TreeNodeEntity entity = nodeId < 0 ? created.get(nodeId)
+					: aggregates.get(nodeId);
+			if (entity == null) {
+				logger.warn("Entity " + nodeId + " not found");
+				return rejectBatch();
+			}
+			paths.put(entity.getId(), entity.getPath());
+			deleted.add(entity);
+		}
+		// sorted paths place subtree right after its root, so nodes listed
+		// twice or inside other deleted subtree are skipped
+		deleted.sort(Comparator.comparing(TreeNodeEntity::getPath));
+		String deletedRoot = null;
+		for (TreeNodeEntity entity : deleted) {
+			if (deletedRoot != null && entity.getPath().startsWith(deletedRoot)) {
+				continue;
+			}
+			deletedRoot = entity.getPath();
+			// pending inserts and updates are flushed before bulk delete
+			if (deleteSubtree(entity.getPath()) == 0) {
+				logger.warn("Entity " + entity.getId() + " not found");
+				return rejectBatch();
+			}
+			aggregates.removed(entity);
+		}
+		if (logger.isDebugEnabled()) {
+			logger.debugv("Batch applied {0}", batch);
+		}
+
+		Map<Long, Long> ids = new HashMap<>();
+		created.forEach((tempId, entity) -> ids.put(tempId, entity.getId()));
+		return Optional.of(ids);
+	}
+
+	/**
+	 * Creates whole subtree with statements sent in JDBC batches. Aggregates
+	 * of new nodes are computed in memory from leaves before anything is
+	 * persisted, so each new row is inserted once and never updated.
+	 * Ancestors of subtree are read once and updated once.
+	 */
+	@Override
+	public Optional<Map<Long, Long>> createSubtree(List<TreeNode> nodes,
+			Map<Long, String> paths) {
+		TreeNode top = nodes.get(0);
+		ParentNode parent = null;
+		if (top.getParentId() != null) {
+			parent = getParents(Collections.singletonList(top.getParentId()))
+					.get(top.getParentId());
+			if (parent == null) {
+				logger.warnv("Parent of subtree {0} not found", top);
+				return Optional.empty();
+			}
+		}
+		Map<Long, TreeNodeEntity> created = new HashMap<>();
+		List<TreeNodeEntity> entities = new ArrayList<>(nodes.size());
+		for (TreeNode node : nodes) {
+			TreeNodeEntity entity = new TreeNodeEntity();
+			entity.setNodeValue(node.getValue());
+			entity.initAggregates();
+			created.put(node.getId(), entity);
+			entities.add(entity);
+		}
+		// children follow their parents, so reversed order visits whole
+		// subtree of node before node itself
+		for (int i = nodes.size() - 1; i > 0; i--) {
+			SubtreeAggregates.include(created.get(nodes.get(i).getParentId()),
+					entities.get(i));
+		}
+		for (int i = 0; i < nodes.size(); i++) {
+			boolean persisted = i == 0 && parent == null
+					? persistRoot(entities.get(i))
+					: persistUnder(entities.get(i), i == 0 ? parent : ParentNode
+							.of(created.get(nodes.get(i).getParentId())));
+			if (!persisted) {
+				return rejectBatch();
+			}
+		}
+		new SubtreeAggregates(em).added(entities.get(0));
+		if (logger.isDebugEnabled()) {
+			logger.debugv("Subtree of {0} nodes created", nodes.size());
+		}
+
+		Map<Long, Long> ids = new HashMap<>();
+		created.forEach((tempId, entity) -> {
+			ids.put(tempId, entity.getId());
+			paths.put(entity.getId(), entity.getPath());
+		});
+		return Optional.of(ids);
+	}
+
+	private Optional<Map<Long, Long>> rejectBatch() {
+		context.setRollbackOnly();
+		return Optional.empty();
+	}
+
+	private static List<List<Long>> chunks(List<Long> ids) {
+		List<List<Long>> result = new ArrayList<>();
+		for (int i = 0; i < ids.size(); i += ID_CHUNK_SIZE) {
+			result.add(ids.subList(i, Math.min(ids.size(), i + ID_CHUNK_SIZE)));
+		}
+		return result;
+	}
+
+	/**
+	 * Deletes node and its children without loading entities. Ids of subtree
+	 * are read with single query using materialized path, then levels are
+	 * removed with bulk deletes starting from leaves, so parent reference of
+	 * remaining rows is never broken.
+	 * 
+	 * @param path
+	 *            materialized path of subtree's root
+	 * @return number of deleted nodes.
+	 */
+	private int deleteSubtree(String path) {
+		NavigableMap<Integer, List<Long>> levels = new TreeMap<>();
+		for (Object[] row : em
+				.createNamedQuery(TreeNodeEntity.FIND_SUBTREE_IDS, Object[].class)
+				.setParameter(TreeNodeEntity.PATH_PARAM, path + "%")
+				.getResultList()) {
+			levels.computeIfAbsent((Integer) row[1], d -> new ArrayList<>())
+					.add((Long) row[0]);
+		}
+		int deleted = 0;
+		for (List<Long> level : levels.descendingMap().values()) {
+			for (List<Long> chunk : chunks(level)) {
+				deleted += em
+						.createNamedQuery(TreeNodeEntity.DELETE_NODES)
+						.setParameter(TreeNodeEntity.NODE_IDS_PARAM, chunk)
+						.executeUpdate();
+			}
+		}
+		return deleted;
+	}
+
+	/**
+	 * Reads node with given id and all its descendants. Parent is always placed
+	 * before its children.
+	 * 
+	 * @param nodeId
+	 *            id of subtree's root
+	 * @return {@link Optional} with list of nodes or empty if node doesn't
+	 *         exist.
+	 */
+	@Override
+	public Optional<List<TreeNode>> getSubtree(Long nodeId) {
+		String path = getPath(nodeId);
+		if (path == null) {
+			return Optional.empty();
+		}
+		return Optional.of(em
+				.createNamedQuery(TreeNodeEntity.FIND_SUBTREE, TreeNode.class)
+				.setParameter(TreeNodeEntity.PATH_PARAM, path + "%")
+				.getResultList());
+	}
+
+	/**
+	 * Reads all ancestors of node with given id, starting from tree's root.
+	 * 
+	 * @param nodeId
+	 *            node's id
+	 * @return {@link Optional} with list of nodes, empty list for root, or
+	 *         empty if node doesn't exist.
+	 */
+	@Override
+	public Optional<List<TreeNode>> getAncestors(Long nodeId) {
+		String path = getPath(nodeId);
+		if (path == null) {
+			return Optional.empty();
+		}
+		List<Long> ids = TreeNodeEntity.pathIds(path);
+		ids.remove(ids.size() - 1);
+		if (ids.isEmpty()) {
+			return Optional.of(new ArrayList<>());
+		}
+		return Optional.of(em
+				.createNamedQuery(TreeNodeEntity.FIND_ANCESTORS, TreeNode.class)
+				.setParameter(TreeNodeEntity.NODE_IDS_PARAM, ids)
+				.getResultList());
+	}
+
+	/**
+	 * Deletes node with given id and its children. If node represents tree's
+	 * root, all nodes will be removed.
+	 */
+	@Override
+	public int delete(Long nodeId, Map<Long, String> paths) {
+		SubtreeAggregates aggregates = new SubtreeAggregates(em);
+		TreeNodeEntity root = aggregates.get(nodeId);
+		int deleted = root != null ? deleteSubtree(root.getPath()) : 0;
+		if (deleted == 0) {
+			logger.warn("Entity " + nodeId + " not found");
+			return 0;
+		}
+		aggregates.removed(root);
+		paths.put(nodeId, root.getPath());
+		if (logger.isDebugEnabled()) {
+			logger.debugv("Deleted {0} nodes of subtree {1}", deleted, nodeId);
+		}
+		return deleted;
+	}
+
+	@Override
+	public void clear() {
+		em.createQuery("DELETE FROM TreeNodeEntity e").executeUpdate();
+	}
+
+	@Override
+	public Optional<List<TreeNode>> getChildren(Long nodeId) {
+		if (getPath(nodeId) == null) {
+			return Optional.empty();
+		}
+		return Optional.of(em
+				.createNamedQuery(TreeNodeEntity.FIND_CHILDREN_NODES, TreeNode.class)
+				.setParameter(TreeNodeEntity.NODE_ID_PARAM, nodeId)
+				.getResultList());
+	}
+
+	/**
+	 * Reads materialized paths of nodes with given ids. Unknown ids are
+	 * skipped.
+	 * 
+	 * @param nodeIds
+	 *            ids of nodes
+	 * @return map of ids to paths.
+	 */
+	@Override
+	public Map<Long, String> getPaths(List<Long> nodeIds) {
+		Map<Long, String> paths = new HashMap<>();
+		for (List<Long> chunk : chunks(nodeIds)) {
+			for (Object[] row : em
+					.createNamedQuery(TreeNodeEntity.FIND_POSITIONS, Object[].class)
+					.setParameter(TreeNodeEntity.NODE_IDS_PARAM, chunk)
+					.getResultList()) {
+				paths.put((Long) row[0], (String) row[1]);
+			}
+		}
+		return paths;
+	}
+
+	/**
+	 * Reads aggregates of subtree of given node. Aggregates are maintained
+	 * when tree is modified, so subtree is not read.
+	 * 
+	 * @param nodeId
+	 *            id of subtree's root
+	 * @return {@link Optional} with aggregates or empty if node doesn't exist.
+	 */
+	@Override
+	public Optional<TreeAggregate> getAggregate(Long nodeId) {
+		return em.createNamedQuery(TreeNodeEntity.FIND_AGGREGATE,
+				TreeAggregate.class)
+				.setParameter(TreeNodeEntity.NODE_ID_PARAM, nodeId)
+				.getResultList().stream().findFirst();
+	}
+
+}
@@ -0,0 +1,205 @@
+package pl.mpiglas.tree.ejb.store;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.function.LongConsumer;
+
+import pl.mpiglas.tree.model.entity.TreeRevisionEntity;
+import pl.mpiglas.tree.model.transfer.TreeChange;
+
+/**
+ * Change log of {@link MemoryTreeStore}, kept in memory next to the tree, so
+ * modification doesn't cost any database statement. Log shares lock of store:
+ * revision is allocated and changes are recorded in the same critical section
+ * as modification of tree, see {@link TreeStore#modify(java.util.function.Supplier)},
+ * so revisions follow order in which modifications were applied and readers
+ * never see revision without its changes.
+ *
+ * Log keeps at most {@link #RETAINED_CHANGES} changes, older revisions are
+ * compacted. Changes are not durable, only revision is appended to journal of
+ * durable store. After restart revision continues from recovered one and all
+ * older revisions are compacted, see {@link #recover(long)}, so clients read
+ * snapshot of recovered tree.
+ *
+ * @author mpiglas
+ *
+ */
+public final class MemoryChangeLog {
+
+	/**
+	 * Maximal number of changes kept in log.
+	 */
+	public static final int RETAINED_CHANGES = 100000;
+
+	private final ReadWriteLock lock;
+	/**
+	 * Receives each allocated revision under write lock.
+	 */
+	private final LongConsumer allocated;
+	/**
+	 * Changes ordered by revision, starting from index head.
+	 */
+	private final List<TreeChange> changes = new ArrayList<>();
+	private int head;
+	private long revision;
+	private long compactedRevision;
+
+	MemoryChangeLog(ReadWriteLock lock, LongConsumer allocated) {
+		this.lock = lock;
+		this.allocated = allocated;
+	}
+
+	/**
+	 * Continues log after tree was recovered. Next revision is allocated for
+	 * recovery itself and compacts all older ones: recovered tree may contain
+	 * modification, which revision didn't reach disk, so client can't apply
+	 * changes to tree read before restart.
+	 *
+	 * @param recovered
+	 *            the latest revision read from journal
+	 * @return revision of recovered tree.
+	 */
+	long recover(long recovered) {
+		Lock write = lock.writeLock();
+		write.lock();
+		try {
+			changes.clear();
+			head = 0;
+			revision = recovered;
+			compactedRevision = nextRevision();
+			return revision;
+		} finally {
+			write.unlock();
+		}
+	}
+
+	/**
+	 * Allocates revision for modification that is being applied.
+	 *
+	 * @return new revision.
+	 */
+	public long nextRevision() {
+		Lock write = lock.writeLock();
+		write.lock();
+		try {
+			allocated.accept(++revision);
+			return revision;
+		} finally {
+			write.unlock();
+		}
+	}
+
+	/**
+	 * Records change in log and compacts the oldest revisions if log is full.
+	 *
+	 * @param change
+	 *            modification of tree, tagged with allocated revision
+	 */
+	public void record(TreeChange change) {
+		Lock write = lock.writeLock();
+		write.lock();
+		try {
+			changes.add(change);
+			while (changes.size() - head > RETAINED_CHANGES) {
+				// whole revision is removed, so delta is never partial
+				compactedRevision = changes.get(head).getRevision();
+				while (head < changes.size()
+						&& changes.get(head).getRevision() <= compactedRevision) {
+					changes.set(head++, null);
+				}
+			}
+			if (head > RETAINED_CHANGES) {
+				changes.subList(0, head).clear();
+				head = 0;
+			}
+		} finally {
+			write.unlock();
+		}
+	}
+
+	/**
+	 * Allocates revision and removes all changes from log.
+	 *
+	 * @return new revision.
+	 */
+	public long reset() {
+		Lock write = lock.writeLock();
+		write.lock();
+		try {
+			changes.clear();
+			head = 0;
+			compactedRevision = nextRevision();
+			return revision;
+		} finally {
+			write.unlock();
+		}
+	}
+
+	/**
+	 * Reads the latest revision and revision up to which log was compacted.
+	 *
+	 * @return revision entity, not attached to any persistence context.
+	 */
+	public TreeRevisionEntity getRevision() {
+		Lock read = lock.readLock();
+		read.lock();
+		try {
+			TreeRevisionEntity entity = new TreeRevisionEntity();
+			entity.setId(TreeRevisionEntity.SINGLE_ID);
+			entity.setRevision(revision);
+			entity.setCompactedRevision(compactedRevision);
+			return entity;
+		} finally {
+			read.unlock();
+		}
+	}
+
+	/**
+	 * Reads changes from given range of revisions.
+	 *
+	 * @param since
+	 *            changes with greater revision are read
+	 * @param until
+	 *            changes with lower or equal revision are read
+	 * @param limit
+	 *            maximal number of changes
+	 * @return list of changes ordered by revision.
+	 */
+	public List<TreeChange> getChanges(long since, long until, int limit) {
+		Lock read = lock.readLock();
+		read.lock();
+		try {
+			List<TreeChange> result = new ArrayList<>();
+			for (int i = firstAfter(since); i < changes.size()
+					&& result.size() < limit; i++) {
+				TreeChange change = changes.get(i);
+				if (change.getRevision() > until) {
+					break;
+				}
+				result.add(change);
+			}
+			return result;
+		} finally {
+			read.unlock();
+		}
+	}
+
+	/**
+	 * Finds index of the first change with revision greater than given one.
+	 */
+	private int firstAfter(long since) {
+		int low = head;
+		int high = changes.size();
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (changes.get(middle).getRevision() <= since) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+}
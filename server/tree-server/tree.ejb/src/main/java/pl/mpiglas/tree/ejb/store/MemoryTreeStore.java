@@ -0,0 +1,1062 @@
+package pl.mpiglas.tree.ejb.store;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.LocalBean;
+import javax.ejb.Schedule;
+import javax.ejb.Singleton;
+
+import org.jboss.logging.Logger;
+
+import pl.mpiglas.tree.model.entity.TreeNodeEntity;
+import pl.mpiglas.tree.model.transfer.TreeAggregate;
+import pl.mpiglas.tree.model.transfer.TreeBatch;
+import pl.mpiglas.tree.model.transfer.TreeNode;
+
+/**
+ * Keeps tree in memory in primitive arrays, without object per node. Node with
+ * id n is stored in slot n - 1 of each array:
+ * <ul>
+ * <li>parent - slot of parent, {@link #NONE} for root, {@link #DELETED} for
+ * free slot</li>
+ * <li>firstChild, nextSibling, prevSibling - links of children list</li>
+ * <li>values - node's value</li>
+ * <li>versions - incremented with each modification of value</li>
+ * <li>sum, min, max, descendants - aggregates of subtree</li>
+ * </ul>
+ *
+ * Node is accessed by id in constant time. Ids are assigned in increasing
+ * order and slots of deleted nodes are not reused until tree is cleared.
+ * Readers share lock, modifications are exclusive. Store is not
+ * transactional: modification is visible immediately and is not reverted
+ * when transaction of caller is rolled back. Changes are therefore recorded in
+ * {@link MemoryChangeLog} of store, under the same lock as modification, and
+ * not in database.
+ *
+ * Content is lost on restart, unless store is selected with
+ * {@link TreeStore#JOURNAL}. Then each modification is appended to
+ * {@link TreeJournal} before it's applied and method returns when journal is
+ * flushed to disk. Snapshot of tree is written periodically and on shutdown,
+ * and tree is recovered from the latest snapshot and journal on startup.
+ *
+ * @author mpiglas
+ *
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+@LocalBean
+public class MemoryTreeStore implements TreeStore {
+
+	private static final int NONE = -1;
+	private static final int DELETED = -2;
+	private static final int INITIAL_CAPACITY = 1024;
+	/**
+	 * Number of rows copied under read lock at once when tree is passed to
+	 * consumer.
+	 */
+	private static final int CHUNK_SIZE = 1024;
+	/**
+	 * System property with directory of journal, see {@link TreeStore#JOURNAL}.
+	 */
+	public static final String JOURNAL_DIRECTORY_PROPERTY = "tree.journal.dir";
+	private static final String DEFAULT_JOURNAL_DIRECTORY = "tree-journal";
+
+	private Logger logger;
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private final MemoryChangeLog changeLog = new MemoryChangeLog(lock,
+			this::allocated);
+
+	private int[] parent;
+	private int[] firstChild;
+	private int[] nextSibling;
+	private int[] prevSibling;
+	private double[] values;
+	private long[] versions;
+	private double[] sum;
+	private double[] min;
+	private double[] max;
+	private int[] descendants;
+	/**
+	 * Number of used slots, deleted ones included.
+	 */
+	private int size;
+	/**
+	 * Number of nodes in tree.
+	 */
+	private int count;
+	private int root = NONE;
+	/**
+	 * Number of times arrays were allocated, so iteration notices that slots
+	 * were reused by new tree.
+	 */
+	private int allocations;
+
+	private TreeJournal journal;
+	/**
+	 * Position of the last record appended to journal, guarded by write lock.
+	 */
+	private long appended;
+	private volatile boolean modifiedSinceSnapshot;
+
+	/**
+	 * Checks if tree is kept in memory, see {@link TreeStore#MEMORY} and
+	 * {@link TreeStore#JOURNAL}.
+	 *
+	 * @return true if this store is selected with
+	 *         {@link TreeStore#STORE_PROPERTY}.
+	 */
+	public static boolean isSelected() {
+		String selected = System.getProperty(STORE_PROPERTY, JPA);
+		return MEMORY.equals(selected) || JOURNAL.equals(selected);
+	}
+
+	/**
+	 * Inits bean. Tree is recovered from journal if store is durable.
+	 */
+	@PostConstruct
+	public void init() {
+		logger = Logger.getLogger(MemoryTreeStore.class);
+		allocateArrays(INITIAL_CAPACITY);
+		if (TreeStore.JOURNAL.equals(System.getProperty(STORE_PROPERTY))) {
+			openJournal(Paths.get(System.getProperty(JOURNAL_DIRECTORY_PROPERTY,
+					DEFAULT_JOURNAL_DIRECTORY)), TreeJournal.SEGMENT_SIZE);
+		}
+	}
+
+	/**
+	 * Replaces tree with one recovered from journal in given directory and
+	 * appends next modifications to it. Change log continues from recovered
+	 * revision, see {@link MemoryChangeLog#recover(long)}.
+	 */
+	void openJournal(Path directory, int segmentSize) {
+		long[] recovered = new long[1];
+		Lock write = lock.writeLock();
+		write.lock();
+		try {
+			allocateArrays(INITIAL_CAPACITY);
+			journal = TreeJournal.open(directory, segmentSize, new TreeJournal.Replay() {
+
+				@Override
+				public void reserve(long lastId) {
+					ensureCapacity((int) lastId);
+					while (size < lastId) {
+						parent[size++] = DELETED;
+					}
+				}
+
+				@Override
+				public void create(long id, Long parentId, double value,
+						long version) {
+					reserve(id - 1);
+					int parentSlot = parentId != null ? existing(parentId) : NONE;
+					versions[add(parentSlot, value)] = version;
+				}
+
+				@Override
+				public void update(long id, double value) {
+					set(existing(id), value);
+				}
+
+				@Override
+				public void delete(long id) {
+					remove(existing(id));
+				}
+
+				@Override
+				public void clear() {
+					allocateArrays(INITIAL_CAPACITY);
+				}
+
+				@Override
+				public void revision(long revision) {
+					recovered[0] = Math.max(recovered[0], revision);
+				}
+			});
+			long revision = changeLog.recover(recovered[0]);
+			journal.sync(appended);
+			logger.infov("Tree with {0} nodes recovered from {1} at revision {2}",
+					count, directory, revision);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			write.unlock();
+		}
+	}
+
+	private int existing(long id) {
+		int slot = slot(id);
+		if (slot == NONE) {
+			throw new IllegalStateException("Journal refers to missing node "
+					+ id);
+		}
+		return slot;
+	}
+
+	/**
+	 * Appends record to journal. Must be called under write lock, before
+	 * modification is applied.
+	 *
+	 * @return position to pass to {@link #sync(long)} or 0 if store is not
+	 *         durable.
+	 */
+	private long append(TreeJournal.Record record) {
+		try {
+			modifiedSinceSnapshot = true;
+			appended = journal.append(record);
+			return appended;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Appends revision allocated by change log to journal. Called under write
+	 * lock, inside {@link #modify(Supplier)}.
+	 */
+	private void allocated(long revision) {
+		if (journal != null) {
+			append(new TreeJournal.Record().revision(revision));
+		}
+	}
+
+	/**
+	 * Waits until journal is flushed up to given position. Called after write
+	 * lock is released, so flush is shared by concurrent modifications. Inside
+	 * {@link #modify(Supplier)} flush is left to the end of whole section.
+	 */
+	private void sync(long position) {
+		if (position > 0 && !lock.isWriteLockedByCurrentThread()) {
+			journal.sync(position);
+		}
+	}
+
+	/**
+	 * Returns change log kept with tree.
+	 *
+	 * @return change log of store.
+	 */
+	public MemoryChangeLog getChangeLog() {
+		return changeLog;
+	}
+
+	/**
+	 * Runs modification under write lock. Lock is reentrant, so modifying
+	 * operations and {@link MemoryChangeLog} called by modification join the
+	 * section. Journal is flushed once, after lock is released.
+	 */
+	@Override
+	public <T> T modify(Supplier<T> modification) {
+		T result;
+		long position = 0;
+		Lock write = lock.writeLock();
+		write.lock();
+		try {
+			long before = appended;
+			result = modification.get();
+			if (appended != before) {
+				position = appended;
+			}
+		} finally {
+			write.unlock();
+		}
+		sync(position);
+		return result;
+	}
+
+	/**
+	 * Writes snapshot of tree and removes older journals, so recovery replays
+	 * only modifications done after snapshot. Tree is copied under read lock
+	 * and written to disk without blocking modifications.
+	 */
+	@Schedule(hour = "*", minute = "*/5", persistent = false)
+	public synchronized void snapshot() {
+		if (journal == null || !modifiedSinceSnapshot) {
+			return;
+		}
+		long generation;
+		long lastId;
+		long revision;
+		TreeJournal.SnapshotRows rows;
+		Lock read = lock.readLock();
+		read.lock();
+		try {
+			generation = journal.startGeneration();
+			modifiedSinceSnapshot = false;
+			lastId = size;
+			revision = changeLog.getRevision().getRevision();
+			rows = new TreeJournal.SnapshotRows(count);
+			int row = 0;
+			// ids are increasing, so parent is written before its children
+			for (int slot = 0; slot < size; slot++) {
+				if (parent[slot] != DELETED) {
+					rows.ids[row] = id(slot);
+					rows.parentIds[row] = parent[slot] == NONE ? 0 : id(parent[slot]);
+					rows.values[row] = values[slot];
+					rows.versions[row] = versions[slot];
+					row++;
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			read.unlock();
+		}
+		try {
+			journal.writeSnapshot(generation, lastId, revision, rows);
+		} catch (IOException e) {
+			modifiedSinceSnapshot = true;
+			logger.error("Snapshot of tree not written", e);
+		}
+	}
+
+	/**
+	 * Writes snapshot and closes journal, so next start doesn't replay it.
+	 */
+	@PreDestroy
+	public void close() {
+		if (journal == null) {
+			return;
+		}
+		snapshot();
+		try {
+			journal.close();
+		} catch (IOException e) {
+			logger.error("Journal not closed", e);
+		}
+		journal = null;
+	}
+
+	private void allocateArrays(int capacity) {
+		parent = new int[capacity];
+		firstChild = new int[capacity];
+		nextSibling = new int[capacity];
+		prevSibling = new int[capacity];
+		values = new double[capacity];
+		versions = new long[capacity];
+		sum = new double[capacity];
+		min = new double[capacity];
+		max = new double[capacity];
+		descendants = new int[capacity];
+		size = 0;
+		count = 0;
+		root = NONE;
+		allocations++;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity <= parent.length) {
+			return;
+		}
+		int length = Math.max(capacity, parent.length * 2);
+		parent = Arrays.copyOf(parent, length);
+		firstChild = Arrays.copyOf(firstChild, length);
+		nextSibling = Arrays.copyOf(nextSibling, length);
+		prevSibling = Arrays.copyOf(prevSibling, length);
+		values = Arrays.copyOf(values, length);
+		versions = Arrays.copyOf(versions, length);
+		sum = Arrays.copyOf(sum, length);
+		min = Arrays.copyOf(min, length);
+		max = Arrays.copyOf(max, length);
+		descendants = Arrays.copyOf(descendants, length);
+	}
+
+	private static long id(int slot) {
+		return slot + 1L;
+	}
+
+	/**
+	 * Finds slot of existing node.
+	 */
+	private int slot(Long id) {
+		if (id == null || id < 1 || id > size) {
+			return NONE;
+		}
+		int slot = (int) (id - 1);
+		return parent[slot] == DELETED ? NONE : slot;
+	}
+
+	private TreeNode node(int slot) {
+		return new TreeNode(id(slot),
+				parent[slot] == NONE ? null : id(parent[slot]), values[slot]);
+	}
+
+	private String path(int slot) {
+		int depth = 0;
+		for (int current = slot; current != NONE; current = parent[current]) {
+			depth++;
+		}
+		int[] ancestors = new int[depth];
+		for (int current = slot; current != NONE; current = parent[current]) {
+			ancestors[--depth] = current;
+		}
+		String path = TreeNodeEntity.PATH_SEPARATOR;
+		for (int ancestor : ancestors) {
+			path = TreeNodeEntity.childPath(path, id(ancestor));
+		}
+		return path;
+	}
+
+	/**
+	 * Visits node and all its descendants, parent before its children and
+	 * siblings in order of ids.
+	 */
+	private void visitSubtree(int slot, IntConsumer visitor) {
+		int[] stack = new int[16];
+		int top = 0;
+		stack[top++] = slot;
+		while (top > 0) {
+			int current = stack[--top];
+			visitor.accept(current);
+			// children list starts from the newest child, so the oldest one
+			// is on top of stack
+			for (int child = firstChild[current]; child != NONE; child = nextSibling[child]) {
+				if (top == stack.length) {
+					stack = Arrays.copyOf(stack, stack.length * 2);
+				}
+				stack[top++] = child;
+			}
+		}
+	}
+
+	private int add(int parentSlot, double value) {
+		ensureCapacity(size + 1);
+		int slot = size++;
+		count++;
+		parent[slot] = parentSlot;
+		firstChild[slot] = NONE;
+		prevSibling[slot] = NONE;
+		values[slot] = value;
+		sum[slot] = value;
+		min[slot] = value;
+		max[slot] = value;
+		descendants[slot] = 0;
+		versions[slot] = 0;
+		if (parentSlot == NONE) {
+			nextSibling[slot] = NONE;
+			root = slot;
+			return slot;
+		}
+		nextSibling[slot] = firstChild[parentSlot];
+		if (firstChild[parentSlot] != NONE) {
+			prevSibling[firstChild[parentSlot]] = slot;
+		}
+		firstChild[parentSlot] = slot;
+		for (int ancestor = parentSlot; ancestor != NONE; ancestor = parent[ancestor]) {
+			sum[ancestor] += value;
+			descendants[ancestor]++;
+			min[ancestor] = Math.min(min[ancestor], value);
+			max[ancestor] = Math.max(max[ancestor], value);
+		}
+		return slot;
+	}
+
+	private void set(int slot, double value) {
+		double oldValue = values[slot];
+		values[slot] = value;
+		versions[slot]++;
+		for (int current = slot; current != NONE; current = parent[current]) {
+			sum[current] += value - oldValue;
+			if (min[current] == oldValue && value > oldValue
+					|| max[current] == oldValue && value < oldValue) {
+				refreshExtremes(current);
+			} else {
+				min[current] = Math.min(min[current], value);
+				max[current] = Math.max(max[current], value);
+			}
+		}
+	}
+
+	private void refreshExtremes(int slot) {
+		double low = values[slot];
+		double high = values[slot];
+		for (int child = firstChild[slot]; child != NONE; child = nextSibling[child]) {
+			low = Math.min(low, min[child]);
+			high = Math.max(high, max[child]);
+		}
+		min[slot] = low;
+		max[slot] = high;
+	}
+
+	private int remove(int slot) {
+		int parentSlot = parent[slot];
+		if (parentSlot == NONE) {
+			root = NONE;
+		} else {
+			if (prevSibling[slot] != NONE) {
+				nextSibling[prevSibling[slot]] = nextSibling[slot];
+			} else {
+				firstChild[parentSlot] = nextSibling[slot];
+			}
+			if (nextSibling[slot] != NONE) {
+				prevSibling[nextSibling[slot]] = prevSibling[slot];
+			}
+		}
+		for (int ancestor = parentSlot; ancestor != NONE; ancestor = parent[ancestor]) {
+			sum[ancestor] -= sum[slot];
+			descendants[ancestor] -= descendants[slot] + 1;
+			if (min[ancestor] == min[slot] || max[ancestor] == max[slot]) {
+				refreshExtremes(ancestor);
+			}
+		}
+		int[] deleted = new int[1];
+		visitSubtree(slot, s -> {
+			parent[s] = DELETED;
+			deleted[0]++;
+		});
+		count -= deleted[0];
+		return deleted[0];
+	}
+
+	@Override
+	public Optional<TreeNode> create(TreeNode newNode, Map<Long, String> paths) {
+		TreeNode created;
+		long position = 0;
+		Lock write = lock.writeLock();
+		write.lock();
+		try {
+			int parentSlot = NONE;
+			if (newNode.getParentId() != null) {
+				parentSlot = slot(newNode.getParentId());
+				if (parentSlot == NONE) {
+					return Optional.empty();
+				}
+			} else if (root != NONE) {
+				logger.warnv("Second root can't be created {0}", newNode);
+				return Optional.empty();
+			}
+			if (journal != null) {
+				position = append(new TreeJournal.Record().create(id(size),
+						newNode.getParentId(), newNode.getValue()));
+			}
+			int slot = add(parentSlot, newNode.getValue());
+			paths.put(id(slot), path(slot));
+			created = node(slot);
+		} finally {
+			write.unlock();
+		}
+		sync(position);
+		return Optional.of(created);
+	}
+
+	@Override
+	public boolean update(TreeNode node, Map<Long, String> paths) {
+		long position = 0;
+		Lock write = lock.writeLock();
+		write.lock();
+		try {
+			int slot = slot(node.getId());
+			if (slot == NONE) {
+				return false;
+			}
+			if (journal != null) {
+				position = append(new TreeJournal.Record().update(node.getId(),
+						node.getValue()));
+			}
+			set(slot, node.getValue());
+			paths.put(id(slot), path(slot));
+		} finally {
+			write.unlock();
+		}
+		sync(position);
+		return true;
+	}
+
+	@Override
+	public VersionedUpdate updateIfVersion(TreeNode node, long version,
+			Map<Long, String> paths) {
+		long position = 0;
+		Lock write = lock.writeLock();
+		write.lock();
+		try {
+			int slot = slot(node.getId());
+			if (slot == NONE) {
+				return VersionedUpdate.MISSING;
+			}
+			if (versions[slot] != version) {
+				return VersionedUpdate.STALE;
+			}
+			if (journal != null) {
+				position = append(new TreeJournal.Record().update(node.getId(),
+						node.getValue()));
+			}
+			set(slot, node.getValue());
+			paths.put(id(slot), path(slot));
+		} finally {
+			write.unlock();
+		}
+		sync(position);
+		return VersionedUpdate.UPDATED;
+	}
+
+	@Override
+	public Optional<Long> getVersion(Long nodeId) {
+		Lock read = lock.readLock();
+		read.lock();
+		try {
+			int slot = slot(nodeId);
+			return slot == NONE ? Optional.empty() : Optional.of(versions[slot]);
+		} finally {
+			read.unlock();
+		}
+	}
+
+	@Override
+	public int delete(Long nodeId, Map<Long, String> paths) {
+		int deleted;
+		long position = 0;
+		Lock write = lock.writeLock();
+		write.lock();
+		try {
+			int slot = slot(nodeId);
+			if (slot == NONE) {
+				return 0;
+			}
+			if (journal != null) {
+				position = append(new TreeJournal.Record().delete(nodeId));
+			}
+			paths.put(nodeId, path(slot));
+			deleted = remove(slot);
+		} finally {
+			write.unlock();
+		}
+		sync(position);
+		return deleted;
+	}
+
+	/**
+	 * Validates whole batch before any modification, so rejected batch leaves
+	 * tree unchanged.
+	 */
+	private boolean isValid(TreeBatch batch) {
+		Map<Long, Long> tempParents = new HashMap<>();
+		boolean rootCreated = root != NONE;
+		for (TreeNode newNode : batch.getCreated()) {
+			Long parentId = newNode.getParentId();
+			if (parentId == null) {
+				if (rootCreated) {
+					return false;
+				}
+				rootCreated = true;
+			} else if (parentId < 0 ? !tempParents.containsKey(parentId)
+					: slot(parentId) == NONE) {
+				return false;
+			}
+			tempParents.put(newNode.getId(), parentId);
+		}
+		for (TreeNode node : batch.getUpdated()) {
+			if (node.getId() < 0 ? !tempParents.containsKey(node.getId())
+					: slot(node.getId()) == NONE) {
+				return false;
+			}
+		}
+		for (Long nodeId : batch.getDeleted()) {
+			if (nodeId < 0 ? !tempParents.containsKey(nodeId)
+					: slot(nodeId) == NONE) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Reduces deleted nodes of valid batch to roots of deleted subtrees. Node
+	 * listed twice or placed in subtree of other deleted node is removed with
+	 * that subtree, so order of deleted nodes doesn't matter.
+	 * 
+	 * @return temporary or existing ids of deleted subtrees, in order of
+	 *         batch.
+	 */
+	private List<Long> deletedRoots(TreeBatch batch) {
+		Map<Long, Long> tempParents = new HashMap<>();
+		for (TreeNode newNode : batch.getCreated()) {
+			tempParents.put(newNode.getId(), newNode.getParentId());
+		}
+		Set<Long> deleted = new HashSet<>(batch.getDeleted());
+		Set<Long> roots = new LinkedHashSet<>();
+		for (Long nodeId : batch.getDeleted()) {
+			Long ancestor = parentId(nodeId, tempParents);
+			while (ancestor != null && !deleted.contains(ancestor)) {
+				ancestor = parentId(ancestor, tempParents);
+			}
+			if (ancestor == null) {
+				roots.add(nodeId);
+			}
+		}
+		return new ArrayList<>(roots);
+	}
+
+	/**
+	 * Finds parent of new node, identified by temporary id, or of existing
+	 * node.
+	 */
+	private Long parentId(Long nodeId, Map<Long, Long> tempParents) {
+		if (nodeId < 0) {
+			return tempParents.get(nodeId);
+		}
+		int parentSlot = parent[slot(nodeId)];
+		return parentSlot == NONE ? null : id(parentSlot);
+	}
+
+	/**
+	 * Creates subtree as batch, which is already applied under single lock
+	 * and journaled as single record.
+	 */
+	@Override
+	public Optional<Map<Long, Long>> createSubtree(List<TreeNode> nodes,
+			Map<Long, String> paths) {
+		TreeBatch batch = new TreeBatch();
+		batch.getCreated().addAll(nodes);
+		return applyBatch(batch, paths);
+	}
+
+	@Override
+	public Optional<Map<Long, Long>> applyBatch(TreeBatch batch,
+			Map<Long, String> paths) {
+		Map<Long, Long> ids = new HashMap<>();
+		long position = 0;
+		Lock write = lock.writeLock();
+		write.lock();
+		try {
+			if (!isValid(batch)) {
+				logger.warnv("Batch rejected {0}", batch);
+				return Optional.empty();
+			}
+			// new nodes get consecutive ids
+			long nextId = id(size);
+			for (TreeNode newNode : batch.getCreated()) {
+				ids.put(newNode.getId(), nextId++);
+			}
+			List<Long> deletedRoots = deletedRoots(batch);
+			if (journal != null) {
+				position = append(journalRecord(batch, ids, deletedRoots));
+			}
+			for (TreeNode newNode : batch.getCreated()) {
+				Long parentId = realId(newNode.getParentId(), ids);
+				add(parentId == null ? NONE : slot(parentId), newNode.getValue());
+			}
+			for (TreeNode node : batch.getUpdated()) {
+				set(slot(realId(node.getId(), ids)), node.getValue());
+			}
+			for (Long id : ids.values()) {
+				paths.put(id, path(slot(id)));
+			}
+			for (TreeNode node : batch.getUpdated()) {
+				Long id = realId(node.getId(), ids);
+				paths.put(id, path(slot(id)));
+			}
+			for (Long nodeId : batch.getDeleted()) {
+				int slot = slot(realId(nodeId, ids));
+				paths.put(id(slot), path(slot));
+			}
+			for (Long nodeId : deletedRoots) {
+				remove(slot(realId(nodeId, ids)));
+			}
+		} finally {
+			write.unlock();
+		}
+		sync(position);
+		return Optional.of(ids);
+	}
+
+	private static Long realId(Long id, Map<Long, Long> ids) {
+		return id != null && id < 0 ? ids.get(id) : id;
+	}
+
+	/**
+	 * Records whole batch as single journal record, so it's recovered
+	 * entirely or not at all.
+	 */
+	private static TreeJournal.Record journalRecord(TreeBatch batch,
+			Map<Long, Long> ids, List<Long> deletedRoots) {
+		TreeJournal.Record record = new TreeJournal.Record();
+		for (TreeNode newNode : batch.getCreated()) {
+			record.create(ids.get(newNode.getId()),
+					realId(newNode.getParentId(), ids), newNode.getValue());
+		}
+		for (TreeNode node : batch.getUpdated()) {
+			record.update(realId(node.getId(), ids), node.getValue());
+		}
+		for (Long nodeId : deletedRoots) {
+			record.delete(realId(nodeId, ids));
+		}
+		return record;
+	}
+
+	@Override
+	public void clear() {
+		long position = 0;
+		Lock write = lock.writeLock();
+		write.lock();
+		try {
+			if (journal != null) {
+				position = append(new TreeJournal.Record().clear());
+			}
+			allocateArrays(INITIAL_CAPACITY);
+		} finally {
+			write.unlock();
+		}
+		sync(position);
+	}
+
+	@Override
+	public List<TreeNode> getAll() {
+		Lock read = lock.readLock();
+		read.lock();
+		try {
+			List<TreeNode> nodes = new ArrayList<>(count);
+			for (int slot = 0; slot < size; slot++) {
+				if (parent[slot] != DELETED) {
+					nodes.add(node(slot));
+				}
+			}
+			return nodes;
+		} finally {
+			read.unlock();
+		}
+	}
+
+	@Override
+	public Optional<TreeNode> getNode(Long nodeId) {
+		Lock read = lock.readLock();
+		read.lock();
+		try {
+			int slot = slot(nodeId);
+			return slot == NONE ? Optional.empty() : Optional.of(node(slot));
+		} finally {
+			read.unlock();
+		}
+	}
+
+	@Override
+	public Optional<List<TreeNode>> getChildren(Long nodeId) {
+		Lock read = lock.readLock();
+		read.lock();
+		try {
+			int slot = slot(nodeId);
+			if (slot == NONE) {
+				return Optional.empty();
+			}
+			List<TreeNode> children = new ArrayList<>();
+			for (int child = firstChild[slot]; child != NONE; child = nextSibling[child]) {
+				children.add(node(child));
+			}
+			// list starts from the newest child
+			Collections.reverse(children);
+			return Optional.of(children);
+		} finally {
+			read.unlock();
+		}
+	}
+
+	@Override
+	public List<TreeNode> getPage(Long afterId, int limit) {
+		Lock read = lock.readLock();
+		read.lock();
+		try {
+			List<TreeNode> nodes = new ArrayList<>();
+			int start = afterId == null || afterId < 0 ? 0
+					: (int) Math.min(afterId, size);
+			for (int slot = start; slot < size && nodes.size() < limit; slot++) {
+				if (parent[slot] != DELETED) {
+					nodes.add(node(slot));
+				}
+			}
+			return nodes;
+		} finally {
+			read.unlock();
+		}
+	}
+
+	@Override
+	public Optional<List<TreeNode>> getSubtree(Long nodeId) {
+		Lock read = lock.readLock();
+		read.lock();
+		try {
+			int slot = slot(nodeId);
+			if (slot == NONE) {
+				return Optional.empty();
+			}
+			List<TreeNode> nodes = new ArrayList<>(descendants[slot] + 1);
+			visitSubtree(slot, s -> nodes.add(node(s)));
+			return Optional.of(nodes);
+		} finally {
+			read.unlock();
+		}
+	}
+
+	@Override
+	public Optional<List<TreeNode>> getAncestors(Long nodeId) {
+		Lock read = lock.readLock();
+		read.lock();
+		try {
+			int slot = slot(nodeId);
+			if (slot == NONE) {
+				return Optional.empty();
+			}
+			List<TreeNode> nodes = new ArrayList<>();
+			for (int ancestor = parent[slot]; ancestor != NONE; ancestor = parent[ancestor]) {
+				nodes.add(node(ancestor));
+			}
+			Collections.reverse(nodes);
+			return Optional.of(nodes);
+		} finally {
+			read.unlock();
+		}
+	}
+
+	@Override
+	public Optional<TreeAggregate> getAggregate(Long nodeId) {
+		Lock read = lock.readLock();
+		read.lock();
+		try {
+			int slot = slot(nodeId);
+			if (slot == NONE) {
+				return Optional.empty();
+			}
+			return Optional.of(new TreeAggregate(nodeId, sum[slot], min[slot],
+					max[slot], descendants[slot]));
+		} finally {
+			read.unlock();
+		}
+	}
+
+	@Override
+	public Map<Long, String> getPaths(List<Long> nodeIds) {
+		Lock read = lock.readLock();
+		read.lock();
+		try {
+			Map<Long, String> paths = new HashMap<>();
+			for (Long nodeId : nodeIds) {
+				int slot = slot(nodeId);
+				if (slot != NONE) {
+					paths.put(nodeId, path(slot));
+				}
+			}
+			return paths;
+		} finally {
+			read.unlock();
+		}
+	}
+
+	/**
+	 * Passes all nodes to consumer, see {@link #forEachRow(Long, TreeRowConsumer)}.
+	 */
+	@Override
+	public void forEachNode(Consumer<TreeNode> consumer) {
+		forEachRow(null, (id, parentId, value) -> consumer.accept(new TreeNode(
+				id, parentId, value)));
+	}
+
+	/**
+	 * Passes all nodes to consumer, see {@link #forEachRow(Long, TreeRowConsumer)}.
+	 */
+	@Override
+	public void forEachRow(TreeRowConsumer consumer) {
+		forEachRow(null, consumer);
+	}
+
+	/**
+	 * Passes node and its descendants to consumer, see
+	 * {@link #forEachRow(Long, TreeRowConsumer)}.
+	 */
+	@Override
+	public boolean forEachSubtreeRow(Long nodeId, TreeRowConsumer consumer) {
+		return forEachRow(nodeId, consumer);
+	}
+
+	/**
+	 * Passes rows ordered by id to consumer. Rows are copied under read lock
+	 * in chunks of {@link #CHUNK_SIZE} and consumer is called after lock is
+	 * released, so slow consumer, e.g. socket of client, doesn't block
+	 * modifications. Tree may be modified between chunks, but parent is always
+	 * passed before its children: it has smaller id and if it's deleted before
+	 * its chunk is copied, its descendants are deleted too. Iteration stops if
+	 * tree is cleared.
+	 *
+	 * @param nodeId
+	 *            id of subtree's root or null for whole tree
+	 * @return false if subtree's root doesn't exist.
+	 */
+	private boolean forEachRow(Long nodeId, TreeRowConsumer consumer) {
+		long[] ids = new long[CHUNK_SIZE];
+		long[] parentIds = new long[CHUNK_SIZE];
+		double[] chunk = new double[CHUNK_SIZE];
+		int ancestor = NONE;
+		int next = 0;
+		int allocation = -1;
+		boolean last = false;
+		while (!last) {
+			int rows = 0;
+			Lock read = lock.readLock();
+			read.lock();
+			try {
+				if (allocation == -1) {
+					allocation = allocations;
+					if (nodeId != null) {
+						ancestor = slot(nodeId);
+						if (ancestor == NONE) {
+							return false;
+						}
+						next = ancestor;
+					}
+				} else if (allocation != allocations) {
+					return true;
+				}
+				// descendants always have greater id than their ancestors
+				for (; next < size && rows < CHUNK_SIZE; next++) {
+					if (parent[next] != DELETED && (ancestor == NONE
+							|| next == ancestor || isDescendant(next, ancestor))) {
+						ids[rows] = id(next);
+						parentIds[rows] = parent[next] == NONE ? 0 : id(parent[next]);
+						chunk[rows] = values[next];
+						rows++;
+					}
+				}
+				last = next >= size;
+			} finally {
+				read.unlock();
+			}
+			for (int row = 0; row < rows; row++) {
+				consumer.accept(ids[row], parentIds[row] == 0 ? null
+						: parentIds[row], chunk[row]);
+			}
+		}
+		return true;
+	}
+
+	private boolean isDescendant(int slot, int ancestor) {
+		for (int current = parent[slot]; current != NONE; current = parent[current]) {
+			if (current == ancestor) {
+				return true;
+			}
+			// ancestors have smaller ids, so search can stop early
+			if (current < ancestor) {
+				return false;
+			}
+		}
+		return false;
+	}
+}
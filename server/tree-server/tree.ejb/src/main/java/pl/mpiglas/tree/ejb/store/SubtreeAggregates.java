@@ -0,0 +1,216 @@
+package pl.mpiglas.tree.ejb.store;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import javax.persistence.EntityManager;
+
+import pl.mpiglas.tree.model.entity.TreeNodeEntity;
+
+/**
+ * Keeps aggregates of subtrees up to date during single transaction. Only
+ * modified node and its ancestors, read from materialized path, are updated,
+ * so cost of modification depends on depth of node and not on size of tree.
+ * Minimum or maximum of ancestor is recomputed from its children only when
+ * removed value was its extreme.
+ * 
+ * Ancestors are read at most once and stay managed, so all modifications of
+ * transaction are flushed together.
+ * 
+ * @author mpiglas
+ *
+ */
+final class SubtreeAggregates {
+
+	/**
+	 * Maximal number of ids passed as parameter of single query.
+	 */
+	private static final int ID_CHUNK_SIZE = 1000;
+
+	private final EntityManager em;
+	private final Map<Long, TreeNodeEntity> nodes = new HashMap<>();
+
+	SubtreeAggregates(EntityManager em) {
+		this.em = em;
+	}
+
+	/**
+	 * Reads node, which aggregates will be modified.
+	 * 
+	 * @param nodeId
+	 *            node's id
+	 * @return managed entity or null if node doesn't exist.
+	 */
+	TreeNodeEntity get(Long nodeId) {
+		TreeNodeEntity node = nodes.get(nodeId);
+		if (node == null) {
+			node = em.find(TreeNodeEntity.class, nodeId);
+			if (node != null) {
+				nodes.put(nodeId, node);
+			}
+		}
+		return node;
+	}
+
+	/**
+	 * Reads ancestors of node, starting from its parent.
+	 */
+	private List<TreeNodeEntity> ancestors(String path) {
+		List<Long> ids = TreeNodeEntity.pathIds(path);
+		ids.remove(ids.size() - 1);
+		List<Long> missing = ids.stream().filter(id -> !nodes.containsKey(id))
+				.collect(Collectors.toList());
+		for (int i = 0; i < missing.size(); i += ID_CHUNK_SIZE) {
+			em.createNamedQuery(TreeNodeEntity.FIND_NODES_QUERY, TreeNodeEntity.class)
+					.setParameter(TreeNodeEntity.NODE_IDS_PARAM, missing.subList(i,
+							Math.min(missing.size(), i + ID_CHUNK_SIZE)))
+					.getResultList().forEach(e -> nodes.put(e.getId(), e));
+		}
+		List<TreeNodeEntity> ancestors = new ArrayList<>();
+		for (int i = ids.size() - 1; i >= 0; i--) {
+			ancestors.add(nodes.get(ids.get(i)));
+		}
+		return ancestors;
+	}
+
+	/**
+	 * Adds aggregates of new leaf or new subtree to its ancestors.
+	 * 
+	 * @param root
+	 *            persisted node with path and aggregates of its subtree
+	 */
+	void added(TreeNodeEntity root) {
+		nodes.put(root.getId(), root);
+		for (TreeNodeEntity ancestor : ancestors(root.getPath())) {
+			include(ancestor, root);
+		}
+	}
+
+	/**
+	 * Adds aggregates of subtree to aggregates of its ancestor.
+	 * 
+	 * @param ancestor
+	 *            node which aggregates are modified
+	 * @param root
+	 *            root of added subtree
+	 */
+	static void include(TreeNodeEntity ancestor, TreeNodeEntity root) {
+		ancestor.setSubtreeSum(ancestor.getSubtreeSum() + root.getSubtreeSum());
+		ancestor.setDescendants(ancestor.getDescendants()
+				+ root.getDescendants() + 1);
+		ancestor.setSubtreeMin(Math.min(ancestor.getSubtreeMin(),
+				root.getSubtreeMin()));
+		ancestor.setSubtreeMax(Math.max(ancestor.getSubtreeMax(),
+				root.getSubtreeMax()));
+	}
+
+	/**
+	 * Replaces old value of node in its own and its ancestors' aggregates.
+	 * 
+	 * @param node
+	 *            node with new value
+	 * @param oldValue
+	 *            value of node before update
+	 */
+	void updated(TreeNodeEntity node, double oldValue) {
+		nodes.put(node.getId(), node);
+		double value = node.getNodeValue();
+		List<TreeNodeEntity> path = new ArrayList<>();
+		path.add(node);
+		path.addAll(ancestors(node.getPath()));
+		for (TreeNodeEntity current : path) {
+			current.setSubtreeSum(current.getSubtreeSum() + value - oldValue);
+			if (current.getSubtreeMin() == oldValue && value > oldValue
+					|| current.getSubtreeMax() == oldValue && value < oldValue) {
+				refreshExtremes(current);
+			} else {
+				current.setSubtreeMin(Math.min(current.getSubtreeMin(), value));
+				current.setSubtreeMax(Math.max(current.getSubtreeMax(), value));
+			}
+		}
+	}
+
+	/**
+	 * Replaces old value of node, already written by bulk statement, in its
+	 * own and its ancestors' aggregates without reading them. Sums are
+	 * changed relatively and new value extends extremes with single
+	 * statement each. Only nodes which minimum or maximum was the old value
+	 * are read and recomputed from their children, deepest first.
+	 * 
+	 * @param path
+	 *            materialized path of updated node
+	 * @param oldValue
+	 *            value of node before update
+	 * @param value
+	 *            new value of node
+	 */
+	void valueUpdated(String path, double oldValue, double value) {
+		if (value == oldValue) {
+			return;
+		}
+		List<Long> ids = TreeNodeEntity.pathIds(path);
+		List<TreeNodeEntity> stale = new ArrayList<>();
+		for (int i = 0; i < ids.size(); i += ID_CHUNK_SIZE) {
+			List<Long> chunk = ids.subList(i, Math.min(ids.size(), i + ID_CHUNK_SIZE));
+			em.createNamedQuery(TreeNodeEntity.ADD_TO_SUBTREE_SUM)
+					.setParameter(TreeNodeEntity.VALUE_PARAM, value - oldValue)
+					.setParameter(TreeNodeEntity.NODE_IDS_PARAM, chunk)
+					.executeUpdate();
+			em.createNamedQuery(value < oldValue ? TreeNodeEntity.LOWER_SUBTREE_MIN
+					: TreeNodeEntity.RAISE_SUBTREE_MAX)
+					.setParameter(TreeNodeEntity.VALUE_PARAM, value)
+					.setParameter(TreeNodeEntity.NODE_IDS_PARAM, chunk)
+					.executeUpdate();
+			stale.addAll(em.createNamedQuery(TreeNodeEntity.FIND_EXTREME_NODES,
+					TreeNodeEntity.class)
+					.setParameter(TreeNodeEntity.VALUE_PARAM, oldValue)
+					.setParameter(TreeNodeEntity.NODE_IDS_PARAM, chunk)
+					.getResultList());
+		}
+		// deeper nodes are refreshed first, they are extremes of their parents
+		stale.sort((a, b) -> Integer.compare(b.getDepth(), a.getDepth()));
+		stale.forEach(this::refreshExtremes);
+	}
+
+	/**
+	 * Subtracts aggregates of deleted subtree from its ancestors. Called after
+	 * subtree is deleted from database.
+	 * 
+	 * @param root
+	 *            root of deleted subtree read with {@link #get(Long)}
+	 */
+	void removed(TreeNodeEntity root) {
+		nodes.remove(root.getId());
+		for (TreeNodeEntity ancestor : ancestors(root.getPath())) {
+			ancestor.setSubtreeSum(ancestor.getSubtreeSum() - root.getSubtreeSum());
+			ancestor.setDescendants(ancestor.getDescendants()
+					- root.getDescendants() - 1);
+			if (ancestor.getSubtreeMin() == root.getSubtreeMin()
+					|| ancestor.getSubtreeMax() == root.getSubtreeMax()) {
+				refreshExtremes(ancestor);
+			}
+		}
+	}
+
+	/**
+	 * Computes minimum and maximum of node from its value and extremes of its
+	 * children. Pending modifications of children are flushed before query.
+	 */
+	private void refreshExtremes(TreeNodeEntity node) {
+		Object[] row = em
+				.createNamedQuery(TreeNodeEntity.FIND_CHILDREN_EXTREMES, Object[].class)
+				.setParameter(TreeNodeEntity.NODE_ID_PARAM, node.getId())
+				.getSingleResult();
+		double min = node.getNodeValue();
+		double max = node.getNodeValue();
+		if (row[0] != null) {
+			min = Math.min(min, (Double) row[0]);
+			max = Math.max(max, (Double) row[1]);
+		}
+		node.setSubtreeMin(min);
+		node.setSubtreeMax(max);
+	}
+}
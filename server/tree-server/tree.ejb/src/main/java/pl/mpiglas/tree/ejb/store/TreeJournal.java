@@ -0,0 +1,631 @@
+package pl.mpiglas.tree.ejb.store;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Append-only journal of tree modifications kept in memory-mapped files, with
+ * snapshots of whole tree.
+ *
+ * Directory contains numbered generations. Snapshot of generation n holds
+ * tree as it was when journal of generation n was started, so tree is
+ * recovered from the latest snapshot and journals of the same and later
+ * generations. Journal of generation is also continued in next file without
+ * snapshot when it's full.
+ *
+ * Snapshot and journal also hold revision of change log, see
+ * {@link MemoryChangeLog}, so revisions keep growing after restart.
+ *
+ * Journal file starts with {@link #JOURNAL_MAGIC} and contains records:
+ * length and CRC32 of payload followed by payload with one or more
+ * operations. Each record is replayed entirely or not at all. Unwritten part
+ * of file is filled with zeros, so the first record with zero length, wrong
+ * checksum or cut by end of file ends the journal. Such torn tail, left after
+ * crash, is cleared when journal is opened and new records overwrite it.
+ *
+ * Records are appended to mapped buffer and are not durable until
+ * {@link #sync(long)} returns. Concurrent callers of sync are served by single
+ * flush of all records appended so far (group commit). File is flushed before
+ * next one is started, so only the last file may end with torn record.
+ * Directory is flushed after file is created or renamed, so synced file
+ * doesn't disappear after power loss.
+ *
+ * @author mpiglas
+ *
+ */
+final class TreeJournal implements Closeable {
+
+	/**
+	 * Receives content of snapshot and journal when tree is recovered.
+	 */
+	interface Replay {
+
+		/**
+		 * Ids up to given one were already assigned, so next node gets greater
+		 * id.
+		 */
+		void reserve(long lastId);
+
+		void create(long id, Long parentId, double value, long version);
+
+		void update(long id, double value);
+
+		void delete(long id);
+
+		void clear();
+
+		/**
+		 * Revision of change log was allocated.
+		 */
+		void revision(long revision);
+	}
+
+	/**
+	 * Operations of single record. Record is appended with
+	 * {@link TreeJournal#append(Record)}.
+	 */
+	static final class Record {
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private final DataOutputStream data = new DataOutputStream(bytes);
+
+		Record create(long id, Long parentId, double value) {
+			return write(CREATE, id, parentId != null ? parentId : NO_PARENT,
+					value);
+		}
+
+		Record update(long id, double value) {
+			return write(UPDATE, id, NO_PARENT, value);
+		}
+
+		Record delete(long id) {
+			return write(DELETE, id, NO_PARENT, 0);
+		}
+
+		Record clear() {
+			return write(CLEAR, NO_PARENT, NO_PARENT, 0);
+		}
+
+		Record revision(long revision) {
+			return write(REVISION, revision, NO_PARENT, 0);
+		}
+
+		private Record write(byte operation, long id, long parentId,
+				double value) {
+			try {
+				data.writeByte(operation);
+				switch (operation) {
+				case CREATE:
+					data.writeLong(id);
+					data.writeLong(parentId);
+					data.writeDouble(value);
+					break;
+				case UPDATE:
+					data.writeLong(id);
+					data.writeDouble(value);
+					break;
+				case DELETE:
+				case REVISION:
+					data.writeLong(id);
+					break;
+				default:
+					break;
+				}
+			} catch (IOException e) {
+				// not thrown by byte array stream
+				throw new IllegalStateException(e);
+			}
+			return this;
+		}
+	}
+
+	static final int JOURNAL_MAGIC = 0x54524A31; // TRJ1
+	static final int SNAPSHOT_MAGIC = 0x54525332; // TRS2
+	/**
+	 * Default size of single journal file.
+	 */
+	static final int SEGMENT_SIZE = 64 << 20;
+	/**
+	 * Length and checksum of record.
+	 */
+	private static final int RECORD_HEADER = 8;
+	private static final long NO_PARENT = 0;
+	private static final byte CREATE = 1;
+	private static final byte UPDATE = 2;
+	private static final byte DELETE = 3;
+	private static final byte CLEAR = 4;
+	private static final byte REVISION = 5;
+	private static final String JOURNAL_PREFIX = "journal-";
+	private static final String SNAPSHOT_PREFIX = "snapshot-";
+	private static final String SUFFIX = ".bin";
+
+	private static final Logger logger = Logger.getLogger(TreeJournal.class);
+
+	private final Path directory;
+	private final int segmentSize;
+	private final Object syncLock = new Object();
+
+	private long generation;
+	private int part;
+	private FileChannel channel;
+	private MappedByteBuffer buffer;
+	/**
+	 * Number of bytes appended since journal was opened, in all files.
+	 */
+	private long written;
+	private volatile long synced;
+
+	private TreeJournal(Path directory, int segmentSize) {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * Opens journal in given directory and passes recovered tree to replay.
+	 * Directory is created if it doesn't exist.
+	 *
+	 * @param directory
+	 *            directory with journal and snapshots
+	 * @param segmentSize
+	 *            size of new journal files
+	 * @param replay
+	 *            receives content of the latest snapshot and later records
+	 * @return journal ready for new records.
+	 * @throws IOException
+	 *             if files can't be read or journal is corrupted before its
+	 *             last file.
+	 */
+	static TreeJournal open(Path directory, int segmentSize, Replay replay)
+			throws IOException {
+		Files.createDirectories(directory);
+		TreeJournal journal = new TreeJournal(directory, segmentSize);
+		journal.recover(replay);
+		return journal;
+	}
+
+	private void recover(Replay replay) throws IOException {
+		List<long[]> snapshots = files(SNAPSHOT_PREFIX);
+		generation = 0;
+		if (!snapshots.isEmpty()) {
+			generation = snapshots.get(snapshots.size() - 1)[0];
+			readSnapshot(snapshotFile(generation), replay);
+		}
+		List<long[]> journals = new ArrayList<>();
+		for (long[] file : files(JOURNAL_PREFIX)) {
+			if (file[0] >= generation) {
+				journals.add(file);
+			}
+		}
+		int replayed = 0;
+		for (int i = 0; i < journals.size(); i++) {
+			long[] file = journals.get(i);
+			boolean last = i == journals.size() - 1;
+			FileChannel fileChannel = FileChannel.open(
+					journalFile(file[0], (int) file[1]),
+					StandardOpenOption.READ, StandardOpenOption.WRITE);
+			MappedByteBuffer mapped = fileChannel.map(MapMode.READ_WRITE, 0,
+					fileChannel.size());
+			replayed += replayRecords(mapped, replay);
+			if (!last) {
+				fileChannel.close();
+				// file was continued in next one, so only unused space may
+				// follow the last record
+				if (!isCleared(mapped)) {
+					throw new IOException("Journal " + journalFile(file[0], (int) file[1])
+							+ " is corrupted at " + mapped.position());
+				}
+			} else if (mapped.position() == 0) {
+				// file without header is created again
+				fileChannel.close();
+				generation = file[0];
+				part = (int) file[1];
+			} else {
+				clearTail(mapped);
+				generation = file[0];
+				part = (int) file[1];
+				channel = fileChannel;
+				buffer = mapped;
+			}
+		}
+		logger.infov("Tree recovered from generation {0}, {1} records replayed",
+				generation, replayed);
+		if (buffer == null) {
+			startFile(generation, part, segmentSize);
+		}
+	}
+
+	/**
+	 * Replays records from buffer and leaves its position after the last
+	 * complete record.
+	 */
+	private static int replayRecords(MappedByteBuffer mapped, Replay replay) {
+		if (mapped.remaining() < 4 || mapped.getInt() != JOURNAL_MAGIC) {
+			mapped.position(0);
+			return 0;
+		}
+		int replayed = 0;
+		while (mapped.remaining() >= RECORD_HEADER) {
+			int start = mapped.position();
+			int length = mapped.getInt();
+			int checksum = mapped.getInt();
+			if (length <= 0 || length > mapped.remaining()) {
+				mapped.position(start);
+				break;
+			}
+			byte[] payload = new byte[length];
+			mapped.get(payload);
+			CRC32 crc = new CRC32();
+			crc.update(payload);
+			if ((int) crc.getValue() != checksum) {
+				mapped.position(start);
+				break;
+			}
+			replayPayload(payload, replay);
+			replayed++;
+		}
+		return replayed;
+	}
+
+	private static boolean isCleared(MappedByteBuffer mapped) {
+		return clear(mapped, false);
+	}
+
+	private static void clearTail(MappedByteBuffer mapped) {
+		if (!clear(mapped, true)) {
+			mapped.force();
+		}
+	}
+
+	/**
+	 * Checks if buffer contains only zeros after its position and optionally
+	 * clears other bytes. Whole rest of buffer is read, but only bytes that
+	 * are not zero are written, so unused part of sparse file doesn't take
+	 * space on disk.
+	 *
+	 * @return true if buffer was already cleared.
+	 */
+	private static boolean clear(MappedByteBuffer mapped, boolean write) {
+		boolean cleared = true;
+		int i = mapped.position();
+		for (; i + 8 <= mapped.limit(); i += 8) {
+			if (mapped.getLong(i) != 0) {
+				if (!write) {
+					return false;
+				}
+				mapped.putLong(i, 0);
+				cleared = false;
+			}
+		}
+		for (; i < mapped.limit(); i++) {
+			if (mapped.get(i) != 0) {
+				if (!write) {
+					return false;
+				}
+				mapped.put(i, (byte) 0);
+				cleared = false;
+			}
+		}
+		return cleared;
+	}
+
+	private static void replayPayload(byte[] payload, Replay replay) {
+		try (DataInputStream data = new DataInputStream(
+				new ByteArrayInputStream(payload))) {
+			while (data.available() > 0) {
+				byte operation = data.readByte();
+				switch (operation) {
+				case CREATE:
+					long id = data.readLong();
+					long parentId = data.readLong();
+					replay.create(id, parentId != NO_PARENT ? parentId : null,
+							data.readDouble(), 0);
+					break;
+				case UPDATE:
+					replay.update(data.readLong(), data.readDouble());
+					break;
+				case DELETE:
+					replay.delete(data.readLong());
+					break;
+				case CLEAR:
+					replay.clear();
+					break;
+				case REVISION:
+					replay.revision(data.readLong());
+					break;
+				default:
+					throw new IllegalStateException("Unknown operation "
+							+ operation);
+				}
+			}
+		} catch (IOException e) {
+			// checksum is correct, so payload is complete
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Flushes current file and starts next one. Header of next file reaches
+	 * disk only after all records of current file, so recovery never finds
+	 * torn record followed by another file.
+	 */
+	private void startFile(long newGeneration, int newPart, int size)
+			throws IOException {
+		if (channel != null) {
+			buffer.force();
+			channel.close();
+		}
+		FileChannel fileChannel = FileChannel.open(
+				journalFile(newGeneration, newPart), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		MappedByteBuffer mapped = fileChannel.map(MapMode.READ_WRITE, 0, size);
+		mapped.putInt(JOURNAL_MAGIC);
+		syncDirectory();
+		generation = newGeneration;
+		part = newPart;
+		channel = fileChannel;
+		buffer = mapped;
+	}
+
+	/**
+	 * Appends record to journal. Record is written to mapped memory, so it's
+	 * not durable until {@link #sync(long)} is called.
+	 *
+	 * @param record
+	 *            operations to append
+	 * @return position in journal that should be passed to
+	 *         {@link #sync(long)}.
+	 * @throws IOException
+	 *             if new journal file can't be created.
+	 */
+	synchronized long append(Record record) throws IOException {
+		byte[] payload = record.bytes.toByteArray();
+		if (buffer.remaining() < RECORD_HEADER + payload.length) {
+			startFile(generation, part + 1,
+					Math.max(segmentSize, 4 + RECORD_HEADER + payload.length));
+		}
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		// pages of mapped file may reach disk in any order, checksum of
+		// payload makes partially written record invalid
+		buffer.putInt(payload.length).putInt((int) crc.getValue())
+				.put(payload);
+		written += RECORD_HEADER + payload.length;
+		return written;
+	}
+
+	/**
+	 * Flushes journal to disk up to given position. If other thread is
+	 * flushing, caller waits and its record is usually already flushed.
+	 *
+	 * @param position
+	 *            position returned by {@link #append(Record)}
+	 */
+	void sync(long position) {
+		if (synced >= position) {
+			return;
+		}
+		synchronized (syncLock) {
+			if (synced >= position) {
+				return;
+			}
+			MappedByteBuffer current;
+			long end;
+			synchronized (this) {
+				current = buffer;
+				end = written;
+			}
+			// previous files are flushed when next one is started
+			current.force();
+			synced = end;
+		}
+	}
+
+	/**
+	 * Starts new generation of journal. Snapshot of tree as it is now should
+	 * be written with {@link #writeSnapshot(long, long, long, SnapshotRows)} for returned
+	 * generation. No record may be appended between this call and reading of
+	 * tree for snapshot.
+	 *
+	 * @return new generation.
+	 * @throws IOException
+	 *             if new journal file can't be created.
+	 */
+	synchronized long startGeneration() throws IOException {
+		startFile(generation + 1, 0, segmentSize);
+		return generation;
+	}
+
+	/**
+	 * Columns of snapshot. Parent's id of root is 0.
+	 */
+	static final class SnapshotRows {
+		final int count;
+		final long[] ids;
+		final long[] parentIds;
+		final double[] values;
+		final long[] versions;
+
+		SnapshotRows(int count) {
+			this.count = count;
+			ids = new long[count];
+			parentIds = new long[count];
+			values = new double[count];
+			versions = new long[count];
+		}
+	}
+
+	/**
+	 * Writes snapshot of given generation. File is written under temporary
+	 * name and renamed, so snapshot is either complete or doesn't exist. Then
+	 * older snapshots and journals are removed, after rename reaches disk.
+	 *
+	 * @param snapshotGeneration
+	 *            generation returned by {@link #startGeneration()}
+	 * @param lastId
+	 *            the greatest id assigned so far
+	 * @param revision
+	 *            revision of change log when generation was started
+	 * @param rows
+	 *            nodes ordered by id, parent before its children
+	 * @throws IOException
+	 *             if snapshot can't be written.
+	 */
+	void writeSnapshot(long snapshotGeneration, long lastId, long revision,
+			SnapshotRows rows) throws IOException {
+		Path file = snapshotFile(snapshotGeneration);
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		CRC32 crc = new CRC32();
+		try (OutputStream output = Files.newOutputStream(temp);
+				DataOutputStream data = new DataOutputStream(
+						new CheckedOutputStream(
+								new BufferedOutputStream(output), crc))) {
+			data.writeInt(SNAPSHOT_MAGIC);
+			data.writeLong(lastId);
+			data.writeLong(revision);
+			data.writeInt(rows.count);
+			for (int i = 0; i < rows.count; i++) {
+				data.writeLong(rows.ids[i]);
+				data.writeLong(rows.parentIds[i]);
+				data.writeDouble(rows.values[i]);
+				data.writeLong(rows.versions[i]);
+			}
+			data.writeInt((int) crc.getValue());
+			data.flush();
+		}
+		try (FileChannel snapshot = FileChannel.open(temp,
+				StandardOpenOption.WRITE)) {
+			snapshot.force(true);
+		}
+		Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+		syncDirectory();
+		for (long[] old : files(SNAPSHOT_PREFIX)) {
+			if (old[0] < snapshotGeneration) {
+				Files.deleteIfExists(snapshotFile(old[0]));
+			}
+		}
+		for (long[] old : files(JOURNAL_PREFIX)) {
+			if (old[0] < snapshotGeneration) {
+				Files.deleteIfExists(journalFile(old[0], (int) old[1]));
+			}
+		}
+		logger.infov("Snapshot {0} written with {1} nodes", snapshotGeneration,
+				rows.count);
+	}
+
+	private static void readSnapshot(Path file, Replay replay)
+			throws IOException {
+		CRC32 crc = new CRC32();
+		try (InputStream input = Files.newInputStream(file);
+				DataInputStream data = new DataInputStream(
+						new CheckedInputStream(new BufferedInputStream(input),
+								crc))) {
+			if (data.readInt() != SNAPSHOT_MAGIC) {
+				throw new IOException("Unknown format of snapshot " + file);
+			}
+			long lastId = data.readLong();
+			long revision = data.readLong();
+			int count = data.readInt();
+			for (int i = 0; i < count; i++) {
+				long id = data.readLong();
+				long parentId = data.readLong();
+				replay.create(id, parentId != NO_PARENT ? parentId : null,
+						data.readDouble(), data.readLong());
+			}
+			// ids of nodes deleted after the last node of snapshot
+			replay.reserve(lastId);
+			replay.revision(revision);
+			int checksum = (int) crc.getValue();
+			if (data.readInt() != checksum) {
+				throw new IOException("Snapshot " + file + " is corrupted");
+			}
+		}
+	}
+
+	/**
+	 * Flushes entries of directory, so created or renamed file survives power
+	 * loss. Directories can't be opened on some platforms, e.g. Windows, where
+	 * file system commits metadata by itself.
+	 */
+	private void syncDirectory() throws IOException {
+		FileChannel directoryChannel;
+		try {
+			directoryChannel = FileChannel.open(directory,
+					StandardOpenOption.READ);
+		} catch (IOException e) {
+			logger.debugv("Directory {0} not synced: {1}", directory, e);
+			return;
+		}
+		try (FileChannel opened = directoryChannel) {
+			opened.force(true);
+		}
+	}
+
+	/**
+	 * Lists generations and parts of files with given prefix, in order.
+	 */
+	private List<long[]> files(String prefix) throws IOException {
+		List<long[]> files = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
+				prefix + "*" + SUFFIX)) {
+			for (Path file : stream) {
+				String name = file.getFileName().toString();
+				String[] numbers = name.substring(prefix.length(),
+						name.length() - SUFFIX.length()).split("-");
+				try {
+					files.add(new long[] { Long.parseLong(numbers[0]),
+							numbers.length > 1 ? Long.parseLong(numbers[1]) : 0 });
+				} catch (NumberFormatException e) {
+					logger.warnv("Unknown file {0} skipped", file);
+				}
+			}
+		}
+		Collections.sort(files, (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0])
+				: Long.compare(a[1], b[1]));
+		return files;
+	}
+
+	private Path snapshotFile(long fileGeneration) {
+		return directory.resolve(SNAPSHOT_PREFIX + fileGeneration + SUFFIX);
+	}
+
+	private Path journalFile(long fileGeneration, int filePart) {
+		return directory.resolve(JOURNAL_PREFIX + fileGeneration + "-"
+				+ filePart + SUFFIX);
+	}
+
+	/**
+	 * Flushes and closes current journal file.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (channel != null) {
+			buffer.force();
+			channel.close();
+			channel = null;
+		}
+	}
+}
@@ -0,0 +1,24 @@
+package pl.mpiglas.tree.ejb.store;
+
+/**
+ * Receives columns of node read directly from database row, without creating
+ * domain object.
+ * 
+ * @author mpiglas
+ *
+ */
+@FunctionalInterface
+public interface TreeRowConsumer {
+
+	/**
+	 * Receives single node.
+	 * 
+	 * @param id
+	 *            node's id
+	 * @param parentId
+	 *            parent's id or null for tree's root
+	 * @param value
+	 *            node's value
+	 */
+	void accept(long id, Long parentId, double value);
+}
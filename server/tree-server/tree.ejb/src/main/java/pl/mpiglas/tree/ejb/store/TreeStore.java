@@ -0,0 +1,265 @@
+package pl.mpiglas.tree.ejb.store;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import pl.mpiglas.tree.model.transfer.TreeAggregate;
+import pl.mpiglas.tree.model.transfer.TreeBatch;
+import pl.mpiglas.tree.model.transfer.TreeNode;
+
+/**
+ * Storage of tree nodes. Implementations keep tree with single root, where
+ * each node has id, parent and value, and maintain materialized paths and
+ * aggregates of subtrees.
+ * 
+ * Modifying operations report materialized paths of modified nodes, in format
+ * of {@link pl.mpiglas.tree.model.entity.TreeNodeEntity#childPath(String, long)},
+ * so caller may publish changes without reading them again. Path of deleted
+ * node is its path before deletion. Modification and recording of its changes
+ * run together in {@link #modify(Supplier)}.
+ * 
+ * Implementation is selected at startup with system property
+ * {@link #STORE_PROPERTY}.
+ * 
+ * @author mpiglas
+ *
+ */
+public interface TreeStore {
+
+	/**
+	 * System property that selects implementation: {@link #JPA},
+	 * {@link #MEMORY} or {@link #JOURNAL}.
+	 */
+	String STORE_PROPERTY = "tree.store";
+	/**
+	 * Tree kept in relational database, see {@link JpaTreeStore}. Default.
+	 */
+	String JPA = "jpa";
+	/**
+	 * Tree kept in primitive arrays in memory, see {@link MemoryTreeStore}.
+	 */
+	String MEMORY = "memory";
+	/**
+	 * Tree kept in memory like with {@link #MEMORY}, with modifications
+	 * appended to journal on disk, so tree is recovered on restart. See
+	 * {@link MemoryTreeStore#JOURNAL_DIRECTORY_PROPERTY}.
+	 */
+	String JOURNAL = "journal";
+
+	/**
+	 * Runs modification of tree and recording of its changes in change log as
+	 * single critical section, so revisions are allocated in the same order in
+	 * which modifications are applied and none of them reads aggregates that
+	 * another one is changing. Database store locks row of revision before
+	 * modification reads anything and holds it until end of transaction,
+	 * memory store holds its lock for whole section.
+	 * 
+	 * @param modification
+	 *            calls modifying operations of store and records changes
+	 * @return result of modification.
+	 */
+	<T> T modify(Supplier<T> modification);
+
+	/**
+	 * Creates new node. Node is not created if its parent doesn't exist or it
+	 * is second root of tree.
+	 * 
+	 * @param newNode
+	 *            parent's id and value of new node
+	 * @param paths
+	 *            receives path of created node
+	 * @return {@link Optional} with created node or empty if node wasn't
+	 *         created.
+	 */
+	Optional<TreeNode> create(TreeNode newNode, Map<Long, String> paths);
+
+	/**
+	 * Sets new value of node.
+	 * 
+	 * @param node
+	 *            id and new value of node
+	 * @param paths
+	 *            receives path of updated node
+	 * @return false if node doesn't exist.
+	 */
+	boolean update(TreeNode node, Map<Long, String> paths);
+
+	/**
+	 * Sets new value of node only if node still has given version. Version
+	 * is incremented with each modification of value.
+	 * 
+	 * @param node
+	 *            id and new value of node
+	 * @param version
+	 *            version of node known by caller
+	 * @param paths
+	 *            receives path of updated node
+	 * @return {@link VersionedUpdate#UPDATED} if value is set,
+	 *         {@link VersionedUpdate#STALE} if node has other version or
+	 *         {@link VersionedUpdate#MISSING} if node doesn't exist.
+	 */
+	VersionedUpdate updateIfVersion(TreeNode node, long version,
+			Map<Long, String> paths);
+
+	/**
+	 * Deletes node and all its descendants.
+	 * 
+	 * @param nodeId
+	 *            id of subtree's root
+	 * @param paths
+	 *            receives path of deleted node
+	 * @return number of deleted nodes, 0 if node doesn't exist.
+	 */
+	int delete(Long nodeId, Map<Long, String> paths);
+
+	/**
+	 * Applies all modifications from batch, see {@link TreeBatch}, or none of
+	 * them.
+	 * 
+	 * @param batch
+	 *            set of modifications
+	 * @param paths
+	 *            receives paths of created, updated and deleted nodes
+	 * @return {@link Optional} with map of temporary ids of new nodes to
+	 *         assigned ids or empty if batch was rejected.
+	 */
+	Optional<Map<Long, Long>> applyBatch(TreeBatch batch,
+			Map<Long, String> paths);
+
+	/**
+	 * Creates new subtree. Nodes have temporary, negative ids. First node is
+	 * root of subtree and its parent is existing node or null for tree's root.
+	 * Parent of each other node is new node placed earlier on the list.
+	 * 
+	 * @param nodes
+	 *            new nodes, parents before children
+	 * @param paths
+	 *            receives paths of new nodes
+	 * @return {@link Optional} with map of temporary ids to assigned ids or
+	 *         empty if subtree can't be created.
+	 */
+	Optional<Map<Long, Long>> createSubtree(List<TreeNode> nodes,
+			Map<Long, String> paths);
+
+	/**
+	 * Removes all nodes.
+	 */
+	void clear();
+
+	/**
+	 * Reads all nodes.
+	 * 
+	 * @return list of nodes, possibly empty.
+	 */
+	List<TreeNode> getAll();
+
+	/**
+	 * Reads single node.
+	 * 
+	 * @param nodeId
+	 *            node's id
+	 * @return {@link Optional} with node or empty if node doesn't exist.
+	 */
+	Optional<TreeNode> getNode(Long nodeId);
+
+	/**
+	 * Reads version of node, see {@link #updateIfVersion(TreeNode, long, Map)}.
+	 * 
+	 * @param nodeId
+	 *            node's id
+	 * @return {@link Optional} with version or empty if node doesn't exist.
+	 */
+	Optional<Long> getVersion(Long nodeId);
+
+	/**
+	 * Reads direct children of node.
+	 * 
+	 * @param nodeId
+	 *            node's id
+	 * @return {@link Optional} with list of children or empty if node doesn't
+	 *         exist.
+	 */
+	Optional<List<TreeNode>> getChildren(Long nodeId);
+
+	/**
+	 * Reads page of nodes ordered by id.
+	 * 
+	 * @param afterId
+	 *            only nodes with greater id are read, null for first page
+	 * @param limit
+	 *            maximal number of nodes
+	 * @return list of nodes, possibly empty.
+	 */
+	List<TreeNode> getPage(Long afterId, int limit);
+
+	/**
+	 * Reads node and all its descendants, parent is placed before its
+	 * children.
+	 * 
+	 * @param nodeId
+	 *            id of subtree's root
+	 * @return {@link Optional} with list of nodes or empty if node doesn't
+	 *         exist.
+	 */
+	Optional<List<TreeNode>> getSubtree(Long nodeId);
+
+	/**
+	 * Reads all ancestors of node, starting from tree's root.
+	 * 
+	 * @param nodeId
+	 *            node's id
+	 * @return {@link Optional} with list of nodes, empty list for root, or
+	 *         empty if node doesn't exist.
+	 */
+	Optional<List<TreeNode>> getAncestors(Long nodeId);
+
+	/**
+	 * Reads aggregates of subtree of node.
+	 * 
+	 * @param nodeId
+	 *            id of subtree's root
+	 * @return {@link Optional} with aggregates or empty if node doesn't exist.
+	 */
+	Optional<TreeAggregate> getAggregate(Long nodeId);
+
+	/**
+	 * Reads materialized paths of nodes. Unknown ids are skipped.
+	 * 
+	 * @param nodeIds
+	 *            ids of nodes
+	 * @return map of ids to paths.
+	 */
+	Map<Long, String> getPaths(List<Long> nodeIds);
+
+	/**
+	 * Passes all nodes one by one to consumer, without keeping them in memory.
+	 * 
+	 * @param consumer
+	 *            receives each node of tree
+	 */
+	void forEachNode(Consumer<TreeNode> consumer);
+
+	/**
+	 * Passes columns of all nodes, ordered by id, to consumer without creating
+	 * domain objects.
+	 * 
+	 * @param consumer
+	 *            receives columns of each node
+	 */
+	void forEachRow(TreeRowConsumer consumer);
+
+	/**
+	 * Passes columns of node and all its descendants, ordered by id, to
+	 * consumer.
+	 * 
+	 * @param nodeId
+	 *            id of subtree's root
+	 * @param consumer
+	 *            receives columns of each node
+	 * @return false if node doesn't exist.
+	 */
+	boolean forEachSubtreeRow(Long nodeId, TreeRowConsumer consumer);
+}
@@ -0,0 +1,25 @@
+package pl.mpiglas.tree.ejb.store;
+
+/**
+ * Result of update that checks version of node, see
+ * {@link TreeStore#updateIfVersion(pl.mpiglas.tree.model.transfer.TreeNode, long, java.util.Map)}.
+ * Successful update increments version of node by one.
+ *
+ * @author mpiglas
+ *
+ */
+public enum VersionedUpdate {
+
+	/**
+	 * Value is set, node has version incremented by one.
+	 */
+	UPDATED,
+	/**
+	 * Node was modified since given version, value is not set.
+	 */
+	STALE,
+	/**
+	 * Node doesn't exist.
+	 */
+	MISSING;
+}
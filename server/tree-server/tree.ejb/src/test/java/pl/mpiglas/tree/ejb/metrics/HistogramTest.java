@@ -0,0 +1,60 @@
+package pl.mpiglas.tree.ejb.metrics;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests buckets and quantiles of {@link Histogram}.
+ * @author mpiglas
+ *
+ */
+public class HistogramTest {
+
+	@Test
+	public void shouldKeepRelativeErrorOfBuckets() {
+		// given
+		Random random = new Random(7);
+
+		for (int i = 0; i < 100000; i++) {
+			// when
+			long value = random.nextLong() >>> (1 + random.nextInt(63));
+			long highest = Histogram.highestValue(Histogram.bucket(value));
+
+			// then
+			Assert.assertTrue(highest >= value);
+			Assert.assertTrue(highest - value <= value / Histogram.SUB_BUCKETS);
+		}
+		Assert.assertEquals(Long.MAX_VALUE,
+				Histogram.highestValue(Histogram.bucket(Long.MAX_VALUE)));
+	}
+
+	@Test
+	public void shouldComputeQuantiles() {
+		// given
+		Histogram histogram = new Histogram();
+
+		// when
+		for (long value = 1; value <= 1000; value++) {
+			histogram.record(value);
+		}
+		long[] quantiles = histogram.getQuantiles(0.5, 0.99, 1);
+
+		// then
+		Assert.assertEquals(1000, histogram.getCount());
+		Assert.assertEquals(500500, histogram.getSum());
+		Assert.assertEquals(500, quantiles[0], 500 / Histogram.SUB_BUCKETS);
+		Assert.assertEquals(990, quantiles[1], 990 / Histogram.SUB_BUCKETS);
+		Assert.assertEquals(1000, quantiles[2], 1000 / Histogram.SUB_BUCKETS);
+	}
+
+	@Test
+	public void shouldReturnZeroQuantilesOfEmptyHistogram() {
+		// when
+		long[] quantiles = new Histogram().getQuantiles(0.5, 0.999);
+
+		// then
+		Assert.assertArrayEquals(new long[] { 0, 0 }, quantiles);
+	}
+}
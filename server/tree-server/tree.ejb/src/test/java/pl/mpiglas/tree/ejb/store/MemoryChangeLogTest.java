@@ -0,0 +1,143 @@
+package pl.mpiglas.tree.ejb.store;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import pl.mpiglas.tree.model.entity.TreeRevisionEntity;
+import pl.mpiglas.tree.model.transfer.TreeChange;
+import pl.mpiglas.tree.model.transfer.TreeChange.Operation;
+import pl.mpiglas.tree.model.transfer.TreeNode;
+
+/**
+ * Tests {@link MemoryChangeLog} of {@link MemoryTreeStore}.
+ * @author mpiglas
+ *
+ */
+public class MemoryChangeLogTest {
+
+	private MemoryTreeStore store;
+	private MemoryChangeLog log;
+
+	@Before
+	public void setUp() {
+		store = new MemoryTreeStore();
+		store.init();
+		log = store.getChangeLog();
+	}
+
+	private void update(Long nodeId, double value) {
+		store.modify(() -> {
+			TreeNode node = TreeNode.newNode(null, value);
+			node.setId(nodeId);
+			store.update(node, new HashMap<>());
+			log.record(new TreeChange(log.nextRevision(), Operation.UPDATE,
+					nodeId, null, value));
+			return null;
+		});
+	}
+
+	@Test
+	public void shouldAllocateRevisionsInOrderOfModifications()
+			throws Exception {
+		// given
+		Long nodeId = store.create(TreeNode.newNode(null, 0d), new HashMap<>())
+				.get().getId();
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+
+		// when
+		try {
+			Future<?>[] editors = new Future<?>[4];
+			for (int i = 0; i < editors.length; i++) {
+				int editor = i;
+				editors[i] = executor.submit(() -> {
+					for (int j = 0; j < 1000; j++) {
+						update(nodeId, editor * 1000 + j);
+					}
+				});
+			}
+			for (Future<?> editor : editors) {
+				editor.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		// then
+		List<TreeChange> changes = log.getChanges(0, Long.MAX_VALUE,
+				Integer.MAX_VALUE);
+		Assert.assertEquals(4000, changes.size());
+		for (int i = 0; i < changes.size(); i++) {
+			Assert.assertEquals(i + 1, changes.get(i).getRevision());
+		}
+		Assert.assertEquals(store.getNode(nodeId).get().getValue(),
+				changes.get(changes.size() - 1).getValue());
+	}
+
+	@Test
+	public void shouldReadChangesInRangeOfRevisions() {
+		// given
+		Long nodeId = store.create(TreeNode.newNode(null, 0d), new HashMap<>())
+				.get().getId();
+		for (int i = 1; i <= 10; i++) {
+			update(nodeId, i);
+		}
+
+		// when
+		List<TreeChange> changes = log.getChanges(3, 8, 3);
+		List<TreeChange> future = log.getChanges(10, 20, 10);
+
+		// then
+		Assert.assertEquals(3, changes.size());
+		Assert.assertEquals(4, changes.get(0).getRevision());
+		Assert.assertEquals(6, changes.get(2).getRevision());
+		Assert.assertTrue(future.isEmpty());
+		Assert.assertEquals(10, log.getRevision().getRevision());
+	}
+
+	@Test
+	public void shouldCompactWholeRevisions() {
+		// given
+		long first = log.nextRevision();
+		for (int i = 0; i < 3; i++) {
+			log.record(new TreeChange(first, Operation.DELETE, (long) i, null,
+					null));
+		}
+
+		// when
+		for (int i = 0; i < MemoryChangeLog.RETAINED_CHANGES - 1; i++) {
+			log.record(new TreeChange(log.nextRevision(), Operation.UPDATE, 1L,
+					null, (double) i));
+		}
+
+		// then
+		TreeRevisionEntity revision = log.getRevision();
+		List<TreeChange> changes = log.getChanges(first, revision.getRevision(),
+				Integer.MAX_VALUE);
+		Assert.assertEquals(first, revision.getCompactedRevision());
+		Assert.assertEquals(MemoryChangeLog.RETAINED_CHANGES - 1, changes.size());
+		Assert.assertEquals(first + 1, changes.get(0).getRevision());
+	}
+
+	@Test
+	public void shouldResetLog() {
+		// given
+		Long nodeId = store.create(TreeNode.newNode(null, 0d), new HashMap<>())
+				.get().getId();
+		update(nodeId, 1);
+
+		// when
+		long reset = log.reset();
+
+		// then
+		Assert.assertEquals(2, reset);
+		Assert.assertEquals(reset, log.getRevision().getCompactedRevision());
+		Assert.assertTrue(log.getChanges(0, reset, 10).isEmpty());
+	}
+}
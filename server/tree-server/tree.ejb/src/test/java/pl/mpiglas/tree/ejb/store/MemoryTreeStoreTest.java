@@ -0,0 +1,121 @@
+package pl.mpiglas.tree.ejb.store;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import pl.mpiglas.tree.model.transfer.TreeBatch;
+import pl.mpiglas.tree.model.transfer.TreeNode;
+
+/**
+ * Tests iteration of {@link MemoryTreeStore}.
+ * @author mpiglas
+ *
+ */
+public class MemoryTreeStoreTest {
+
+	private MemoryTreeStore store;
+	private TreeNode root;
+
+	@Before
+	public void setUp() {
+		store = new MemoryTreeStore();
+		store.init();
+		root = store.create(TreeNode.newNode(null, 0d), new HashMap<>()).get();
+		for (int i = 1; i < 3000; i++) {
+			store.create(TreeNode.newNode(root.getId(), (double) i),
+					new HashMap<>());
+		}
+	}
+
+	@Test
+	public void shouldNotBlockModificationsWhileConsumerWaits() {
+		// given
+		List<Long> ids = new ArrayList<>();
+		List<Boolean> created = new ArrayList<>();
+
+		// when
+		store.forEachRow((id, parentId, value) -> {
+			if (ids.isEmpty()) {
+				// consumer stalls until modification is done
+				try {
+					created.add(CompletableFuture.supplyAsync(() -> store.create(
+							TreeNode.newNode(root.getId(), -1d), new HashMap<>())
+							.isPresent()).get(10, TimeUnit.SECONDS));
+				} catch (Exception e) {
+					throw new AssertionError("Modification blocked", e);
+				}
+			}
+			ids.add(id);
+		});
+
+		// then
+		Assert.assertEquals(1, created.size());
+		Assert.assertTrue(created.get(0));
+		Assert.assertEquals(3001, ids.size());
+		for (int i = 1; i < ids.size(); i++) {
+			Assert.assertTrue(ids.get(i - 1) < ids.get(i));
+		}
+	}
+
+	@Test
+	public void shouldPassParentsBeforeChildren() {
+		// given
+		TreeNode child = store.create(TreeNode.newNode(root.getId(), 1d),
+				new HashMap<>()).get();
+		TreeNode leaf = store.create(TreeNode.newNode(child.getId(), 2d),
+				new HashMap<>()).get();
+		List<Long> ids = new ArrayList<>();
+
+		// when
+		boolean found = store.forEachSubtreeRow(child.getId(),
+				(id, parentId, value) -> {
+					Assert.assertTrue(id == child.getId()
+							|| ids.contains(parentId));
+					ids.add(id);
+				});
+		boolean missing = store.forEachSubtreeRow(leaf.getId() + 1,
+				(id, parentId, value) -> ids.add(id));
+
+		// then
+		Assert.assertTrue(found);
+		Assert.assertFalse(missing);
+		Assert.assertEquals(2, ids.size());
+	}
+
+	@Test
+	public void shouldDeleteSubtreesListedInAnyOrder() {
+		// given
+		TreeNode child = store.create(TreeNode.newNode(root.getId(), 1d),
+				new HashMap<>()).get();
+		TreeNode leaf = store.create(TreeNode.newNode(child.getId(), 2d),
+				new HashMap<>()).get();
+		TreeNode created = TreeNode.newNode(leaf.getId(), 3d);
+		created.setId(-1L);
+		TreeBatch batch = new TreeBatch();
+		batch.getCreated().add(created);
+		batch.setDeleted(Arrays.asList(child.getId(), -1L, leaf.getId(),
+				child.getId()));
+		Map<Long, String> paths = new HashMap<>();
+
+		// when
+		Optional<Map<Long, Long>> ids = store.applyBatch(batch, paths);
+
+		// then
+		Assert.assertTrue(ids.isPresent());
+		Assert.assertFalse(store.getNode(child.getId()).isPresent());
+		Assert.assertFalse(store.getNode(leaf.getId()).isPresent());
+		Assert.assertTrue(paths.containsKey(leaf.getId()));
+		Assert.assertEquals(2999, store.getAggregate(root.getId()).get()
+				.getCount());
+	}
+}
@@ -0,0 +1,248 @@
+package pl.mpiglas.tree.ejb.store;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import pl.mpiglas.tree.model.entity.TreeRevisionEntity;
+import pl.mpiglas.tree.model.transfer.TreeAggregate;
+import pl.mpiglas.tree.model.transfer.TreeBatch;
+import pl.mpiglas.tree.model.transfer.TreeNode;
+
+/**
+ * Tests recovery of {@link MemoryTreeStore} from {@link TreeJournal}. Crash is
+ * simulated by opening journal again without closing previous store.
+ * @author mpiglas
+ *
+ */
+public class TreeJournalTest {
+
+	private static final int SEGMENT_SIZE = 4096;
+	/**
+	 * Journal header with revision appended when journal is opened, and
+	 * record with single creation.
+	 */
+	private static final int HEADER_LENGTH = 4 + 8 + 9;
+	private static final int CREATE_RECORD_LENGTH = 8 + 25;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path directory;
+
+	@Before
+	public void setUp() {
+		directory = folder.getRoot().toPath();
+	}
+
+	private MemoryTreeStore open() {
+		MemoryTreeStore store = new MemoryTreeStore();
+		store.init();
+		store.openJournal(directory, SEGMENT_SIZE);
+		return store;
+	}
+
+	private static TreeNode create(MemoryTreeStore store, Long parentId,
+			double value) {
+		return store.create(TreeNode.newNode(parentId, value), new HashMap<>())
+				.get();
+	}
+
+	private static List<String> content(MemoryTreeStore store) {
+		return store.getAll().stream()
+				.map(n -> n.getId() + ":" + n.getParentId() + ":" + n.getValue())
+				.collect(Collectors.toList());
+	}
+
+	private Path journalFile(int generation, int part) {
+		return directory.resolve("journal-" + generation + "-" + part + ".bin");
+	}
+
+	@Test
+	public void shouldRecoverTreeFromJournal() {
+		// given
+		MemoryTreeStore store = open();
+		TreeNode root = create(store, null, 10);
+		TreeNode child = create(store, root.getId(), 20);
+		TreeNode leaf = create(store, child.getId(), 5);
+		create(store, root.getId(), 30);
+		TreeNode updated = TreeNode.newNode(null, 50d);
+		updated.setId(leaf.getId());
+		store.update(updated, new HashMap<>());
+		store.delete(child.getId(), new HashMap<>());
+		TreeBatch batch = new TreeBatch();
+		TreeNode first = TreeNode.newNode(root.getId(), 1d);
+		first.setId(-1L);
+		TreeNode second = TreeNode.newNode(-1L, 2d);
+		second.setId(-2L);
+		batch.getCreated().add(first);
+		batch.getCreated().add(second);
+		Map<Long, Long> ids = store.applyBatch(batch, new HashMap<>()).get();
+
+		// when
+		MemoryTreeStore recovered = open();
+		TreeNode next = create(recovered, root.getId(), 7);
+
+		// then
+		Assert.assertEquals(content(store), content(recovered).subList(0, 4));
+		Assert.assertEquals(ids.get(-2L) + 1, next.getId().longValue());
+		TreeAggregate aggregate = recovered.getAggregate(root.getId()).get();
+		Assert.assertEquals(50d, aggregate.getSum(), 0.0);
+		Assert.assertEquals(4, aggregate.getCount());
+	}
+
+	@Test
+	public void shouldRecoverFromSnapshotAndJournalTail() {
+		// given
+		MemoryTreeStore store = open();
+		TreeNode root = create(store, null, 10);
+		TreeNode child = create(store, root.getId(), 20);
+		store.delete(child.getId(), new HashMap<>());
+		store.snapshot();
+		create(store, root.getId(), 30);
+
+		// when
+		MemoryTreeStore recovered = open();
+
+		// then
+		Assert.assertEquals(content(store), content(recovered));
+		Assert.assertEquals(child.getId() + 1,
+				recovered.getAll().get(1).getId().longValue());
+		Assert.assertTrue(Files.exists(directory.resolve("snapshot-1.bin")));
+		Assert.assertFalse(Files.exists(journalFile(0, 0)));
+	}
+
+	@Test
+	public void shouldRecoverVersionsOfNodes() {
+		// given
+		MemoryTreeStore store = open();
+		TreeNode root = create(store, null, 10);
+		TreeNode updated = TreeNode.newNode(null, 20d);
+		updated.setId(root.getId());
+		store.update(updated, new HashMap<>());
+		store.snapshot();
+		updated.setValue(30d);
+		store.updateIfVersion(updated, 1, new HashMap<>());
+
+		// when
+		MemoryTreeStore recovered = open();
+
+		// then
+		Assert.assertEquals(Long.valueOf(2), recovered.getVersion(root.getId()).get());
+		Assert.assertEquals(VersionedUpdate.STALE,
+				recovered.updateIfVersion(updated, 1, new HashMap<>()));
+	}
+
+	@Test
+	public void shouldIgnoreTornRecordAtTail() throws IOException {
+		// given
+		MemoryTreeStore store = open();
+		TreeNode root = create(store, null, 10);
+		create(store, root.getId(), 20);
+		try (RandomAccessFile file = new RandomAccessFile(
+				journalFile(0, 0).toFile(), "rw")) {
+			// value of second node is lost
+			file.seek(HEADER_LENGTH + CREATE_RECORD_LENGTH + 8 + 20);
+			file.write(0xFF);
+		}
+
+		// when
+		MemoryTreeStore recovered = open();
+		create(recovered, root.getId(), 30);
+		MemoryTreeStore again = open();
+
+		// then
+		Assert.assertEquals(2, again.getAll().size());
+		Assert.assertEquals(30d, again.getAll().get(1).getValue(), 0.0);
+	}
+
+	@Test
+	public void shouldContinueAfterTruncatedJournal() throws IOException {
+		// given
+		MemoryTreeStore store = open();
+		TreeNode root = create(store, null, 10);
+		create(store, root.getId(), 20);
+		try (RandomAccessFile file = new RandomAccessFile(
+				journalFile(0, 0).toFile(), "rw")) {
+			file.setLength(HEADER_LENGTH + CREATE_RECORD_LENGTH + 10);
+		}
+
+		// when
+		MemoryTreeStore recovered = open();
+		int afterCrash = recovered.getAll().size();
+		create(recovered, root.getId(), 30);
+		MemoryTreeStore again = open();
+
+		// then
+		Assert.assertEquals(1, afterCrash);
+		Assert.assertEquals(content(recovered), content(again));
+		Assert.assertTrue(Files.exists(journalFile(0, 1)));
+	}
+
+	@Test
+	public void shouldRecoverBatchEntirelyOrNotAtAll() throws IOException {
+		// given
+		MemoryTreeStore store = open();
+		TreeNode root = create(store, null, 10);
+		TreeBatch batch = new TreeBatch();
+		for (long i = 1; i <= 10; i++) {
+			TreeNode node = TreeNode.newNode(root.getId(), (double) i);
+			node.setId(-i);
+			batch.getCreated().add(node);
+		}
+		store.applyBatch(batch, new HashMap<>());
+		try (RandomAccessFile file = new RandomAccessFile(
+				journalFile(0, 0).toFile(), "rw")) {
+			file.setLength(HEADER_LENGTH + CREATE_RECORD_LENGTH + 100);
+		}
+
+		// when
+		MemoryTreeStore recovered = open();
+
+		// then
+		Assert.assertEquals(1, recovered.getAll().size());
+		Assert.assertEquals(0, recovered.getAggregate(root.getId()).get()
+				.getCount());
+	}
+
+	@Test
+	public void shouldContinueRevisionsAfterRestart() {
+		// given
+		MemoryTreeStore store = open();
+		MemoryChangeLog log = store.getChangeLog();
+		TreeNode root = store.modify(() -> {
+			TreeNode node = create(store, null, 10);
+			log.nextRevision();
+			return node;
+		});
+		store.snapshot();
+		store.modify(() -> {
+			create(store, root.getId(), 20);
+			return log.nextRevision();
+		});
+		long beforeCrash = log.getRevision().getRevision();
+
+		// when
+		MemoryTreeStore recovered = open();
+		TreeRevisionEntity revision = recovered.getChangeLog().getRevision();
+		MemoryTreeStore again = open();
+
+		// then
+		Assert.assertTrue(revision.getRevision() > beforeCrash);
+		Assert.assertEquals(revision.getRevision(),
+				revision.getCompactedRevision());
+		Assert.assertTrue(again.getChangeLog().getRevision().getRevision()
+				> revision.getRevision());
+	}
+}
@@ -0,0 +1,105 @@
+package pl.mpiglas.tree.endpoint.rest;
+
+import java.io.Serializable;
+
+/**
+ * Statistics of {@link ChangeBroadcaster}. Queue depths are measured in
+ * number of changes, send times from start of asynchronous send to its
+ * completion.
+ * 
+ * @author mpiglas
+ *
+ */
+public class BroadcastStats implements Serializable {
+
+	private static final long serialVersionUID = 4128763015942366181L;
+	private int sessions;
+	private long queuedChanges;
+	private long maxQueueDepth;
+	private long messagesSent;
+	private long changesCoalesced;
+	private long resyncs;
+	private long disconnects;
+	private double averageSendMillis;
+	private double maxSendMillis;
+
+	public int getSessions() {
+		return sessions;
+	}
+
+	public void setSessions(int sessions) {
+		this.sessions = sessions;
+	}
+
+	public long getQueuedChanges() {
+		return queuedChanges;
+	}
+
+	public void setQueuedChanges(long queuedChanges) {
+		this.queuedChanges = queuedChanges;
+	}
+
+	public long getMaxQueueDepth() {
+		return maxQueueDepth;
+	}
+
+	public void setMaxQueueDepth(long maxQueueDepth) {
+		this.maxQueueDepth = maxQueueDepth;
+	}
+
+	public long getMessagesSent() {
+		return messagesSent;
+	}
+
+	public void setMessagesSent(long messagesSent) {
+		this.messagesSent = messagesSent;
+	}
+
+	public long getChangesCoalesced() {
+		return changesCoalesced;
+	}
+
+	public void setChangesCoalesced(long changesCoalesced) {
+		this.changesCoalesced = changesCoalesced;
+	}
+
+	public long getResyncs() {
+		return resyncs;
+	}
+
+	public void setResyncs(long resyncs) {
+		this.resyncs = resyncs;
+	}
+
+	public long getDisconnects() {
+		return disconnects;
+	}
+
+	public void setDisconnects(long disconnects) {
+		this.disconnects = disconnects;
+	}
+
+	public double getAverageSendMillis() {
+		return averageSendMillis;
+	}
+
+	public void setAverageSendMillis(double averageSendMillis) {
+		this.averageSendMillis = averageSendMillis;
+	}
+
+	public double getMaxSendMillis() {
+		return maxSendMillis;
+	}
+
+	public void setMaxSendMillis(double maxSendMillis) {
+		this.maxSendMillis = maxSendMillis;
+	}
+
+	@Override
+	public String toString() {
+		return "BroadcastStats [sessions=" + sessions + ", queuedChanges="
+				+ queuedChanges + ", messagesSent=" + messagesSent
+				+ ", resyncs=" + resyncs + ", disconnects=" + disconnects + "]";
+	}
+
+}
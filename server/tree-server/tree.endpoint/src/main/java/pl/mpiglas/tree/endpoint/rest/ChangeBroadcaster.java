@@ -0,0 +1,361 @@
+package pl.mpiglas.tree.endpoint.rest;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import javax.annotation.PostConstruct;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.EJB;
+import javax.ejb.Singleton;
+import javax.enterprise.event.Observes;
+import javax.enterprise.event.TransactionPhase;
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+import javax.websocket.CloseReason;
+import javax.websocket.CloseReason.CloseCodes;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+
+import org.jboss.logging.Logger;
+
+import pl.mpiglas.tree.ejb.core.TreeManager;
+import pl.mpiglas.tree.ejb.core.TreeModifiedEvent;
+import pl.mpiglas.tree.ejb.metrics.TreeMetrics;
+import pl.mpiglas.tree.model.transfer.TreeChange;
+import pl.mpiglas.tree.model.transfer.TreeChange.Operation;
+
+/**
+ * Pushes committed changes of tree to all open sessions of
+ * {@link ChangeEventSocket}. Changes are sent as JSON message:
+ * 
+ * <pre>
+ * {"type":"changes","revision":12,"changes":[{"operation":"CREATE","nodeId":5,"parentId":1,"value":10.0}]}
+ * {"type":"reset","revision":13}
+ * </pre>
+ * 
+ * Client applies changes to its model in place. After reset message client
+ * has to read whole tree.
+ * 
+ * Session may subscribe to subtrees with given roots, then only changes of
+ * nodes inside these subtrees and deletions of their ancestors are sent.
+ * Paths of roots are read once when session subscribes, and change is matched
+ * by prefix of materialized path carried by event, so no query is executed
+ * per event.
+ * 
+ * Each session has its own queue and at most one message in flight. Changes
+ * that arrive while message is sent are coalesced per node and sent together
+ * in next message. If queue of session exceeds {@link #MAX_PENDING_CHANGES},
+ * queued changes are dropped and session receives reset message. Session that
+ * doesn't complete send within {@link #SEND_TIMEOUT_MILLIS} is closed.
+ * 
+ * @author mpiglas
+ *
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class ChangeBroadcaster {
+
+	/**
+	 * Maximal number of changes queued for single session.
+	 */
+	public static final int MAX_PENDING_CHANGES = 1000;
+	/**
+	 * Maximal time of single send, slower sessions are closed.
+	 */
+	public static final long SEND_TIMEOUT_MILLIS = 30000;
+
+	private Logger logger;
+
+	@EJB
+	TreeManager treeManager;
+
+	@EJB
+	TreeMetrics metrics;
+
+	/**
+	 * Timeout of single send, shortened by tests.
+	 */
+	long sendTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(SEND_TIMEOUT_MILLIS);
+
+	private final Map<Session, Subscriber> subscribers = new ConcurrentHashMap<>();
+
+	private final AtomicLong messagesSent = new AtomicLong();
+	private final AtomicLong changesCoalesced = new AtomicLong();
+	private final AtomicLong resyncs = new AtomicLong();
+	private final AtomicLong disconnects = new AtomicLong();
+	private final AtomicLong maxQueueDepth = new AtomicLong();
+	private final AtomicLong sendNanos = new AtomicLong();
+	private final AtomicLong maxSendNanos = new AtomicLong();
+
+	/**
+	 * Inits bean.
+	 */
+	@PostConstruct
+	public void init() {
+		logger = Logger.getLogger(ChangeBroadcaster.class);
+	}
+
+	/**
+	 * Registers session that receives changes.
+	 * 
+	 * @param session
+	 *            open session
+	 */
+	public void register(Session session) {
+		subscribers.put(session, new Subscriber(session));
+	}
+
+	/**
+	 * Limits changes sent to session to subtrees with given roots. Unknown
+	 * roots are ignored.
+	 * 
+	 * @param session
+	 *            open session
+	 * @param rootIds
+	 *            ids of subtrees' roots, empty list for whole tree
+	 */
+	public void subscribe(Session session, List<Long> rootIds) {
+		Subscriber subscriber = subscribers.get(session);
+		if (subscriber != null) {
+			subscriber.rootPaths = rootIds.isEmpty() ? null
+					: treeManager.getPaths(rootIds).values().stream()
+							.collect(Collectors.toList());
+		}
+	}
+
+	/**
+	 * Removes closed session.
+	 * 
+	 * @param session
+	 *            closed session
+	 */
+	public void unregister(Session session) {
+		subscribers.remove(session);
+	}
+
+	/**
+	 * Queues changes for all sessions after transaction that modified tree is
+	 * committed.
+	 * 
+	 * @param event
+	 *            modification of tree
+	 */
+	public void treeModified(
+			@Observes(during = TransactionPhase.AFTER_SUCCESS) TreeModifiedEvent event) {
+		int fanout = 0;
+		for (Subscriber subscriber : subscribers.values()) {
+			subscriber.offer(event);
+			fanout++;
+		}
+		metrics.changeBroadcast(fanout);
+	}
+
+	/**
+	 * Reads statistics of sessions and sent messages.
+	 * 
+	 * @return current statistics.
+	 */
+	public BroadcastStats getStats() {
+		BroadcastStats stats = new BroadcastStats();
+		stats.setSessions(subscribers.size());
+		stats.setQueuedChanges(subscribers.values().stream()
+				.mapToLong(Subscriber::queued).sum());
+		stats.setMaxQueueDepth(maxQueueDepth.get());
+		stats.setMessagesSent(messagesSent.get());
+		stats.setChangesCoalesced(changesCoalesced.get());
+		stats.setResyncs(resyncs.get());
+		stats.setDisconnects(disconnects.get());
+		long sent = messagesSent.get();
+		stats.setAverageSendMillis(sent > 0
+				? sendNanos.get() / (double) sent / TimeUnit.MILLISECONDS.toNanos(1) : 0);
+		stats.setMaxSendMillis(maxSendNanos.get() / (double) TimeUnit.MILLISECONDS.toNanos(1));
+		return stats;
+	}
+
+	/**
+	 * Queue of single session.
+	 */
+	private final class Subscriber {
+		private final Session session;
+		private final Map<Long, TreeChange> pending = new LinkedHashMap<>();
+		/**
+		 * Paths of subscribed subtrees, null for whole tree.
+		 */
+		private volatile List<String> rootPaths;
+		private long revision;
+		private boolean resync;
+		private boolean sending;
+		private long sendStarted;
+
+		private Subscriber(Session session) {
+			this.session = session;
+		}
+
+		private synchronized int queued() {
+			return pending.size();
+		}
+
+		private synchronized void offer(TreeModifiedEvent event) {
+			if (sending && System.nanoTime() - sendStarted > sendTimeoutNanos) {
+				disconnect();
+				return;
+			}
+			revision = Math.max(revision, event.getRevision());
+			if (event.isReset()) {
+				resync = true;
+			} else if (!resync) {
+				List<String> roots = rootPaths;
+				event.getChanges().stream()
+						.filter(change -> isVisible(roots, change,
+								event.getPath(change.getNodeId())))
+						.forEach(this::coalesce);
+				maxQueueDepth.accumulateAndGet(pending.size(), Math::max);
+				if (pending.size() > MAX_PENDING_CHANGES) {
+					logger.warnv("Session {0} is too slow, changes replaced with reset",
+							session.getId());
+					resyncs.incrementAndGet();
+					resync = true;
+				}
+			}
+			if (resync) {
+				pending.clear();
+			}
+			if (!sending) {
+				sendNext();
+			}
+		}
+
+		/**
+		 * Checks if change is inside of subscribed subtree or deletes one of
+		 * subscribed roots.
+		 */
+		private boolean isVisible(List<String> roots, TreeChange change,
+				String path) {
+			if (roots == null || path == null) {
+				return true;
+			}
+			for (String root : roots) {
+				if (path.startsWith(root) || change.getOperation() == Operation.DELETE
+						&& root.startsWith(path)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Replaces queued change of the same node. Created node stays created
+		 * with new value. Deletion is moved to the end of queue, so it follows
+		 * creation of its children.
+		 */
+		private void coalesce(TreeChange change) {
+			TreeChange queued = pending.get(change.getNodeId());
+			if (queued == null) {
+				pending.put(change.getNodeId(), change);
+				return;
+			}
+			changesCoalesced.incrementAndGet();
+			if (queued.getOperation() == Operation.CREATE
+					&& change.getOperation() == Operation.UPDATE) {
+				pending.put(change.getNodeId(), new TreeChange(change.getRevision(),
+						Operation.CREATE, change.getNodeId(),
+						queued.getParentId(), change.getValue()));
+			} else {
+				if (change.getOperation() == Operation.DELETE) {
+					pending.remove(change.getNodeId());
+				}
+				pending.put(change.getNodeId(), change);
+			}
+		}
+
+		private void sendNext() {
+			if (!resync && pending.isEmpty()) {
+				return;
+			}
+			String message = resync ? resetJson(revision)
+					: toJson(revision, pending.values());
+			pending.clear();
+			resync = false;
+			sending = true;
+			sendStarted = System.nanoTime();
+			session.getAsyncRemote().sendText(message, this::sent);
+		}
+
+		private synchronized void sent(SendResult result) {
+			long nanos = System.nanoTime() - sendStarted;
+			sending = false;
+			if (!result.isOK()) {
+				metrics.sendFailed();
+				logger.warnv("Message to session {0} not sent: {1}",
+						session.getId(), result.getException().getMessage());
+				unregister(session);
+				return;
+			}
+			messagesSent.incrementAndGet();
+			sendNanos.addAndGet(nanos);
+			maxSendNanos.accumulateAndGet(nanos, Math::max);
+			sendNext();
+		}
+
+		private void disconnect() {
+			logger.warnv("Session {0} did not receive message in time, closing",
+					session.getId());
+			disconnects.incrementAndGet();
+			unregister(session);
+			pending.clear();
+			try {
+				session.close(new CloseReason(CloseCodes.TRY_AGAIN_LATER,
+						"Slow consumer"));
+			} catch (IOException e) {
+				logger.warn("Session not closed", e);
+			}
+		}
+	}
+
+	static String toJson(TreeModifiedEvent event) {
+		return event.isReset() ? resetJson(event.getRevision())
+				: toJson(event.getRevision(), event.getChanges());
+	}
+
+	static String resetJson(long revision) {
+		StringWriter writer = new StringWriter();
+		try (JsonGenerator json = Json.createGenerator(writer)) {
+			json.writeStartObject().write("type", "reset")
+					.write("revision", revision).writeEnd();
+		}
+		return writer.toString();
+	}
+
+	static String toJson(long revision, Collection<TreeChange> changes) {
+		StringWriter writer = new StringWriter();
+		try (JsonGenerator json = Json.createGenerator(writer)) {
+			json.writeStartObject().write("type", "changes")
+					.write("revision", revision);
+			json.writeStartArray("changes");
+			for (TreeChange change : changes) {
+				json.writeStartObject()
+						.write("operation", change.getOperation().name())
+						.write("nodeId", change.getNodeId());
+				if (change.getParentId() != null) {
+					json.write("parentId", change.getParentId());
+				}
+				if (change.getValue() != null) {
+					json.write("value", change.getValue());
+				}
+				json.writeEnd();
+			}
+			json.writeEnd();
+			json.writeEnd();
+		}
+		return writer.toString();
+	}
+}
@@ -1,16 +1,39 @@
 package pl.mpiglas.tree.endpoint.rest;
 
+import java.io.StringReader;
+import java.util.List;
+import java.util.stream.Collectors;
+
 import javax.annotation.PostConstruct;
+import javax.ejb.EJB;
 import javax.ejb.Stateless;
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.websocket.OnClose;
+import javax.websocket.OnError;
 import javax.websocket.OnMessage;
+import javax.websocket.OnOpen;
 import javax.websocket.Session;
 import javax.websocket.server.ServerEndpoint;
 
 import org.jboss.logging.Logger;
 
+import pl.mpiglas.tree.ejb.metrics.TreeMetrics;
+
 /**
- * Socket listen for events from client when it performs update of model and
- * forwards it to other sessions.
+ * Socket pushes changes of tree to clients. Changes are published by server
+ * after each committed modification, see {@link ChangeBroadcaster}, so
+ * clients don't have to notify each other.
+ * 
+ * Client may limit changes to subtrees it displays by sending message:
+ * 
+ * <pre>
+ * {"type":"subscribe","roots":[5,17]}
+ * </pre>
+ * 
+ * Empty list of roots subscribes to whole tree again.
  * 
  * @author mpiglas
  *
@@ -20,6 +43,12 @@ import org.jboss.logging.Logger;
 public class ChangeEventSocket {
 	private Logger logger;
 
+	@EJB
+	ChangeBroadcaster broadcaster;
+
+	@EJB
+	TreeMetrics metrics;
+
 	/**
 	 * Inits bean.
 	 */
@@ -28,15 +57,56 @@ public class ChangeEventSocket {
 		logger = Logger.getLogger(ChangeEventSocket.class);
 	}
 
+	@OnOpen
+	public void opened(Session session) {
+		metrics.sessionOpened();
+		broadcaster.register(session);
+	}
+
+	@OnClose
+	public void closed(Session session) {
+		metrics.sessionClosed();
+		broadcaster.unregister(session);
+	}
+
+	@OnError
+	public void failed(Session session, Throwable error) {
+		metrics.sessionFailed();
+		logger.warnv("Session {0} failed: {1}", session.getId(), error.getMessage());
+		broadcaster.unregister(session);
+	}
+
+	/**
+	 * Handles subscription of client. Other messages are ignored, changes are
+	 * published by server.
+	 * 
+	 * @param message
+	 *            message from client
+	 * @param session
+	 *            client's session
+	 */
 	@OnMessage
 	public void modelChanged(String message, Session session) {
-		logger.info("New message " + message);
-		for (Session so : session.getOpenSessions()) {
-			if (!so.equals(session)) {
-				so.getAsyncRemote().sendText("reload");
+		List<Long> roots = null;
+		try {
+			JsonObject json = Json.createReader(new StringReader(message))
+					.readObject();
+			if ("subscribe".equals(json.getString("type", null))) {
+				roots = json.getJsonArray("roots")
+						.getValuesAs(JsonNumber.class).stream()
+						.map(JsonNumber::longValue).collect(Collectors.toList());
 			}
+		} catch (JsonException | ClassCastException | NullPointerException e) {
+			// not a subscription
+		}
+		if (roots != null) {
+			broadcaster.subscribe(session, roots);
+			if (logger.isDebugEnabled()) {
+				logger.debugv("Session {0} subscribed to {1}", session.getId(), roots);
+			}
+		} else if (logger.isDebugEnabled()) {
+			logger.debug("Message ignored " + message);
 		}
-
 	}
 
 }
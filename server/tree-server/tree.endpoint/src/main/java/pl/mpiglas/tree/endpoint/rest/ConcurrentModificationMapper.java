@@ -0,0 +1,55 @@
+package pl.mpiglas.tree.endpoint.rest;
+
+import javax.ejb.EJBException;
+import javax.persistence.OptimisticLockException;
+import javax.persistence.PessimisticLockException;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.ext.ExceptionMapper;
+import javax.ws.rs.ext.Provider;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Answers modification rolled back because of concurrent modification of the
+ * same rows with {@link Status#CONFLICT}, so client may retry it. Version of
+ * node is incremented by every update, and transaction that wrote stale
+ * version fails at commit, after {@link TreeService} returned its response.
+ * Other failures are answered with {@link Status#INTERNAL_SERVER_ERROR}.
+ *
+ * @author mpiglas
+ *
+ */
+@Provider
+public class ConcurrentModificationMapper implements ExceptionMapper<EJBException> {
+
+	private final Logger logger = Logger
+			.getLogger(ConcurrentModificationMapper.class);
+
+	@Override
+	public Response toResponse(EJBException exception) {
+		if (isConflict(exception)) {
+			logger.warnv("Modification rolled back: {0}", exception.getMessage());
+			return Response.status(Status.CONFLICT).build();
+		}
+		logger.error("Request failed", exception);
+		return Response.status(Status.INTERNAL_SERVER_ERROR).build();
+	}
+
+	/**
+	 * Checks if exception was caused by concurrent modification.
+	 *
+	 * @param exception
+	 *            exception thrown by container
+	 * @return true if any of causes is failure of lock.
+	 */
+	static boolean isConflict(Throwable exception) {
+		for (Throwable cause = exception; cause != null; cause = cause.getCause()) {
+			if (cause instanceof OptimisticLockException
+					|| cause instanceof PessimisticLockException) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,207 @@
+package pl.mpiglas.tree.endpoint.rest;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.ejb.EJB;
+import javax.ejb.Stateless;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+
+import pl.mpiglas.tree.ejb.metrics.Histogram;
+import pl.mpiglas.tree.ejb.metrics.TreeMetrics;
+
+/**
+ * Endpoint with runtime statistics of server.
+ * 
+ * @author mpiglas
+ * 
+ */
+@Stateless
+@Path("metrics")
+public class MetricsService {
+
+	/**
+	 * Media type of Prometheus text format.
+	 */
+	public static final String PROMETHEUS_TYPE = "text/plain; version=0.0.4";
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+	private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	@EJB
+	ChangeBroadcaster broadcaster;
+
+	@EJB
+	TreeMetrics metrics;
+
+	@EJB
+	RequestExecutor executor;
+
+	/**
+	 * Reads statistics of change events sent over {@link ChangeEventSocket}.
+	 * 
+	 * @return statistics of broadcaster.
+	 */
+	@GET
+	@Path("broadcast")
+	@Produces("text/json")
+	public BroadcastStats getBroadcastStats() {
+		return broadcaster.getStats();
+	}
+
+	/**
+	 * Reads all metrics of server in Prometheus text format. Latencies are
+	 * summaries in seconds with quantiles since start of server.
+	 * 
+	 * @return metrics of requests, pools of {@link RequestExecutor}, calls of
+	 *         tree manager, sessions of {@link ChangeEventSocket} and
+	 *         broadcast changes.
+	 */
+	@GET
+	@Produces(PROMETHEUS_TYPE)
+	public String getMetrics() {
+		StringBuilder out = new StringBuilder();
+		Map<String, TreeMetrics.Operation> requests = metrics.getRequests();
+		header(out, "tree_request_seconds", "summary",
+				"Time of REST requests by operation.");
+		requests.forEach((operation, request) -> summary(out,
+				"tree_request_seconds", "operation", operation,
+				request.getLatency(), NANOS_PER_SECOND));
+		header(out, "tree_request_failures_total", "counter",
+				"REST requests answered with server error.");
+		requests.forEach((operation, request) -> sample(out,
+				"tree_request_failures_total", "operation", operation,
+				request.getFailures()));
+		header(out, "tree_request_sql_statements", "summary",
+				"SQL statements prepared by Hibernate per request.");
+		requests.forEach((operation, request) -> summary(out,
+				"tree_request_sql_statements", "operation", operation,
+				request.getStatements(), 1));
+		header(out, "tree_request_entities_loaded", "summary",
+				"Entities loaded by Hibernate per request.");
+		requests.forEach((operation, request) -> summary(out,
+				"tree_request_entities_loaded", "operation", operation,
+				request.getEntities(), 1));
+
+		header(out, "tree_executor_queued", "gauge",
+				"Suspended requests waiting in pool.");
+		for (RequestExecutor.Pool pool : RequestExecutor.Pool.values()) {
+			sample(out, "tree_executor_queued", "pool", pool.getName(),
+					executor.getQueued(pool));
+		}
+		header(out, "tree_executor_active", "gauge",
+				"Suspended requests running in pool.");
+		for (RequestExecutor.Pool pool : RequestExecutor.Pool.values()) {
+			sample(out, "tree_executor_active", "pool", pool.getName(),
+					executor.getActive(pool));
+		}
+		header(out, "tree_executor_rejected_total", "counter",
+				"Requests answered with 503 because queue of pool was full.");
+		for (RequestExecutor.Pool pool : RequestExecutor.Pool.values()) {
+			sample(out, "tree_executor_rejected_total", "pool",
+					pool.getName(), executor.getRejected(pool));
+		}
+		header(out, "tree_executor_timeouts_total", "counter",
+				"Requests answered with 503 after timeout.");
+		for (RequestExecutor.Pool pool : RequestExecutor.Pool.values()) {
+			sample(out, "tree_executor_timeouts_total", "pool",
+					pool.getName(), executor.getTimedOut(pool));
+		}
+
+		Map<String, TreeMetrics.Operation> calls = metrics.getCalls();
+		header(out, "tree_manager_call_seconds", "summary",
+				"Time of calls of tree manager by method.");
+		calls.forEach((method, call) -> summary(out,
+				"tree_manager_call_seconds", "method", method,
+				call.getLatency(), NANOS_PER_SECOND));
+		header(out, "tree_manager_call_failures_total", "counter",
+				"Calls of tree manager that threw exception.");
+		calls.forEach((method, call) -> sample(out,
+				"tree_manager_call_failures_total", "method", method,
+				call.getFailures()));
+
+		BroadcastStats stats = broadcaster.getStats();
+		gauge(out, "tree_websocket_sessions", "Open sessions of change socket.",
+				stats.getSessions());
+		counter(out, "tree_websocket_sessions_opened_total",
+				"Sessions of change socket opened.", metrics.getSessionsOpened());
+		counter(out, "tree_websocket_sessions_closed_total",
+				"Sessions of change socket closed.", metrics.getSessionsClosed());
+		counter(out, "tree_websocket_errors_total",
+				"Errors of sessions of change socket.",
+				metrics.getSessionErrors());
+		header(out, "tree_broadcast_fanout", "summary",
+				"Sessions offered single modification of tree.");
+		summary(out, "tree_broadcast_fanout", null, null, metrics.getFanout(), 1);
+		counter(out, "tree_broadcast_send_failures_total",
+				"Messages to sessions that failed.", metrics.getSendFailures());
+		counter(out, "tree_broadcast_messages_sent_total",
+				"Messages sent to sessions.", stats.getMessagesSent());
+		gauge(out, "tree_broadcast_queued_changes",
+				"Changes waiting for send in all sessions.",
+				stats.getQueuedChanges());
+		counter(out, "tree_broadcast_changes_coalesced_total",
+				"Changes merged with queued change of the same node.",
+				stats.getChangesCoalesced());
+		counter(out, "tree_broadcast_resyncs_total",
+				"Queues of slow sessions replaced with reset.",
+				stats.getResyncs());
+		counter(out, "tree_broadcast_disconnects_total",
+				"Sessions closed because send timed out.",
+				stats.getDisconnects());
+		return out.toString();
+	}
+
+	private static void header(StringBuilder out, String name, String type,
+			String help) {
+		out.append("# HELP ").append(name).append(' ').append(help)
+				.append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type)
+				.append('\n');
+	}
+
+	private static void gauge(StringBuilder out, String name, String help,
+			long value) {
+		header(out, name, "gauge", help);
+		sample(out, name, null, null, value);
+	}
+
+	private static void counter(StringBuilder out, String name, String help,
+			long value) {
+		header(out, name, "counter", help);
+		sample(out, name, null, null, value);
+	}
+
+	private static void sample(StringBuilder out, String name, String label,
+			String labelValue, Object value) {
+		out.append(name);
+		if (label != null) {
+			out.append('{').append(label).append("=\"")
+					.append(escape(labelValue)).append("\"}");
+		}
+		out.append(' ').append(value).append('\n');
+	}
+
+	/**
+	 * Writes quantiles, sum and count of histogram divided by given scale.
+	 */
+	private static void summary(StringBuilder out, String name, String label,
+			String labelValue, Histogram histogram, double scale) {
+		long[] values = histogram.getQuantiles(QUANTILES);
+		String labels = label != null ? label + "=\"" + escape(labelValue)
+				+ "\"," : "";
+		for (int i = 0; i < QUANTILES.length; i++) {
+			out.append(name).append('{').append(labels).append("quantile=\"")
+					.append(QUANTILES[i]).append("\"} ")
+					.append(values[i] / scale).append('\n');
+		}
+		sample(out, name + "_sum", label, labelValue, histogram.getSum() / scale);
+		sample(out, name + "_count", label, labelValue, histogram.getCount());
+	}
+
+	private static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"")
+				.replace("\n", "\\n");
+	}
+}
@@ -0,0 +1,245 @@
+package pl.mpiglas.tree.endpoint.rest;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Singleton;
+import javax.enterprise.concurrent.ManagedThreadFactory;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import org.jboss.logging.Logger;
+
+import pl.mpiglas.tree.ejb.metrics.RequestStatistics;
+
+/**
+ * Runs suspended requests of {@link TreeService} on bounded thread pools, so
+ * request threads of container are released while tree is read or modified.
+ * Reads of whole tree and modifications have separate pools, see
+ * {@link Pool}, so slow reads can't starve cheap updates.
+ *
+ * Each pool has fixed number of threads and bounded queue. Request that
+ * doesn't fit in queue, or waits in queue longer than timeout, is answered
+ * with {@link Status#SERVICE_UNAVAILABLE} and Retry-After header and is never
+ * run. Read that runs longer than timeout is answered in the same way and
+ * its thread is interrupted. Statement already sent to database isn't
+ * cancelled, it only ends sooner if driver checks interrupt. Modification
+ * that has already started is given {@link #MAX_WRITE_EXTENSIONS} more
+ * timeouts to send its own response, so client doesn't retry change that
+ * was saved. If it's still running then, it's answered with
+ * {@link Status#GATEWAY_TIMEOUT} without Retry-After and client has to read
+ * tree to find out if change was saved.
+ *
+ * Sizes are read at startup from system properties tree.&lt;pool&gt;Threads,
+ * tree.&lt;pool&gt;Queue, e.g. tree.readThreads, and
+ * {@link #TIMEOUT_PROPERTY}, {@link #RETRY_AFTER_PROPERTY}.
+ *
+ * @author mpiglas
+ *
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class RequestExecutor {
+
+	/**
+	 * Pools of requests.
+	 */
+	public enum Pool {
+		/**
+		 * Reads of whole tree, long and heavy.
+		 */
+		READ("read", 4, 100),
+		/**
+		 * Creations, updates and deletions of single nodes.
+		 */
+		WRITE("write", 16, 1000);
+
+		private final String name;
+		private final int defaultThreads;
+		private final int defaultQueue;
+
+		Pool(String name, int defaultThreads, int defaultQueue) {
+			this.name = name;
+			this.defaultThreads = defaultThreads;
+			this.defaultQueue = defaultQueue;
+		}
+
+		public String getName() {
+			return name;
+		}
+	}
+
+	/**
+	 * System property with time in milliseconds after which request is
+	 * answered with {@link Status#SERVICE_UNAVAILABLE}.
+	 */
+	public static final String TIMEOUT_PROPERTY = "tree.requestTimeoutMillis";
+	/**
+	 * System property with number of seconds sent in Retry-After header.
+	 */
+	public static final String RETRY_AFTER_PROPERTY = "tree.retryAfterSeconds";
+	/**
+	 * Number of times timeout of started modification is extended before
+	 * it's answered without its result.
+	 */
+	public static final int MAX_WRITE_EXTENSIONS = 3;
+	private static final long DEFAULT_TIMEOUT_MILLIS = 30000;
+	private static final int DEFAULT_RETRY_AFTER_SECONDS = 1;
+
+	private static final int QUEUED = 0;
+	private static final int RUNNING = 1;
+	private static final int TIMED_OUT = 2;
+
+	private Logger logger;
+
+	@Resource
+	ManagedThreadFactory threadFactory;
+
+	private final Map<Pool, ThreadPoolExecutor> executors = new EnumMap<>(
+			Pool.class);
+	private final Map<Pool, LongAdder> rejected = new EnumMap<>(Pool.class);
+	private final Map<Pool, LongAdder> timedOut = new EnumMap<>(Pool.class);
+	private long timeoutMillis;
+	private int retryAfterSeconds;
+
+	/**
+	 * Inits bean.
+	 */
+	@PostConstruct
+	public void init() {
+		logger = Logger.getLogger(RequestExecutor.class);
+		timeoutMillis = Long.getLong(TIMEOUT_PROPERTY, DEFAULT_TIMEOUT_MILLIS);
+		retryAfterSeconds = Integer.getInteger(RETRY_AFTER_PROPERTY,
+				DEFAULT_RETRY_AFTER_SECONDS);
+		for (Pool pool : Pool.values()) {
+			int threads = Integer.getInteger("tree." + pool.name + "Threads",
+					pool.defaultThreads);
+			int queue = Integer.getInteger("tree." + pool.name + "Queue",
+					pool.defaultQueue);
+			executors.put(pool, new ThreadPoolExecutor(threads, threads, 0,
+					TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queue),
+					threadFactory, new ThreadPoolExecutor.AbortPolicy()));
+			rejected.put(pool, new LongAdder());
+			timedOut.put(pool, new LongAdder());
+			logger.infov("Pool {0} of requests with {1} threads and queue of {2}",
+					pool.name, threads, queue);
+		}
+	}
+
+	/**
+	 * Stops pools, queued requests are not run.
+	 */
+	@PreDestroy
+	public void shutdown() {
+		executors.values().forEach(ThreadPoolExecutor::shutdownNow);
+	}
+
+	/**
+	 * Runs work in given pool and resumes response with its result.
+	 * Statistics of request bound to current thread are moved to thread of
+	 * pool.
+	 *
+	 * @param pool
+	 *            pool of request
+	 * @param response
+	 *            suspended response
+	 * @param work
+	 *            produces entity or {@link Response}, exception is passed to
+	 *            exception mappers
+	 */
+	public void submit(Pool pool, AsyncResponse response, Supplier<?> work) {
+		AtomicInteger state = new AtomicInteger(QUEUED);
+		AtomicInteger extensions = new AtomicInteger();
+		AtomicReference<Future<?>> task = new AtomicReference<>();
+		RequestStatistics statistics = RequestStatistics.current();
+		response.setTimeoutHandler(timedOutResponse -> {
+			if (state.compareAndSet(QUEUED, TIMED_OUT) || pool == Pool.READ) {
+				timedOut.get(pool).increment();
+				timedOutResponse.resume(unavailable());
+				Future<?> running = task.get();
+				if (running != null) {
+					running.cancel(true);
+				}
+			} else if (extensions.incrementAndGet() <= MAX_WRITE_EXTENSIONS) {
+				// started modification is finished and answered
+				timedOutResponse.setTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+			} else {
+				timedOut.get(pool).increment();
+				logger.warnv("Modification still running after {0} ms",
+						timeoutMillis * (MAX_WRITE_EXTENSIONS + 1));
+				timedOutResponse.resume(Response.status(Status.GATEWAY_TIMEOUT)
+						.build());
+			}
+		});
+		response.setTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+		try {
+			task.set(executors.get(pool).submit(() -> {
+				if (!state.compareAndSet(QUEUED, RUNNING)) {
+					return;
+				}
+				if (statistics != null) {
+					statistics.attach();
+				}
+				try {
+					response.resume(work.get());
+				} catch (RuntimeException e) {
+					response.resume(e);
+				} finally {
+					RequestStatistics.stop();
+				}
+			}));
+		} catch (RejectedExecutionException e) {
+			rejected.get(pool).increment();
+			response.resume(unavailable());
+		}
+	}
+
+	private Response unavailable() {
+		return Response.status(Status.SERVICE_UNAVAILABLE)
+				.header(HttpHeaders.RETRY_AFTER, retryAfterSeconds).build();
+	}
+
+	/**
+	 * Returns number of requests waiting in queue of pool.
+	 */
+	public int getQueued(Pool pool) {
+		return executors.get(pool).getQueue().size();
+	}
+
+	/**
+	 * Returns number of requests running in pool.
+	 */
+	public int getActive(Pool pool) {
+		return executors.get(pool).getActiveCount();
+	}
+
+	/**
+	 * Returns number of requests rejected because queue of pool was full.
+	 */
+	public long getRejected(Pool pool) {
+		return rejected.get(pool).sum();
+	}
+
+	/**
+	 * Returns number of requests answered after timeout.
+	 */
+	public long getTimedOut(Pool pool) {
+		return timedOut.get(pool).sum();
+	}
+}
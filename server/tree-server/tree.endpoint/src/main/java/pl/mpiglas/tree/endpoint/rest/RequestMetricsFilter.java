@@ -0,0 +1,136 @@
+package pl.mpiglas.tree.endpoint.rest;
+
+import java.io.IOException;
+
+import javax.ejb.EJB;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.annotation.WebFilter;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import pl.mpiglas.tree.ejb.metrics.RequestStatistics;
+import pl.mpiglas.tree.ejb.metrics.TreeMetrics;
+
+/**
+ * Records every request of REST services in {@link TreeMetrics}. Filter wraps
+ * whole request, including streamed responses written after resource method
+ * returns. Suspended request is recorded when it completes, see
+ * {@link RequestExecutor}.
+ *
+ * Operation is named by the first two segments of path, e.g. tree/create for
+ * /rest/tree/create and tree/node for /rest/tree/node/5, so number of
+ * operations is bounded by resources. Requests of unknown paths are recorded
+ * as {@link #OTHER}.
+ *
+ * @author mpiglas
+ *
+ */
+@WebFilter(urlPatterns = "/rest/*", asyncSupported = true)
+public class RequestMetricsFilter implements Filter {
+
+	/**
+	 * Operation of requests that didn't match any resource.
+	 */
+	static final String OTHER = "other";
+	private static final String PREFIX = "/rest/";
+
+	@EJB
+	TreeMetrics metrics;
+
+	@Override
+	public void init(FilterConfig config) {
+		// no configuration
+	}
+
+	@Override
+	public void doFilter(ServletRequest request, ServletResponse response,
+			FilterChain chain) throws IOException, ServletException {
+		long started = System.nanoTime();
+		RequestStatistics statistics = RequestStatistics.start();
+		boolean suspended = false;
+		boolean thrown = true;
+		try {
+			chain.doFilter(request, response);
+			thrown = false;
+			if (request.isAsyncStarted()) {
+				suspended = true;
+				request.getAsyncContext().addListener(
+						new Completion(started, statistics));
+			}
+		} finally {
+			RequestStatistics.stop();
+			if (!suspended) {
+				record((HttpServletRequest) request,
+						(HttpServletResponse) response, started, thrown,
+						statistics);
+			}
+		}
+	}
+
+	private void record(HttpServletRequest request,
+			HttpServletResponse response, long started, boolean thrown,
+			RequestStatistics statistics) {
+		metrics.recordRequest(operation(request, response), System.nanoTime()
+				- started, thrown || response.getStatus() >= 500, statistics);
+	}
+
+	/**
+	 * Records suspended request when response is sent.
+	 */
+	private final class Completion implements AsyncListener {
+		private final long started;
+		private final RequestStatistics statistics;
+
+		private Completion(long started, RequestStatistics statistics) {
+			this.started = started;
+			this.statistics = statistics;
+		}
+
+		@Override
+		public void onComplete(AsyncEvent event) {
+			record((HttpServletRequest) event.getSuppliedRequest(),
+					(HttpServletResponse) event.getSuppliedResponse(), started,
+					false, statistics);
+		}
+
+		@Override
+		public void onTimeout(AsyncEvent event) {
+			// completed afterwards
+		}
+
+		@Override
+		public void onError(AsyncEvent event) {
+			// completed afterwards
+		}
+
+		@Override
+		public void onStartAsync(AsyncEvent event) {
+			// listener is registered after start
+		}
+	}
+
+	static String operation(HttpServletRequest request,
+			HttpServletResponse response) {
+		String path = request.getRequestURI().substring(
+				request.getContextPath().length());
+		if (response.getStatus() == HttpServletResponse.SC_NOT_FOUND
+				|| !path.startsWith(PREFIX)) {
+			return OTHER;
+		}
+		String[] segments = path.substring(PREFIX.length()).split("/", 3);
+		return segments.length > 1 ? segments[0] + "/" + segments[1]
+				: segments[0];
+	}
+
+	@Override
+	public void destroy() {
+		// nothing to release
+	}
+}
@@ -1,12 +1,21 @@
 package pl.mpiglas.tree.endpoint.rest;
 
+import java.util.Collections;
+
 import javax.ejb.EJB;
 import javax.ejb.Stateless;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
 
 import pl.mpiglas.tree.ejb.core.SetupManager;
+import pl.mpiglas.tree.ejb.core.TreeGenerator;
 
 /**
  * Helper bean initializes or resets sample tree.
@@ -38,4 +47,47 @@ public class SetupService {
 		return "ok";
 	}
 	
+	/**
+	 * Replaces tree with synthetic one for load tests. The same parameters
+	 * and seed always give the same tree.
+	 * 
+	 * @param nodes
+	 *            number of nodes
+	 * @param fanout
+	 *            maximal number of children of node
+	 * @param depth
+	 *            maximal depth of node, root has depth 0
+	 * @param shape
+	 *            balanced, skewed or random
+	 * @param seed
+	 *            seed of random values and parents
+	 * @return {@link Response#ok()} with number of generated nodes. Response
+	 *         with code {@link Status#BAD_REQUEST} if parameters are invalid
+	 *         or nodes don't fit in tree of given fanout and depth.
+	 */
+	@GET
+	@Path("generate")
+	@Produces("text/json")
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public Response generate(@QueryParam("nodes") @DefaultValue("1000") int nodes,
+			@QueryParam("fanout") @DefaultValue("10") int fanout,
+			@QueryParam("depth") @DefaultValue("20") int depth,
+			@QueryParam("shape") @DefaultValue("balanced") String shape,
+			@QueryParam("seed") @DefaultValue("0") long seed)
+	{
+		TreeGenerator.Shape treeShape;
+		try {
+			treeShape = TreeGenerator.Shape.valueOf(shape.toUpperCase());
+		} catch (IllegalArgumentException e) {
+			return Response.status(Status.BAD_REQUEST).build();
+		}
+		if (!TreeGenerator.isValid(nodes, fanout, depth))
+		{
+			return Response.status(Status.BAD_REQUEST).build();
+		}
+		long generated = sm.generateTree(nodes, fanout, depth, treeShape, seed);
+		return Response.ok(Collections.singletonMap("generated", generated))
+				.build();
+	}
+	
 }
@@ -0,0 +1,124 @@
+package pl.mpiglas.tree.endpoint.rest;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Compact binary encoding of list of nodes. Nodes are stored in three
+ * columns instead of list of objects:
+ * 
+ * <pre>
+ * bytes   "TRC1"
+ * int32   number of nodes
+ * int32   length of id column in bytes
+ * int32   length of parent column in bytes
+ * ids     unsigned LEB128 varints, difference to id of previous node (first to 0)
+ * parents unsigned LEB128 varints, difference between node's id and parent's id, 0 for root
+ * values  IEEE 754 doubles, big-endian
+ * </pre>
+ * 
+ * Nodes have to be added in order of ids. Parent is always created before its
+ * children, so both differences are positive and usually fit in one or two
+ * bytes. Integers of header are big-endian.
+ * 
+ * @author mpiglas
+ *
+ */
+public final class TreeColumns {
+
+	/**
+	 * Media type of encoded nodes.
+	 */
+	public static final String MEDIA_TYPE = "application/x-tree-columns";
+	private static final byte[] MAGIC = { 'T', 'R', 'C', '1' };
+
+	private byte[] ids = new byte[1024];
+	private int idsLength;
+	private byte[] parents = new byte[1024];
+	private int parentsLength;
+	private byte[] values = new byte[1024];
+	private int valuesLength;
+	private int count;
+	private long lastId;
+
+	/**
+	 * Appends node to columns.
+	 * 
+	 * @param id
+	 *            node's id, greater than id of previous node
+	 * @param parentId
+	 *            parent's id or null for root
+	 * @param value
+	 *            node's value
+	 */
+	public void add(long id, Long parentId, double value) {
+		if (count > 0 && id <= lastId) {
+			throw new IllegalArgumentException("Node " + id
+					+ " is not ordered after " + lastId);
+		}
+		ids = ensure(ids, idsLength, 10);
+		idsLength = writeVarint(ids, idsLength, id - lastId);
+		parents = ensure(parents, parentsLength, 10);
+		parentsLength = writeVarint(parents, parentsLength,
+				parentId != null ? id - parentId : 0);
+		values = ensure(values, valuesLength, 8);
+		long bits = Double.doubleToRawLongBits(value);
+		for (int shift = 56; shift >= 0; shift -= 8) {
+			values[valuesLength++] = (byte) (bits >>> shift);
+		}
+		lastId = id;
+		count++;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Returns length of encoded nodes.
+	 * 
+	 * @return number of bytes written by {@link #writeTo(OutputStream)}.
+	 */
+	public int getLength() {
+		return MAGIC.length + 3 * Integer.BYTES + idsLength + parentsLength
+				+ valuesLength;
+	}
+
+	/**
+	 * Writes header and columns to stream.
+	 * 
+	 * @param output
+	 *            target stream
+	 * @throws IOException
+	 *             if stream can't be written
+	 */
+	public void writeTo(OutputStream output) throws IOException {
+		DataOutputStream data = new DataOutputStream(output);
+		data.write(MAGIC);
+		data.writeInt(count);
+		data.writeInt(idsLength);
+		data.writeInt(parentsLength);
+		data.write(ids, 0, idsLength);
+		data.write(parents, 0, parentsLength);
+		data.write(values, 0, valuesLength);
+		data.flush();
+	}
+
+	private static byte[] ensure(byte[] buffer, int length, int needed) {
+		if (length + needed <= buffer.length) {
+			return buffer;
+		}
+		return Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + needed));
+	}
+
+	private static int writeVarint(byte[] buffer, int position, long value) {
+		while ((value & ~0x7FL) != 0) {
+			buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buffer[position++] = (byte) value;
+		return position;
+	}
+}
@@ -1,26 +1,79 @@
 package pl.mpiglas.tree.endpoint.rest;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 
+import javax.annotation.Resource;
 import javax.ejb.EJB;
+import javax.ejb.EJBException;
+import javax.ejb.SessionContext;
 import javax.ejb.Stateless;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.stream.JsonGenerator;
 import javax.ws.rs.Consumes;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.POST;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.GenericEntity;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.StreamingOutput;
 
+import pl.mpiglas.tree.ejb.core.TreeImport;
 import pl.mpiglas.tree.ejb.core.TreeManager;
+import pl.mpiglas.tree.ejb.core.UpdateBuffer;
+import pl.mpiglas.tree.ejb.store.TreeRowConsumer;
+import pl.mpiglas.tree.ejb.store.VersionedUpdate;
+import pl.mpiglas.tree.model.transfer.TreeAggregate;
+import pl.mpiglas.tree.model.transfer.TreeBatch;
+import pl.mpiglas.tree.model.transfer.TreeChanges;
 import pl.mpiglas.tree.model.transfer.TreeNode;
 
 /**
  * Stateless Endpoint for CRUD operations. Delegates calls to
  * {@link TreeManager} and returns domain objects.
  * 
+ * If write-behind is enabled, updates are acknowledged when they are stored
+ * in {@link UpdateBuffer}. Nodes returned in every encoding contain buffered
+ * values, aggregates and changes contain saved ones. Other modifications
+ * write buffered values first.
+ * 
+ * Single node is tagged with its version. Update with If-Match header is
+ * applied only if node still has that version. Modification rolled back
+ * because of concurrent modification is answered with 409, see
+ * {@link ConcurrentModificationMapper}.
+ * 
+ * Reads of whole tree as JSON, creations, updates and deletions are
+ * suspended and run by {@link RequestExecutor}, so they don't hold request
+ * threads of container. Java methods without {@link AsyncResponse} do the
+ * same synchronously.
+ * 
  * @author mpiglas
  *
  */
@@ -28,21 +81,295 @@ import pl.mpiglas.tree.model.transfer.TreeNode;
 @Path("tree")
 public class TreeService {
 
+	/**
+	 * Maximal number of nodes in single page.
+	 */
+	private static final int MAX_PAGE_SIZE = 10000;
+
 	@EJB
 	TreeManager treeManager;
 
+	@EJB
+	UpdateBuffer updateBuffer;
+
+	@EJB
+	RequestExecutor executor;
+
+	@Resource
+	SessionContext context;
+
+	/**
+	 * Returns business object of this bean, which runs methods in
+	 * transactions when called from threads of {@link RequestExecutor}.
+	 */
+	private TreeService self() {
+		return context.getBusinessObject(TreeService.class);
+	}
+
 	/**
 	 * Reads all nodes of tree and creates flat list. Each node contains only
 	 * logical reference to its parent (parent's id), not physical one (parent's
 	 * object).
 	 * 
+	 * Response is tagged with revision of tree and the same serialized content
+	 * is returned until tree is modified.
+	 * 
 	 * @return list of nodes, possibly empty.
 	 */
+	public List<TreeNode> getAll() {
+		return updateBuffer.overlay(treeManager.getAll());
+	}
+
+	/**
+	 * Reads all nodes of tree in {@link RequestExecutor.Pool#READ} pool, see
+	 * {@link #getAll()}. Cached revision is returned before request is
+	 * suspended.
+	 * 
+	 * @param response
+	 *            suspended response, resumed with list of nodes
+	 */
 	@GET
 	@Path("all")
 	@Produces("text/json")
-	public List<TreeNode> getAll() {
-		return treeManager.getAll();
+	@TreeSnapshot
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public void getAll(@Suspended AsyncResponse response) {
+		TreeService service = self();
+		executor.submit(RequestExecutor.Pool.READ, response,
+				() -> new GenericEntity<List<TreeNode>>(service.getAll()) {
+				});
+	}
+
+	/**
+	 * Reads all nodes of tree in compact binary encoding, see
+	 * {@link TreeColumns}. Nodes are encoded directly from database rows.
+	 * Response is tagged and cached in the same way as {@link #getAll()}.
+	 * 
+	 * @return encoded nodes.
+	 */
+	@GET
+	@Path("all")
+	@Produces(TreeColumns.MEDIA_TYPE)
+	@TreeSnapshot
+	public StreamingOutput getAllColumns() {
+		TreeColumns columns = new TreeColumns();
+		treeManager.forEachRow(overlay(columns::add, updateBuffer.getValues()));
+		return columns::writeTo;
+	}
+
+	/**
+	 * Reads single node.
+	 * 
+	 * @param nodeId
+	 *            node's id
+	 * @return {@link Response#ok()} with node tagged with its version.
+	 *         Response with code {@link Status#BAD_REQUEST} if node doesn't
+	 *         exist.
+	 */
+	@GET
+	@Path("node/{nodeId}")
+	@Produces("text/json")
+	public Response getNode(@PathParam("nodeId") long nodeId) {
+		Optional<TreeNode> node = updateBuffer.overlay(treeManager.getNode(nodeId));
+		if (node.isPresent()) {
+			// buffered value isn't versioned yet
+			Optional<Long> version = updateBuffer.isBuffered(nodeId)
+					? Optional.empty() : treeManager.getVersion(nodeId);
+			return Response.ok(node.get())
+					.tag(version.map(TreeService::versionTag).orElse(null))
+					.build();
+		}
+		return Response.status(Status.BAD_REQUEST).build();
+	}
+
+	/**
+	 * Streams all nodes of tree as JSON array. Nodes are written to client as
+	 * they are read from database cursor, so memory usage doesn't depend on
+	 * size of tree.
+	 * 
+	 * @return stream of nodes in the same format as {@link #getAll()}.
+	 */
+	@GET
+	@Path("stream")
+	@Produces("text/json")
+	public StreamingOutput streamAll() {
+		TreeManager manager = treeManager;
+		Map<Long, Double> buffered = updateBuffer.getValues();
+		return output -> {
+			try (JsonGenerator json = Json.createGenerator(output)) {
+				json.writeStartArray();
+				manager.forEachNode(node -> writeNode(json,
+						overlay(node, buffered)));
+				json.writeEnd();
+			} catch (EJBException e) {
+				throw writeFailure(e);
+			}
+		};
+	}
+
+	private static TreeNode overlay(TreeNode node, Map<Long, Double> buffered) {
+		Double value = buffered.get(node.getId());
+		if (value != null) {
+			node.setValue(value);
+		}
+		return node;
+	}
+
+	private static TreeRowConsumer overlay(TreeRowConsumer consumer,
+			Map<Long, Double> buffered) {
+		if (buffered.isEmpty()) {
+			return consumer;
+		}
+		return (id, parentId, value) -> consumer.accept(id, parentId,
+				buffered.getOrDefault(id, value));
+	}
+
+	private static void writeNode(JsonGenerator json, TreeNode node) {
+		json.writeStartObject().write("id", node.getId());
+		if (node.getParentId() != null) {
+			json.write("parentId", node.getParentId());
+		} else {
+			json.writeNull("parentId");
+		}
+		json.write("value", node.getValue()).writeEnd();
+	}
+
+	/**
+	 * Reads page of nodes ordered by id. To read next page, client passes id of
+	 * last node from previous page.
+	 * 
+	 * @param afterId
+	 *            only nodes with greater id are returned, omitted for first
+	 *            page
+	 * @param limit
+	 *            maximal number of nodes in page
+	 * @return {@link Response#ok()} with list of nodes, empty after last page.
+	 *         Response with code {@link Status#BAD_REQUEST} if limit is out of
+	 *         range.
+	 */
+	@GET
+	@Path("page")
+	@Produces("text/json")
+	public Response getPage(@QueryParam("after") Long afterId,
+			@QueryParam("limit") @DefaultValue("1000") int limit) {
+		if (limit <= 0 || limit > MAX_PAGE_SIZE)
+		{
+			return Response.status(Status.BAD_REQUEST).build();
+		}
+		return nodesResponse(Optional.of(treeManager.getPage(afterId, limit)));
+	}
+
+	private Response nodesResponse(Optional<List<TreeNode>> nodes) {
+		if (nodes.isPresent()) {
+			return Response.ok(new GenericEntity<List<TreeNode>>(
+					updateBuffer.overlay(nodes.get())) {
+			}).build();
+		}
+		return Response.status(Status.BAD_REQUEST).build();
+	}
+
+	/**
+	 * Reads direct children of node with given id, ordered by id.
+	 * 
+	 * @param nodeId
+	 *            node's id
+	 * @return {@link Response#ok()} with list of nodes. Response with code
+	 *         {@link Status#BAD_REQUEST} if node doesn't exist.
+	 */
+	@GET
+	@Path("children/{nodeId}")
+	@Produces("text/json")
+	public Response getChildren(@PathParam("nodeId") long nodeId) {
+		return nodesResponse(treeManager.getChildren(nodeId));
+	}
+
+	/**
+	 * Reads node with given id and all its descendants. Parent is placed
+	 * before its children.
+	 * 
+	 * @param nodeId
+	 *            id of subtree's root
+	 * @return {@link Response#ok()} with list of nodes. Response with code
+	 *         {@link Status#BAD_REQUEST} if node doesn't exist.
+	 */
+	@GET
+	@Path("subtree/{nodeId}")
+	@Produces("text/json")
+	public Response getSubtree(@PathParam("nodeId") long nodeId) {
+		return nodesResponse(treeManager.getSubtree(nodeId));
+	}
+
+	/**
+	 * Reads node with given id and all its descendants in compact binary
+	 * encoding, see {@link TreeColumns}. Nodes are ordered by id, so parent is
+	 * placed before its children.
+	 * 
+	 * @param nodeId
+	 *            id of subtree's root
+	 * @return {@link Response#ok()} with encoded nodes. Response with code
+	 *         {@link Status#BAD_REQUEST} if node doesn't exist.
+	 */
+	@GET
+	@Path("subtree/{nodeId}")
+	@Produces(TreeColumns.MEDIA_TYPE)
+	public Response getSubtreeColumns(@PathParam("nodeId") long nodeId) {
+		TreeColumns columns = new TreeColumns();
+		if (treeManager.forEachSubtreeRow(nodeId,
+				overlay(columns::add, updateBuffer.getValues()))) {
+			return Response.ok((StreamingOutput) columns::writeTo).build();
+		}
+		return Response.status(Status.BAD_REQUEST).build();
+	}
+
+	/**
+	 * Reads all ancestors of node with given id, starting from tree's root.
+	 * 
+	 * @param nodeId
+	 *            node's id
+	 * @return {@link Response#ok()} with list of nodes. Response with code
+	 *         {@link Status#BAD_REQUEST} if node doesn't exist.
+	 */
+	@GET
+	@Path("ancestors/{nodeId}")
+	@Produces("text/json")
+	public Response getAncestors(@PathParam("nodeId") long nodeId) {
+		return nodesResponse(treeManager.getAncestors(nodeId));
+	}
+
+	/**
+	 * Reads sum, minimum and maximum of values in subtree of node with given
+	 * id and number of its descendants.
+	 * 
+	 * @param nodeId
+	 *            id of subtree's root
+	 * @return {@link Response#ok()} with aggregates. Response with code
+	 *         {@link Status#BAD_REQUEST} if node doesn't exist.
+	 */
+	@GET
+	@Path("aggregate/{nodeId}")
+	@Produces("text/json")
+	public Response getAggregate(@PathParam("nodeId") long nodeId) {
+		Optional<TreeAggregate> aggregate = treeManager.getAggregate(nodeId);
+		if (aggregate.isPresent()) {
+			return Response.ok(aggregate.get()).build();
+		}
+		return Response.status(Status.BAD_REQUEST).build();
+	}
+
+	/**
+	 * Reads changes of tree since revision known by client. Client applies
+	 * changes in order and remembers returned revision for next call. If
+	 * changes are no longer available, whole tree is returned as snapshot.
+	 * 
+	 * @param since
+	 *            revision known by client, omitted for first call
+	 * @return changes or snapshot of tree with its revision.
+	 */
+	@GET
+	@Path("changes")
+	@Produces("text/json")
+	public TreeChanges getChanges(@QueryParam("since") Long since) {
+		return treeManager.getChanges(since);
 	}
 
 	private boolean checkNode(TreeNode node, boolean idRequired)
@@ -71,10 +398,6 @@ public class TreeService {
 	 * @return {@link Response#ok()} with persisted node if created. Response
 	 *         with code {@link Status#BAD_REQUEST} in other case.
 	 */
-	@PUT
-	@Path("create")
-	@Produces("text/json")
-	@Consumes("text/json")
 	public Response create(TreeNode newNode) {
 		if (!checkNode(newNode, false))
 		{
@@ -87,28 +410,102 @@ public class TreeService {
 		return Response.status(Status.BAD_REQUEST).build();
 	}
 
+	/**
+	 * Creates new node in {@link RequestExecutor.Pool#WRITE} pool, see
+	 * {@link #create(TreeNode)}.
+	 * 
+	 * @param newNode
+	 *            properties of new node
+	 * @param response
+	 *            suspended response
+	 */
+	@PUT
+	@Path("create")
+	@Produces("text/json")
+	@Consumes("text/json")
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public void create(TreeNode newNode, @Suspended AsyncResponse response) {
+		TreeService service = self();
+		executor.submit(RequestExecutor.Pool.WRITE, response,
+				() -> service.create(newNode));
+	}
+
 	/**
 	 * Updates existing node with given properties and returns updated object.
+	 * With write-behind enabled, value is saved later.
+	 * 
+	 * If version of node is given in If-Match header, node is updated only if
+	 * it still has that version. Conditional update is never buffered.
 	 * 
 	 * @param node
 	 *            node to update
-	 * @return {@link Response#ok()} if node is updated. Response with code
+	 * @param ifMatch
+	 *            optional tag of node returned by {@link #getNode(long)}
+	 * @return {@link Response#ok()} if node is updated, tagged with new
+	 *         version for conditional update. Response with code
+	 *         {@link Status#PRECONDITION_FAILED} if node has other version,
 	 *         {@link Status#BAD_REQUEST} in other case.
 	 */
-	@PUT
-	@Path("update")
-	@Consumes("text/json")
-	public Response update(TreeNode node) {
+	public Response update(TreeNode node, String ifMatch) {
 		if (!checkNode(node, true))
 		{
 			return Response.status(Status.BAD_REQUEST).build();
 		}
-		if (treeManager.update(node)) {
+		if (ifMatch != null && !"*".equals(ifMatch.trim())) {
+			return updateIfMatch(node, ifMatch);
+		}
+		if (updateBuffer.isEnabled() ? updateBuffer.update(node)
+				: treeManager.update(node)) {
 			return Response.ok().build();
 		}
 		return Response.status(Status.BAD_REQUEST).build();
 	}
 
+	/**
+	 * Updates node in {@link RequestExecutor.Pool#WRITE} pool, see
+	 * {@link #update(TreeNode, String)}.
+	 * 
+	 * @param node
+	 *            node to update
+	 * @param ifMatch
+	 *            optional tag of node
+	 * @param response
+	 *            suspended response
+	 */
+	@PUT
+	@Path("update")
+	@Consumes("text/json")
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public void update(TreeNode node,
+			@HeaderParam(HttpHeaders.IF_MATCH) String ifMatch,
+			@Suspended AsyncResponse response) {
+		TreeService service = self();
+		executor.submit(RequestExecutor.Pool.WRITE, response,
+				() -> service.update(node, ifMatch));
+	}
+
+	private Response updateIfMatch(TreeNode node, String ifMatch) {
+		long version;
+		try {
+			version = Long.parseLong(EntityTag.valueOf(ifMatch.trim()).getValue());
+		} catch (IllegalArgumentException e) {
+			return Response.status(Status.BAD_REQUEST).build();
+		}
+		VersionedUpdate result = updateBuffer.flushBefore(
+				() -> treeManager.updateIfVersion(node, version));
+		if (result == VersionedUpdate.UPDATED) {
+			return Response.ok().tag(versionTag(version + 1)).build();
+		}
+		if (result == VersionedUpdate.STALE) {
+			return Response.status(Status.PRECONDITION_FAILED).build();
+		}
+		return Response.status(Status.BAD_REQUEST).build();
+	}
+
+	private static EntityTag versionTag(long version) {
+		return new EntityTag(Long.toString(version));
+	}
+
 	
 	/**
 	 * Deletes node with given id.
@@ -118,9 +515,7 @@ public class TreeService {
 	 * @return {@link Response#ok()} if node is deleted. Response with code
 	 *         {@link Status#BAD_REQUEST} in other case.
 	 */
-	@GET
-	@Path("delete_id/{nodeId}")
-	public Response deleteId(@PathParam("nodeId") String nodeId) {
+	public Response deleteId(String nodeId) {
 		Long nid;
 		try
 		{
@@ -130,9 +525,222 @@ public class TreeService {
 		{
 			return Response.status(Status.BAD_REQUEST).build();
 		}
-		if (treeManager.deleteById(nid)) {
+		if (updateBuffer.flushBefore(() -> treeManager.deleteById(nid))) {
 			return Response.ok().build();
 		}
 		return Response.status(Status.BAD_REQUEST).build();
 	}
+
+	/**
+	 * Deletes node in {@link RequestExecutor.Pool#WRITE} pool, see
+	 * {@link #deleteId(String)}.
+	 * 
+	 * @param nodeId
+	 *            node's id
+	 * @param response
+	 *            suspended response
+	 */
+	@GET
+	@Path("delete_id/{nodeId}")
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public void deleteId(@PathParam("nodeId") String nodeId,
+			@Suspended AsyncResponse response) {
+		TreeService service = self();
+		executor.submit(RequestExecutor.Pool.WRITE, response,
+				() -> service.deleteId(nodeId));
+	}
+
+	private boolean checkBatch(TreeBatch batch)
+	{
+		if (batch == null || batch.getCreated() == null
+				|| batch.getUpdated() == null || batch.getDeleted() == null)
+		{
+			return false;
+		}
+		Set<Long> tempIds = new HashSet<>();
+		for (TreeNode node : batch.getCreated())
+		{
+			// new nodes are identified by unique temporary negative ids
+			if (!checkNode(node, true) || node.getId() >= 0
+					|| !tempIds.add(node.getId()))
+			{
+				return false;
+			}
+		}
+		for (TreeNode node : batch.getUpdated())
+		{
+			if (!checkNode(node, true))
+			{
+				return false;
+			}
+		}
+		return !batch.getDeleted().contains(null);
+	}
+
+	/**
+	 * Applies all created, updated and deleted nodes in single transaction.
+	 * New nodes have unique temporary negative ids, which may be used as
+	 * parent id of other new nodes. Deleted nodes may be listed in any order,
+	 * node inside other deleted subtree is deleted with that subtree.
+	 * 
+	 * @param batch
+	 *            modifications of tree
+	 * @return {@link Response#ok()} with map of temporary ids to ids of
+	 *         persisted nodes. Response with code {@link Status#BAD_REQUEST} if
+	 *         any of modifications is invalid, in that case none of them is
+	 *         saved.
+	 */
+	@PUT
+	@Path("batch")
+	@Produces("text/json")
+	@Consumes("text/json")
+	public Response batch(TreeBatch batch) {
+		if (!checkBatch(batch))
+		{
+			return Response.status(Status.BAD_REQUEST).build();
+		}
+		Optional<Map<Long, Long>> ids = updateBuffer.flushBefore(
+				() -> treeManager.applyBatch(batch));
+		if (ids.isPresent()) {
+			return Response.ok(ids.get()).build();
+		}
+		return Response.status(Status.BAD_REQUEST).build();
+	}
+
+	/**
+	 * Streams all nodes of tree as NDJSON, see {@link TreeTextFormat}. Nodes
+	 * are written as they are read from database cursor.
+	 * 
+	 * @return stream of nodes ordered by id.
+	 */
+	@GET
+	@Path("export")
+	@Produces(TreeTextFormat.NDJSON_TYPE)
+	public StreamingOutput exportNdjson() {
+		return export(TreeTextFormat.NDJSON);
+	}
+
+	/**
+	 * Streams all nodes of tree as CSV, see {@link TreeTextFormat}. Nodes are
+	 * written as they are read from database cursor.
+	 * 
+	 * @return stream of nodes ordered by id.
+	 */
+	@GET
+	@Path("export")
+	@Produces(TreeTextFormat.CSV_TYPE)
+	public StreamingOutput exportCsv() {
+		return export(TreeTextFormat.CSV);
+	}
+
+	private StreamingOutput export(TreeTextFormat format) {
+		TreeManager manager = treeManager;
+		Map<Long, Double> buffered = updateBuffer.getValues();
+		return output -> {
+			Writer writer = new BufferedWriter(new OutputStreamWriter(output,
+					StandardCharsets.UTF_8));
+			format.writeHeader(writer);
+			try {
+				manager.forEachRow(overlay((id, parentId, value) -> {
+					try {
+						format.write(writer, id, parentId, value);
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				}, buffered));
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			} catch (EJBException e) {
+				throw writeFailure(e);
+			}
+			writer.flush();
+		};
+	}
+
+	/**
+	 * Finds failure of writing to client in exception thrown by
+	 * {@link TreeManager}. Container wraps exception of consumer in
+	 * {@link EJBException}, so it can't be caught directly.
+	 * 
+	 * @param e
+	 *            exception thrown by container
+	 * @return I/O exception thrown by output.
+	 * @throws EJBException
+	 *             if the cause is not failure of output
+	 */
+	private static IOException writeFailure(EJBException e) {
+		Throwable cause = e.getCause();
+		if (cause instanceof UncheckedIOException) {
+			return ((UncheckedIOException) cause).getCause();
+		}
+		if (cause instanceof JsonException
+				&& cause.getCause() instanceof IOException) {
+			return (IOException) cause.getCause();
+		}
+		throw e;
+	}
+
+	/**
+	 * Imports nodes from NDJSON, see {@link #importCsv(InputStream)}.
+	 * 
+	 * @param input
+	 *            nodes encoded with {@link TreeTextFormat#NDJSON}
+	 * @return response of {@link #importCsv(InputStream)}.
+	 */
+	@POST
+	@Path("import")
+	@Consumes(TreeTextFormat.NDJSON_TYPE)
+	@Produces("text/json")
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public Response importNdjson(InputStream input) {
+		return importTree(input, TreeTextFormat.NDJSON);
+	}
+
+	/**
+	 * Imports nodes from CSV. Input is read once, line by line, and nodes
+	 * may be placed in any order. Ids of input are replaced with new ones.
+	 * Parent of the first node may be existing node of tree. Nodes are saved
+	 * in chunks, each in its own transaction, see {@link TreeImport}, so
+	 * chunks saved before error are kept.
+	 * 
+	 * @param input
+	 *            nodes encoded with {@link TreeTextFormat#CSV}
+	 * @return {@link Response#ok()} with number of imported nodes. Response
+	 *         with code {@link Status#BAD_REQUEST} and number of nodes
+	 *         imported before error if input is malformed, some parent is
+	 *         missing or nodes can't be created.
+	 */
+	@POST
+	@Path("import")
+	@Consumes(TreeTextFormat.CSV_TYPE)
+	@Produces("text/json")
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public Response importCsv(InputStream input) {
+		return importTree(input, TreeTextFormat.CSV);
+	}
+
+	private Response importTree(InputStream input, TreeTextFormat format) {
+		return updateBuffer.flushBefore(() -> readTree(input, format));
+	}
+
+	private Response readTree(InputStream input, TreeTextFormat format) {
+		TreeImport treeImport = new TreeImport(treeManager);
+		boolean valid = true;
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+				input, StandardCharsets.UTF_8))) {
+			String line;
+			while (valid && (line = reader.readLine()) != null) {
+				TreeNode node = format.read(line);
+				valid = node == null
+						|| checkNode(node, true) && treeImport.add(node);
+			}
+		} catch (IllegalArgumentException | IOException e) {
+			valid = false;
+		}
+		valid = valid && treeImport.finish();
+		return Response.status(valid ? Status.OK : Status.BAD_REQUEST)
+				.entity(Collections.singletonMap("imported",
+						treeImport.getImported()))
+				.build();
+	}
 }
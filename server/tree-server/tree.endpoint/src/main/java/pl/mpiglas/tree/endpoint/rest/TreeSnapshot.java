@@ -0,0 +1,23 @@
+package pl.mpiglas.tree.endpoint.rest;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+import javax.ws.rs.NameBinding;
+
+/**
+ * Marks resource method, which response represents whole tree at current
+ * revision. Such response is tagged with revision of tree and cached by
+ * {@link TreeSnapshotFilter}.
+ * 
+ * @author mpiglas
+ *
+ */
+@NameBinding
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ ElementType.TYPE, ElementType.METHOD })
+public @interface TreeSnapshot {
+
+}
@@ -0,0 +1,155 @@
+package pl.mpiglas.tree.endpoint.rest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.ejb.EJB;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.Produces;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ResourceInfo;
+import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
+import javax.ws.rs.ext.Provider;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+
+import pl.mpiglas.tree.ejb.core.TreeRevision;
+import pl.mpiglas.tree.ejb.core.UpdateBuffer;
+
+/**
+ * Serves responses of methods marked with {@link TreeSnapshot} from cache.
+ * Response is tagged with revision of tree, so client that already has
+ * current revision gets {@link Response.Status#NOT_MODIFIED}. Serialized
+ * response of the latest revision is kept in memory and returned to all
+ * clients until tree is modified, so tree is read and serialized once per
+ * revision.
+ * 
+ * Resource method may have several representations selected by content
+ * negotiation. Each representation is cached separately and has its own tag.
+ * 
+ * Content doesn't depend only on revision while {@link UpdateBuffer} holds
+ * unsaved values, so then response is neither tagged nor cached.
+ * 
+ * @author mpiglas
+ *
+ */
+@Provider
+@TreeSnapshot
+public class TreeSnapshotFilter implements ContainerRequestFilter,
+		WriterInterceptor {
+
+	private static final String REVISION_PROPERTY = TreeSnapshotFilter.class
+			.getName() + ".revision";
+	private static final String MEDIA_TYPE_PROPERTY = TreeSnapshotFilter.class
+			.getName() + ".mediaType";
+
+	/**
+	 * Serialized response of single revision.
+	 */
+	private static final class Snapshot {
+		private final long revision;
+		private final MediaType mediaType;
+		private final byte[] content;
+
+		private Snapshot(long revision, MediaType mediaType, byte[] content) {
+			this.revision = revision;
+			this.mediaType = mediaType;
+			this.content = content;
+		}
+	}
+
+	/**
+	 * The latest snapshot of each representation.
+	 */
+	private final ConcurrentMap<MediaType, Snapshot> latest = new ConcurrentHashMap<>();
+
+	@EJB
+	TreeRevision treeRevision;
+
+	@EJB
+	UpdateBuffer updateBuffer;
+
+	@Context
+	ResourceInfo resourceInfo;
+
+	private static CacheControl revalidate() {
+		CacheControl cc = new CacheControl();
+		// client may keep response, but has to check its revision every time
+		cc.setNoCache(true);
+		return cc;
+	}
+
+	@Override
+	public void filter(ContainerRequestContext requestContext)
+			throws IOException {
+		if (!updateBuffer.isEmpty()) {
+			return;
+		}
+		// revision is read before tree, so cached content is never older than
+		// its tag
+		long revision = treeRevision.current();
+		MediaType mediaType = MediaType.valueOf(resourceInfo.getResourceMethod()
+				.getAnnotation(Produces.class).value()[0]);
+		EntityTag tag = tag(revision, mediaType);
+		ResponseBuilder notModified = requestContext.getRequest()
+				.evaluatePreconditions(tag);
+		if (notModified != null) {
+			requestContext.abortWith(notModified.tag(tag)
+					.header(HttpHeaders.VARY, HttpHeaders.ACCEPT)
+					.cacheControl(revalidate()).build());
+			return;
+		}
+		Snapshot snapshot = latest.get(mediaType);
+		if (snapshot != null && snapshot.revision == revision) {
+			requestContext.abortWith(Response
+					.ok(snapshot.content, snapshot.mediaType).tag(tag)
+					.header(HttpHeaders.VARY, HttpHeaders.ACCEPT)
+					.cacheControl(revalidate()).build());
+			return;
+		}
+		requestContext.setProperty(REVISION_PROPERTY, revision);
+		requestContext.setProperty(MEDIA_TYPE_PROPERTY, mediaType);
+	}
+
+	/**
+	 * Creates tag of revision, which differs between representations.
+	 */
+	private EntityTag tag(long revision, MediaType mediaType) {
+		return new EntityTag(treeRevision.tag(revision) + "-"
+				+ mediaType.getSubtype());
+	}
+
+	@Override
+	public void aroundWriteTo(WriterInterceptorContext context)
+			throws IOException, WebApplicationException {
+		Long revision = (Long) context.getProperty(REVISION_PROPERTY);
+		MediaType mediaType = (MediaType) context.getProperty(MEDIA_TYPE_PROPERTY);
+		if (revision == null) {
+			context.proceed();
+			return;
+		}
+		context.getHeaders().putSingle(HttpHeaders.ETAG, tag(revision, mediaType));
+		context.getHeaders().putSingle(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+		context.getHeaders().putSingle(HttpHeaders.CACHE_CONTROL, revalidate());
+		OutputStream output = context.getOutputStream();
+		ByteArrayOutputStream content = new ByteArrayOutputStream();
+		context.setOutputStream(content);
+		context.proceed();
+		content.writeTo(output);
+		Snapshot snapshot = new Snapshot(revision, context.getMediaType(),
+				content.toByteArray());
+		latest.merge(mediaType, snapshot,
+				(current, next) -> current.revision < next.revision ? next : current);
+	}
+
+}
@@ -0,0 +1,162 @@
+package pl.mpiglas.tree.endpoint.rest;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
+
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+
+import pl.mpiglas.tree.model.transfer.TreeNode;
+
+/**
+ * Line oriented text encodings of whole tree used by import and export. Each
+ * line holds id, parent's id and value of single node, so tree is written and
+ * read node by node.
+ *
+ * <pre>
+ * NDJSON  {"id":2,"parentId":1,"value":10.0}
+ * CSV     2,1,10.0
+ * </pre>
+ *
+ * CSV starts with header line {@link #CSV_HEADER}, parent's id of root is
+ * empty. Blank lines are skipped.
+ *
+ * @author mpiglas
+ *
+ */
+public enum TreeTextFormat {
+
+	/**
+	 * JSON object per line.
+	 */
+	NDJSON {
+		@Override
+		void writeHeader(Writer writer) {
+			// no header
+		}
+
+		@Override
+		void write(Writer writer, long id, Long parentId, double value)
+				throws IOException {
+			writer.write("{\"id\":");
+			writer.write(Long.toString(id));
+			writer.write(",\"parentId\":");
+			writer.write(parentId != null ? parentId.toString() : "null");
+			writer.write(",\"value\":");
+			writer.write(Double.toString(value));
+			writer.write("}\n");
+		}
+
+		@Override
+		TreeNode read(String line) {
+			if (line.trim().isEmpty()) {
+				return null;
+			}
+			try (JsonReader reader = Json.createReader(new StringReader(line))) {
+				JsonObject json = reader.readObject();
+				TreeNode node = TreeNode.newNode(json.isNull("parentId") ? null
+						: json.getJsonNumber("parentId").longValueExact(),
+						json.getJsonNumber("value").doubleValue());
+				node.setId(json.getJsonNumber("id").longValueExact());
+				return node;
+			} catch (JsonException | ClassCastException | NullPointerException
+					| ArithmeticException e) {
+				throw new IllegalArgumentException("Invalid node " + line, e);
+			}
+		}
+	},
+	/**
+	 * Comma separated values with header.
+	 */
+	CSV {
+		@Override
+		void writeHeader(Writer writer) throws IOException {
+			writer.write(CSV_HEADER);
+			writer.write('\n');
+		}
+
+		@Override
+		void write(Writer writer, long id, Long parentId, double value)
+				throws IOException {
+			writer.write(Long.toString(id));
+			writer.write(',');
+			if (parentId != null) {
+				writer.write(parentId.toString());
+			}
+			writer.write(',');
+			writer.write(Double.toString(value));
+			writer.write('\n');
+		}
+
+		@Override
+		TreeNode read(String line) {
+			if (line.trim().isEmpty() || line.trim().equals(CSV_HEADER)) {
+				return null;
+			}
+			String[] columns = line.split(",", -1);
+			if (columns.length != 3) {
+				throw new IllegalArgumentException("Invalid node " + line);
+			}
+			// NumberFormatException is IllegalArgumentException
+			String parentId = columns[1].trim();
+			TreeNode node = TreeNode.newNode(parentId.isEmpty() ? null
+					: Long.valueOf(parentId), Double.valueOf(columns[2].trim()));
+			node.setId(Long.valueOf(columns[0].trim()));
+			return node;
+		}
+	};
+
+	/**
+	 * Media type of NDJSON encoding.
+	 */
+	public static final String NDJSON_TYPE = "application/x-ndjson";
+	/**
+	 * Media type of CSV encoding.
+	 */
+	public static final String CSV_TYPE = "text/csv";
+	/**
+	 * The first line of CSV encoding.
+	 */
+	public static final String CSV_HEADER = "id,parentId,value";
+
+	/**
+	 * Writes lines that precede nodes.
+	 *
+	 * @param writer
+	 *            output
+	 * @throws IOException
+	 *             if output can't be written
+	 */
+	abstract void writeHeader(Writer writer) throws IOException;
+
+	/**
+	 * Writes single node as line.
+	 *
+	 * @param writer
+	 *            output
+	 * @param id
+	 *            node's id
+	 * @param parentId
+	 *            parent's id or null for root
+	 * @param value
+	 *            node's value
+	 * @throws IOException
+	 *             if output can't be written
+	 */
+	abstract void write(Writer writer, long id, Long parentId, double value)
+			throws IOException;
+
+	/**
+	 * Reads single node from line.
+	 *
+	 * @param line
+	 *            line of input
+	 * @return node or null if line doesn't contain node.
+	 * @throws IllegalArgumentException
+	 *             if line is malformed
+	 */
+	abstract TreeNode read(String line);
+}
@@ -1,22 +1,70 @@
 package pl.mpiglas.tree.endpoint.start;
 
+import java.nio.file.Paths;
+
 import org.wildfly.swarm.Swarm;
-import org.wildfly.swarm.logging.LoggingFraction;
+import org.wildfly.swarm.io.IOFraction;
 import org.wildfly.swarm.undertow.UndertowFraction;
 
+import pl.mpiglas.tree.ejb.core.UpdateBuffer;
+import pl.mpiglas.tree.ejb.store.TreeStore;
+import pl.mpiglas.tree.model.entity.TreeNodeIdGenerator;
+
 /**
  * Entry point for Wildfly Swarm container. Applies non-default settings.
  * @author mpiglas
  *
  */
 public class Main {
+
+	private static final String STORE_OPTION = "--store=";
+	private static final String WRITE_BEHIND_OPTION = "--write-behind";
+	private static final String ID_ALLOCATION_OPTION = "--id-allocation=";
+	private static final String PROFILE_OPTION = "--profile=";
+	private static final String CONFIG_OPTION = "--config=";
+
 	public static void main(String[] args) throws Exception {
+		// Settings may be read from properties file with --config=file,
+		// system properties and options take precedence
+		for (String arg : args) {
+			if (arg.startsWith(CONFIG_OPTION)) {
+				RuntimeProfile.loadConfig(Paths.get(arg.substring(CONFIG_OPTION
+						.length())));
+			}
+		}
+		// Store of nodes may be selected with --store=memory|journal or
+		// -Dtree.store=memory|journal
+		for (String arg : args) {
+			if (arg.startsWith(STORE_OPTION)) {
+				System.setProperty(TreeStore.STORE_PROPERTY,
+						arg.substring(STORE_OPTION.length()));
+			}
+			// updates acknowledged before they are saved
+			if (arg.equals(WRITE_BEHIND_OPTION)) {
+				System.setProperty(UpdateBuffer.WRITE_BEHIND_PROPERTY, "true");
+			}
+			// number of node ids reserved by single call of sequence
+			if (arg.startsWith(ID_ALLOCATION_OPTION)) {
+				System.setProperty(TreeNodeIdGenerator.ALLOCATION_SIZE_PROPERTY,
+						arg.substring(ID_ALLOCATION_OPTION.length()));
+			}
+			// --profile=production or -Dtree.profile=production
+			if (arg.startsWith(PROFILE_OPTION)) {
+				System.setProperty(RuntimeProfile.PROFILE_PROPERTY,
+						arg.substring(PROFILE_OPTION.length()));
+			}
+		}
+		RuntimeProfile profile = RuntimeProfile.fromSystemProperties();
+		System.out.println("Starting tree server with " + profile);
 		Swarm container = new Swarm();
 		// Container will be listeneing on port 9080
 		UndertowFraction uf = UndertowFraction.createDefaultFraction()
 				.httpPort(9080);
-		container.fraction(uf).fraction(
-				LoggingFraction.createDefaultLoggingFraction());
+		container.fraction(uf).fraction(profile.loggingFraction());
+		IOFraction io = profile.ioFraction();
+		if (io != null) {
+			container.fraction(io);
+		}
 		container.start().deploy(container.createDefaultDeployment());
 	}
 }
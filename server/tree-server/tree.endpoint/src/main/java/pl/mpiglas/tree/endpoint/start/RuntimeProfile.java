@@ -0,0 +1,198 @@
+package pl.mpiglas.tree.endpoint.start;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+import org.wildfly.swarm.config.logging.AsyncHandler;
+import org.wildfly.swarm.config.logging.Level;
+import org.wildfly.swarm.io.IOFraction;
+import org.wildfly.swarm.logging.LoggingFraction;
+
+/**
+ * Settings of container selected at startup. Profile is chosen with system
+ * property {@link #PROFILE_PROPERTY}, each setting of profile may be
+ * overridden with its own system property. Properties may also be read from
+ * file, see {@link #loadConfig(Path)}.
+ *
+ * <pre>
+ * tree.profile=development|production
+ * tree.ioThreads=8           IO threads of Undertow
+ * tree.workerThreads=64      worker threads of Undertow, which run requests
+ * tree.logLevel=INFO         level of root logger
+ * tree.asyncLogging=true     log records written by background thread
+ * tree.sqlLog=false          SQL statements logged by category org.hibernate.SQL
+ * </pre>
+ *
+ * Development profile keeps default threads of container, logs synchronously
+ * in color and logs SQL. Production profile sizes threads by number of
+ * processors, logs through async handler and doesn't log SQL.
+ *
+ * @author mpiglas
+ *
+ */
+public final class RuntimeProfile {
+
+	public static final String PROFILE_PROPERTY = "tree.profile";
+	public static final String IO_THREADS_PROPERTY = "tree.ioThreads";
+	public static final String WORKER_THREADS_PROPERTY = "tree.workerThreads";
+	public static final String LOG_LEVEL_PROPERTY = "tree.logLevel";
+	public static final String ASYNC_LOGGING_PROPERTY = "tree.asyncLogging";
+	public static final String SQL_LOG_PROPERTY = "tree.sqlLog";
+
+	public static final String DEVELOPMENT = "development";
+	public static final String PRODUCTION = "production";
+
+	/**
+	 * Worker threads per IO thread in production profile. Requests block on
+	 * database, so workers outnumber processors.
+	 */
+	private static final int WORKERS_PER_IO_THREAD = 8;
+	/**
+	 * Log records queued by async handler, callers wait when queue is full.
+	 */
+	private static final int ASYNC_QUEUE_LENGTH = 4096;
+	private static final String ASYNC_HANDLER = "ASYNC";
+	private static final String SQL_CATEGORY = "org.hibernate.SQL";
+
+	private final String name;
+	/**
+	 * Threads of Undertow, null for defaults of container.
+	 */
+	private final Integer ioThreads;
+	private final Integer workerThreads;
+	private final Level logLevel;
+	private final boolean asyncLogging;
+	private final boolean sqlLog;
+
+	private RuntimeProfile(String name, Integer ioThreads,
+			Integer workerThreads, Level logLevel, boolean asyncLogging,
+			boolean sqlLog) {
+		this.name = name;
+		this.ioThreads = ioThreads;
+		this.workerThreads = workerThreads;
+		this.logLevel = logLevel;
+		this.asyncLogging = asyncLogging;
+		this.sqlLog = sqlLog;
+	}
+
+	/**
+	 * Reads profile from system properties.
+	 *
+	 * @return selected profile, development by default.
+	 * @throws IllegalArgumentException
+	 *             if profile or any setting is invalid
+	 */
+	public static RuntimeProfile fromSystemProperties() {
+		String name = System.getProperty(PROFILE_PROPERTY, DEVELOPMENT);
+		boolean production;
+		if (PRODUCTION.equals(name)) {
+			production = true;
+		} else if (DEVELOPMENT.equals(name)) {
+			production = false;
+		} else {
+			throw new IllegalArgumentException("Unknown profile " + name);
+		}
+		Integer ioThreads = Integer.getInteger(IO_THREADS_PROPERTY,
+				production ? Runtime.getRuntime().availableProcessors() : null);
+		Integer workerThreads = Integer.getInteger(WORKER_THREADS_PROPERTY,
+				ioThreads != null ? ioThreads * WORKERS_PER_IO_THREAD : null);
+		if (ioThreads != null && ioThreads < 1 || workerThreads != null
+				&& workerThreads < 1) {
+			throw new IllegalArgumentException("Number of threads must be positive");
+		}
+		Level logLevel = Level.valueOf(System.getProperty(LOG_LEVEL_PROPERTY,
+				Level.INFO.name()).toUpperCase());
+		boolean asyncLogging = Boolean.parseBoolean(System.getProperty(
+				ASYNC_LOGGING_PROPERTY, Boolean.toString(production)));
+		boolean sqlLog = Boolean.parseBoolean(System.getProperty(
+				SQL_LOG_PROPERTY, Boolean.toString(!production)));
+		return new RuntimeProfile(name, ioThreads, workerThreads, logLevel,
+				asyncLogging, sqlLog);
+	}
+
+	/**
+	 * Reads properties file and sets system properties that are not set yet,
+	 * so properties given on command line take precedence.
+	 *
+	 * @param file
+	 *            properties file
+	 * @throws IOException
+	 *             if file can't be read
+	 */
+	public static void loadConfig(Path file) throws IOException {
+		Properties config = new Properties();
+		try (Reader reader = Files.newBufferedReader(file,
+				StandardCharsets.UTF_8)) {
+			config.load(reader);
+		}
+		for (String key : config.stringPropertyNames()) {
+			if (System.getProperty(key) == null) {
+				System.setProperty(key, config.getProperty(key));
+			}
+		}
+	}
+
+	/**
+	 * Creates configuration of IO subsystem.
+	 *
+	 * @return fraction with sized default worker, or null if defaults of
+	 *         container are kept.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public IOFraction ioFraction() {
+		if (ioThreads == null && workerThreads == null) {
+			return null;
+		}
+		return new IOFraction().worker("default", worker -> {
+			if (ioThreads != null) {
+				worker.ioThreads(ioThreads);
+			}
+			if (workerThreads != null) {
+				worker.taskMaxThreads(workerThreads);
+			}
+		}).bufferPool("default");
+	}
+
+	/**
+	 * Creates configuration of logging. Console handler passes all levels, so
+	 * SQL statements logged at DEBUG aren't filtered when root logger has
+	 * higher level.
+	 *
+	 * @return logging fraction.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public LoggingFraction loggingFraction() {
+		LoggingFraction logging = new LoggingFraction();
+		if (asyncLogging) {
+			// colors are escape sequences, useless in files of log collector
+			logging.defaultFormatter().consoleHandler(Level.ALL,
+					"PATTERN");
+			logging.asyncHandler(new AsyncHandler(ASYNC_HANDLER)
+					.queueLength(ASYNC_QUEUE_LENGTH)
+					.overflowAction(AsyncHandler.OverflowAction.BLOCK)
+					.subhandler(LoggingFraction.CONSOLE));
+			logging.rootLogger(logLevel, ASYNC_HANDLER);
+		} else {
+			logging.defaultColorFormatter().consoleHandler(Level.ALL,
+					"COLOR_PATTERN");
+			logging.rootLogger(logLevel, LoggingFraction.CONSOLE);
+		}
+		logging.logger(SQL_CATEGORY, category -> category
+				.level(sqlLog ? Level.DEBUG : Level.INFO));
+		return logging;
+	}
+
+	@Override
+	public String toString() {
+		return name + " profile: io threads "
+				+ (ioThreads != null ? ioThreads : "default")
+				+ ", worker threads "
+				+ (workerThreads != null ? workerThreads : "default")
+				+ ", log level " + logLevel + (asyncLogging ? ", async" : "")
+				+ " logging, SQL log " + (sqlLog ? "on" : "off");
+	}
+}
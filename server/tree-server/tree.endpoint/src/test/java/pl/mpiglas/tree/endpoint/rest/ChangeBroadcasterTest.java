@@ -0,0 +1,298 @@
+package pl.mpiglas.tree.endpoint.rest;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import pl.mpiglas.tree.ejb.core.TreeManager;
+import pl.mpiglas.tree.ejb.core.TreeModifiedEvent;
+import pl.mpiglas.tree.ejb.metrics.TreeMetrics;
+import pl.mpiglas.tree.model.transfer.TreeChange;
+import pl.mpiglas.tree.model.transfer.TreeChange.Operation;
+
+/**
+ * Tests queues and subscriptions of sessions in {@link ChangeBroadcaster}.
+ * Session is fake and test decides when message in flight is delivered.
+ * @author mpiglas
+ *
+ */
+public class ChangeBroadcasterTest {
+
+	private ChangeBroadcaster broadcaster;
+	private FakeSession session;
+
+	/**
+	 * Session that keeps sent messages and their handlers until test
+	 * completes send.
+	 */
+	private static final class FakeSession {
+		final List<String> messages = new ArrayList<>();
+		final Queue<SendHandler> inFlight = new LinkedList<>();
+		boolean closed;
+		final Session session;
+
+		FakeSession() {
+			RemoteEndpoint.Async remote = (RemoteEndpoint.Async) Proxy
+					.newProxyInstance(getClass().getClassLoader(),
+							new Class<?>[] { RemoteEndpoint.Async.class },
+							(proxy, method, args) -> {
+								if (!method.getName().equals("sendText")) {
+									throw new UnsupportedOperationException(
+											method.getName());
+								}
+								messages.add((String) args[0]);
+								inFlight.add((SendHandler) args[1]);
+								return null;
+							});
+			session = (Session) Proxy.newProxyInstance(
+					getClass().getClassLoader(), new Class<?>[] { Session.class },
+					(proxy, method, args) -> {
+						switch (method.getName()) {
+						case "getAsyncRemote":
+							return remote;
+						case "getId":
+							return "fake";
+						case "close":
+							closed = true;
+							return null;
+						case "hashCode":
+							return System.identityHashCode(proxy);
+						case "equals":
+							return proxy == args[0];
+						default:
+							throw new UnsupportedOperationException(
+									method.getName());
+						}
+					});
+		}
+
+		void complete() {
+			inFlight.remove().onResult(new SendResult());
+		}
+
+		String lastMessage() {
+			return messages.get(messages.size() - 1);
+		}
+	}
+
+	@Before
+	public void setUp() {
+		broadcaster = new ChangeBroadcaster();
+		broadcaster.init();
+		broadcaster.metrics = new TreeMetrics();
+		session = new FakeSession();
+		broadcaster.register(session.session);
+	}
+
+	private static TreeModifiedEvent event(long revision, TreeChange... changes) {
+		return new TreeModifiedEvent(revision, Arrays.asList(changes),
+				new HashMap<>());
+	}
+
+	private static TreeChange change(long revision, Operation operation,
+			long nodeId, Double value) {
+		return new TreeChange(revision, operation, nodeId,
+				operation == Operation.CREATE ? 1L : null, value);
+	}
+
+	@Test
+	public void shouldSendNextMessageAfterDelivery() {
+		// given
+		broadcaster.treeModified(event(1, change(1, Operation.UPDATE, 1, 1d)));
+
+		// when
+		broadcaster.treeModified(event(2, change(2, Operation.UPDATE, 2, 2d)));
+		int sentBeforeDelivery = session.messages.size();
+		session.complete();
+
+		// then
+		Assert.assertEquals(1, sentBeforeDelivery);
+		Assert.assertEquals(2, session.messages.size());
+		Assert.assertTrue(session.lastMessage().contains("\"revision\":2"));
+		Assert.assertTrue(session.lastMessage().contains("\"nodeId\":2"));
+		Assert.assertEquals(1, broadcaster.getStats().getMessagesSent());
+	}
+
+	@Test
+	public void shouldCoalesceChangesOfNode() {
+		// given
+		broadcaster.treeModified(event(1, change(1, Operation.UPDATE, 1, 1d)));
+
+		// when
+		broadcaster.treeModified(event(2, change(2, Operation.UPDATE, 2, 2d)));
+		broadcaster.treeModified(event(3, change(3, Operation.UPDATE, 2, 3d)));
+		broadcaster.treeModified(event(4, change(4, Operation.CREATE, 3, 4d)));
+		broadcaster.treeModified(event(5, change(5, Operation.UPDATE, 3, 5d)));
+		BroadcastStats stats = broadcaster.getStats();
+		session.complete();
+
+		// then
+		Assert.assertEquals(2, stats.getQueuedChanges());
+		Assert.assertEquals(2, stats.getChangesCoalesced());
+		String message = session.lastMessage();
+		Assert.assertTrue(message.contains("\"revision\":5"));
+		Assert.assertEquals(2, message.split("\"nodeId\"").length - 1);
+		Assert.assertTrue(message.contains("\"operation\":\"UPDATE\",\"nodeId\":2"));
+		Assert.assertTrue(message.contains("\"operation\":\"CREATE\",\"nodeId\":3"));
+		Assert.assertFalse(message.contains("\"operation\":\"UPDATE\",\"nodeId\":3"));
+	}
+
+	@Test
+	public void shouldMoveDeletionToEndOfQueue() {
+		// given
+		broadcaster.treeModified(event(1, change(1, Operation.UPDATE, 1, 1d)));
+
+		// when
+		broadcaster.treeModified(event(2, change(2, Operation.UPDATE, 2, 2d)));
+		broadcaster.treeModified(event(3, change(3, Operation.CREATE, 3, 3d)));
+		broadcaster.treeModified(event(4, change(4, Operation.DELETE, 2, null)));
+		session.complete();
+
+		// then
+		String message = session.lastMessage();
+		Assert.assertTrue(message.indexOf("\"nodeId\":3") < message
+				.indexOf("\"operation\":\"DELETE\",\"nodeId\":2"));
+		Assert.assertFalse(message.contains("\"operation\":\"UPDATE\""));
+	}
+
+	@Test
+	public void shouldBoundQueueOfSession() {
+		// given
+		broadcaster.treeModified(event(1, change(1, Operation.UPDATE, 1, 1d)));
+
+		// when
+		for (int i = 0; i < ChangeBroadcaster.MAX_PENDING_CHANGES; i++) {
+			broadcaster.treeModified(event(i + 2,
+					change(i + 2, Operation.UPDATE, i + 2, 1d)));
+		}
+
+		// then
+		BroadcastStats stats = broadcaster.getStats();
+		Assert.assertEquals(ChangeBroadcaster.MAX_PENDING_CHANGES,
+				stats.getQueuedChanges());
+		Assert.assertEquals(ChangeBroadcaster.MAX_PENDING_CHANGES,
+				stats.getMaxQueueDepth());
+		Assert.assertEquals(0, stats.getResyncs());
+	}
+
+	@Test
+	public void shouldReplaceQueueWithResetOnOverflow() {
+		// given
+		broadcaster.treeModified(event(1, change(1, Operation.UPDATE, 1, 1d)));
+		TreeChange[] changes = new TreeChange[ChangeBroadcaster.MAX_PENDING_CHANGES + 1];
+		for (int i = 0; i < changes.length; i++) {
+			changes[i] = change(2, Operation.UPDATE, i + 2, 1d);
+		}
+
+		// when
+		broadcaster.treeModified(event(2, changes));
+		broadcaster.treeModified(event(3, change(3, Operation.UPDATE, 1, 3d)));
+		BroadcastStats stats = broadcaster.getStats();
+		session.complete();
+
+		// then
+		Assert.assertEquals(1, stats.getResyncs());
+		Assert.assertEquals(0, stats.getQueuedChanges());
+		Assert.assertTrue(session.lastMessage().contains("\"type\":\"reset\""));
+		Assert.assertTrue(session.lastMessage().contains("\"revision\":3"));
+		session.complete();
+		Assert.assertEquals(2, session.messages.size());
+	}
+
+	@Test
+	public void shouldDisconnectSlowConsumer() throws InterruptedException {
+		// given
+		broadcaster.sendTimeoutNanos = 0;
+		broadcaster.treeModified(event(1, change(1, Operation.UPDATE, 1, 1d)));
+		Thread.sleep(1);
+
+		// when
+		broadcaster.treeModified(event(2, change(2, Operation.UPDATE, 1, 2d)));
+
+		// then
+		BroadcastStats stats = broadcaster.getStats();
+		Assert.assertTrue(session.closed);
+		Assert.assertEquals(1, stats.getDisconnects());
+		Assert.assertEquals(0, stats.getSessions());
+		Assert.assertEquals(1, session.messages.size());
+	}
+
+	private static boolean delivered(String message, long nodeId) {
+		return message.contains("\"nodeId\":" + nodeId + ",")
+				|| message.contains("\"nodeId\":" + nodeId + "}");
+	}
+
+	@Test
+	public void shouldSendOnlyChangesOfSubscribedSubtree() {
+		// given
+		Map<Long, String> paths = new HashMap<>();
+		paths.put(1L, "/1/");
+		paths.put(2L, "/1/2/");
+		paths.put(3L, "/1/2/3/");
+		paths.put(4L, "/1/4/");
+		// id 72 is encoded as 20, so its path has prefix of path of node 2
+		paths.put(72L, "/1/20/");
+		broadcaster.treeManager = new TreeManager() {
+			@Override
+			public Map<Long, String> getPaths(List<Long> nodeIds) {
+				Map<Long, String> found = new HashMap<>();
+				nodeIds.forEach(id -> found.put(id, paths.get(id)));
+				return found;
+			}
+		};
+		broadcaster.subscribe(session.session, Arrays.asList(2L));
+
+		// when
+		broadcaster.treeModified(new TreeModifiedEvent(1, Arrays.asList(
+				change(1, Operation.UPDATE, 2, 1d),
+				change(1, Operation.UPDATE, 3, 1d),
+				change(1, Operation.UPDATE, 4, 1d),
+				change(1, Operation.UPDATE, 72, 1d),
+				change(1, Operation.UPDATE, 1, 1d)), paths));
+		session.complete();
+		broadcaster.treeModified(new TreeModifiedEvent(2, Arrays.asList(
+				change(2, Operation.DELETE, 4, null),
+				change(2, Operation.DELETE, 1, null)), paths));
+
+		// then
+		Assert.assertEquals(2, session.messages.size());
+		String updates = session.messages.get(0);
+		Assert.assertTrue(delivered(updates, 2));
+		Assert.assertTrue(delivered(updates, 3));
+		Assert.assertFalse(delivered(updates, 4));
+		Assert.assertFalse(delivered(updates, 72));
+		Assert.assertFalse(delivered(updates, 1));
+		String deletes = session.messages.get(1);
+		Assert.assertFalse(delivered(deletes, 4));
+		Assert.assertTrue(delivered(deletes, 1));
+	}
+
+	@Test
+	public void shouldSendChangesOfWholeTreeWithoutSubscription() {
+		// given
+		broadcaster.subscribe(session.session, new ArrayList<>());
+
+		// when
+		broadcaster.treeModified(event(1, change(1, Operation.UPDATE, 4, 1d),
+				change(1, Operation.DELETE, 1, null)));
+
+		// then
+		Assert.assertTrue(delivered(session.lastMessage(), 4));
+		Assert.assertTrue(delivered(session.lastMessage(), 1));
+	}
+
+}
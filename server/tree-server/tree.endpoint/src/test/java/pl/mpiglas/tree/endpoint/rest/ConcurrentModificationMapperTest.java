@@ -0,0 +1,45 @@
+package pl.mpiglas.tree.endpoint.rest;
+
+import javax.ejb.EJBException;
+import javax.ejb.EJBTransactionRolledbackException;
+import javax.persistence.OptimisticLockException;
+import javax.persistence.RollbackException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests mapping of failed modifications in
+ * {@link ConcurrentModificationMapper}.
+ * @author mpiglas
+ *
+ */
+public class ConcurrentModificationMapperTest {
+
+	@Test
+	public void shouldFindOptimisticLockInCauses() {
+		// given
+		EJBException exception = new EJBTransactionRolledbackException(
+				"commit failed", new RollbackException(
+						new OptimisticLockException("stale version")));
+
+		// when
+		boolean conflict = ConcurrentModificationMapper.isConflict(exception);
+
+		// then
+		Assert.assertTrue(conflict);
+	}
+
+	@Test
+	public void shouldNotTreatOtherFailureAsConflict() {
+		// given
+		EJBException exception = new EJBException(
+				new IllegalStateException("failed"));
+
+		// when
+		boolean conflict = ConcurrentModificationMapper.isConflict(exception);
+
+		// then
+		Assert.assertFalse(conflict);
+	}
+}
@@ -1,11 +1,33 @@
 package pl.mpiglas.tree.endpoint.rest;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
 import javax.annotation.Resource;
 import javax.ejb.EJB;
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonObject;
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
 import javax.persistence.EntityManager;
@@ -14,6 +36,10 @@ import javax.persistence.TypedQuery;
 import javax.transaction.NotSupportedException;
 import javax.transaction.SystemException;
 import javax.transaction.UserTransaction;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.TimeoutHandler;
+import javax.ws.rs.core.GenericEntity;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 
@@ -29,8 +55,34 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.wildfly.swarm.undertow.WARArchive;
 
+import pl.mpiglas.tree.ejb.core.ChangeLog;
+import pl.mpiglas.tree.ejb.core.SetupManager;
+import pl.mpiglas.tree.ejb.core.TreeGenerator;
+import pl.mpiglas.tree.ejb.core.TreeImport;
 import pl.mpiglas.tree.ejb.core.TreeManager;
+import pl.mpiglas.tree.ejb.core.TreeModifiedEvent;
+import pl.mpiglas.tree.ejb.core.TreeRevision;
+import pl.mpiglas.tree.ejb.core.UpdateBuffer;
+import pl.mpiglas.tree.ejb.metrics.Histogram;
+import pl.mpiglas.tree.ejb.metrics.MetricsInterceptor;
+import pl.mpiglas.tree.ejb.metrics.RequestStatistics;
+import pl.mpiglas.tree.ejb.metrics.StatisticsInterceptor;
+import pl.mpiglas.tree.ejb.metrics.TreeMetrics;
+import pl.mpiglas.tree.ejb.store.JpaTreeStore;
+import pl.mpiglas.tree.ejb.store.MemoryChangeLog;
+import pl.mpiglas.tree.ejb.store.MemoryTreeStore;
+import pl.mpiglas.tree.ejb.store.TreeRowConsumer;
+import pl.mpiglas.tree.ejb.store.TreeStore;
+import pl.mpiglas.tree.ejb.store.VersionedUpdate;
+import pl.mpiglas.tree.model.entity.TreeChangeEntity;
 import pl.mpiglas.tree.model.entity.TreeNodeEntity;
+import pl.mpiglas.tree.model.entity.TreeNodeIdGenerator;
+import pl.mpiglas.tree.model.entity.TreeRevisionEntity;
+import pl.mpiglas.tree.model.transfer.TreeAggregate;
+import pl.mpiglas.tree.model.transfer.TreeBatch;
+import pl.mpiglas.tree.model.transfer.TreeChange;
+import pl.mpiglas.tree.model.transfer.TreeChange.Operation;
+import pl.mpiglas.tree.model.transfer.TreeChanges;
 import pl.mpiglas.tree.model.transfer.TreeNode;
 
 /**
@@ -45,7 +97,27 @@ public class TreeServiceIT {
 	public static Archive createDeployment() {
 		WARArchive archive = ShrinkWrap.create(WARArchive.class).addClasses(
 				TreeManager.class, TreeNode.class, TreeNodeEntity.class,
-				TreeService.class);
+				TreeBatch.class, TreeService.class, TreeRevision.class,
+				TreeModifiedEvent.class, TreeSnapshot.class,
+				TreeSnapshotFilter.class, ChangeLog.class, TreeChange.class,
+				TreeChange.Operation.class, TreeChanges.class,
+				TreeChangeEntity.class, TreeRevisionEntity.class,
+				ChangeBroadcaster.class, BroadcastStats.class,
+				MetricsService.class, TreeAggregate.class,
+				TreeColumns.class, TreeStore.class, JpaTreeStore.class,
+				MemoryTreeStore.class, MemoryChangeLog.class, TreeRowConsumer.class,
+				VersionedUpdate.class, UpdateBuffer.class, TreeNodeIdGenerator.class,
+				TreeImport.class, TreeTextFormat.class, SetupManager.class,
+				SetupService.class, TreeGenerator.class,
+				TreeGenerator.Shape.class, TreeMetrics.class,
+				TreeMetrics.Operation.class, Histogram.class,
+				MetricsInterceptor.class, RequestStatistics.class,
+				StatisticsInterceptor.class, RequestMetricsFilter.class,
+				RequestExecutor.class, RequestExecutor.Pool.class,
+				ConcurrentModificationMapper.class);
+		// package-private helpers of JpaTreeStore and MemoryTreeStore
+		archive.addClass("pl.mpiglas.tree.ejb.store.SubtreeAggregates");
+		archive.addClass("pl.mpiglas.tree.ejb.store.TreeJournal");
 		archive.addAsWebInfResource("persistence.xml",
 				"classes/META-INF/persistence.xml");
 		archive.addAsManifestResource(EmptyAsset.INSTANCE, "beans.xml");
@@ -160,7 +232,7 @@ public class TreeServiceIT {
 		// when
 		TreeNode un = newNode(root.getId(), 9000);
 		un.setId(child.getId());
-		Response updateResult = srv.update(un);
+		Response updateResult = srv.update(un, null);
 		Optional<TreeNode> childEntity = getNode(child.getId());
 
 		// then
@@ -257,7 +329,7 @@ public class TreeServiceIT {
 		TreeService srv = getService();
 		TreeNode un = TreeNode.newNode(null, 100d);
 		// when
-		Response resp = srv.update(un);
+		Response resp = srv.update(un, null);
 
 		// then
 		Assert.assertEquals(Status.BAD_REQUEST.getStatusCode(),
@@ -271,7 +343,7 @@ public class TreeServiceIT {
 		TreeNode un = TreeNode.newNode(null, null);
 		un.setId(1L);
 		// when
-		Response resp = srv.update(un);
+		Response resp = srv.update(un, null);
 
 		// then
 		Assert.assertEquals(Status.BAD_REQUEST.getStatusCode(),
@@ -292,4 +364,980 @@ public class TreeServiceIT {
 				resp.getStatus());
 	}
 
+
+	private TreeNode newNode(Long id, Long parentId, double value) {
+		TreeNode tn = newNode(parentId, value);
+		tn.setId(id);
+		return tn;
+	}
+
+	@Test
+	public void shouldDeleteParentListedBeforeDescendant()
+			throws NamingException {
+		// given
+		TreeService srv = getService();
+		TreeNode root = (TreeNode) srv.create(newNode(null, 100)).getEntity();
+		TreeNode child = (TreeNode) srv.create(newNode(root.getId(), 200))
+				.getEntity();
+		TreeNode leaf = (TreeNode) srv.create(newNode(child.getId(), 300))
+				.getEntity();
+		TreeBatch batch = new TreeBatch();
+		batch.setDeleted(Arrays.asList(child.getId(), leaf.getId()));
+		TreeBatch duplicated = new TreeBatch();
+		duplicated.setCreated(Arrays.asList(newNode(-1L, root.getId(), 400),
+				newNode(-1L, root.getId(), 500)));
+
+		// when
+		Response deleted = srv.batch(batch);
+		Response rejected = srv.batch(duplicated);
+
+		// then
+		Assert.assertEquals(Status.OK.getStatusCode(), deleted.getStatus());
+		Assert.assertEquals(Status.BAD_REQUEST.getStatusCode(),
+				rejected.getStatus());
+		Assert.assertEquals(1, srv.getAll().size());
+		Assert.assertEquals(100d, getAggregate(root.getId()).getSum(), 0.0);
+	}
+
+	@Test
+	public void shouldRejectBatchWithSecondRoot() throws NamingException {
+		// given
+		TreeService srv = getService();
+		TreeNode root = (TreeNode) srv.create(newNode(null, 100)).getEntity();
+		TreeBatch batch = new TreeBatch();
+		batch.setCreated(Arrays.asList(newNode(-1L, root.getId(), 400),
+				newNode(-2L, null, 500)));
+
+		// when
+		Response resp = srv.batch(batch);
+
+		// then
+		Assert.assertEquals(Status.BAD_REQUEST.getStatusCode(),
+				resp.getStatus());
+		Assert.assertEquals(1, srv.getAll().size());
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void shouldApplyBatch() throws NamingException {
+		// given
+		TreeService srv = getService();
+		TreeNode root = (TreeNode) srv.create(newNode(null, 100)).getEntity();
+		TreeNode child = (TreeNode) srv.create(newNode(root.getId(), 200))
+				.getEntity();
+		TreeNode ch2 = (TreeNode) srv.create(newNode(root.getId(), 300))
+				.getEntity();
+		TreeBatch batch = new TreeBatch();
+		batch.setCreated(Arrays.asList(newNode(-1L, root.getId(), 400),
+				newNode(-2L, -1L, 500)));
+		batch.setUpdated(Arrays.asList(newNode(child.getId(), root.getId(), 250)));
+		batch.setDeleted(Arrays.asList(ch2.getId()));
+
+		// when
+		Response resp = srv.batch(batch);
+		Map<Long, Long> ids = (Map<Long, Long>) resp.getEntity();
+
+		// then
+		Assert.assertEquals(Status.OK.getStatusCode(), resp.getStatus());
+		Assert.assertEquals(4, srv.getAll().size());
+		Assert.assertEquals(root.getId(), getNode(ids.get(-1L)).get().getParentId());
+		Assert.assertEquals(ids.get(-1L), getNode(ids.get(-2L)).get().getParentId());
+		Assert.assertEquals(250d, getNode(child.getId()).get().getValue()
+				.doubleValue(), 0.0);
+		Assert.assertFalse(getNode(ch2.getId()).isPresent());
+	}
+
+	@Test
+	public void shouldRejectWholeBatchWithUnknownParent() throws NamingException {
+		// given
+		TreeService srv = getService();
+		TreeNode root = (TreeNode) srv.create(newNode(null, 100)).getEntity();
+		TreeBatch batch = new TreeBatch();
+		batch.setCreated(Arrays.asList(newNode(-1L, root.getId(), 400),
+				newNode(-2L, -5L, 500)));
+
+		// when
+		Response resp = srv.batch(batch);
+
+		// then
+		Assert.assertEquals(Status.BAD_REQUEST.getStatusCode(),
+				resp.getStatus());
+		Assert.assertEquals(1, srv.getAll().size());
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void shouldDeleteBranchesOfGrowingSize() throws NamingException {
+		TreeService srv = getService();
+		TreeNode root = (TreeNode) srv.create(newNode(null, 1)).getEntity();
+		for (int size : new int[] { 10, 100, 1000, 10000 }) {
+			// given
+			List<TreeNode> created = new ArrayList<>();
+			created.add(newNode(-1L, root.getId(), 1));
+			for (long i = 2; i <= size; i++) {
+				// each node has four children
+				created.add(newNode(-i, -((i + 2) / 4), i));
+			}
+			TreeBatch batch = new TreeBatch();
+			batch.setCreated(created);
+			Map<Long, Long> ids = (Map<Long, Long>) srv.batch(batch).getEntity();
+
+			// when
+			Response resp = srv.deleteId(ids.get(-1L).toString());
+
+			// then
+			Assert.assertEquals(Status.OK.getStatusCode(), resp.getStatus());
+			Assert.assertEquals(1, srv.getAll().size());
+		}
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void shouldReadSubtree() throws NamingException {
+		// given
+		TreeService srv = getService();
+		TreeNode root = (TreeNode) srv.create(newNode(null, 100)).getEntity();
+		TreeNode child = (TreeNode) srv.create(newNode(root.getId(), 200))
+				.getEntity();
+		TreeNode ch2 = (TreeNode) srv.create(newNode(root.getId(), 300))
+				.getEntity();
+		TreeNode leaf = (TreeNode) srv.create(newNode(ch2.getId(), 400))
+				.getEntity();
+
+		// when
+		Response resp = srv.getSubtree(ch2.getId());
+		List<TreeNode> subtree = ((GenericEntity<List<TreeNode>>) resp
+				.getEntity()).getEntity();
+
+		// then
+		Assert.assertEquals(Status.OK.getStatusCode(), resp.getStatus());
+		Assert.assertEquals(2, subtree.size());
+		Assert.assertEquals(ch2.getId(), subtree.get(0).getId());
+		Assert.assertEquals(leaf.getId(), subtree.get(1).getId());
+		Assert.assertFalse(subtree.stream()
+				.anyMatch(n -> n.getId().equals(child.getId())));
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void shouldReadAncestors() throws NamingException {
+		// given
+		TreeService srv = getService();
+		TreeNode root = (TreeNode) srv.create(newNode(null, 100)).getEntity();
+		TreeNode child = (TreeNode) srv.create(newNode(root.getId(), 200))
+				.getEntity();
+		srv.create(newNode(root.getId(), 300));
+		TreeNode leaf = (TreeNode) srv.create(newNode(child.getId(), 400))
+				.getEntity();
+
+		// when
+		Response resp = srv.getAncestors(leaf.getId());
+		List<TreeNode> ancestors = ((GenericEntity<List<TreeNode>>) resp
+				.getEntity()).getEntity();
+
+		// then
+		Assert.assertEquals(Status.OK.getStatusCode(), resp.getStatus());
+		Assert.assertEquals(2, ancestors.size());
+		Assert.assertEquals(root.getId(), ancestors.get(0).getId());
+		Assert.assertEquals(child.getId(), ancestors.get(1).getId());
+	}
+
+	@Test
+	public void shouldReturnBadRequestForSubtreeOfUnknownNode()
+			throws NamingException {
+		// given
+		TreeService srv = getService();
+		TreeNode root = (TreeNode) srv.create(newNode(null, 100)).getEntity();
+
+		// when
+		Response resp = srv.getSubtree(root.getId() + 50);
+
+		// then
+		Assert.assertEquals(Status.BAD_REQUEST.getStatusCode(),
+				resp.getStatus());
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void shouldReadPagesAfterLastId() throws NamingException {
+		// given
+		TreeService srv = getService();
+		TreeNode root = (TreeNode) srv.create(newNode(null, 100)).getEntity();
+		srv.create(newNode(root.getId(), 200));
+		srv.create(newNode(root.getId(), 300));
+
+		// when
+		List<TreeNode> first = ((GenericEntity<List<TreeNode>>) srv
+				.getPage(null, 2).getEntity()).getEntity();
+		List<TreeNode> second = ((GenericEntity<List<TreeNode>>) srv
+				.getPage(first.get(1).getId(), 2).getEntity()).getEntity();
+
+		// then
+		Assert.assertEquals(2, first.size());
+		Assert.assertEquals(root.getId(), first.get(0).getId());
+		Assert.assertEquals(1, second.size());
+		Assert.assertEquals(300d, second.get(0).getValue().doubleValue(), 0.0);
+	}
+
+	@Test
+	public void shouldStreamAllNodes() throws NamingException, IOException {
+		// given
+		TreeService srv = getService();
+		TreeNode root = (TreeNode) srv.create(newNode(null, 100)).getEntity();
+		srv.create(newNode(root.getId(), 200));
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+		// when
+		srv.streamAll().write(output);
+		JsonArray nodes = Json.createReader(
+				new ByteArrayInputStream(output.toByteArray())).readArray();
+
+		// then
+		Assert.assertEquals(2, nodes.size());
+		Assert.assertEquals(1, nodes.getValuesAs(JsonObject.class).stream()
+				.filter(n -> n.isNull("parentId")).count());
+		Assert.assertEquals(1, nodes.getValuesAs(JsonObject.class).stream()
+				.filter(n -> !n.isNull("parentId") && n.getJsonNumber("parentId")
+						.longValue() == root.getId().longValue()).count());
+	}
+
+	@Test
+	public void shouldReadSingleNode() throws NamingException {
+		// given
+		TreeService srv = getService();
+		TreeNode root = (TreeNode) srv.create(newNode(null, 100)).getEntity();
+		TreeNode child = (TreeNode) srv.create(newNode(root.getId(), 200))
+				.getEntity();
+
+		// when
+		Response resp = srv.getNode(child.getId());
+		TreeNode node = (TreeNode) resp.getEntity();
+
+		// then
+		Assert.assertEquals(Status.OK.getStatusCode(), resp.getStatus());
+		Assert.assertEquals(child.getId(), node.getId());
+		Assert.assertEquals(root.getId(), node.getParentId());
+		Assert.assertEquals(200d, node.getValue().doubleValue(), 0.0);
+		Assert.assertEquals(Status.BAD_REQUEST.getStatusCode(),
+				srv.getNode(child.getId() + 50).getStatus());
+	}
+
+	@Test
+	public void shouldAdvanceRevisionAfterModification() throws NamingException {
+		// given
+		TreeService srv = getService();
+		TreeRevision revision = (TreeRevision) new InitialContext()
+				.lookup("java:module/TreeRevision!pl.mpiglas.tree.ejb.core.TreeRevision");
+		long initial = revision.current();
+
+		// when
+		TreeNode root = (TreeNode) srv.create(newNode(null, 100)).getEntity();
+		long afterCreate = revision.current();
+		srv.getAll();
+		long afterRead = revision.current();
+		srv.deleteId(root.getId().toString());
+
+		// then
+		Assert.assertTrue(afterCreate > initial);
+		Assert.assertEquals(afterCreate, afterRead);
+		Assert.assertTrue(revision.current() > afterRead);
+		Assert.assertNotEquals(revision.tag(afterCreate), revision.tag(afterRead + 1));
+	}
+
+	@Test
+	public void shouldReadChangesSinceRevision() throws NamingException {
+		// given
+		TreeService srv = getService();
+		TreeNode root = (TreeNode) srv.create(newNode(null, 100)).getEntity();
+		long since = srv.getChanges(null).getRevision();
+		TreeNode child = (TreeNode) srv.create(newNode(root.getId(), 200))
+				.getEntity();
+		srv.update(newNode(child.getId(), root.getId(), 300), null);
+		srv.deleteId(child.getId().toString());
+
+		// when
+		TreeChanges changes = srv.getChanges(since);
+
+		// then
+		Assert.assertFalse(changes.isSnapshot());
+		Assert.assertEquals(since + 3, changes.getRevision());
+		Assert.assertEquals(Arrays.asList(Operation.CREATE, Operation.UPDATE,
+				Operation.DELETE), changes.getChanges().stream()
+				.map(TreeChange::getOperation).collect(Collectors.toList()));
+		Assert.assertTrue(changes.getChanges().stream()
+				.allMatch(c -> c.getNodeId().equals(child.getId())));
+		Assert.assertEquals(root.getId(), changes.getChanges().get(0).getParentId());
+		Assert.assertEquals(300d, changes.getChanges().get(1).getValue(), 0.0);
+	}
+
+	@Test
+	public void shouldReturnSnapshotForUnknownRevision() throws NamingException {
+		// given
+		TreeService srv = getService();
+		TreeNode root = (TreeNode) srv.create(newNode(null, 100)).getEntity();
+		srv.create(newNode(root.getId(), 200));
+
+		// when
+		TreeChanges first = srv.getChanges(null);
+		TreeChanges future = srv.getChanges(first.getRevision() + 10);
+
+		// then
+		Assert.assertTrue(first.isSnapshot());
+		Assert.assertEquals(2, first.getNodes().size());
+		Assert.assertTrue(future.isSnapshot());
+		Assert.assertEquals(first.getRevision(), future.getRevision());
+	}
+
+	@Test
+	public void shouldSerializeChangeEvent() {
+		// given
+		TreeModifiedEvent event = new TreeModifiedEvent(7, Arrays.asList(
+				new TreeChange(7, Operation.CREATE, 5L, 1L, 10d),
+				new TreeChange(7, Operation.DELETE, 3L, null, null)),
+				Collections.emptyMap());
+
+		// when
+		JsonObject message = Json.createReader(new StringReader(
+				ChangeBroadcaster.toJson(event))).readObject();
+		JsonObject reset = Json.createReader(new StringReader(
+				ChangeBroadcaster.toJson(new TreeModifiedEvent(8))))
+				.readObject();
+
+		// then
+		Assert.assertEquals("changes", message.getString("type"));
+		Assert.assertEquals(7, message.getJsonNumber("revision").longValue());
+		JsonArray changes = message.getJsonArray("changes");
+		Assert.assertEquals(2, changes.size());
+		Assert.assertEquals("CREATE", changes.getJsonObject(0).getString("operation"));
+		Assert.assertEquals(1, changes.getJsonObject(0).getJsonNumber("parentId").longValue());
+		Assert.assertFalse(changes.getJsonObject(1).containsKey("value"));
+		Assert.assertEquals("reset", reset.getString("type"));
+	}
+
+	@Test
+	public void shouldReportBroadcastStats() throws NamingException {
+		// given
+		TreeService srv = getService();
+		MetricsService metrics = (MetricsService) new InitialContext()
+				.lookup("java:module/MetricsService!pl.mpiglas.tree.endpoint.rest.MetricsService");
+
+		// when
+		srv.create(newNode(null, 100));
+		BroadcastStats stats = metrics.getBroadcastStats();
+
+		// then
+		Assert.assertEquals(0, stats.getSessions());
+		Assert.assertEquals(0, stats.getQueuedChanges());
+		Assert.assertEquals(0, stats.getResyncs());
+	}
+
+	@Test
+	public void shouldExportMetricsInPrometheusFormat() throws NamingException {
+		// given
+		TreeService srv = getService();
+		MetricsService metrics = (MetricsService) new InitialContext()
+				.lookup("java:module/MetricsService!pl.mpiglas.tree.endpoint.rest.MetricsService");
+
+		// when
+		srv.create(newNode(null, 100));
+		String text = metrics.getMetrics();
+
+		// then
+		Assert.assertTrue(text.contains("# TYPE tree_manager_call_seconds summary"));
+		Assert.assertTrue(text.contains("tree_manager_call_seconds_count{method=\"create\"}"));
+		Assert.assertTrue(text.contains("tree_manager_call_seconds{method=\"create\",quantile=\"0.99\"}"));
+		Assert.assertTrue(text.contains("tree_websocket_sessions 0"));
+		Assert.assertTrue(text.contains("# TYPE tree_broadcast_fanout summary"));
+	}
+
+	@Test
+	public void shouldReadPathsOfSubscribedRoots() throws NamingException {
+		// given
+		TreeService srv = getService();
+		TreeManager manager = (TreeManager) new InitialContext()
+				.lookup("java:module/TreeManager!pl.mpiglas.tree.ejb.core.TreeManager");
+		TreeNode root = (TreeNode) srv.create(newNode(null, 100)).getEntity();
+		TreeNode child = (TreeNode) srv.create(newNode(root.getId(), 200))
+				.getEntity();
+
+		// when
+		Map<Long, String> paths = manager.getPaths(Arrays.asList(root.getId(),
+				child.getId(), child.getId() + 50));
+
+		// then
+		Assert.assertEquals(2, paths.size());
+		Assert.assertTrue(paths.get(child.getId()).startsWith(paths.get(root.getId())));
+		Assert.assertEquals(TreeNodeEntity.childPath(paths.get(root.getId()),
+				child.getId()), paths.get(child.getId()));
+	}
+
+	private TreeAggregate getAggregate(long nodeId) throws NamingException {
+		return (TreeAggregate) getService().getAggregate(nodeId).getEntity();
+	}
+
+	@Test
+	public void shouldMaintainSubtreeAggregates() throws NamingException {
+		// given
+		TreeService srv = getService();
+		TreeNode root = (TreeNode) srv.create(newNode(null, 10)).getEntity();
+		TreeNode child = (TreeNode) srv.create(newNode(root.getId(), 20))
+				.getEntity();
+		TreeNode leaf = (TreeNode) srv.create(newNode(child.getId(), 5))
+				.getEntity();
+		srv.create(newNode(root.getId(), 30));
+
+		// when
+		TreeAggregate created = getAggregate(root.getId());
+		srv.update(newNode(leaf.getId(), child.getId(), 50), null);
+		TreeAggregate updated = getAggregate(root.getId());
+		srv.deleteId(child.getId().toString());
+		TreeAggregate deleted = getAggregate(root.getId());
+
+		// then
+		Assert.assertEquals(65d, created.getSum(), 0.0);
+		Assert.assertEquals(5d, created.getMin(), 0.0);
+		Assert.assertEquals(30d, created.getMax(), 0.0);
+		Assert.assertEquals(3, created.getCount());
+		Assert.assertEquals(110d, updated.getSum(), 0.0);
+		Assert.assertEquals(10d, updated.getMin(), 0.0);
+		Assert.assertEquals(50d, updated.getMax(), 0.0);
+		Assert.assertEquals(40d, deleted.getSum(), 0.0);
+		Assert.assertEquals(10d, deleted.getMin(), 0.0);
+		Assert.assertEquals(30d, deleted.getMax(), 0.0);
+		Assert.assertEquals(1, deleted.getCount());
+	}
+
+	@Test
+	public void shouldKeepRootAggregateWithConcurrentCreates()
+			throws Exception {
+		// given
+		TreeService srv = getService();
+		TreeNode root = (TreeNode) srv.create(newNode(null, 0)).getEntity();
+		TreeNode left = (TreeNode) srv.create(newNode(root.getId(), 0))
+				.getEntity();
+		TreeNode right = (TreeNode) srv.create(newNode(root.getId(), 0))
+				.getEntity();
+		int perSubtree = 50;
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+
+		// when
+		List<Future<Response>> created = new ArrayList<>();
+		try {
+			for (int i = 0; i < perSubtree; i++) {
+				for (TreeNode parent : Arrays.asList(left, right)) {
+					created.add(pool.submit(
+							() -> srv.create(newNode(parent.getId(), 1))));
+				}
+			}
+			for (Future<Response> response : created) {
+				Assert.assertEquals(Status.OK.getStatusCode(),
+						response.get().getStatus());
+			}
+		} finally {
+			pool.shutdown();
+		}
+
+		// then
+		TreeAggregate aggregate = getAggregate(root.getId());
+		Assert.assertEquals(2 * perSubtree, aggregate.getSum(), 0.0);
+		Assert.assertEquals(2 * perSubtree + 2, aggregate.getCount());
+		Assert.assertEquals(perSubtree, getAggregate(left.getId()).getCount());
+		Assert.assertEquals(perSubtree, getAggregate(right.getId()).getCount());
+	}
+
+	private static long readVarint(DataInputStream input)
+			throws IOException {
+		long value = 0;
+		int shift = 0;
+		int b;
+		do {
+			b = input.readUnsignedByte();
+			value |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+
+	@Test
+	public void shouldEncodeAllNodesInColumns() throws NamingException,
+			IOException {
+		// given
+		TreeService srv = getService();
+		TreeNode root = (TreeNode) srv.create(newNode(null, 100)).getEntity();
+		TreeNode child = (TreeNode) srv.create(newNode(root.getId(), 200))
+				.getEntity();
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+		// when
+		srv.getAllColumns().write(output);
+		DataInputStream input = new DataInputStream(
+				new ByteArrayInputStream(output.toByteArray()));
+		byte[] magic = new byte[4];
+		input.readFully(magic);
+		int count = input.readInt();
+		input.readInt();
+		input.readInt();
+		long rootId = readVarint(input);
+		long childId = rootId + readVarint(input);
+		long rootParent = readVarint(input);
+		long childParent = childId - readVarint(input);
+		double rootValue = input.readDouble();
+		double childValue = input.readDouble();
+
+		// then
+		Assert.assertEquals("TRC1", new String(magic, "US-ASCII"));
+		Assert.assertEquals(2, count);
+		Assert.assertEquals(root.getId().longValue(), rootId);
+		Assert.assertEquals(child.getId().longValue(), childId);
+		Assert.assertEquals(0, rootParent);
+		Assert.assertEquals(rootId, childParent);
+		Assert.assertEquals(100d, rootValue, 0.0);
+		Assert.assertEquals(200d, childValue, 0.0);
+		Assert.assertEquals(-1, input.read());
+	}
+
+	@Test
+	public void shouldKeepTreeInMemoryStore() throws NamingException {
+		// given
+		MemoryTreeStore store = (MemoryTreeStore) new InitialContext()
+				.lookup("java:module/MemoryTreeStore!pl.mpiglas.tree.ejb.store.MemoryTreeStore");
+		store.clear();
+		Map<Long, String> paths = new HashMap<>();
+		TreeNode root = store.create(newNode(null, 10), paths).get();
+		TreeNode child = store.create(newNode(root.getId(), 20), paths).get();
+		TreeNode leaf = store.create(newNode(child.getId(), 5), paths).get();
+		TreeNode other = store.create(newNode(root.getId(), 30), paths).get();
+		TreeBatch batch = new TreeBatch();
+		batch.getCreated().add(newNode(-1L, other.getId(), 1));
+		// leaf is already deleted with its parent
+		batch.getDeleted().add(child.getId());
+		batch.getDeleted().add(leaf.getId());
+
+		// when
+		boolean secondRoot = store.create(newNode(null, 1), paths).isPresent();
+		List<TreeNode> children = store.getChildren(root.getId()).get();
+		boolean rejected = !store.applyBatch(batch, paths).isPresent();
+		batch.getDeleted().remove(1);
+		Map<Long, Long> ids = store.applyBatch(batch, paths).get();
+		TreeAggregate aggregate = store.getAggregate(root.getId()).get();
+
+		// then
+		Assert.assertFalse(secondRoot);
+		Assert.assertEquals(Arrays.asList(child.getId(), other.getId()),
+				children.stream().map(TreeNode::getId).collect(Collectors.toList()));
+		Assert.assertEquals(TreeNodeEntity.childPath(paths.get(root.getId()),
+				child.getId()), paths.get(child.getId()));
+		Assert.assertTrue(rejected);
+		Assert.assertEquals(3, store.getAll().size());
+		Assert.assertEquals(other.getId(), store.getNode(ids.get(-1L)).get()
+				.getParentId());
+		Assert.assertEquals(41d, aggregate.getSum(), 0.0);
+		Assert.assertEquals(1d, aggregate.getMin(), 0.0);
+		Assert.assertEquals(30d, aggregate.getMax(), 0.0);
+		Assert.assertEquals(2, aggregate.getCount());
+		Assert.assertFalse(store.getNode(leaf.getId()).isPresent());
+		store.clear();
+	}
+
+	@Test
+	public void shouldCoalesceBufferedUpdates() throws NamingException {
+		// given
+		TreeService srv = getService();
+		UpdateBuffer buffer = (UpdateBuffer) new InitialContext()
+				.lookup("java:module/UpdateBuffer!pl.mpiglas.tree.ejb.core.UpdateBuffer");
+		TreeNode root = (TreeNode) srv.create(newNode(null, 100)).getEntity();
+		long since = srv.getChanges(null).getRevision();
+
+		// when
+		buffer.update(newNode(root.getId(), null, 200));
+		buffer.update(newNode(root.getId(), null, 300));
+		boolean missing = buffer.update(newNode(root.getId() + 50, null, 1));
+		TreeNode buffered = (TreeNode) srv.getNode(root.getId()).getEntity();
+		TreeChanges beforeFlush = srv.getChanges(since);
+		buffer.flush();
+		TreeChanges afterFlush = srv.getChanges(since);
+
+		// then
+		Assert.assertFalse(missing);
+		Assert.assertEquals(300d, buffered.getValue(), 0.0);
+		Assert.assertTrue(beforeFlush.getChanges().isEmpty());
+		Assert.assertEquals(1, afterFlush.getChanges().size());
+		Assert.assertEquals(300d, afterFlush.getChanges().get(0).getValue(), 0.0);
+		Assert.assertTrue(buffer.isEmpty());
+	}
+
+	@Test
+	public void shouldFlushBufferBeforeOtherModifications()
+			throws NamingException, IOException {
+		// given
+		TreeService srv = getService();
+		UpdateBuffer buffer = (UpdateBuffer) new InitialContext()
+				.lookup("java:module/UpdateBuffer!pl.mpiglas.tree.ejb.core.UpdateBuffer");
+		SetupManager setup = (SetupManager) new InitialContext()
+				.lookup("java:module/SetupManager!pl.mpiglas.tree.ejb.core.SetupManager");
+		TreeNode root = (TreeNode) srv.create(newNode(null, 100)).getEntity();
+		buffer.update(newNode(root.getId(), null, 200));
+		ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+		srv.streamAll().write(streamed);
+		TreeBatch batch = new TreeBatch();
+		batch.getUpdated().add(newNode(root.getId(), null, 300));
+
+		// when
+		Response applied = srv.batch(batch);
+		boolean emptyAfterBatch = buffer.isEmpty();
+		TreeNode saved = getNode(root.getId()).get();
+		buffer.update(newNode(root.getId(), null, 400));
+		setup.clearDb();
+
+		// then
+		Assert.assertTrue(streamed.toString("UTF-8").contains("\"value\":200"));
+		Assert.assertEquals(Status.OK.getStatusCode(), applied.getStatus());
+		Assert.assertTrue(emptyAfterBatch);
+		Assert.assertEquals(300d, saved.getValue(), 0.0);
+		Assert.assertTrue(buffer.isEmpty());
+		Assert.assertTrue(srv.getAll().isEmpty());
+	}
+
+	@Test
+	public void shouldCreateSubtreeInBulk() throws NamingException {
+		// given
+		TreeManager manager = (TreeManager) new InitialContext()
+				.lookup("java:module/TreeManager!pl.mpiglas.tree.ejb.core.TreeManager");
+		TreeNode root = manager.create(newNode(null, 0)).get();
+		int size = 2000;
+		List<TreeNode> nodes = new ArrayList<>();
+		for (int i = 0; i < size; i++) {
+			// binary subtree, parent of i-th node is (i-1)/2-th node
+			TreeNode node = newNode(i == 0 ? root.getId() : -1L - (i - 1) / 2, i);
+			node.setId(-1L - i);
+			nodes.add(node);
+		}
+
+		// when
+		for (int i = 0; i < size / 4; i++) {
+			manager.create(newNode(root.getId(), 1));
+		}
+		Map<Long, Long> ids = manager.createSubtree(nodes).get();
+		Optional<Map<Long, Long>> invalid = manager.createSubtree(
+				Collections.singletonList(newNode(-5L, -1L, 1)));
+
+		// then
+		Assert.assertEquals(size, ids.size());
+		Assert.assertFalse(invalid.isPresent());
+		TreeAggregate aggregate = manager.getAggregate(root.getId()).get();
+		Assert.assertEquals(size + size / 4, aggregate.getCount());
+		Assert.assertEquals(size * (size - 1) / 2 + size / 4,
+				aggregate.getSum(), 0.0);
+		Assert.assertEquals(size - 1, aggregate.getMax(), 0.0);
+		TreeAggregate subtree = manager.getAggregate(ids.get(-1L)).get();
+		Assert.assertEquals(size - 1, subtree.getCount());
+		Assert.assertEquals(size - 1, manager.getSubtree(ids.get(-2L)).get()
+				.size() + manager.getSubtree(ids.get(-3L)).get().size());
+	}
+
+	@Test
+	public void shouldImportAndExportTree() throws NamingException, IOException {
+		// given
+		TreeService srv = getService();
+		// children precede their parents
+		String ndjson = "{\"id\":7,\"parentId\":5,\"value\":3.5}\n"
+				+ "{\"id\":6,\"parentId\":5,\"value\":2}\n"
+				+ "\n"
+				+ "{\"id\":5,\"parentId\":null,\"value\":1}\n"
+				+ "{\"id\":8,\"parentId\":7,\"value\":4}\n";
+
+		// when
+		Response imported = srv.importNdjson(new ByteArrayInputStream(
+				ndjson.getBytes("UTF-8")));
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		srv.exportCsv().write(output);
+		Response orphan = srv.importCsv(new ByteArrayInputStream(
+				"id,parentId,value\n1,99,1.0\n".getBytes("UTF-8")));
+		Response malformed = srv.importCsv(new ByteArrayInputStream(
+				"1,,x\n".getBytes("UTF-8")));
+
+		// then
+		Assert.assertEquals(Status.OK.getStatusCode(), imported.getStatus());
+		Assert.assertEquals(4L, ((Map<?, ?>) imported.getEntity()).get("imported"));
+		String[] lines = output.toString("UTF-8").split("\n");
+		Assert.assertEquals(TreeTextFormat.CSV_HEADER, lines[0]);
+		Assert.assertEquals(5, lines.length);
+		List<TreeNode> nodes = srv.getAll();
+		TreeNode root = nodes.stream().filter(n -> n.getParentId() == null)
+				.findFirst().get();
+		Assert.assertEquals(1d, root.getValue(), 0.0);
+		TreeAggregate aggregate = (TreeAggregate) srv.getAggregate(root.getId())
+				.getEntity();
+		Assert.assertEquals(3, aggregate.getCount());
+		Assert.assertEquals(10.5, aggregate.getSum(), 0.0);
+		Assert.assertEquals(Status.BAD_REQUEST.getStatusCode(), orphan.getStatus());
+		Assert.assertEquals(Status.BAD_REQUEST.getStatusCode(),
+				malformed.getStatus());
+		Assert.assertEquals(4, srv.getAll().size());
+	}
+
+	@Test
+	public void shouldGenerateReproducibleTree() throws NamingException {
+		// given
+		SetupService setup = (SetupService) new InitialContext()
+				.lookup("java:module/SetupService!pl.mpiglas.tree.endpoint.rest.SetupService");
+		TreeService srv = getService();
+
+		// when
+		Response first = setup.generate(2500, 3, 12, "random", 7);
+		List<Double> firstValues = srv.getAll().stream()
+				.sorted(Comparator.comparing(TreeNode::getId))
+				.map(TreeNode::getValue).collect(Collectors.toList());
+		Response second = setup.generate(2500, 3, 12, "random", 7);
+		List<TreeNode> nodes = srv.getAll();
+		Response tooMany = setup.generate(8, 2, 2, "balanced", 7);
+		Response unknownShape = setup.generate(10, 2, 5, "circle", 7);
+
+		// then
+		Assert.assertEquals(Status.OK.getStatusCode(), first.getStatus());
+		Assert.assertEquals(2500L, ((Map<?, ?>) second.getEntity()).get("generated"));
+		Assert.assertEquals(firstValues, nodes.stream()
+				.sorted(Comparator.comparing(TreeNode::getId))
+				.map(TreeNode::getValue).collect(Collectors.toList()));
+		Map<Long, Long> children = nodes.stream()
+				.filter(n -> n.getParentId() != null)
+				.collect(Collectors.groupingBy(TreeNode::getParentId,
+						Collectors.counting()));
+		Assert.assertTrue(children.values().stream().allMatch(c -> c <= 3));
+		Assert.assertEquals(Status.BAD_REQUEST.getStatusCode(),
+				tooMany.getStatus());
+		Assert.assertEquals(Status.BAD_REQUEST.getStatusCode(),
+				unknownShape.getStatus());
+	}
+
+	private String explain(String sql) {
+		return String.valueOf(em.createNativeQuery("EXPLAIN " + sql)
+				.getSingleResult());
+	}
+
+	@Test
+	public void shouldUseIndexesForChildrenAndRoot() throws NamingException {
+		// given
+		TreeService srv = getService();
+		TreeNode root = (TreeNode) srv.create(newNode(null, 100)).getEntity();
+		srv.create(newNode(root.getId(), 200));
+
+		// when
+		String childrenPlan = explain("SELECT ID FROM TREE_NODES WHERE "
+				+ TreeNodeEntity.PARENT_COLUMN + " = " + root.getId());
+		String rootPlan = explain("SELECT ID FROM TREE_NODES WHERE "
+				+ TreeNodeEntity.ROOT_MARKER_COLUMN + " = TRUE");
+		Response secondRoot = srv.create(newNode(null, 300));
+
+		// then
+		Assert.assertTrue(childrenPlan, childrenPlan.contains("IDX_TREE_NODES_PARENT"));
+		Assert.assertTrue(rootPlan, rootPlan.contains("UK_TREE_NODES_ROOT"));
+		Assert.assertEquals(Status.BAD_REQUEST.getStatusCode(),
+				secondRoot.getStatus());
+	}
+
+	@Test
+	public void shouldRejectStaleConditionalUpdate() throws NamingException {
+		// given
+		TreeService srv = getService();
+		TreeNode root = (TreeNode) srv.create(newNode(null, 100)).getEntity();
+		String tag = srv.getNode(root.getId()).getEntityTag().toString();
+
+		// when
+		Response first = srv.update(newNode(root.getId(), null, 200), tag);
+		Response stale = srv.update(newNode(root.getId(), null, 300), tag);
+		Response current = srv.update(newNode(root.getId(), null, 400),
+				first.getEntityTag().toString());
+		Response invalid = srv.update(newNode(root.getId(), null, 500), "\"x\"");
+
+		// then
+		Assert.assertEquals(Status.OK.getStatusCode(), first.getStatus());
+		Assert.assertEquals(Status.PRECONDITION_FAILED.getStatusCode(),
+				stale.getStatus());
+		Assert.assertEquals(Status.OK.getStatusCode(), current.getStatus());
+		Assert.assertEquals(Status.BAD_REQUEST.getStatusCode(),
+				invalid.getStatus());
+		Assert.assertEquals(400d,
+				((TreeNode) srv.getNode(root.getId()).getEntity()).getValue(), 0.0);
+		Assert.assertEquals(current.getEntityTag(),
+				srv.getNode(root.getId()).getEntityTag());
+	}
+
+	@Test
+	public void shouldMaintainAggregatesWithConditionalUpdate()
+			throws NamingException {
+		// given
+		TreeService srv = getService();
+		TreeNode root = (TreeNode) srv.create(newNode(null, 10)).getEntity();
+		TreeNode child = (TreeNode) srv.create(newNode(root.getId(), 20))
+				.getEntity();
+		TreeNode leaf = (TreeNode) srv.create(newNode(child.getId(), 5))
+				.getEntity();
+		String tag = srv.getNode(leaf.getId()).getEntityTag().toString();
+
+		// when
+		Response raised = srv.update(newNode(leaf.getId(), child.getId(), 50),
+				tag);
+		TreeAggregate afterRaise = getAggregate(root.getId());
+		Response lowered = srv.update(newNode(leaf.getId(), child.getId(), 1),
+				raised.getEntityTag().toString());
+		TreeAggregate afterLower = getAggregate(root.getId());
+
+		// then
+		Assert.assertEquals(Status.OK.getStatusCode(), raised.getStatus());
+		Assert.assertEquals(Status.OK.getStatusCode(), lowered.getStatus());
+		Assert.assertEquals(80d, afterRaise.getSum(), 0.0);
+		Assert.assertEquals(10d, afterRaise.getMin(), 0.0);
+		Assert.assertEquals(50d, afterRaise.getMax(), 0.0);
+		Assert.assertEquals(31d, afterLower.getSum(), 0.0);
+		Assert.assertEquals(1d, afterLower.getMin(), 0.0);
+		Assert.assertEquals(20d, afterLower.getMax(), 0.0);
+		Assert.assertEquals(20d, getAggregate(child.getId()).getMax(), 0.0);
+	}
+
+	@Test
+	public void shouldRejectRequestsWhenQueueIsFull() throws Exception {
+		// given
+		RequestExecutor executor = (RequestExecutor) new InitialContext()
+				.lookup("java:module/RequestExecutor!pl.mpiglas.tree.endpoint.rest.RequestExecutor");
+		CountDownLatch release = new CountDownLatch(1);
+		List<Object> resumed = Collections.synchronizedList(new ArrayList<>());
+		AsyncResponse response = (AsyncResponse) Proxy.newProxyInstance(
+				getClass().getClassLoader(),
+				new Class<?>[] { AsyncResponse.class }, (proxy, method, args) -> {
+					if (method.getName().equals("resume")) {
+						resumed.add(args[0]);
+					}
+					return method.getReturnType() == boolean.class ? true : null;
+				});
+
+		// when
+		int submitted = 0;
+		Response rejected = null;
+		while (rejected == null && submitted < 10000) {
+			executor.submit(RequestExecutor.Pool.READ, response, () -> {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return "done";
+			});
+			submitted++;
+			synchronized (resumed) {
+				rejected = resumed.stream().filter(r -> r instanceof Response)
+						.map(r -> (Response) r).findFirst().orElse(null);
+			}
+		}
+		release.countDown();
+		for (int i = 0; i < 100 && resumed.size() < submitted; i++) {
+			TimeUnit.MILLISECONDS.sleep(100);
+		}
+
+		// then
+		Assert.assertNotNull(rejected);
+		Assert.assertEquals(Status.SERVICE_UNAVAILABLE.getStatusCode(),
+				rejected.getStatus());
+		Assert.assertNotNull(rejected.getHeaderString(HttpHeaders.RETRY_AFTER));
+		Assert.assertEquals(submitted, resumed.size());
+		Assert.assertEquals(submitted - 1,
+				resumed.stream().filter("done"::equals).count());
+		Assert.assertTrue(executor.getRejected(RequestExecutor.Pool.READ) >= 1);
+		Assert.assertEquals(0, executor.getQueued(RequestExecutor.Pool.READ));
+	}
+
+	/**
+	 * Suspended response that keeps resumed results and timeout handler, so
+	 * test decides when request times out.
+	 */
+	private static AsyncResponse timedResponse(List<Object> resumed,
+			AtomicReference<TimeoutHandler> handler, AtomicInteger timeouts) {
+		return (AsyncResponse) Proxy.newProxyInstance(
+				TreeServiceIT.class.getClassLoader(),
+				new Class<?>[] { AsyncResponse.class }, (proxy, method, args) -> {
+					switch (method.getName()) {
+					case "resume":
+						resumed.add(args[0]);
+						break;
+					case "setTimeoutHandler":
+						handler.set((TimeoutHandler) args[0]);
+						break;
+					case "setTimeout":
+						timeouts.incrementAndGet();
+						break;
+					default:
+						break;
+					}
+					return method.getReturnType() == boolean.class ? true : null;
+				});
+	}
+
+	@Test
+	public void shouldInterruptReadAfterTimeout() throws Exception {
+		// given
+		RequestExecutor executor = (RequestExecutor) new InitialContext()
+				.lookup("java:module/RequestExecutor!pl.mpiglas.tree.endpoint.rest.RequestExecutor");
+		List<Object> resumed = Collections.synchronizedList(new ArrayList<>());
+		AtomicReference<TimeoutHandler> handler = new AtomicReference<>();
+		AsyncResponse response = timedResponse(resumed, handler,
+				new AtomicInteger());
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch interrupted = new CountDownLatch(1);
+		executor.submit(RequestExecutor.Pool.READ, response, () -> {
+			started.countDown();
+			try {
+				new CountDownLatch(1).await();
+			} catch (InterruptedException e) {
+				interrupted.countDown();
+			}
+			return "done";
+		});
+		Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+
+		// when
+		handler.get().handleTimeout(response);
+
+		// then
+		Assert.assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+		Assert.assertEquals(Status.SERVICE_UNAVAILABLE.getStatusCode(),
+				((Response) resumed.get(0)).getStatus());
+	}
+
+	@Test
+	public void shouldAnswerLongModificationAfterExtensions() throws Exception {
+		// given
+		RequestExecutor executor = (RequestExecutor) new InitialContext()
+				.lookup("java:module/RequestExecutor!pl.mpiglas.tree.endpoint.rest.RequestExecutor");
+		List<Object> resumed = Collections.synchronizedList(new ArrayList<>());
+		AtomicReference<TimeoutHandler> handler = new AtomicReference<>();
+		AtomicInteger timeouts = new AtomicInteger();
+		AsyncResponse response = timedResponse(resumed, handler, timeouts);
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		executor.submit(RequestExecutor.Pool.WRITE, response, () -> {
+			started.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return "done";
+		});
+		Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+
+		// when
+		for (int i = 0; i < RequestExecutor.MAX_WRITE_EXTENSIONS; i++) {
+			handler.get().handleTimeout(response);
+		}
+		boolean answeredBeforeLimit = !resumed.isEmpty();
+		handler.get().handleTimeout(response);
+		release.countDown();
+
+		// then
+		Assert.assertFalse(answeredBeforeLimit);
+		Assert.assertEquals(RequestExecutor.MAX_WRITE_EXTENSIONS + 1,
+				timeouts.get());
+		Assert.assertEquals(Status.GATEWAY_TIMEOUT.getStatusCode(),
+				((Response) resumed.get(0)).getStatus());
+	}
 }
@@ -0,0 +1,237 @@
+package pl.mpiglas.tree.load;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+import javax.websocket.ClientEndpointConfig;
+import javax.websocket.CloseReason;
+import javax.websocket.ContainerProvider;
+import javax.websocket.DeploymentException;
+import javax.websocket.Endpoint;
+import javax.websocket.EndpointConfig;
+import javax.websocket.MessageHandler;
+import javax.websocket.Session;
+
+/**
+ * Simulated user of tree client. Editor holds its own session of change
+ * socket, like browser does, and issues calls of tree service one after
+ * another, chosen at random from mix of operations.
+ *
+ * Start of each modification is registered by id of node in map shared by
+ * all editors. Delivery lag is time from that start to arrival of change of
+ * the node at socket of each editor, so it includes latency of call itself.
+ * Changes coalesced by server are matched with the latest modification of
+ * node.
+ *
+ * @author mpiglas
+ *
+ */
+final class Editor extends Endpoint implements Runnable {
+
+	private static final int VALUE_BOUND = 1000;
+
+	private final TreeClient client;
+	private final Map<Operation, Integer> mix;
+	private final List<Long> nodeIds;
+	private final Map<Long, Long> modified;
+	private final Random random;
+	/**
+	 * Leaves created by this editor, the only nodes it deletes.
+	 */
+	private final List<Long> created = new ArrayList<>();
+	private final Map<Operation, Latencies> latencies = new EnumMap<>(
+			Operation.class);
+	private final Map<Operation, AtomicLong> errors = new EnumMap<>(
+			Operation.class);
+	private final Latencies deliveryLag = new Latencies();
+	private final AtomicLong messages = new AtomicLong();
+	private final AtomicLong resets = new AtomicLong();
+	private volatile long measureFrom;
+	private volatile long measureUntil;
+	private Session session;
+
+	/**
+	 * Creates editor.
+	 *
+	 * @param client
+	 *            client of tree service
+	 * @param mix
+	 *            weights of operations
+	 * @param nodeIds
+	 *            ids of generated tree, never deleted by editors
+	 * @param modified
+	 *            start times of modifications by node id, shared by editors
+	 * @param seed
+	 *            seed of chosen operations, nodes and values
+	 */
+	Editor(TreeClient client, Map<Operation, Integer> mix, List<Long> nodeIds,
+			Map<Long, Long> modified, long seed) {
+		this.client = client;
+		this.mix = mix;
+		this.nodeIds = nodeIds;
+		this.modified = modified;
+		this.random = new Random(seed);
+		for (Operation operation : Operation.values()) {
+			latencies.put(operation, new Latencies());
+			errors.put(operation, new AtomicLong());
+		}
+	}
+
+	/**
+	 * Opens session of change socket.
+	 *
+	 * @param socketUri
+	 *            URI of socket, e.g. ws://localhost:9080/changeEvent
+	 */
+	void connect(URI socketUri) throws DeploymentException, IOException {
+		ContainerProvider.getWebSocketContainer().connectToServer(this,
+				ClientEndpointConfig.Builder.create().build(), socketUri);
+	}
+
+	/**
+	 * Sets period in which calls and deliveries are recorded.
+	 *
+	 * @param from
+	 *            start of measurement, from {@link System#nanoTime()}
+	 * @param until
+	 *            end of run, from {@link System#nanoTime()}
+	 */
+	void measure(long from, long until) {
+		measureFrom = from;
+		measureUntil = until;
+	}
+
+	@Override
+	public void onOpen(Session session, EndpointConfig config) {
+		this.session = session;
+		// anonymous class, so type of messages can be resolved
+		session.addMessageHandler(new MessageHandler.Whole<String>() {
+			@Override
+			public void onMessage(String message) {
+				received(message, System.nanoTime());
+			}
+		});
+	}
+
+	@Override
+	public void onClose(Session session, CloseReason reason) {
+		this.session = null;
+	}
+
+	private void received(String message, long now) {
+		if (!isMeasured(now)) {
+			return;
+		}
+		messages.incrementAndGet();
+		try {
+			JsonObject json = Json.createReader(new StringReader(message))
+					.readObject();
+			if ("reset".equals(json.getString("type", null))) {
+				resets.incrementAndGet();
+				return;
+			}
+			for (JsonValue change : json.getJsonArray("changes")) {
+				JsonNumber nodeId = ((JsonObject) change).getJsonNumber("nodeId");
+				Long started = modified.get(nodeId.longValue());
+				if (started != null && started >= measureFrom) {
+					deliveryLag.record(now - started);
+				}
+			}
+		} catch (JsonException | ClassCastException | NullPointerException e) {
+			// not a change message
+		}
+	}
+
+	@Override
+	public void run() {
+		long now;
+		while ((now = System.nanoTime()) < measureUntil) {
+			Operation operation = Operation.next(mix, random);
+			if (operation == Operation.DELETE && created.isEmpty()) {
+				operation = Operation.CREATE;
+			}
+			try {
+				call(operation, now);
+				if (isMeasured(now)) {
+					latencies.get(operation).record(System.nanoTime() - now);
+				}
+			} catch (IOException e) {
+				if (isMeasured(now)) {
+					errors.get(operation).incrementAndGet();
+				}
+			}
+		}
+	}
+
+	private boolean isMeasured(long time) {
+		return time >= measureFrom && time < measureUntil;
+	}
+
+	private void call(Operation operation, long started) throws IOException {
+		double value = random.nextInt(VALUE_BOUND);
+		switch (operation) {
+		case CREATE:
+			long parentId = nodeIds.get(random.nextInt(nodeIds.size()));
+			long id = client.create(parentId, value);
+			// id is known only after response, creations delivered earlier
+			// are not counted
+			modified.put(id, started);
+			created.add(id);
+			break;
+		case UPDATE:
+			long nodeId = nodeIds.get(random.nextInt(nodeIds.size()));
+			modified.put(nodeId, started);
+			client.update(nodeId, value);
+			break;
+		case DELETE:
+			long leafId = created.remove(created.size() - 1);
+			modified.put(leafId, started);
+			client.delete(leafId);
+			break;
+		default:
+			client.getAll();
+		}
+	}
+
+	/**
+	 * Closes session of change socket.
+	 */
+	void close() throws IOException {
+		Session open = session;
+		if (open != null) {
+			open.close();
+		}
+	}
+
+	Latencies getLatencies(Operation operation) {
+		return latencies.get(operation);
+	}
+
+	long getErrors(Operation operation) {
+		return errors.get(operation).get();
+	}
+
+	Latencies getDeliveryLag() {
+		return deliveryLag;
+	}
+
+	long getMessages() {
+		return messages.get();
+	}
+
+	long getResets() {
+		return resets.get();
+	}
+}
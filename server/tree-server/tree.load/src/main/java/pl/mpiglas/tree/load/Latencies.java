@@ -0,0 +1,78 @@
+package pl.mpiglas.tree.load;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recorded latencies of single kind of operation. All samples are kept, so
+ * percentiles are exact.
+ *
+ * @author mpiglas
+ *
+ */
+final class Latencies {
+
+	private long[] samples = new long[1024];
+	private int count;
+
+	/**
+	 * Records single sample.
+	 *
+	 * @param nanos
+	 *            latency in nanoseconds
+	 */
+	synchronized void record(long nanos) {
+		if (count == samples.length) {
+			samples = Arrays.copyOf(samples, count * 2);
+		}
+		samples[count++] = nanos;
+	}
+
+	/**
+	 * Adds samples of other latencies.
+	 *
+	 * @param other
+	 *            latencies recorded by other editor
+	 */
+	synchronized void addAll(Latencies other) {
+		long[] added;
+		synchronized (other) {
+			added = Arrays.copyOf(other.samples, other.count);
+		}
+		if (count + added.length > samples.length) {
+			samples = Arrays.copyOf(samples,
+					Math.max(samples.length * 2, count + added.length));
+		}
+		System.arraycopy(added, 0, samples, count, added.length);
+		count += added.length;
+	}
+
+	synchronized int count() {
+		return count;
+	}
+
+	/**
+	 * Computes percentiles of recorded samples.
+	 *
+	 * @param percents
+	 *            percentiles from 0 to 100
+	 * @return latencies in milliseconds, in order of requested percentiles, or
+	 *         NaN if nothing was recorded.
+	 */
+	synchronized double[] percentiles(double... percents) {
+		double[] result = new double[percents.length];
+		long[] sorted = Arrays.copyOf(samples, count);
+		Arrays.sort(sorted);
+		for (int i = 0; i < percents.length; i++) {
+			if (count == 0) {
+				result[i] = Double.NaN;
+				continue;
+			}
+			// nearest rank, tolerant to rounding of percent
+			int index = (int) Math.ceil(percents[i] / 100 * count - 1e-9) - 1;
+			result[i] = sorted[Math.max(0, Math.min(count - 1, index))]
+					/ (double) TimeUnit.MILLISECONDS.toNanos(1);
+		}
+		return result;
+	}
+}
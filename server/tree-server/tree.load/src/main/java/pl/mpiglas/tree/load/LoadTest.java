@@ -0,0 +1,235 @@
+package pl.mpiglas.tree.load;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Load test of tree server. Starts Swarm jar of tree.endpoint on localhost,
+ * or uses server that is already running, and runs scenario for each
+ * combination of number of editors and size of tree. Each scenario replaces
+ * tree with generated one, connects editors, warms up and then records calls
+ * and deliveries of changes for given time. Throughput, latency percentiles
+ * and delivery lag are printed per scenario.
+ *
+ * <pre>
+ * --jar=tree.endpoint/target/tree.endpoint-1.0.0-swarm.jar  jar of server
+ * --server-option=--store=memory  option passed to server, may be repeated
+ * --url=http://localhost:9080     use running server instead of jar
+ * --editors=1,10,50               numbers of concurrent editors
+ * --nodes=1000,100000             sizes of generated tree
+ * --mix=create=20,update=50,delete=10,all=20  weights of operations
+ * --warmup=5 --duration=30        seconds of warm up and measurement
+ * --seed=0                        seed of tree and editors
+ * </pre>
+ *
+ * @author mpiglas
+ *
+ */
+public final class LoadTest {
+
+	private static final String DEFAULT_URL = "http://localhost:9080";
+	private static final long START_TIMEOUT_SECONDS = 120;
+	private static final int FANOUT = 10;
+	private static final int DEPTH = 20;
+	private static final double[] PERCENTILES = { 50, 99, 99.9 };
+
+	private String jar = "tree.endpoint/target/tree.endpoint-1.0.0-swarm.jar";
+	private final List<String> serverOptions = new ArrayList<>();
+	private String url;
+	private List<Integer> editorCounts = Collections.singletonList(10);
+	private List<Integer> treeSizes = Collections.singletonList(1000);
+	private Map<Operation, Integer> mix = Operation
+			.parseMix("create=20,update=50,delete=10,all=20");
+	private long warmupSeconds = 5;
+	private long durationSeconds = 30;
+	private long seed;
+
+	private LoadTest() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		LoadTest test = new LoadTest();
+		try {
+			test.parse(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+		test.run();
+	}
+
+	private void parse(String[] args) {
+		for (String arg : args) {
+			String value = arg.substring(arg.indexOf('=') + 1);
+			if (arg.startsWith("--jar=")) {
+				jar = value;
+			} else if (arg.startsWith("--server-option=")) {
+				serverOptions.add(value);
+			} else if (arg.startsWith("--url=")) {
+				url = value;
+			} else if (arg.startsWith("--editors=")) {
+				editorCounts = parseList(value);
+			} else if (arg.startsWith("--nodes=")) {
+				treeSizes = parseList(value);
+			} else if (arg.startsWith("--mix=")) {
+				mix = Operation.parseMix(value);
+			} else if (arg.startsWith("--warmup=")) {
+				warmupSeconds = Long.parseLong(value);
+			} else if (arg.startsWith("--duration=")) {
+				durationSeconds = Long.parseLong(value);
+			} else if (arg.startsWith("--seed=")) {
+				seed = Long.parseLong(value);
+			} else {
+				throw new IllegalArgumentException("Unknown option " + arg);
+			}
+		}
+	}
+
+	private static List<Integer> parseList(String value) {
+		return Stream.of(value.split(",")).map(String::trim)
+				.map(Integer::valueOf).collect(Collectors.toList());
+	}
+
+	private void run() throws Exception {
+		Process server = null;
+		if (url == null) {
+			url = DEFAULT_URL;
+			server = startServer();
+		}
+		// connections of editors are kept alive, not one per call
+		System.setProperty("http.maxConnections", Integer.toString(
+				editorCounts.stream().mapToInt(Integer::intValue).max().getAsInt()));
+		TreeClient client = new TreeClient(url);
+		try {
+			awaitServer(client, server);
+			for (int treeSize : treeSizes) {
+				for (int editorCount : editorCounts) {
+					runScenario(client, editorCount, treeSize);
+				}
+			}
+		} finally {
+			if (server != null) {
+				server.destroy();
+				server.waitFor(START_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+			}
+		}
+	}
+
+	private Process startServer() throws IOException {
+		List<String> command = new ArrayList<>();
+		command.add(System.getProperty("java.home") + File.separator + "bin"
+				+ File.separator + "java");
+		command.add("-jar");
+		command.add(jar);
+		command.addAll(serverOptions);
+		File log = new File("loadtest-server.log");
+		System.out.println("Starting " + String.join(" ", command)
+				+ ", output in " + log);
+		Process server = new ProcessBuilder(command).redirectErrorStream(true)
+				.redirectOutput(log).start();
+		Runtime.getRuntime().addShutdownHook(new Thread(server::destroy));
+		return server;
+	}
+
+	private static void awaitServer(TreeClient client, Process server)
+			throws InterruptedException {
+		long deadline = System.nanoTime()
+				+ TimeUnit.SECONDS.toNanos(START_TIMEOUT_SECONDS);
+		while (!client.isUp()) {
+			if (server != null && !server.isAlive()) {
+				throw new IllegalStateException("Server exited with code "
+						+ server.exitValue());
+			}
+			if (System.nanoTime() > deadline) {
+				throw new IllegalStateException("Server not started in "
+						+ START_TIMEOUT_SECONDS + " s");
+			}
+			TimeUnit.SECONDS.sleep(1);
+		}
+	}
+
+	private void runScenario(TreeClient client, int editorCount, int treeSize)
+			throws Exception {
+		long generated = client.generate(treeSize, FANOUT, DEPTH, seed);
+		List<Long> nodeIds = Collections.unmodifiableList(client.getIds());
+		System.out.printf("%nScenario: %d editors, %d nodes, %d s%n",
+				editorCount, generated, durationSeconds);
+
+		Map<Long, Long> modified = new ConcurrentHashMap<>();
+		URI socketUri = URI.create(url.replaceFirst("^http", "ws")
+				+ "/changeEvent");
+		List<Editor> editors = new ArrayList<>();
+		for (int i = 0; i < editorCount; i++) {
+			Editor editor = new Editor(client, mix, nodeIds, modified, seed + i);
+			editor.connect(socketUri);
+			editors.add(editor);
+		}
+		long from = System.nanoTime() + TimeUnit.SECONDS.toNanos(warmupSeconds);
+		long until = from + TimeUnit.SECONDS.toNanos(durationSeconds);
+		List<Thread> threads = new ArrayList<>();
+		for (Editor editor : editors) {
+			editor.measure(from, until);
+			Thread thread = new Thread(editor, "editor-" + threads.size());
+			thread.start();
+			threads.add(thread);
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		// late deliveries of the last changes
+		TimeUnit.SECONDS.sleep(1);
+		for (Editor editor : editors) {
+			editor.close();
+		}
+		report(editors);
+	}
+
+	private void report(List<Editor> editors) {
+		System.out.printf("%-10s %10s %8s %10s %10s %10s %10s%n", "operation",
+				"count", "errors", "per s", "p50 ms", "p99 ms", "p999 ms");
+		Latencies total = new Latencies();
+		long totalErrors = 0;
+		for (Operation operation : Operation.values()) {
+			Latencies latencies = new Latencies();
+			long errors = 0;
+			for (Editor editor : editors) {
+				latencies.addAll(editor.getLatencies(operation));
+				errors += editor.getErrors(operation);
+			}
+			if (latencies.count() > 0 || errors > 0) {
+				printRow(operation.name().toLowerCase(), latencies, errors);
+			}
+			total.addAll(latencies);
+			totalErrors += errors;
+		}
+		printRow("total", total, totalErrors);
+
+		Latencies lag = new Latencies();
+		long messages = 0;
+		long resets = 0;
+		for (Editor editor : editors) {
+			lag.addAll(editor.getDeliveryLag());
+			messages += editor.getMessages();
+			resets += editor.getResets();
+		}
+		printRow("delivery", lag, 0);
+		System.out.printf("messages %d, resets %d%n", messages, resets);
+	}
+
+	private void printRow(String name, Latencies latencies, long errors) {
+		double[] percentiles = latencies.percentiles(PERCENTILES);
+		System.out.printf("%-10s %10d %8d %10.1f %10.2f %10.2f %10.2f%n", name,
+				latencies.count(), errors, latencies.count()
+						/ (double) durationSeconds, percentiles[0],
+				percentiles[1], percentiles[2]);
+	}
+}
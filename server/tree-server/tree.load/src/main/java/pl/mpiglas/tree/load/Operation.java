@@ -0,0 +1,85 @@
+package pl.mpiglas.tree.load;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Calls of tree service issued by editors.
+ *
+ * @author mpiglas
+ *
+ */
+enum Operation {
+	/**
+	 * Creates node under random node of generated tree.
+	 */
+	CREATE,
+	/**
+	 * Changes value of random node of generated tree.
+	 */
+	UPDATE,
+	/**
+	 * Deletes leaf created earlier by the same editor, or creates one if
+	 * editor has none.
+	 */
+	DELETE,
+	/**
+	 * Reads whole tree.
+	 */
+	ALL;
+
+	/**
+	 * Parses mix of operations.
+	 *
+	 * @param mix
+	 *            weights of operations, e.g. create=20,update=50,delete=10,all=20
+	 * @return weights by operation, operations not listed have weight 0.
+	 * @throws IllegalArgumentException
+	 *             if mix is malformed or all weights are 0
+	 */
+	static Map<Operation, Integer> parseMix(String mix) {
+		Map<Operation, Integer> weights = new EnumMap<>(Operation.class);
+		for (Operation operation : values()) {
+			weights.put(operation, 0);
+		}
+		int total = 0;
+		for (String entry : mix.split(",")) {
+			String[] pair = entry.split("=");
+			if (pair.length != 2) {
+				throw new IllegalArgumentException("Invalid mix " + mix);
+			}
+			int weight = Integer.parseInt(pair[1].trim());
+			if (weight < 0) {
+				throw new IllegalArgumentException("Invalid mix " + mix);
+			}
+			weights.put(valueOf(pair[0].trim().toUpperCase()), weight);
+			total += weight;
+		}
+		if (total == 0) {
+			throw new IllegalArgumentException("Invalid mix " + mix);
+		}
+		return weights;
+	}
+
+	/**
+	 * Chooses operation at random.
+	 *
+	 * @param weights
+	 *            mix returned by {@link #parseMix(String)}
+	 * @param random
+	 *            random of editor
+	 * @return operation chosen with probability proportional to its weight.
+	 */
+	static Operation next(Map<Operation, Integer> weights, Random random) {
+		int total = weights.values().stream().mapToInt(Integer::intValue).sum();
+		int draw = random.nextInt(total);
+		for (Map.Entry<Operation, Integer> weight : weights.entrySet()) {
+			draw -= weight.getValue();
+			if (draw < 0) {
+				return weight.getKey();
+			}
+		}
+		throw new IllegalStateException();
+	}
+}
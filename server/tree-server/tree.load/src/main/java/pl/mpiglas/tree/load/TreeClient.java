@@ -0,0 +1,193 @@
+package pl.mpiglas.tree.load;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+
+/**
+ * Blocking client of tree service. Connections are kept alive and reused by
+ * {@link HttpURLConnection}, so response bodies are always read to the end.
+ *
+ * @author mpiglas
+ *
+ */
+final class TreeClient {
+
+	private static final String JSON_TYPE = "text/json";
+	private static final String CSV_TYPE = "text/csv";
+	private static final int BUFFER_SIZE = 8192;
+
+	private final String baseUrl;
+
+	/**
+	 * Creates client of server.
+	 *
+	 * @param baseUrl
+	 *            URL of server, e.g. http://localhost:9080
+	 */
+	TreeClient(String baseUrl) {
+		this.baseUrl = baseUrl;
+	}
+
+	/**
+	 * Creates node.
+	 *
+	 * @return id of new node.
+	 */
+	long create(long parentId, double value) throws IOException {
+		String body = Json.createObjectBuilder().add("parentId", parentId)
+				.add("value", value).build().toString();
+		try (JsonReader reader = Json.createReader(new ByteArrayInputStream(
+				send("PUT", "/rest/tree/create", body)))) {
+			return reader.readObject().getJsonNumber("id").longValue();
+		}
+	}
+
+	void update(long id, double value) throws IOException {
+		String body = Json.createObjectBuilder().add("id", id)
+				.add("value", value).build().toString();
+		send("PUT", "/rest/tree/update", body);
+	}
+
+	void delete(long id) throws IOException {
+		send("GET", "/rest/tree/delete_id/" + id, null);
+	}
+
+	/**
+	 * Reads whole tree and discards it.
+	 *
+	 * @return size of response in bytes.
+	 */
+	long getAll() throws IOException {
+		HttpURLConnection connection = open("GET", "/rest/tree/all", JSON_TYPE);
+		try (InputStream input = connection.getInputStream()) {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			long size = 0;
+			for (int read; (read = input.read(buffer)) > 0;) {
+				size += read;
+			}
+			return size;
+		} catch (IOException e) {
+			throw failure(connection, e);
+		}
+	}
+
+	/**
+	 * Replaces tree with random synthetic one.
+	 *
+	 * @return number of generated nodes.
+	 */
+	long generate(int nodes, int fanout, int depth, long seed)
+			throws IOException {
+		String path = "/rest/setup/generate?shape=random&nodes=" + nodes
+				+ "&fanout=" + fanout + "&depth=" + depth + "&seed=" + seed;
+		try (JsonReader reader = Json.createReader(new ByteArrayInputStream(
+				send("GET", path, null)))) {
+			JsonObject json = reader.readObject();
+			return json.getJsonNumber("generated").longValue();
+		}
+	}
+
+	/**
+	 * Reads ids of all nodes from CSV export.
+	 *
+	 * @return ids ordered by id.
+	 */
+	List<Long> getIds() throws IOException {
+		HttpURLConnection connection = open("GET", "/rest/tree/export", CSV_TYPE);
+		List<Long> ids = new ArrayList<>();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+				connection.getInputStream(), StandardCharsets.UTF_8))) {
+			// skips header
+			reader.readLine();
+			for (String line; (line = reader.readLine()) != null;) {
+				if (!line.isEmpty()) {
+					ids.add(Long.valueOf(line.substring(0, line.indexOf(','))));
+				}
+			}
+			return ids;
+		} catch (IOException e) {
+			throw failure(connection, e);
+		}
+	}
+
+	/**
+	 * Checks if server accepts requests.
+	 */
+	boolean isUp() {
+		try {
+			send("GET", "/", null);
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private byte[] send(String method, String path, String body)
+			throws IOException {
+		HttpURLConnection connection = open(method, path, JSON_TYPE);
+		try {
+			if (body != null) {
+				connection.setDoOutput(true);
+				connection.setRequestProperty("Content-Type", JSON_TYPE);
+				try (OutputStream output = connection.getOutputStream()) {
+					output.write(body.getBytes(StandardCharsets.UTF_8));
+				}
+			}
+			try (InputStream input = connection.getInputStream()) {
+				return readAll(input);
+			}
+		} catch (IOException e) {
+			throw failure(connection, e);
+		}
+	}
+
+	private HttpURLConnection open(String method, String path, String accept)
+			throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl
+				+ path).openConnection();
+		connection.setRequestMethod(method);
+		connection.setRequestProperty("Accept", accept);
+		return connection;
+	}
+
+	/**
+	 * Reads error response, so connection may be reused, and describes
+	 * failure.
+	 */
+	private static IOException failure(HttpURLConnection connection,
+			IOException cause) {
+		try (InputStream error = connection.getErrorStream()) {
+			if (error != null) {
+				readAll(error);
+			}
+			return new IOException(connection.getRequestMethod() + " "
+					+ connection.getURL().getPath() + " returned "
+					+ connection.getResponseCode(), cause);
+		} catch (IOException e) {
+			return cause;
+		}
+	}
+
+	private static byte[] readAll(InputStream input) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		byte[] buffer = new byte[BUFFER_SIZE];
+		for (int read; (read = input.read(buffer)) > 0;) {
+			output.write(buffer, 0, read);
+		}
+		return output.toByteArray();
+	}
+}
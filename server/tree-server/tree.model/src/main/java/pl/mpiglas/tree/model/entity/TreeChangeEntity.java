@@ -0,0 +1,136 @@
+package pl.mpiglas.tree.model.entity;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+import javax.persistence.Table;
+
+import pl.mpiglas.tree.model.transfer.TreeChange;
+import pl.mpiglas.tree.model.transfer.TreeChange.Operation;
+
+/**
+ * Entry of append-only change log of tree. Entry is written in the same
+ * transaction as modification of tree.
+ * 
+ * @author mpiglas
+ *
+ */
+@Entity
+@Table(name = "TREE_CHANGES", indexes = @Index(name = "IDX_TREE_CHANGES_REVISION", columnList = "REVISION"))
+@NamedQueries({
+		@NamedQuery(name = TreeChangeEntity.FIND_CHANGES, query = "SELECT NEW pl.mpiglas.tree.model.transfer.TreeChange(c.revision, c.operation, c.nodeId, c.parentId, c.nodeValue) "
+				+ "FROM TreeChangeEntity c WHERE c.revision > :since AND c.revision <= :until ORDER BY c.revision, c.id"),
+		@NamedQuery(name = TreeChangeEntity.DELETE_CHANGES, query = "DELETE FROM TreeChangeEntity c WHERE c.revision <= :until")
+})
+public class TreeChangeEntity {
+
+	/**
+	 * Identifier of query that reads changes from given range of revisions.
+	 */
+	public static final String FIND_CHANGES = "TreeChangeEntity.findChanges";
+	/**
+	 * Identifier of bulk query that deletes changes up to given revision.
+	 */
+	public static final String DELETE_CHANGES = "TreeChangeEntity.deleteChanges";
+	public static final String SINCE_PARAM = "since";
+	public static final String UNTIL_PARAM = "until";
+
+	@GeneratedValue(strategy = GenerationType.AUTO)
+	@Id
+	private Long id;
+
+	@Column(nullable = false, name = "REVISION")
+	private long revision;
+
+	@Enumerated(EnumType.STRING)
+	@Column(nullable = false, name = "OPERATION", length = 10)
+	private Operation operation;
+
+	@Column(nullable = false, name = "NODE_ID")
+	private Long nodeId;
+
+	@Column(name = "PARENT_ID")
+	private Long parentId;
+
+	@Column(name = "NODE_VALUE")
+	private Double nodeValue;
+
+	public Long getId() {
+		return id;
+	}
+
+	public void setId(Long id) {
+		this.id = id;
+	}
+
+	public long getRevision() {
+		return revision;
+	}
+
+	public void setRevision(long revision) {
+		this.revision = revision;
+	}
+
+	public Operation getOperation() {
+		return operation;
+	}
+
+	public void setOperation(Operation operation) {
+		this.operation = operation;
+	}
+
+	public Long getNodeId() {
+		return nodeId;
+	}
+
+	public void setNodeId(Long nodeId) {
+		this.nodeId = nodeId;
+	}
+
+	public Long getParentId() {
+		return parentId;
+	}
+
+	public void setParentId(Long parentId) {
+		this.parentId = parentId;
+	}
+
+	public Double getNodeValue() {
+		return nodeValue;
+	}
+
+	public void setNodeValue(Double nodeValue) {
+		this.nodeValue = nodeValue;
+	}
+
+	/**
+	 * Maps domain object to entity.
+	 * 
+	 * @param change
+	 *            modification of tree
+	 * @return new entity.
+	 */
+	public static TreeChangeEntity fromChange(TreeChange change) {
+		TreeChangeEntity entity = new TreeChangeEntity();
+		entity.setRevision(change.getRevision());
+		entity.setOperation(change.getOperation());
+		entity.setNodeId(change.getNodeId());
+		entity.setParentId(change.getParentId());
+		entity.setNodeValue(change.getValue());
+		return entity;
+	}
+
+	@Override
+	public String toString() {
+		return "TreeChangeEntity [id=" + id + ", revision=" + revision
+				+ ", operation=" + operation + ", nodeId=" + nodeId
+				+ ", parentId=" + parentId + ", nodeValue=" + nodeValue + "]";
+	}
+}
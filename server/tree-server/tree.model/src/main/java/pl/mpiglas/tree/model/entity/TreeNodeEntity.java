@@ -1,28 +1,86 @@
 package pl.mpiglas.tree.model.entity;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import javax.persistence.Column;
 import javax.persistence.Entity;
+import javax.persistence.FetchType;
 import javax.persistence.GeneratedValue;
-import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.JoinColumn;
+import javax.persistence.ManyToOne;
 import javax.persistence.NamedQueries;
 import javax.persistence.NamedQuery;
-import javax.persistence.OneToOne;
+import javax.persistence.OneToMany;
 import javax.persistence.Table;
+import javax.persistence.Transient;
+import javax.persistence.UniqueConstraint;
+import javax.persistence.Version;
+
+import org.hibernate.annotations.BatchSize;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.OptimisticLock;
 
 /**
  * Entity represents tree and its nodes.
  * 
+ * Parent is referenced lazily by indexed column, so children of node are
+ * found without scanning the table. Children of several loaded nodes are
+ * fetched together, see {@link #CHILDREN_BATCH_SIZE}. Root is marked with
+ * unique {@link #ROOT_MARKER_COLUMN}, which is null for all other nodes, so
+ * database rejects second root and root is found by unique index.
+ * 
+ * Ids are allocated in pools by {@link TreeNodeIdGenerator}.
+ * 
+ * Besides reference to parent, each node keeps materialized path: ids of all
+ * its ancestors and its own id, so whole subtree or all ancestors of node can
+ * be read with single indexed query. Ids in path are encoded in base 36 to keep
+ * path short.
+ * 
+ * Node keeps also aggregates of values in its subtree: sum, minimum and
+ * maximum of values of node and all its descendants and number of
+ * descendants. They are updated along path of ancestors when tree is
+ * modified.
+ * 
+ * Version of node is incremented when its value is modified, so client may
+ * update node only if nobody else modified it in the meantime. Aggregates are
+ * excluded from versioning, because they change with descendants.
+ * 
  * @author mpiglas
  *
  */
 @Entity
-@Table(name = "TREE_NODES")
+@Table(name = "TREE_NODES", indexes = {
+		@Index(name = "IDX_TREE_NODES_PATH", columnList = "NODE_PATH"),
+		@Index(name = "IDX_TREE_NODES_PARENT", columnList = TreeNodeEntity.PARENT_COLUMN) }, uniqueConstraints = @UniqueConstraint(name = TreeNodeEntity.ROOT_CONSTRAINT, columnNames = TreeNodeEntity.ROOT_MARKER_COLUMN))
 @NamedQueries({
 		@NamedQuery(name = TreeNodeEntity.FIND_ALL_QUERY, query = "SELECT e FROM TreeNodeEntity e"),
+		@NamedQuery(name = TreeNodeEntity.FIND_ALL_NODES_QUERY, query = "SELECT NEW pl.mpiglas.tree.model.transfer.TreeNode(e.id, p.id, e.nodeValue) FROM TreeNodeEntity e LEFT JOIN e.parent p"),
+		@NamedQuery(name = TreeNodeEntity.FIND_ALL_ROWS, query = "SELECT e.id, p.id, e.nodeValue FROM TreeNodeEntity e LEFT JOIN e.parent p ORDER BY e.id"),
+		@NamedQuery(name = TreeNodeEntity.FIND_SUBTREE_ROWS, query = "SELECT e.id, p.id, e.nodeValue FROM TreeNodeEntity e LEFT JOIN e.parent p WHERE e.path LIKE :path ORDER BY e.id"),
+		@NamedQuery(name = TreeNodeEntity.FIND_PAGE_QUERY, query = "SELECT NEW pl.mpiglas.tree.model.transfer.TreeNode(e.id, p.id, e.nodeValue) FROM TreeNodeEntity e LEFT JOIN e.parent p WHERE e.id > :afterId ORDER BY e.id"),
+		@NamedQuery(name = TreeNodeEntity.FIND_NODE_PROJECTION, query = "SELECT NEW pl.mpiglas.tree.model.transfer.TreeNode(e.id, p.id, e.nodeValue) FROM TreeNodeEntity e LEFT JOIN e.parent p WHERE e.id = :nodeId"),
 		@NamedQuery(name = TreeNodeEntity.FIND_NODE_QUERY, query = "SELECT e FROM TreeNodeEntity e WHERE e.id = :nodeId"),
+		@NamedQuery(name = TreeNodeEntity.FIND_NODES_QUERY, query = "SELECT e FROM TreeNodeEntity e WHERE e.id IN :nodeIds"),
 		@NamedQuery(name = TreeNodeEntity.FIND_CHILDREN, query = "SELECT e from TreeNodeEntity e WHERE e.parent.id = :nodeId"),
-		@NamedQuery(name = TreeNodeEntity.FIND_ROOT, query = "SELECT e from TreeNodeEntity e WHERE e.parent = null")
+		@NamedQuery(name = TreeNodeEntity.FIND_CHILDREN_NODES, query = "SELECT NEW pl.mpiglas.tree.model.transfer.TreeNode(e.id, p.id, e.nodeValue) FROM TreeNodeEntity e JOIN e.parent p WHERE p.id = :nodeId ORDER BY e.id"),
+		@NamedQuery(name = TreeNodeEntity.FIND_SUBTREE, query = "SELECT NEW pl.mpiglas.tree.model.transfer.TreeNode(e.id, p.id, e.nodeValue) FROM TreeNodeEntity e LEFT JOIN e.parent p WHERE e.path LIKE :path ORDER BY e.path"),
+		@NamedQuery(name = TreeNodeEntity.FIND_SUBTREE_IDS, query = "SELECT e.id, e.depth FROM TreeNodeEntity e WHERE e.path LIKE :path"),
+		@NamedQuery(name = TreeNodeEntity.FIND_ANCESTORS, query = "SELECT NEW pl.mpiglas.tree.model.transfer.TreeNode(e.id, p.id, e.nodeValue) FROM TreeNodeEntity e LEFT JOIN e.parent p WHERE e.id IN :nodeIds ORDER BY e.depth"),
+		@NamedQuery(name = TreeNodeEntity.FIND_POSITIONS, query = "SELECT e.id, e.path, e.depth FROM TreeNodeEntity e WHERE e.id IN :nodeIds"),
+		@NamedQuery(name = TreeNodeEntity.FIND_PATH, query = "SELECT e.path FROM TreeNodeEntity e WHERE e.id = :nodeId"),
+		@NamedQuery(name = TreeNodeEntity.DELETE_NODES, query = "DELETE FROM TreeNodeEntity e WHERE e.id IN :nodeIds"),
+		@NamedQuery(name = TreeNodeEntity.FIND_AGGREGATE, query = "SELECT NEW pl.mpiglas.tree.model.transfer.TreeAggregate(e.id, e.subtreeSum, e.subtreeMin, e.subtreeMax, e.descendants) FROM TreeNodeEntity e WHERE e.id = :nodeId"),
+		@NamedQuery(name = TreeNodeEntity.FIND_CHILDREN_EXTREMES, query = "SELECT MIN(e.subtreeMin), MAX(e.subtreeMax) FROM TreeNodeEntity e WHERE e.parent.id = :nodeId"),
+		@NamedQuery(name = TreeNodeEntity.FIND_VERSION, query = "SELECT e.version FROM TreeNodeEntity e WHERE e.id = :nodeId"),
+		@NamedQuery(name = TreeNodeEntity.FIND_VERSIONED_VALUE, query = "SELECT e.nodeValue, e.path, e.version FROM TreeNodeEntity e WHERE e.id = :nodeId"),
+		@NamedQuery(name = TreeNodeEntity.UPDATE_VALUE_IF_VERSION, query = "UPDATE TreeNodeEntity e SET e.nodeValue = :value, e.version = e.version + 1 WHERE e.id = :nodeId AND e.version = :version"),
+		@NamedQuery(name = TreeNodeEntity.ADD_TO_SUBTREE_SUM, query = "UPDATE TreeNodeEntity e SET e.subtreeSum = e.subtreeSum + :value WHERE e.id IN :nodeIds"),
+		@NamedQuery(name = TreeNodeEntity.LOWER_SUBTREE_MIN, query = "UPDATE TreeNodeEntity e SET e.subtreeMin = :value WHERE e.id IN :nodeIds AND e.subtreeMin > :value"),
+		@NamedQuery(name = TreeNodeEntity.RAISE_SUBTREE_MAX, query = "UPDATE TreeNodeEntity e SET e.subtreeMax = :value WHERE e.id IN :nodeIds AND e.subtreeMax < :value"),
+		@NamedQuery(name = TreeNodeEntity.FIND_EXTREME_NODES, query = "SELECT e FROM TreeNodeEntity e WHERE e.id IN :nodeIds AND (e.subtreeMin = :value OR e.subtreeMax = :value)")
 		
 })
 public class TreeNodeEntity {
@@ -31,28 +89,203 @@ public class TreeNodeEntity {
 	 * Identifier of query that fetches all nodes from database.
 	 */
 	public static final String FIND_ALL_QUERY = "TreeNodeEntity.findAll";
+	/**
+	 * Identifier of query that reads all nodes directly as domain objects.
+	 */
+	public static final String FIND_ALL_NODES_QUERY = "TreeNodeEntity.findAllNodes";
+	/**
+	 * Identifier of query that reads id, parent's id and value of all nodes,
+	 * ordered by id.
+	 */
+	public static final String FIND_ALL_ROWS = "TreeNodeEntity.findAllRows";
+	/**
+	 * Identifier of query that reads id, parent's id and value of all nodes
+	 * which path starts with given prefix, ordered by id.
+	 */
+	public static final String FIND_SUBTREE_ROWS = "TreeNodeEntity.findSubtreeRows";
+	/**
+	 * Identifier of query that reads nodes with id greater than given one as
+	 * domain objects, ordered by id.
+	 */
+	public static final String FIND_PAGE_QUERY = "TreeNodeEntity.findPage";
+	public static final String AFTER_ID_PARAM = "afterId";
 	/**
 	 * Identifier of query that looks for node with given id.
 	 */
 	public static final String FIND_NODE_QUERY = "TreeNodeEntity.findNode";
 	public static final String NODE_ID_PARAM = "nodeId";
+	/**
+	 * Identifier of query that reads node with given id as domain object.
+	 */
+	public static final String FIND_NODE_PROJECTION = "TreeNodeEntity.findNodeProjection";
+	/**
+	 * Identifier of query that looks for nodes with given ids.
+	 */
+	public static final String FIND_NODES_QUERY = "TreeNodeEntity.findNodes";
+	public static final String NODE_IDS_PARAM = "nodeIds";
 	/**
 	 * Identifier of query that fetches all children of given node.
 	 */
 	public static final String FIND_CHILDREN = "TreeNodeEntity.findChildren";
-	
-	public static final String FIND_ROOT = "TreeNodeEntity.findRoot";
+	/**
+	 * Identifier of query that reads children of given node as domain
+	 * objects.
+	 */
+	public static final String FIND_CHILDREN_NODES = "TreeNodeEntity.findChildrenNodes";
+	/**
+	 * Identifier of query that fetches all nodes which path starts with given
+	 * prefix, ordered so that parent precedes its children.
+	 */
+	public static final String FIND_SUBTREE = "TreeNodeEntity.findSubtree";
+	/**
+	 * Identifier of query that fetches ids and depths of all nodes which path
+	 * starts with given prefix.
+	 */
+	public static final String FIND_SUBTREE_IDS = "TreeNodeEntity.findSubtreeIds";
+	public static final String PATH_PARAM = "path";
+	/**
+	 * Identifier of query that fetches nodes with given ids ordered from
+	 * root.
+	 */
+	public static final String FIND_ANCESTORS = "TreeNodeEntity.findAncestors";
+	/**
+	 * Identifier of query that reads path of node with given id.
+	 */
+	public static final String FIND_PATH = "TreeNodeEntity.findPath";
+	/**
+	 * Identifier of query that reads ids, paths and depths of nodes with given
+	 * ids.
+	 */
+	public static final String FIND_POSITIONS = "TreeNodeEntity.findPositions";
+	/**
+	 * Identifier of bulk query that deletes nodes with given ids.
+	 */
+	public static final String DELETE_NODES = "TreeNodeEntity.deleteNodes";
+	/**
+	 * Identifier of query that reads aggregates of subtree of given node.
+	 */
+	public static final String FIND_AGGREGATE = "TreeNodeEntity.findAggregate";
+	/**
+	 * Identifier of query that reads minimum and maximum of values in subtrees
+	 * of children of given node.
+	 */
+	public static final String FIND_CHILDREN_EXTREMES = "TreeNodeEntity.findChildrenExtremes";
+	/**
+	 * Identifier of query that reads version of given node.
+	 */
+	public static final String FIND_VERSION = "TreeNodeEntity.findVersion";
+	/**
+	 * Identifier of query that reads value, path and version of node with
+	 * given id.
+	 */
+	public static final String FIND_VERSIONED_VALUE = "TreeNodeEntity.findVersionedValue";
+	/**
+	 * Identifier of statement that sets value of node and increments its
+	 * version only if node has given version.
+	 */
+	public static final String UPDATE_VALUE_IF_VERSION = "TreeNodeEntity.updateValueIfVersion";
+	public static final String VERSION_PARAM = "version";
+	public static final String VALUE_PARAM = "value";
+	/**
+	 * Identifier of statement that adds given value to sums of subtrees of
+	 * nodes with given ids.
+	 */
+	public static final String ADD_TO_SUBTREE_SUM = "TreeNodeEntity.addToSubtreeSum";
+	/**
+	 * Identifier of statement that sets minimum of subtree to given value for
+	 * nodes with given ids which minimum is greater.
+	 */
+	public static final String LOWER_SUBTREE_MIN = "TreeNodeEntity.lowerSubtreeMin";
+	/**
+	 * Identifier of statement that sets maximum of subtree to given value for
+	 * nodes with given ids which maximum is lower.
+	 */
+	public static final String RAISE_SUBTREE_MAX = "TreeNodeEntity.raiseSubtreeMax";
+	/**
+	 * Identifier of query that fetches nodes with given ids which minimum or
+	 * maximum of subtree equals given value.
+	 */
+	public static final String FIND_EXTREME_NODES = "TreeNodeEntity.findExtremeNodes";
 
-	@GeneratedValue(strategy = GenerationType.AUTO)
+	/**
+	 * Separator of ids in materialized path.
+	 */
+	public static final String PATH_SEPARATOR = "/";
+	/**
+	 * Maximal length of materialized path, which limits depth of tree.
+	 */
+	public static final int MAX_PATH_LENGTH = 4000;
+	private static final int PATH_RADIX = 36;
+	/**
+	 * Indexed column with id of parent.
+	 */
+	public static final String PARENT_COLUMN = "PARENT_ID";
+	/**
+	 * Column that is true for tree's root and null for other nodes. Column is
+	 * unique, so only single root can exist.
+	 */
+	public static final String ROOT_MARKER_COLUMN = "ROOT_MARKER";
+	/**
+	 * Unique constraint of {@link #ROOT_MARKER_COLUMN}, which rejects second
+	 * root.
+	 */
+	public static final String ROOT_CONSTRAINT = "UK_TREE_NODES_ROOT";
+	/**
+	 * Number of nodes which children are fetched with single query.
+	 */
+	public static final int CHILDREN_BATCH_SIZE = 50;
+
+	@GeneratedValue(generator = "treeNodeIds")
+	@GenericGenerator(name = "treeNodeIds", strategy = "pl.mpiglas.tree.model.entity.TreeNodeIdGenerator")
 	@Id
 	private Long id;
 
-	@OneToOne
+	/**
+	 * Path of parent kept until id is generated.
+	 */
+	@Transient
+	private String parentPath;
+
+	@ManyToOne(fetch = FetchType.LAZY)
+	@JoinColumn(name = PARENT_COLUMN)
 	private TreeNodeEntity parent;
 
+	@OneToMany(mappedBy = "parent")
+	@BatchSize(size = CHILDREN_BATCH_SIZE)
+	private List<TreeNodeEntity> children = new ArrayList<>();
+
+	@Column(name = ROOT_MARKER_COLUMN)
+	private Boolean rootMarker;
+
 	@Column(nullable = false, name = "NODE_VALUE")
 	private Double nodeValue;
 
+	@Column(nullable = false, name = "NODE_PATH", length = MAX_PATH_LENGTH)
+	private String path;
+
+	@Column(nullable = false, name = "NODE_DEPTH")
+	private int depth;
+
+	@Version
+	@Column(nullable = false, name = "NODE_VERSION")
+	private long version;
+
+	@OptimisticLock(excluded = true)
+	@Column(nullable = false, name = "SUBTREE_SUM")
+	private double subtreeSum;
+
+	@OptimisticLock(excluded = true)
+	@Column(nullable = false, name = "SUBTREE_MIN")
+	private double subtreeMin;
+
+	@OptimisticLock(excluded = true)
+	@Column(nullable = false, name = "SUBTREE_MAX")
+	private double subtreeMax;
+
+	@OptimisticLock(excluded = true)
+	@Column(nullable = false, name = "DESCENDANTS")
+	private long descendants;
+
 	public Long getId() {
 		return id;
 	}
@@ -67,6 +300,18 @@ public class TreeNodeEntity {
 
 	public void setParent(TreeNodeEntity parent) {
 		this.parent = parent;
+		rootMarker = parent == null ? Boolean.TRUE : null;
+	}
+
+	/**
+	 * Children of node, loaded on first access. Collection is inverse side of
+	 * {@link #getParent()} and isn't updated when nodes are created or
+	 * deleted in current transaction.
+	 * 
+	 * @return children of node.
+	 */
+	public List<TreeNodeEntity> getChildren() {
+		return children;
 	}
 
 	public Double getNodeValue() {
@@ -77,9 +322,157 @@ public class TreeNodeEntity {
 		this.nodeValue = nodeValue;
 	}
 
+	public String getPath() {
+		return path;
+	}
+
+	public void setPath(String path) {
+		this.path = path;
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	public void setDepth(int depth) {
+		this.depth = depth;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	public void setVersion(long version) {
+		this.version = version;
+	}
+
+	public double getSubtreeSum() {
+		return subtreeSum;
+	}
+
+	public void setSubtreeSum(double subtreeSum) {
+		this.subtreeSum = subtreeSum;
+	}
+
+	public double getSubtreeMin() {
+		return subtreeMin;
+	}
+
+	public void setSubtreeMin(double subtreeMin) {
+		this.subtreeMin = subtreeMin;
+	}
+
+	public double getSubtreeMax() {
+		return subtreeMax;
+	}
+
+	public void setSubtreeMax(double subtreeMax) {
+		this.subtreeMax = subtreeMax;
+	}
+
+	public long getDescendants() {
+		return descendants;
+	}
+
+	public void setDescendants(long descendants) {
+		this.descendants = descendants;
+	}
+
+	/**
+	 * Sets aggregates of leaf, which subtree contains only its own value.
+	 */
+	public void initAggregates() {
+		subtreeSum = nodeValue;
+		subtreeMin = nodeValue;
+		subtreeMax = nodeValue;
+		descendants = 0;
+	}
+
+	/**
+	 * Sets parent of node and fills its depth. Path is filled when id is
+	 * assigned, so node should be placed before it's persisted.
+	 * 
+	 * @param parent
+	 *            parent node or null if node is tree's root
+	 */
+	public void placeUnder(TreeNodeEntity parent) {
+		if (parent != null) {
+			placeUnder(parent, parent.getPath(), parent.getDepth());
+		} else {
+			placeUnder(null, PATH_SEPARATOR, -1);
+		}
+	}
+
+	/**
+	 * Sets parent of node and fills its depth. Path is filled when id is
+	 * assigned. Path and depth of parent are passed explicitly, so parent may
+	 * be uninitialized reference.
+	 * 
+	 * @param parent
+	 *            parent node or null if node is tree's root
+	 * @param parentPath
+	 *            path of parent
+	 * @param parentDepth
+	 *            depth of parent
+	 */
+	public void placeUnder(TreeNodeEntity parent, String parentPath,
+			int parentDepth) {
+		setParent(parent);
+		setDepth(parentDepth + 1);
+		this.parentPath = parentPath;
+		if (id != null) {
+			setPath(childPath(parentPath, id));
+		}
+	}
+
+	/**
+	 * Sets generated id and fills path of node placed under parent.
+	 * 
+	 * @param id
+	 *            new id
+	 */
+	void assignId(Long id) {
+		this.id = id;
+		if (parentPath != null) {
+			setPath(childPath(parentPath, id));
+		}
+	}
+
+	/**
+	 * Creates path of child node.
+	 * 
+	 * @param parentPath
+	 *            path of parent
+	 * @param childId
+	 *            id of child
+	 * @return path of child.
+	 */
+	public static String childPath(String parentPath, long childId) {
+		return parentPath + Long.toString(childId, PATH_RADIX) + PATH_SEPARATOR;
+	}
+
+	/**
+	 * Decodes ids of nodes on path, starting from tree's root.
+	 * 
+	 * @param path
+	 *            materialized path
+	 * @return list of ids, last one is id of node owning the path.
+	 */
+	public static List<Long> pathIds(String path) {
+		List<Long> ids = new ArrayList<>();
+		for (String id : path.split(PATH_SEPARATOR)) {
+			if (!id.isEmpty()) {
+				ids.add(Long.parseLong(id, PATH_RADIX));
+			}
+		}
+		return ids;
+	}
+
 	@Override
 	public String toString() {
-		return "TreeNodeEntity [id=" + id + ", parent=" + parent
-				+ ", nodeValue=" + nodeValue + "]";
+		// parent may be uninitialized proxy
+		return "TreeNodeEntity [id=" + id + ", parentId="
+				+ (parent != null ? parent.getId() : null) + ", nodeValue="
+				+ nodeValue + "]";
 	}
 }
@@ -0,0 +1,58 @@
+package pl.mpiglas.tree.model.entity;
+
+import java.io.Serializable;
+import java.util.Properties;
+
+import org.hibernate.HibernateException;
+import org.hibernate.MappingException;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.id.enhanced.SequenceStyleGenerator;
+import org.hibernate.id.enhanced.StandardOptimizerDescriptor;
+import org.hibernate.service.ServiceRegistry;
+import org.hibernate.type.Type;
+
+/**
+ * Generates ids of nodes from database sequence with pooled optimizer. Single
+ * call of sequence reserves {@link #ALLOCATION_SIZE_PROPERTY} ids, so new
+ * nodes are inserted without round trip per row and in JDBC batches.
+ *
+ * Materialized path of node contains its own id, so path is filled as soon as
+ * id is generated and row is inserted complete with single statement.
+ *
+ * @author mpiglas
+ *
+ */
+public class TreeNodeIdGenerator extends SequenceStyleGenerator {
+
+	/**
+	 * System property with number of ids reserved by single call of sequence.
+	 */
+	public static final String ALLOCATION_SIZE_PROPERTY = "tree.idAllocationSize";
+	/**
+	 * Default number of ids reserved by single call of sequence.
+	 */
+	public static final int DEFAULT_ALLOCATION_SIZE = 100;
+	/**
+	 * Name of database sequence.
+	 */
+	public static final String SEQUENCE_NAME = "TREE_NODE_IDS";
+
+	@Override
+	public void configure(Type type, Properties params,
+			ServiceRegistry serviceRegistry) throws MappingException {
+		params.setProperty(SEQUENCE_PARAM, SEQUENCE_NAME);
+		params.setProperty(INCREMENT_PARAM, Integer.toString(Integer.getInteger(
+				ALLOCATION_SIZE_PROPERTY, DEFAULT_ALLOCATION_SIZE)));
+		params.setProperty(OPT_PARAM,
+				StandardOptimizerDescriptor.POOLED.getExternalName());
+		super.configure(type, params, serviceRegistry);
+	}
+
+	@Override
+	public Serializable generate(SessionImplementor session, Object object)
+			throws HibernateException {
+		Long id = (Long) super.generate(session, object);
+		((TreeNodeEntity) object).assignId(id);
+		return id;
+	}
+}
@@ -0,0 +1,67 @@
+package pl.mpiglas.tree.model.entity;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+/**
+ * Single row with the latest revision of tree. Row is locked by every
+ * transaction that modifies tree, so revisions are committed in order.
+ * 
+ * @author mpiglas
+ *
+ */
+@Entity
+@Table(name = "TREE_REVISION")
+public class TreeRevisionEntity {
+
+	/**
+	 * Id of the only row.
+	 */
+	public static final Long SINGLE_ID = 1L;
+
+	@Id
+	private Long id;
+
+	@Column(nullable = false, name = "REVISION")
+	private long revision;
+
+	@Column(nullable = false, name = "COMPACTED_REVISION")
+	private long compactedRevision;
+
+	public Long getId() {
+		return id;
+	}
+
+	public void setId(Long id) {
+		this.id = id;
+	}
+
+	public long getRevision() {
+		return revision;
+	}
+
+	public void setRevision(long revision) {
+		this.revision = revision;
+	}
+
+	/**
+	 * Returns the latest revision, which changes were removed from change log.
+	 * 
+	 * @return compacted revision.
+	 */
+	public long getCompactedRevision() {
+		return compactedRevision;
+	}
+
+	public void setCompactedRevision(long compactedRevision) {
+		this.compactedRevision = compactedRevision;
+	}
+
+	@Override
+	public String toString() {
+		return "TreeRevisionEntity [revision=" + revision
+				+ ", compactedRevision=" + compactedRevision + "]";
+	}
+}
@@ -0,0 +1,94 @@
+package pl.mpiglas.tree.model.transfer;
+
+import java.io.Serializable;
+
+/**
+ * Aggregates of values in subtree of node: sum, minimum and maximum of values
+ * of node and all its descendants and number of descendants.
+ * 
+ * @author mpiglas
+ *
+ */
+public class TreeAggregate implements Serializable {
+
+	private static final long serialVersionUID = 7790186152313470862L;
+	private Long nodeId;
+	private double sum;
+	private double min;
+	private double max;
+	private long count;
+
+	public TreeAggregate() {
+	}
+
+	/**
+	 * Creates aggregate with all properties. Used by query that reads
+	 * aggregates directly from database.
+	 * 
+	 * @param nodeId
+	 *            id of subtree's root
+	 * @param sum
+	 *            sum of values
+	 * @param min
+	 *            minimal value
+	 * @param max
+	 *            maximal value
+	 * @param count
+	 *            number of descendants
+	 */
+	public TreeAggregate(Long nodeId, double sum, double min, double max,
+			long count) {
+		this.nodeId = nodeId;
+		this.sum = sum;
+		this.min = min;
+		this.max = max;
+		this.count = count;
+	}
+
+	public Long getNodeId() {
+		return nodeId;
+	}
+
+	public void setNodeId(Long nodeId) {
+		this.nodeId = nodeId;
+	}
+
+	public double getSum() {
+		return sum;
+	}
+
+	public void setSum(double sum) {
+		this.sum = sum;
+	}
+
+	public double getMin() {
+		return min;
+	}
+
+	public void setMin(double min) {
+		this.min = min;
+	}
+
+	public double getMax() {
+		return max;
+	}
+
+	public void setMax(double max) {
+		this.max = max;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public void setCount(long count) {
+		this.count = count;
+	}
+
+	@Override
+	public String toString() {
+		return "TreeAggregate [nodeId=" + nodeId + ", sum=" + sum + ", min="
+				+ min + ", max=" + max + ", count=" + count + "]";
+	}
+
+}
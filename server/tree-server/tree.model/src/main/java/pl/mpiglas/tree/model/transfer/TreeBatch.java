@@ -0,0 +1,53 @@
+package pl.mpiglas.tree.model.transfer;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Set of modifications of tree that are applied together in single
+ * transaction. New nodes are identified by temporary, negative ids assigned by
+ * client. Parent of new node may be existing node or other new node, which is
+ * placed earlier on the list.
+ *
+ * @author mpiglas
+ *
+ */
+public class TreeBatch implements Serializable {
+
+	private static final long serialVersionUID = -3127712693384025166L;
+	private List<TreeNode> created = new ArrayList<>();
+	private List<TreeNode> updated = new ArrayList<>();
+	private List<Long> deleted = new ArrayList<>();
+
+	public List<TreeNode> getCreated() {
+		return created;
+	}
+
+	public void setCreated(List<TreeNode> created) {
+		this.created = created;
+	}
+
+	public List<TreeNode> getUpdated() {
+		return updated;
+	}
+
+	public void setUpdated(List<TreeNode> updated) {
+		this.updated = updated;
+	}
+
+	public List<Long> getDeleted() {
+		return deleted;
+	}
+
+	public void setDeleted(List<Long> deleted) {
+		this.deleted = deleted;
+	}
+
+	@Override
+	public String toString() {
+		return "TreeBatch [created=" + created.size() + ", updated="
+				+ updated.size() + ", deleted=" + deleted.size() + "]";
+	}
+
+}
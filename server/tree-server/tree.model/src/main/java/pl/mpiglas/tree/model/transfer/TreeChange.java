@@ -0,0 +1,103 @@
+package pl.mpiglas.tree.model.transfer;
+
+import java.io.Serializable;
+
+/**
+ * Single modification of tree recorded in change log. Changes are applied by
+ * client in order of revisions. Deletion of node means deletion of its whole
+ * subtree.
+ * 
+ * @author mpiglas
+ *
+ */
+public class TreeChange implements Serializable {
+
+	private static final long serialVersionUID = -6080296284413412475L;
+
+	/**
+	 * Kind of modification.
+	 */
+	public enum Operation {
+		CREATE, UPDATE, DELETE
+	}
+
+	private long revision;
+	private Operation operation;
+	private Long nodeId;
+	private Long parentId;
+	private Double value;
+
+	public TreeChange() {
+	}
+
+	/**
+	 * Creates change with all properties.
+	 * 
+	 * @param revision
+	 *            revision of tree that contains the change
+	 * @param operation
+	 *            kind of modification
+	 * @param nodeId
+	 *            id of modified node
+	 * @param parentId
+	 *            parent's id, defined only for created node
+	 * @param value
+	 *            new value of node, undefined for deleted node
+	 */
+	public TreeChange(long revision, Operation operation, Long nodeId,
+			Long parentId, Double value) {
+		this.revision = revision;
+		this.operation = operation;
+		this.nodeId = nodeId;
+		this.parentId = parentId;
+		this.value = value;
+	}
+
+	public long getRevision() {
+		return revision;
+	}
+
+	public void setRevision(long revision) {
+		this.revision = revision;
+	}
+
+	public Operation getOperation() {
+		return operation;
+	}
+
+	public void setOperation(Operation operation) {
+		this.operation = operation;
+	}
+
+	public Long getNodeId() {
+		return nodeId;
+	}
+
+	public void setNodeId(Long nodeId) {
+		this.nodeId = nodeId;
+	}
+
+	public Long getParentId() {
+		return parentId;
+	}
+
+	public void setParentId(Long parentId) {
+		this.parentId = parentId;
+	}
+
+	public Double getValue() {
+		return value;
+	}
+
+	public void setValue(Double value) {
+		this.value = value;
+	}
+
+	@Override
+	public String toString() {
+		return "TreeChange [revision=" + revision + ", operation=" + operation
+				+ ", nodeId=" + nodeId + ", parentId=" + parentId + ", value="
+				+ value + "]";
+	}
+
+}
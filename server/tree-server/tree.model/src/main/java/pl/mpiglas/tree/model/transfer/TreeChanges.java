@@ -0,0 +1,94 @@
+package pl.mpiglas.tree.model.transfer;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Modifications of tree since revision known by client. If change log doesn't
+ * contain all requested changes, response is a snapshot with all nodes of
+ * tree instead of changes.
+ * 
+ * @author mpiglas
+ *
+ */
+public class TreeChanges implements Serializable {
+
+	private static final long serialVersionUID = 2350931219599130163L;
+	private long revision;
+	private boolean snapshot;
+	private List<TreeNode> nodes = new ArrayList<>();
+	private List<TreeChange> changes = new ArrayList<>();
+
+	/**
+	 * Creates list of changes.
+	 * 
+	 * @param revision
+	 *            revision of tree after the last change
+	 * @param changes
+	 *            changes ordered by revision
+	 * @return delta of tree.
+	 */
+	public static TreeChanges delta(long revision, List<TreeChange> changes) {
+		TreeChanges result = new TreeChanges();
+		result.setRevision(revision);
+		result.setChanges(changes);
+		return result;
+	}
+
+	/**
+	 * Creates snapshot of whole tree.
+	 * 
+	 * @param revision
+	 *            revision of tree
+	 * @param nodes
+	 *            all nodes of tree
+	 * @return snapshot of tree.
+	 */
+	public static TreeChanges snapshot(long revision, List<TreeNode> nodes) {
+		TreeChanges result = new TreeChanges();
+		result.setRevision(revision);
+		result.setSnapshot(true);
+		result.setNodes(nodes);
+		return result;
+	}
+
+	public long getRevision() {
+		return revision;
+	}
+
+	public void setRevision(long revision) {
+		this.revision = revision;
+	}
+
+	public boolean isSnapshot() {
+		return snapshot;
+	}
+
+	public void setSnapshot(boolean snapshot) {
+		this.snapshot = snapshot;
+	}
+
+	public List<TreeNode> getNodes() {
+		return nodes;
+	}
+
+	public void setNodes(List<TreeNode> nodes) {
+		this.nodes = nodes;
+	}
+
+	public List<TreeChange> getChanges() {
+		return changes;
+	}
+
+	public void setChanges(List<TreeChange> changes) {
+		this.changes = changes;
+	}
+
+	@Override
+	public String toString() {
+		return "TreeChanges [revision=" + revision + ", snapshot=" + snapshot
+				+ "]";
+	}
+
+}
@@ -18,6 +18,26 @@ public class TreeNode implements Serializable {
 	private Long parentId;
 	private Double value;
 
+	public TreeNode() {
+	}
+
+	/**
+	 * Creates node with all properties. Used by queries, which read nodes
+	 * directly as domain objects.
+	 * 
+	 * @param id
+	 *            node's id
+	 * @param parentId
+	 *            parent's id or null for tree's root
+	 * @param value
+	 *            node's value
+	 */
+	public TreeNode(Long id, Long parentId, Double value) {
+		this.id = id;
+		this.parentId = parentId;
+		this.value = value;
+	}
+
 	public Long getId() {
 		return id;
 	}